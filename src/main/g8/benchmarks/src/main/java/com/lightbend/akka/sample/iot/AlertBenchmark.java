@@ -0,0 +1,81 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Inbox;
+import akka.actor.Props;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pipelined {@link Device.RecordTemperature}s to a device evaluating {@code subscriptions} alert conditions on
+ * each of them, a rate of change and thresholds that the readings cross every 16 readings, so that the score
+ * includes the alerts pushed to the subscriber. {@code -p subscriptions=0} is the device without alerts.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AlertBenchmark {
+    static final FiniteDuration TIMEOUT = FiniteDuration.create(5, TimeUnit.SECONDS);
+    static final int BATCH_SIZE = 100;
+
+    @Param({"0", "1", "10"})
+    int subscriptions;
+
+    ActorSystem system;
+    ActorRef device;
+    Inbox inbox;
+    long requestId;
+
+    /**
+     * Drops the alerts, the benchmark only counts what it costs the device to send them.
+     */
+    static class Subscriber extends AbstractActor {
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder().matchAny(m -> { }).build();
+        }
+    }
+
+    @Setup
+    public void setup() {
+        system = ActorSystem.create("alert-benchmark");
+        device = system.actorOf(Device.props("group", "device"));
+        inbox = Inbox.create(system);
+        ActorRef subscriber = system.actorOf(Props.create(Subscriber.class));
+        AlertSubscriptions alerts = AlertSubscriptions.NONE;
+        for (int i = 0; i < subscriptions; i++) {
+            AlertCondition condition = i == 0 ? AlertCondition.rateOfChangeAbove(1000.0)
+                    : i % 2 == 0 ? AlertCondition.above(34.0 - i) : AlertCondition.below(21.0 + i);
+            alerts = alerts.with(subscriber, i, condition);
+        }
+        device.tell(new Device.SetAlerts(alerts), ActorRef.noSender());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        system.terminate();
+        system.getWhenTerminated().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public Object recordTemperaturePipelinedThroughput() throws TimeoutException {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            long id = requestId++;
+            inbox.send(device, new Device.RecordTemperature(id, 20.0 + (id & 15)));
+        }
+        Object ack = null;
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            ack = inbox.receive(TIMEOUT);
+        }
+        return ack;
+    }
+}
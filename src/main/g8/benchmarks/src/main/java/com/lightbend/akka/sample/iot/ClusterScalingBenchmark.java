@@ -0,0 +1,196 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.ShardRegion;
+import akka.pattern.PatternsCS;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.StreamSupport;
+
+/**
+ * Registration and ingest rate of groups sharded over {@code nodes} cluster nodes, each an actor system of its
+ * own in this JVM, talking over the loopback interface. The benchmark sends from one more node that hosts no
+ * groups, so every message crosses a node boundary at any node count. Scores are in devices and in readings
+ * per second; all nodes share the cores of this machine, so adding nodes only helps while cores are idle.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ClusterScalingBenchmark {
+    static final int GROUPS = 30;
+    static final int DEVICES_PER_GROUP = 100;
+    static final int REGISTRATIONS = 300;
+    static final long TIMEOUT_SECONDS = 30;
+
+    @Param({"1", "2", "3"})
+    int nodes;
+
+    ActorSystem[] groupNodes;
+    ActorSystem client;
+    ActorRef region;
+    ActorRef acks;
+    DeviceManager.RecordTemperatures[] readings;
+    long nextDevice;
+
+    @Setup
+    public void setup() throws Exception {
+        Config config = ConfigFactory.parseString(
+                "akka.remote.artery.canonical.port = 0\n" +
+                "akka.cluster.sharding.role = groups\n" +
+                "akka.log-dead-letters = off")
+                .withFallback(ConfigFactory.load("cluster"));
+        Config groupNode = ConfigFactory.parseString("akka.cluster.roles = [groups]").withFallback(config);
+        groupNodes = new ActorSystem[nodes];
+        for (int i = 0; i < nodes; i++) {
+            groupNodes[i] = ActorSystem.create("cluster-benchmark", groupNode);
+            Cluster.get(groupNodes[i]).join(Cluster.get(groupNodes[0]).selfAddress());
+        }
+        client = ActorSystem.create("cluster-benchmark", config);
+        Cluster.get(client).join(Cluster.get(groupNodes[0]).selfAddress());
+        awaitMembersUp(nodes + 1);
+
+        for (ActorSystem node : groupNodes) {
+            DeviceManager.startSharding(node, DeviceGroupSettings.defaults());
+        }
+        region = DeviceManager.startShardingProxy(client);
+        awaitRegions();
+        acks = client.actorOf(Props.create(AckCounter.class));
+
+        String[] deviceIds = new String[DEVICES_PER_GROUP];
+        for (int d = 0; d < DEVICES_PER_GROUP; d++) {
+            deviceIds[d] = "device" + d;
+        }
+        CompletableFuture<Void> registered = acks(GROUPS * DEVICES_PER_GROUP);
+        for (int g = 0; g < GROUPS; g++) {
+            for (String deviceId : deviceIds) {
+                region.tell(new DeviceManager.RequestTrackDevice("ingest" + g, deviceId), acks);
+            }
+        }
+        registered.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        readings = new DeviceManager.RecordTemperatures[GROUPS];
+        long[] requestIds = new long[DEVICES_PER_GROUP];
+        double[] values = new double[DEVICES_PER_GROUP];
+        long[] timestamps = new long[DEVICES_PER_GROUP];
+        for (int d = 0; d < DEVICES_PER_GROUP; d++) {
+            requestIds[d] = d;
+            values[d] = 20.0 + (d & 15);
+            timestamps[d] = System.currentTimeMillis();
+        }
+        for (int g = 0; g < GROUPS; g++) {
+            readings[g] = new DeviceManager.RecordTemperatures("ingest" + g, new DeviceGroup.RecordTemperatures(
+                    deviceIds, requestIds, values, timestamps));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.terminate();
+        client.getWhenTerminated().toCompletableFuture().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        for (int i = nodes - 1; i >= 0; i--) {
+            groupNodes[i].terminate();
+            groupNodes[i].getWhenTerminated().toCompletableFuture().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private void awaitMembersUp(int members) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (StreamSupport.stream(Cluster.get(client).state().getMembers().spliterator(), false)
+                       .filter(m -> m.status() == MemberStatus.up()).count() < members) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Cluster did not form in time");
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private void awaitRegions() throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (((ShardRegion.CurrentRegions) PatternsCS.ask(region, ShardRegion.getCurrentRegionsInstance(), 5000)
+                .toCompletableFuture().get()).getRegions().size() < nodes) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Shard regions did not register in time");
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private CompletableFuture<Void> acks(int count) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        acks.tell(new AckCounter.Expect(count, done), ActorRef.noSender());
+        return done;
+    }
+
+    /**
+     * Tracks {@value #REGISTRATIONS} new devices, spread over all groups.
+     */
+    @Benchmark
+    @OperationsPerInvocation(REGISTRATIONS)
+    public void registrationThroughput() throws Exception {
+        CompletableFuture<Void> registered = acks(REGISTRATIONS);
+        for (int i = 0; i < REGISTRATIONS; i++) {
+            long device = nextDevice++;
+            region.tell(new DeviceManager.RequestTrackDevice("register" + (device % GROUPS), "device" + device), acks);
+        }
+        registered.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Records one reading for each of the {@value #DEVICES_PER_GROUP} devices of each of the {@value #GROUPS}
+     * groups, one message per group.
+     */
+    @Benchmark
+    @OperationsPerInvocation(GROUPS * DEVICES_PER_GROUP)
+    public void ingestThroughput() throws Exception {
+        CompletableFuture<Void> recorded = acks(GROUPS * DEVICES_PER_GROUP);
+        for (DeviceManager.RecordTemperatures r : readings) {
+            region.tell(r, acks);
+        }
+        recorded.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Completes a future once it received the expected number of acknowledgements of any kind.
+     */
+    public static class AckCounter extends AbstractActor {
+        int outstanding;
+        CompletableFuture<Void> done;
+
+        static final class Expect {
+            final int count;
+            final CompletableFuture<Void> done;
+
+            Expect(int count, CompletableFuture<Void> done) {
+                this.count = count;
+                this.done = done;
+            }
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(Expect.class, e -> {
+                        outstanding = e.count;
+                        done = e.done;
+                    })
+                    .matchAny(ack -> {
+                        if (--outstanding == 0) {
+                            done.complete(null);
+                        }
+                    })
+                    .build();
+        }
+    }
+}
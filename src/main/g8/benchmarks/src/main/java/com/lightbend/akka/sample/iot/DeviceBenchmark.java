@@ -0,0 +1,107 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Inbox;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Round trip of a single {@link Device.RecordTemperature} and its {@link Device.TemperatureRecorded} ack,
+ * and of a {@link Device.RecordTemperatureBatch} (scored per reading) for comparison.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DeviceBenchmark {
+    static final FiniteDuration TIMEOUT = FiniteDuration.create(5, TimeUnit.SECONDS);
+    static final int BATCH_SIZE = 100;
+
+    ActorSystem system;
+    ActorRef device;
+
+    @Setup
+    public void setup() {
+        system = ActorSystem.create("device-benchmark");
+        device = system.actorOf(Device.props("group", "device"));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        system.terminate();
+        system.getWhenTerminated().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        Inbox inbox;
+        long requestId;
+
+        @Setup
+        public void setup(DeviceBenchmark benchmark) {
+            inbox = Inbox.create(benchmark.system);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public Object recordTemperatureThroughput(Client client) throws TimeoutException {
+        return recordTemperature(client);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Object recordTemperatureLatency(Client client) throws TimeoutException {
+        return recordTemperature(client);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public Object recordTemperatureBatchThroughput(Client client) throws TimeoutException {
+        long[] requestIds = new long[BATCH_SIZE];
+        double[] values = new double[BATCH_SIZE];
+        long[] timestamps = new long[BATCH_SIZE];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            long requestId = client.requestId++;
+            requestIds[i] = requestId;
+            values[i] = 20.0 + (requestId & 15);
+            timestamps[i] = now;
+        }
+        client.inbox.send(device, new Device.RecordTemperatureBatch(requestIds, values, timestamps));
+        return client.inbox.receive(TIMEOUT);
+    }
+
+    /**
+     * {@value #BATCH_SIZE} readings in flight at once, so the score is bound by the device, not the round trip.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public Object recordTemperaturePipelinedThroughput(Client client) throws TimeoutException {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            long requestId = client.requestId++;
+            client.inbox.send(device, new Device.RecordTemperature(requestId, 20.0 + (requestId & 15)));
+        }
+        Object ack = null;
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            ack = client.inbox.receive(TIMEOUT);
+        }
+        return ack;
+    }
+
+    private Object recordTemperature(Client client) throws TimeoutException {
+        long requestId = client.requestId++;
+        client.inbox.send(device, new Device.RecordTemperature(requestId, 20.0 + (requestId & 15)));
+        return client.inbox.receive(TIMEOUT);
+    }
+}
@@ -0,0 +1,123 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Inbox;
+import akka.actor.Props;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Round trip of a {@link Device.RecordTemperature} to a random one of {@code devices} devices in
+ * {@value #GROUPS} groups, while {@value #LOAD_IN_FLIGHT} other readings keep the devices busy, with the
+ * device dispatcher on the given {@code executor}: {@code fork-join-executor}, {@code affinity-pool-executor}
+ * (threads partitioned by group) or {@code virtual-threads} (JDK 21 or later, skipped otherwise).
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DeviceExecutorBenchmark {
+    static final FiniteDuration TIMEOUT = FiniteDuration.create(60, TimeUnit.SECONDS);
+    static final int GROUPS = 100;
+    static final int LOAD_IN_FLIGHT = 1000;
+
+    @Param({"fork-join-executor", "affinity-pool-executor", "virtual-threads"})
+    String executor;
+
+    @Param({"100000"})
+    int devices;
+
+    ActorSystem system;
+    ActorRef[] deviceActors;
+    Inbox inbox;
+    long requestId;
+
+    @Setup
+    public void setup() throws TimeoutException {
+        String executorClass = executor;
+        if ("virtual-threads".equals(executor)) {
+            if (!VirtualThreadExecutorConfigurator.isAvailable()) {
+                throw new IllegalStateException("virtual-threads needs JDK 21 or later");
+            }
+            executorClass = VirtualThreadExecutorConfigurator.class.getName();
+        }
+        system = ActorSystem.create("executor-benchmark", ConfigFactory
+                .parseString("iot.device-dispatcher.executor = \"" + executorClass + "\"")
+                .withFallback(ConfigFactory.load()));
+        inbox = Inbox.create(system);
+
+        ActorRef[] groups = new ActorRef[GROUPS];
+        for (int g = 0; g < GROUPS; g++) {
+            groups[g] = system.actorOf(DeviceGroup.props("g" + g), "group-g" + g);
+        }
+        system.actorOf(Props.create(Load.class, groups, devices / GROUPS, inbox.getRef()), "load");
+        deviceActors = (ActorRef[]) inbox.receive(TIMEOUT);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        system.terminate();
+        system.getWhenTerminated().toCompletableFuture().get(30, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Object recordTemperatureLatency() throws TimeoutException {
+        long id = requestId++;
+        ActorRef device = deviceActors[ThreadLocalRandom.current().nextInt(deviceActors.length)];
+        inbox.send(device, new Device.RecordTemperature(id, 20.0 + (id & 15)));
+        return inbox.receive(TIMEOUT);
+    }
+
+    /**
+     * Registers all devices, hands their actors to {@code ready} and from then on keeps
+     * {@value #LOAD_IN_FLIGHT} readings to random devices in flight.
+     */
+    public static class Load extends AbstractActor {
+        private final ActorRef ready;
+        private final ActorRef[] devices;
+        private int registered;
+        private long requestId;
+
+        public Load(ActorRef[] groups, int devicesPerGroup, ActorRef ready) {
+            this.ready = ready;
+            this.devices = new ActorRef[groups.length * devicesPerGroup];
+            for (int g = 0; g < groups.length; g++) {
+                String groupId = groups[g].path().name().substring("group-".length());
+                for (int d = 0; d < devicesPerGroup; d++) {
+                    groups[g].tell(new DeviceManager.RequestTrackDevice(groupId, "device" + d), getSelf());
+                }
+            }
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(DeviceManager.DeviceRegistered.class, r -> {
+                        devices[registered++] = getSender();
+                        if (registered == devices.length) {
+                            ready.tell(devices, getSelf());
+                            for (int i = 0; i < LOAD_IN_FLIGHT; i++) {
+                                sendReading();
+                            }
+                        }
+                    })
+                    .match(Device.TemperatureRecorded.class, r -> sendReading())
+                    .build();
+        }
+
+        private void sendReading() {
+            long id = requestId++;
+            devices[ThreadLocalRandom.current().nextInt(devices.length)]
+                    .tell(new Device.RecordTemperature(id, 20.0 + (id & 15)), getSelf());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Inbox;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Latency of {@link DeviceGroup.RequestAllTemperatures} for a group of {@code groupSize} devices that
+ * all have a reading, i.e. the full scatter-gather through {@link DeviceGroupQuery}, or the snapshot
+ * based answer with {@code -p maxStalenessMillis=100}.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DeviceGroupQueryBenchmark {
+    static final FiniteDuration TIMEOUT = FiniteDuration.create(30, TimeUnit.SECONDS);
+    static final int SETUP_WINDOW = 500;
+
+    @Param({"10", "100", "1000", "10000", "100000"})
+    int groupSize;
+
+    /**
+     * Anything above 0 enables the group snapshot and answers from it.
+     */
+    @Param({"0"})
+    long maxStalenessMillis;
+
+    ActorSystem system;
+    ActorRef group;
+    Inbox inbox;
+    long requestId;
+
+    @Setup
+    public void setup() throws TimeoutException {
+        system = ActorSystem.create("group-query-benchmark");
+        group = system.actorOf(DeviceGroup.props(
+                "group", DeviceGroupSettings.defaults().withSnapshotEnabled(maxStalenessMillis > 0)));
+        inbox = Inbox.create(system);
+
+        // the Inbox only buffers a bounded number of replies, so keep a window of requests in flight
+        for (int i = 0; i < groupSize; i++) {
+            inbox.send(group, new DeviceManager.RequestTrackDevice("group", "device" + i));
+            if (i >= SETUP_WINDOW) {
+                inbox.receive(TIMEOUT);
+            }
+        }
+        drain(Math.min(groupSize, SETUP_WINDOW));
+        for (int i = 0; i < groupSize; i++) {
+            system.actorSelection(group.path().child("device-device" + i))
+                    .tell(new Device.RecordTemperature(i, 20.0), inbox.getRef());
+            if (i >= SETUP_WINDOW) {
+                inbox.receive(TIMEOUT);
+            }
+        }
+        drain(Math.min(groupSize, SETUP_WINDOW));
+    }
+
+    private void drain(int replies) throws TimeoutException {
+        for (int i = 0; i < replies; i++) {
+            inbox.receive(TIMEOUT);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        system.terminate();
+        system.getWhenTerminated().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public Object requestAllTemperaturesThroughput() throws TimeoutException {
+        return requestAllTemperatures();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Object requestAllTemperaturesLatency() throws TimeoutException {
+        return requestAllTemperatures();
+    }
+
+    private Object requestAllTemperatures() throws TimeoutException {
+        inbox.send(group, new DeviceGroup.RequestAllTemperatures(requestId++, maxStalenessMillis));
+        return inbox.receive(TIMEOUT);
+    }
+}
@@ -0,0 +1,91 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Inbox;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registration rate of new devices through {@link DeviceManager}.
+ * <p>
+ * Every invocation tracks a device that does not exist yet, spread over {@code groups} groups,
+ * so the measurement includes creating the {@link Device} actor (and the group on first use), spread over
+ * {@code shards} manager shards.
+ * The actor system is recreated per iteration to keep the hierarchy from growing without bound.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DeviceManagerBenchmark {
+    static final FiniteDuration TIMEOUT = FiniteDuration.create(5, TimeUnit.SECONDS);
+
+    @Param({"1", "100"})
+    int groups;
+
+    @Param({"1", "8"})
+    int shards;
+
+    ActorSystem system;
+    ActorRef manager;
+    final AtomicLong nextDevice = new AtomicLong();
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        system = ActorSystem.create("manager-benchmark");
+        manager = system.actorOf(DeviceManager.props(shards));
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws Exception {
+        system.terminate();
+        system.getWhenTerminated().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        Inbox inbox;
+
+        @Setup(Level.Iteration)
+        public void setup(DeviceManagerBenchmark benchmark) {
+            inbox = Inbox.create(benchmark.system);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public Object trackDeviceThroughput(Client client) throws TimeoutException {
+        return trackDevice(client);
+    }
+
+    /**
+     * Registration storm from many gateways at once; compare {@code shards=1} with more shards.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(8)
+    public Object trackDeviceConcurrentThroughput(Client client) throws TimeoutException {
+        return trackDevice(client);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Object trackDeviceLatency(Client client) throws TimeoutException {
+        return trackDevice(client);
+    }
+
+    private Object trackDevice(Client client) throws TimeoutException {
+        long device = nextDevice.getAndIncrement();
+        client.inbox.send(manager, new DeviceManager.RequestTrackDevice(
+                "group" + (device % groups), "device" + device));
+        return client.inbox.receive(TIMEOUT);
+    }
+}
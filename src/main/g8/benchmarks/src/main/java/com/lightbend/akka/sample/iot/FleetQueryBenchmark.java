@@ -0,0 +1,125 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Inbox;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The {@code limit} highest temperatures of a fleet of {@code groups} groups of {@code devicesPerGroup} devices
+ * each, spread over 4 manager shards, either with one {@link DeviceManager.RequestFleetTemperatures}
+ * ({@code -p query=fleet}) or the way a client had to before it: a {@link DeviceGroup.RequestAllTemperatures}
+ * to every group, merging the answers itself ({@code -p query=perGroup}). Both ask every device; what differs
+ * is what reaches the client, whose encoded size is printed at setup.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FleetQueryBenchmark {
+    static final FiniteDuration TIMEOUT = FiniteDuration.create(10, TimeUnit.SECONDS);
+
+    @Param({"fleet", "perGroup"})
+    String query;
+
+    @Param({"10", "100"})
+    int groups;
+
+    @Param({"100"})
+    int devicesPerGroup;
+
+    @Param({"10"})
+    int limit;
+
+    ActorSystem system;
+    ActorRef manager;
+    Inbox inbox;
+    FleetFilter filter;
+    long nextRequestId;
+
+    @Setup
+    public void setup() throws TimeoutException {
+        system = ActorSystem.create("fleet-query-benchmark");
+        manager = system.actorOf(DeviceManager.props(4));
+        inbox = Inbox.create(system);
+        filter = FleetFilter.all().withLimit(limit);
+        for (int g = 0; g < groups; g++) {
+            String[] deviceIds = new String[devicesPerGroup];
+            long[] requestIds = new long[devicesPerGroup];
+            double[] values = new double[devicesPerGroup];
+            long[] timestamps = new long[devicesPerGroup];
+            for (int d = 0; d < devicesPerGroup; d++) {
+                deviceIds[d] = "device" + d;
+                inbox.send(manager, new DeviceManager.RequestTrackDevice("group" + g, deviceIds[d]));
+                inbox.receive(TIMEOUT);
+                requestIds[d] = d;
+                values[d] = 20.0 + ((g * 31 + d * 17) % 100) / 10.0;
+                timestamps[d] = System.currentTimeMillis();
+            }
+            inbox.send(manager, new DeviceManager.RecordTemperatures("group" + g, new DeviceGroup.RecordTemperatures(
+                    deviceIds, requestIds, values, timestamps)));
+            for (int d = 0; d < devicesPerGroup; d++) {
+                inbox.receive(TIMEOUT);
+            }
+        }
+
+        IotSerializer serializer = new IotSerializer();
+        long bytes = 0;
+        if ("fleet".equals(query)) {
+            inbox.send(manager, new DeviceManager.RequestFleetTemperatures(-1L, filter));
+            bytes = serializer.toBinary(inbox.receive(TIMEOUT)).length;
+        } else {
+            for (int g = 0; g < groups; g++) {
+                inbox.send(manager, new DeviceManager.ForGroup("group" + g, new DeviceGroup.RequestAllTemperatures(g)));
+            }
+            for (int g = 0; g < groups; g++) {
+                bytes += serializer.toBinary(inbox.receive(TIMEOUT)).length;
+            }
+        }
+        System.out.println();
+        System.out.println(query + " query of " + groups + " groups: " + bytes + " bytes to the client");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        system.terminate();
+        system.getWhenTerminated().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public Object topTemperaturesThroughput() throws TimeoutException {
+        return topTemperatures();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Object topTemperaturesLatency() throws TimeoutException {
+        return topTemperatures();
+    }
+
+    private List<DeviceManager.FleetTemperature> topTemperatures() throws TimeoutException {
+        long requestId = nextRequestId++;
+        if ("fleet".equals(query)) {
+            inbox.send(manager, new DeviceManager.RequestFleetTemperatures(requestId, filter));
+            return ((DeviceManager.RespondFleetTemperatures) inbox.receive(TIMEOUT)).temperatures;
+        }
+        for (int g = 0; g < groups; g++) {
+            inbox.send(manager, new DeviceManager.ForGroup("group" + g, new DeviceGroup.RequestAllTemperatures(g)));
+        }
+        TopTemperatures top = new TopTemperatures(filter);
+        for (int i = 0; i < groups; i++) {
+            DeviceGroup.RespondAllTemperatures r = (DeviceGroup.RespondAllTemperatures) inbox.receive(TIMEOUT);
+            String groupId = "group" + r.requestId;
+            r.temperatures.forEach((deviceId, reading) -> top.offer(groupId, deviceId, reading.getValue()));
+        }
+        return top.toList();
+    }
+}
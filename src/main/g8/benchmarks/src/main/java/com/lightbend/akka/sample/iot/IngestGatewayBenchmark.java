@@ -0,0 +1,147 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Inbox;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A local producer writing readings for {@code devices} devices to the {@link IngestGateway} as fast as its
+ * socket takes them, scored in readings per second, with {@code maxInFlight} credits per connection.
+ * <p>
+ * The secondary results show the footprint under that overload, sampled after every write: the most readings
+ * written but neither recorded by their device nor coalesced away ({@code backlog}, including the socket
+ * buffers) and the most heap in use ({@code heapUsedMb}), both per iteration; the summary line adds up the
+ * iterations. With bounded credits both stay flat; {@code -p maxInFlight=2147483647} shows the gateway without
+ * backpressure.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = "-Xmx1g")
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class IngestGatewayBenchmark {
+    static final FiniteDuration TIMEOUT = FiniteDuration.create(60, TimeUnit.SECONDS);
+    static final int GROUPS = 10;
+    static final int WRITE_READINGS = 1000;
+
+    @Param({"10000"})
+    int devices;
+
+    @Param({"65536"})
+    int maxInFlight;
+
+    /**
+     * Whether the devices journal their readings, as {@link IotMain} does.
+     */
+    @Param({"false", "true"})
+    boolean journal;
+
+    /**
+     * Whether the groups coalesce readings, {@code -p coalesceWindowMillis=10} for windows of 10 ms.
+     */
+    @Param({"0"})
+    long coalesceWindowMillis;
+
+    Path journalDirectory;
+    ActorSystem system;
+    IotMetrics metrics;
+    SocketChannel channel;
+    ByteBuffer readings;
+
+    @Setup
+    public void setup() throws IOException, TimeoutException {
+        system = ActorSystem.create("ingest-benchmark");
+        metrics = IotMetrics.get(system);
+        DeviceGroupSettings groupSettings = DeviceGroupSettings.defaults()
+                .withCoalesceWindowMillis(coalesceWindowMillis);
+        if (journal) {
+            journalDirectory = Files.createTempDirectory("journal");
+            groupSettings = groupSettings.withJournalDirectory(journalDirectory);
+        }
+        ActorRef manager = system.actorOf(DeviceManager.props(
+                Runtime.getRuntime().availableProcessors(), groupSettings));
+        ActorRef gateway = system.actorOf(IngestGateway.props(
+                manager, IngestSettings.defaults().withAddress("127.0.0.1", 0).withMaxInFlight(maxInFlight)));
+        Inbox inbox = Inbox.create(system);
+        inbox.send(gateway, new IngestGateway.GetAddress());
+        channel = SocketChannel.open((InetSocketAddress) inbox.receive(TIMEOUT));
+
+        ByteBuffer definitions = ByteBuffer.allocate(1 << 16);
+        for (int d = 0; d < devices; d++) {
+            if (definitions.remaining() < IngestProtocol.MAX_FRAME_BYTES) {
+                write(definitions);
+                definitions.clear();
+            }
+            IngestProtocol.putDefine(definitions, d, "group" + (d % GROUPS), "device" + d);
+        }
+        write(definitions);
+
+        Random random = new Random(42);
+        readings = ByteBuffer.allocate(WRITE_READINGS * IngestProtocol.READING_FRAME_BYTES);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < WRITE_READINGS; i++) {
+            IngestProtocol.putReading(readings, random.nextInt(devices), now + i, 20.0 + random.nextInt(16));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        channel.close();
+        system.terminate();
+        system.getWhenTerminated().toCompletableFuture().get(30, TimeUnit.SECONDS);
+        if (journalDirectory != null) {
+            TemperatureJournalBenchmark.delete(journalDirectory);
+        }
+    }
+
+    private void write(ByteBuffer frames) throws IOException {
+        frames.flip();
+        while (frames.hasRemaining()) {
+            channel.write(frames);
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long written;
+        public long backlog;
+        public long heapUsedMb;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            backlog = 0;
+            heapUsedMb = 0;
+        }
+
+        void sample(IotMetrics metrics) {
+            written += WRITE_READINGS;
+            long done = metrics.recordedReadings.sum() + metrics.coalescedReadings.sum();
+            backlog = Math.max(backlog, written - done);
+            heapUsedMb = Math.max(heapUsedMb, memory.getHeapMemoryUsage().getUsed() >> 20);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(WRITE_READINGS)
+    public void ingest(Footprint footprint) throws IOException {
+        write((ByteBuffer) readings.position(readings.limit()));
+        footprint.sample(metrics);
+    }
+}
@@ -0,0 +1,120 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorIdentity;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Identify;
+import akka.actor.Inbox;
+import akka.actor.Props;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Round trip of a {@link Device.RecordTemperature} to a device of a group of {@code groupSize} devices while
+ * {@code queriesInFlight} {@link DeviceGroup.RequestAllTemperatures} keep asking all of them, on the IoT
+ * dispatchers ({@code -p dispatchers=iot}) or with every actor on the default dispatcher
+ * ({@code -p dispatchers=default}).
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class IngestUnderQueryLoadBenchmark {
+    static final FiniteDuration TIMEOUT = FiniteDuration.create(30, TimeUnit.SECONDS);
+    static final int SETUP_WINDOW = 500;
+    // moves the group, its devices and its queries to the default dispatcher
+    static final Config DEFAULT_DISPATCHER = ConfigFactory.parseString(
+            "akka.actor.deployment {\n"
+            + "  \"/*\".dispatcher = akka.actor.default-dispatcher\n"
+            + "  \"/*/*\".dispatcher = akka.actor.default-dispatcher\n"
+            + "}");
+
+    @Param({"1000"})
+    int groupSize;
+
+    @Param({"0", "4"})
+    int queriesInFlight;
+
+    @Param({"iot", "default"})
+    String dispatchers;
+
+    ActorSystem system;
+    ActorRef group;
+    ActorRef device;
+    Inbox inbox;
+    long requestId;
+
+    @Setup
+    public void setup() throws TimeoutException {
+        system = "default".equals(dispatchers)
+                 ? ActorSystem.create("ingest-benchmark", DEFAULT_DISPATCHER.withFallback(ConfigFactory.load()))
+                 : ActorSystem.create("ingest-benchmark");
+        group = system.actorOf(DeviceGroup.props("group"), "group");
+        inbox = Inbox.create(system);
+
+        // the Inbox only buffers a bounded number of replies, so keep a window of requests in flight
+        for (int i = 0; i < groupSize; i++) {
+            inbox.send(group, new DeviceManager.RequestTrackDevice("group", "device" + i));
+            if (i >= SETUP_WINDOW) {
+                inbox.receive(TIMEOUT);
+            }
+        }
+        for (int i = 0; i < Math.min(groupSize, SETUP_WINDOW); i++) {
+            inbox.receive(TIMEOUT);
+        }
+        system.actorSelection(group.path().child("device-device0")).tell(new Identify(0), inbox.getRef());
+        device = ((ActorIdentity) inbox.receive(TIMEOUT)).getActorRef().get();
+
+        system.actorOf(Props.create(QueryLoad.class, group, queriesInFlight), "query-load");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        system.terminate();
+        system.getWhenTerminated().toCompletableFuture().get(30, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Object recordTemperatureLatency() throws TimeoutException {
+        long id = requestId++;
+        inbox.send(device, new Device.RecordTemperature(id, 20.0 + (id & 15)));
+        return inbox.receive(TIMEOUT);
+    }
+
+    /**
+     * Keeps {@code inFlight} queries running against the group, sending the next one as soon as one is answered.
+     */
+    public static class QueryLoad extends AbstractActor {
+        private final ActorRef group;
+        private final int inFlight;
+        private long requestId;
+
+        public QueryLoad(ActorRef group, int inFlight) {
+            this.group = group;
+            this.inFlight = inFlight;
+        }
+
+        @Override
+        public void preStart() {
+            for (int i = 0; i < inFlight; i++) {
+                group.tell(new DeviceGroup.RequestAllTemperatures(requestId++), getSelf());
+            }
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(DeviceGroup.RespondAllTemperatures.class,
+                           r -> group.tell(new DeviceGroup.RequestAllTemperatures(requestId++), getSelf()))
+                    .build();
+        }
+    }
+}
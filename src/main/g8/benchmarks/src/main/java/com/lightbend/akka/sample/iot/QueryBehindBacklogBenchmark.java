@@ -0,0 +1,88 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Inbox;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Latency of a {@link DeviceGroup.RequestAllTemperatures} sent right behind {@code backlog} readings for the
+ * {@code groupSize} devices of the group, with the {@link PriorityIngestMailbox} of the IoT actors
+ * ({@code -p mailbox=priority}) or with the first-in first-out {@link InstrumentedMailbox}
+ * ({@code -p mailbox=fifo}). The readings are not acknowledged to anyone, so the producer never waits.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class QueryBehindBacklogBenchmark {
+    static final FiniteDuration TIMEOUT = FiniteDuration.create(30, TimeUnit.SECONDS);
+    static final Config QUIET = ConfigFactory.parseString("akka.log-dead-letters = off");
+    static final Config FIFO = ConfigFactory.parseString(
+            "iot.device-mailbox.mailbox-type = \"com.lightbend.akka.sample.iot.InstrumentedMailbox\"\n"
+            + "iot.group-mailbox.mailbox-type = \"com.lightbend.akka.sample.iot.InstrumentedMailbox\"");
+
+    @Param({"100"})
+    int groupSize;
+
+    @Param({"10000"})
+    int backlog;
+
+    @Param({"priority", "fifo"})
+    String mailbox;
+
+    ActorSystem system;
+    ActorRef group;
+    Inbox inbox;
+    DeviceGroup.RecordTemperatures[] batches;
+    long requestId;
+
+    @Setup
+    public void setup() throws TimeoutException {
+        Config config = "fifo".equals(mailbox) ? QUIET.withFallback(FIFO) : QUIET;
+        system = ActorSystem.create("backlog-benchmark", config.withFallback(ConfigFactory.load()));
+        group = system.actorOf(DeviceGroup.props("group"), "group");
+        inbox = Inbox.create(system);
+        String[] deviceIds = new String[groupSize];
+        for (int i = 0; i < groupSize; i++) {
+            deviceIds[i] = "device" + i;
+            inbox.send(group, new DeviceManager.RequestTrackDevice("group", deviceIds[i]));
+            inbox.receive(TIMEOUT);
+        }
+
+        // one reading per device and batch
+        batches = new DeviceGroup.RecordTemperatures[Math.max(1, backlog / groupSize)];
+        long[] requestIds = new long[groupSize];
+        double[] values = new double[groupSize];
+        long[] timestamps = new long[groupSize];
+        Arrays.fill(values, 21.5);
+        Arrays.fill(timestamps, System.currentTimeMillis());
+        for (int b = 0; b < batches.length; b++) {
+            batches[b] = new DeviceGroup.RecordTemperatures(deviceIds, requestIds, values, timestamps);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        system.terminate();
+        system.getWhenTerminated().toCompletableFuture().get(30, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Object queryLatency() throws TimeoutException {
+        for (DeviceGroup.RecordTemperatures batch : batches) {
+            group.tell(batch, ActorRef.noSender());
+        }
+        inbox.send(group, new DeviceGroup.RequestAllTemperatures(requestId++));
+        return inbox.receive(TIMEOUT);
+    }
+}
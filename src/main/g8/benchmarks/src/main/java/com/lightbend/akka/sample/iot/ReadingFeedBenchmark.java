@@ -0,0 +1,101 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Inbox;
+import akka.actor.Props;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pipelined readings of a device of a group whose reading feed has {@code subscribers} subscribers, each
+ * acknowledging every {@link DeviceGroup.ReadingChanges} right away. {@code -p tickMillis=0} hands every change
+ * out as it happens, so only subscribers that are behind get them batched. The number of feed messages per
+ * reading is printed at teardown.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ReadingFeedBenchmark {
+    static final FiniteDuration TIMEOUT = FiniteDuration.create(10, TimeUnit.SECONDS);
+    static final int BATCH_SIZE = 100;
+
+    @Param({"1", "1000", "10000"})
+    int subscribers;
+
+    @Param({"0", "100"})
+    long tickMillis;
+
+    ActorSystem system;
+    ActorRef group;
+    Inbox inbox;
+    long requestId;
+    final LongAdder feedMessages = new LongAdder();
+
+    static class Subscriber extends AbstractActor {
+        final LongAdder received;
+
+        Subscriber(LongAdder received) {
+            this.received = received;
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(DeviceGroup.ReadingChanges.class, c -> {
+                        received.increment();
+                        getSender().tell(new DeviceGroup.ReadingChangesAck(c.subscriptionId, c.sequenceNr),
+                                         getSelf());
+                    })
+                    .matchAny(m -> { })
+                    .build();
+        }
+    }
+
+    @Setup
+    public void setup() throws TimeoutException {
+        system = ActorSystem.create("reading-feed-benchmark");
+        group = system.actorOf(DeviceGroup.props(
+                "group", DeviceGroupSettings.defaults().withFeedTickMillis(tickMillis)));
+        inbox = Inbox.create(system);
+        inbox.send(group, new DeviceManager.RequestTrackDevice("group", "device"));
+        inbox.receive(TIMEOUT);
+        for (int i = 0; i < subscribers; i++) {
+            ActorRef subscriber = system.actorOf(Props.create(Subscriber.class, feedMessages));
+            group.tell(new DeviceGroup.SubscribeReadings(i), subscriber);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        System.out.println();
+        System.out.println(feedMessages.sum() + " feed messages for " + requestId + " readings to " + subscribers
+                           + " subscribers");
+        system.terminate();
+        system.getWhenTerminated().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public Object recordTemperaturePipelinedThroughput() throws TimeoutException {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            long id = requestId++;
+            inbox.send(group, new DeviceGroup.RecordTemperatures(new String[]{"device"}, new long[]{id},
+                                                                 new double[]{20.0 + (id & 15)},
+                                                                 new long[]{System.currentTimeMillis()}));
+        }
+        Object ack = null;
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            ack = inbox.receive(TIMEOUT);
+        }
+        return ack;
+    }
+}
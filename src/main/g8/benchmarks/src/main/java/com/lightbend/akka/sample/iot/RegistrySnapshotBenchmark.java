@@ -0,0 +1,86 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Inbox;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Time to write a {@link RegistrySnapshot} of {@code devices} devices in {@value #GROUPS} groups, and to bring
+ * all of them back online from it: read the snapshot, send one {@link DeviceManager.RestoreGroup} per group
+ * and wait until every group has processed it.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class RegistrySnapshotBenchmark {
+    static final int GROUPS = 100;
+    static final FiniteDuration TIMEOUT = FiniteDuration.create(60, TimeUnit.SECONDS);
+
+    @Param({"100000", "1000000"})
+    int devices;
+
+    Path file;
+    Map<String, Map<String, DeviceGroup.TemperatureReading>> readings;
+    ActorSystem system;
+    ActorRef manager;
+
+    @Setup(Level.Trial)
+    public void setupSnapshot() throws IOException {
+        file = Files.createTempFile("registry", RegistrySnapshot.SUFFIX);
+        readings = new HashMap<>();
+        for (int d = 0; d < devices; d++) {
+            readings.computeIfAbsent("group" + (d % GROUPS), g -> new HashMap<>())
+                    .put("device" + (d / GROUPS), new DeviceGroup.Temperature(20.0 + (d & 15)));
+        }
+        RegistrySnapshot.write(file, System.currentTimeMillis(), readings);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteSnapshot() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Setup(Level.Iteration)
+    public void setupSystem() {
+        system = ActorSystem.create("registry-snapshot-benchmark");
+        manager = system.actorOf(DeviceManager.props());
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownSystem() throws Exception {
+        system.terminate();
+        system.getWhenTerminated().toCompletableFuture().get(30, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        RegistrySnapshot.write(file, System.currentTimeMillis(), readings);
+    }
+
+    @Benchmark
+    public void restore() throws IOException, TimeoutException {
+        Inbox inbox = Inbox.create(system);
+        RegistrySnapshot snapshot = RegistrySnapshot.read(file);
+        for (DeviceManager.RestoreGroup group : snapshot.groups) {
+            inbox.send(manager, group);
+            // answered once the group has processed the restore in front of it
+            inbox.send(manager, new DeviceManager.RequestTrackDevice(group.groupId, "restore-done"));
+        }
+        for (int g = 0; g < snapshot.groups.size(); g++) {
+            inbox.receive(TIMEOUT);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.lightbend.akka.sample.iot;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to serialize and to deserialize IoT messages with the {@link IotSerializer} ({@code -p serializer=iot})
+ * and with Java serialization ({@code -p serializer=java}); the encoded size of each message is printed at setup.
+ * The messages are not {@link Serializable}, so the Java side serializes copies of them with the same fields,
+ * which is what Java serialization would cost if they were.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SerializationBenchmark {
+    @Param({"recordTemperature", "respondTemperature", "recordTemperatures", "respondAllTemperatures"})
+    String message;
+
+    @Param({"iot", "java"})
+    String serializer;
+
+    /**
+     * Devices in a {@link DeviceGroup.RecordTemperatures} and a {@link DeviceGroup.RespondAllTemperatures}.
+     */
+    @Param({"1000"})
+    int devices;
+
+    IotSerializer iot;
+    Object original;
+    String manifest;
+    byte[] bytes;
+
+    @Setup
+    public void setup() throws IOException, ClassNotFoundException {
+        iot = new IotSerializer();
+        original = "iot".equals(serializer) ? message() : javaMessage();
+        manifest = "iot".equals(serializer) ? iot.manifest(original) : null;
+        bytes = serialize();
+        deserialize();
+        System.out.println();
+        System.out.println(message + " with " + serializer + " serialization: " + bytes.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        if ("iot".equals(serializer)) {
+            return iot.toBinary(original);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(original);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public Object deserialize() throws IOException, ClassNotFoundException {
+        if ("iot".equals(serializer)) {
+            return iot.fromBinary(bytes, manifest);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+
+    private Object message() {
+        long now = System.currentTimeMillis();
+        switch (message) {
+            case "recordTemperature":
+                return new Device.RecordTemperature(1_000_000L, 21.5, now);
+            case "respondTemperature":
+                return new Device.RespondTemperature(1_000_000L, true, 21.5);
+            case "recordTemperatures": {
+                String[] deviceIds = new String[devices];
+                long[] requestIds = new long[devices];
+                double[] values = new double[devices];
+                long[] timestamps = new long[devices];
+                for (int i = 0; i < devices; i++) {
+                    deviceIds[i] = "device" + i;
+                    requestIds[i] = 1_000_000L + i;
+                    values[i] = 20.0 + (i & 15);
+                    timestamps[i] = now + i;
+                }
+                return new DeviceGroup.RecordTemperatures(deviceIds, requestIds, values, timestamps);
+            }
+            case "respondAllTemperatures": {
+                Map<String, DeviceGroup.TemperatureReading> readings = new HashMap<>();
+                for (int i = 0; i < devices; i++) {
+                    readings.put("device" + i, i % 100 == 0
+                                               ? new DeviceGroup.DeviceTimedOut()
+                                               : new DeviceGroup.Temperature(20.0 + (i & 15)));
+                }
+                return new DeviceGroup.RespondAllTemperatures(1_000_000L, readings);
+            }
+            default:
+                throw new IllegalArgumentException(message);
+        }
+    }
+
+    /**
+     * The same message as {@link #message()}, field by field as a {@link Serializable} copy.
+     */
+    private Object javaMessage() {
+        Object m = message();
+        if (m instanceof Device.RecordTemperature) {
+            Device.RecordTemperature r = (Device.RecordTemperature) m;
+            return new JavaRecordTemperature(r.requestId, r.value, r.timestamp);
+        } else if (m instanceof Device.RespondTemperature) {
+            Device.RespondTemperature r = (Device.RespondTemperature) m;
+            return new JavaRespondTemperature(r.requestId, r.hasValue, r.temperature);
+        } else if (m instanceof DeviceGroup.RecordTemperatures) {
+            DeviceGroup.RecordTemperatures r = (DeviceGroup.RecordTemperatures) m;
+            return new JavaRecordTemperatures(r.deviceIds, r.requestIds, r.values, r.timestamps);
+        } else {
+            DeviceGroup.RespondAllTemperatures r = (DeviceGroup.RespondAllTemperatures) m;
+            HashMap<String, Serializable> readings = new HashMap<>();
+            r.temperatures.forEach((id, reading) -> readings.put(id, reading instanceof DeviceGroup.Temperature
+                                                                     ? new JavaTemperature(reading.getValue())
+                                                                     : new JavaDeviceTimedOut()));
+            return new JavaRespondAllTemperatures(r.requestId, readings);
+        }
+    }
+
+    static final class JavaRecordTemperature implements Serializable {
+        final long requestId;
+        final double value;
+        final long timestamp;
+
+        JavaRecordTemperature(long requestId, double value, long timestamp) {
+            this.requestId = requestId;
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+
+    static final class JavaRespondTemperature implements Serializable {
+        final long requestId;
+        final boolean hasValue;
+        final double temperature;
+
+        JavaRespondTemperature(long requestId, boolean hasValue, double temperature) {
+            this.requestId = requestId;
+            this.hasValue = hasValue;
+            this.temperature = temperature;
+        }
+    }
+
+    static final class JavaRecordTemperatures implements Serializable {
+        final String[] deviceIds;
+        final long[] requestIds;
+        final double[] values;
+        final long[] timestamps;
+
+        JavaRecordTemperatures(String[] deviceIds, long[] requestIds, double[] values, long[] timestamps) {
+            this.deviceIds = deviceIds;
+            this.requestIds = requestIds;
+            this.values = values;
+            this.timestamps = timestamps;
+        }
+    }
+
+    static final class JavaRespondAllTemperatures implements Serializable {
+        final long requestId;
+        final HashMap<String, Serializable> temperatures;
+
+        JavaRespondAllTemperatures(long requestId, HashMap<String, Serializable> temperatures) {
+            this.requestId = requestId;
+            this.temperatures = temperatures;
+        }
+    }
+
+    static final class JavaTemperature implements Serializable {
+        final double value;
+
+        JavaTemperature(double value) {
+            this.value = value;
+        }
+    }
+
+    static final class JavaDeviceTimedOut implements Serializable {
+    }
+}
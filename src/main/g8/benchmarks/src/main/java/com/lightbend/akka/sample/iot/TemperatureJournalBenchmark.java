@@ -0,0 +1,124 @@
+package com.lightbend.akka.sample.iot;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Sustained append rate of a {@link TemperatureJournal} (the {@code :bytes} secondary result is in bytes/s),
+ * with one and with four concurrently appending devices, and the time {@link TemperatureJournal#recover}
+ * needs to rebuild the last reading of {@code devices} devices from 4 readings each.
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TemperatureJournalBenchmark {
+    static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    @State(Scope.Benchmark)
+    public static class Journal {
+        Path directory;
+        TemperatureJournal journal;
+
+        @Setup(Level.Iteration)
+        public void setup() throws IOException {
+            directory = Files.createTempDirectory("journal-benchmark");
+            journal = TemperatureJournal.open(directory, SEGMENT_BYTES);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            journal.close();
+            delete(directory);
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Appender {
+        public long bytes;
+        byte[] key;
+        long sequenceNr;
+
+        @Setup
+        public void setup() {
+            key = TemperatureJournal.key("device-" + Thread.currentThread().getId());
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void appendThroughput(Journal journal, Appender device) {
+        append(journal, device);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(4)
+    public void appendConcurrentThroughput(Journal journal, Appender device) {
+        append(journal, device);
+    }
+
+    private static void append(Journal journal, Appender device) {
+        long n = device.sequenceNr++;
+        journal.journal.append(device.key, n, 20.0 + (n & 15));
+        device.bytes += TemperatureJournal.RECORD_SIZE;
+        if ((n & 0xFFFF) == 0) {
+            // group commit, as the DeviceGroup's flush timer would
+            journal.journal.flush();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Written {
+        static final int READINGS_PER_DEVICE = 4;
+
+        @Param({"100000", "1000000"})
+        int devices;
+
+        Path directory;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            directory = Files.createTempDirectory("journal-benchmark");
+            byte[][] keys = new byte[devices][];
+            for (int d = 0; d < devices; d++) {
+                keys[d] = TemperatureJournal.key("device-" + d);
+            }
+            try (TemperatureJournal journal = TemperatureJournal.open(directory, SEGMENT_BYTES)) {
+                for (int r = 0; r < READINGS_PER_DEVICE; r++) {
+                    for (int d = 0; d < devices; d++) {
+                        journal.append(keys[d], r, d + r);
+                    }
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            delete(directory);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public Object recover(Written written) throws IOException {
+        return TemperatureJournal.recover(written.directory);
+    }
+
+    static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.ActorRef;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The child actors of a {@link DeviceGroup} or {@link DeviceManager} by id and by reference.
+ * <p>
+ * Every entry gets a dense int slot in two parallel arrays, ids and refs; two open addressing tables with
+ * linear probing map an id and a ref to its slot. Removing an entry moves the last one into its slot. A
+ * tracked actor costs two array references and two int table entries, a few dozen bytes instead of two
+ * hash map entries. Only ever touched from inside the owning actor.
+ * <p>
+ * {@link #snapshot()} hands out the current entries as an immutable {@link Snapshot} that shares the arrays;
+ * the next change copies them first, once, so any number of snapshots between two changes cost nothing.
+ */
+final class ActorRegistry {
+    private static final Snapshot EMPTY = new ActorRegistry(0).snapshot();
+
+    // slots
+    private String[] ids;
+    private ActorRef[] actors;
+    private int size;
+    // slot + 1 by hash of the id or ref, 0 is free
+    private int[] idIndex;
+    private int[] actorIndex;
+    // the last snapshot, valid until the next change
+    private Snapshot snapshot;
+    // whether the arrays belong to a snapshot
+    private boolean shared;
+
+    ActorRegistry() {
+        this(0);
+    }
+
+    ActorRegistry(int expectedSize) {
+        allocate(Math.max(8, expectedSize));
+    }
+
+    /**
+     * @return an immutable snapshot of the actors of the map
+     */
+    static Snapshot snapshotOf(Map<ActorRef, String> actorToId) {
+        if (actorToId.isEmpty()) {
+            return EMPTY;
+        }
+        ActorRegistry registry = new ActorRegistry(actorToId.size());
+        for (Map.Entry<ActorRef, String> e : actorToId.entrySet()) {
+            registry.put(e.getValue(), e.getKey());
+        }
+        return registry.snapshot();
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(String id) {
+        return idIndex[find(idIndex, ids, id)] != 0;
+    }
+
+    /**
+     * @return {@code null} if there is no actor with that id
+     */
+    ActorRef actorOf(String id) {
+        int entry = idIndex[find(idIndex, ids, id)];
+        return entry == 0 ? null : actors[entry - 1];
+    }
+
+    /**
+     * @return {@code null} if the actor is not registered
+     */
+    String idOf(ActorRef actor) {
+        int entry = actorIndex[find(actorIndex, actors, actor)];
+        return entry == 0 ? null : ids[entry - 1];
+    }
+
+    /**
+     * Registers {@code actor} under {@code id}, replacing the actor registered under it so far.
+     */
+    void put(String id, ActorRef actor) {
+        remove(id);
+        beforeChange();
+        if (size == ids.length) {
+            allocate(size * 2);
+        }
+        int slot = size++;
+        ids[slot] = id;
+        actors[slot] = actor;
+        idIndex[find(idIndex, ids, id)] = slot + 1;
+        actorIndex[find(actorIndex, actors, actor)] = slot + 1;
+    }
+
+    /**
+     * @return whether there was an actor with that id
+     */
+    boolean remove(String id) {
+        int i = find(idIndex, ids, id);
+        if (idIndex[i] == 0) {
+            return false;
+        }
+        beforeChange();
+        int slot = idIndex[i] - 1;
+        delete(idIndex, ids, i);
+        delete(actorIndex, actors, find(actorIndex, actors, actors[slot]));
+        int last = --size;
+        if (slot != last) {
+            // the index entries of the last slot still find it under its old number
+            idIndex[find(idIndex, ids, ids[last])] = slot + 1;
+            actorIndex[find(actorIndex, actors, actors[last])] = slot + 1;
+            ids[slot] = ids[last];
+            actors[slot] = actors[last];
+        }
+        ids[last] = null;
+        actors[last] = null;
+        return true;
+    }
+
+    void addIdsTo(Collection<String> ids) {
+        ids.addAll(Arrays.asList(this.ids).subList(0, size));
+    }
+
+    Snapshot snapshot() {
+        if (snapshot == null) {
+            snapshot = new Snapshot(ids, actors, size, actorIndex);
+            shared = true;
+        }
+        return snapshot;
+    }
+
+    private void beforeChange() {
+        snapshot = null;
+        if (shared) {
+            ids = ids.clone();
+            actors = actors.clone();
+            actorIndex = actorIndex.clone();
+            shared = false;
+        }
+    }
+
+    /**
+     * Grows the slots to {@code slots} and rebuilds both tables for them, below a 75% load factor.
+     */
+    private void allocate(int slots) {
+        ids = ids == null ? new String[slots] : Arrays.copyOf(ids, slots);
+        actors = actors == null ? new ActorRef[slots] : Arrays.copyOf(actors, slots);
+        int capacity = Integer.highestOneBit(slots * 4 / 3) << 1;
+        idIndex = new int[capacity];
+        actorIndex = new int[capacity];
+        for (int slot = 0; slot < size; slot++) {
+            idIndex[find(idIndex, ids, ids[slot])] = slot + 1;
+            actorIndex[find(actorIndex, actors, actors[slot])] = slot + 1;
+        }
+        shared = false;
+    }
+
+    /**
+     * @return the position of {@code key} in {@code index}, or of the free entry where it belongs
+     */
+    private static int find(int[] index, Object[] keys, Object key) {
+        int mask = index.length - 1;
+        int i = home(key, mask);
+        while (index[i] != 0 && !keys[index[i] - 1].equals(key)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private static void delete(int[] index, Object[] keys, int i) {
+        index[i] = 0;
+        // backward shift deletion keeps every probe chain free of holes
+        int mask = index.length - 1;
+        for (int j = (i + 1) & mask; index[j] != 0; j = (j + 1) & mask) {
+            int home = home(keys[index[j] - 1], mask);
+            if ((j > i && (home <= i || home > j)) || (j < i && (home <= i && home > j))) {
+                index[i] = index[j];
+                index[j] = 0;
+                i = j;
+            }
+        }
+    }
+
+    private static int home(Object key, int mask) {
+        // Fibonacci hashing: the high bits of the product are the well mixed ones
+        return (key.hashCode() * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(mask);
+    }
+
+    /**
+     * The actors of a registry at one point in time, by slot, safe to hand to another actor.
+     */
+    static final class Snapshot {
+        private final String[] ids;
+        private final ActorRef[] actors;
+        private final int size;
+        private final int[] actorIndex;
+
+        private Snapshot(String[] ids, ActorRef[] actors, int size, int[] actorIndex) {
+            this.ids = ids;
+            this.actors = actors;
+            this.size = size;
+            this.actorIndex = actorIndex;
+        }
+
+        int size() {
+            return size;
+        }
+
+        String idAt(int slot) {
+            return ids[slot];
+        }
+
+        ActorRef actorAt(int slot) {
+            return actors[slot];
+        }
+
+        /**
+         * @return -1 if the actor is not part of the snapshot
+         */
+        int slotOf(ActorRef actor) {
+            return actorIndex[find(actorIndex, actors, actor)] - 1;
+        }
+    }
+}
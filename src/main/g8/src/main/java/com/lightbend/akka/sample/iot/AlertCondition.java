@@ -0,0 +1,61 @@
+package com.lightbend.akka.sample.iot;
+
+import lombok.Data;
+
+/**
+ * What a {@link DeviceGroup.SubscribeAlerts} asks the devices of a group to report, evaluated by every device
+ * on each reading it records.
+ * <ul>
+ * <li>{@link #above} and {@link #below} fire on the first reading beyond the threshold, and again only once a
+ * reading was back within it, so a device that stays hot is reported once.</li>
+ * <li>{@link #rateOfChangeAbove} fires on every reading that differs from the previous one by more than the
+ * given degrees per second of their timestamps.</li>
+ * <li>{@link #absentFor} fires once a device has recorded nothing for the given time, and again only after a
+ * reading ended the silence. A passivated device is not started for it: its group notices the absence from
+ * when the device had its last reading.</li>
+ * </ul>
+ */
+@Data
+public final class AlertCondition {
+    public enum Kind {
+        ABOVE, BELOW, RATE_OF_CHANGE, ABSENCE
+    }
+
+    private final Kind kind;
+    // degrees for ABOVE and BELOW, degrees per second for RATE_OF_CHANGE
+    private final double threshold;
+    // for ABSENCE
+    private final long absentMillis;
+
+    private AlertCondition(Kind kind, double threshold, long absentMillis) {
+        this.kind = kind;
+        this.threshold = threshold;
+        this.absentMillis = absentMillis;
+    }
+
+    /**
+     * The condition with these fields, e.g. after deserializing them.
+     */
+    static AlertCondition of(Kind kind, double threshold, long absentMillis) {
+        return kind == Kind.ABSENCE ? absentFor(absentMillis) : new AlertCondition(kind, threshold, 0L);
+    }
+
+    public static AlertCondition above(double threshold) {
+        return new AlertCondition(Kind.ABOVE, threshold, 0L);
+    }
+
+    public static AlertCondition below(double threshold) {
+        return new AlertCondition(Kind.BELOW, threshold, 0L);
+    }
+
+    public static AlertCondition rateOfChangeAbove(double degreesPerSecond) {
+        return new AlertCondition(Kind.RATE_OF_CHANGE, degreesPerSecond, 0L);
+    }
+
+    public static AlertCondition absentFor(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("An absence must last longer than 0 ms, was " + millis);
+        }
+        return new AlertCondition(Kind.ABSENCE, 0.0, millis);
+    }
+}
@@ -0,0 +1,126 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.ActorRef;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Immutable list of the alert subscriptions of a group, handed as a whole to each of its devices whenever it
+ * changes. A subscription is identified by its subscriber and the id the subscriber gave it. The arrays are
+ * copied on every change, which is rare, so that a device walks them on every reading without any lookup.
+ */
+final class AlertSubscriptions {
+    static final AlertSubscriptions NONE = new AlertSubscriptions(new ActorRef[0], new long[0], new AlertCondition[0]);
+
+    private final ActorRef[] subscribers;
+    private final long[] ids;
+    private final AlertCondition[] conditions;
+    // the shortest absence of the conditions, Long.MAX_VALUE if there is no absence condition
+    final long minAbsentMillis;
+
+    private AlertSubscriptions(ActorRef[] subscribers, long[] ids, AlertCondition[] conditions) {
+        this.subscribers = subscribers;
+        this.ids = ids;
+        this.conditions = conditions;
+        long min = Long.MAX_VALUE;
+        for (AlertCondition c : conditions) {
+            if (c.getKind() == AlertCondition.Kind.ABSENCE) {
+                min = Math.min(min, c.getAbsentMillis());
+            }
+        }
+        this.minAbsentMillis = min;
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    ActorRef subscriberAt(int index) {
+        return subscribers[index];
+    }
+
+    long idAt(int index) {
+        return ids[index];
+    }
+
+    AlertCondition conditionAt(int index) {
+        return conditions[index];
+    }
+
+    boolean hasAbsence() {
+        return minAbsentMillis != Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the index of the subscription, -1 if there is none
+     */
+    int indexOf(ActorRef subscriber, long id) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == id && subscribers[i].equals(subscriber)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    boolean hasSubscriber(ActorRef subscriber) {
+        for (ActorRef s : subscribers) {
+            if (s.equals(subscriber)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * These subscriptions plus the given one, which replaces a subscription with the same subscriber and id.
+     */
+    AlertSubscriptions with(ActorRef subscriber, long id, AlertCondition condition) {
+        int index = indexOf(subscriber, id);
+        if (index >= 0) {
+            AlertCondition[] replaced = conditions.clone();
+            replaced[index] = condition;
+            return new AlertSubscriptions(subscribers, ids, replaced);
+        }
+        int size = ids.length;
+        ActorRef[] s = Arrays.copyOf(subscribers, size + 1);
+        long[] i = Arrays.copyOf(ids, size + 1);
+        AlertCondition[] c = Arrays.copyOf(conditions, size + 1);
+        s[size] = subscriber;
+        i[size] = id;
+        c[size] = condition;
+        return new AlertSubscriptions(s, i, c);
+    }
+
+    AlertSubscriptions without(ActorRef subscriber, long id) {
+        int index = indexOf(subscriber, id);
+        return index < 0 ? this : retain(k -> k != index);
+    }
+
+    AlertSubscriptions without(ActorRef subscriber) {
+        return retain(k -> !subscribers[k].equals(subscriber));
+    }
+
+    private AlertSubscriptions retain(IntPredicate keep) {
+        int kept = 0;
+        for (int k = 0; k < ids.length; k++) {
+            if (keep.test(k)) {
+                kept++;
+            }
+        }
+        ActorRef[] s = new ActorRef[kept];
+        long[] i = new long[kept];
+        AlertCondition[] c = new AlertCondition[kept];
+        int n = 0;
+        for (int k = 0; k < ids.length; k++) {
+            if (keep.test(k)) {
+                s[n] = subscribers[k];
+                i[n] = ids[k];
+                c[n] = conditions[k];
+                n++;
+            }
+        }
+        return n == 0 ? NONE : new AlertSubscriptions(s, i, c);
+    }
+}
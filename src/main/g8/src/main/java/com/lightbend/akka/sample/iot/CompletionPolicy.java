@@ -0,0 +1,79 @@
+package com.lightbend.akka.sample.iot;
+
+/**
+ * Decides when a {@link DeviceGroupQuery} has heard from enough devices to answer.
+ * Devices that have not answered by then are reported as {@link DeviceGroup.DeviceTimedOut}.
+ */
+public final class CompletionPolicy {
+    private static final CompletionPolicy ALL = new CompletionPolicy(1.0, Integer.MAX_VALUE);
+
+    private final double fraction;
+    private final int maxReplies;
+
+    private CompletionPolicy(double fraction, int maxReplies) {
+        this.fraction = fraction;
+        this.maxReplies = maxReplies;
+    }
+
+    /**
+     * Wait for every device, or the timeout.
+     */
+    public static CompletionPolicy all() {
+        return ALL;
+    }
+
+    /**
+     * Answer as soon as {@code fraction} (0 < fraction <= 1) of the devices have answered, rounded up.
+     */
+    public static CompletionPolicy quorum(double fraction) {
+        if (!(fraction > 0.0 && fraction <= 1.0)) {
+            throw new IllegalArgumentException("Quorum fraction must be in (0, 1], was " + fraction);
+        }
+        return new CompletionPolicy(fraction, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Answer as soon as {@code k} devices (or all of them, if the group is smaller) have answered.
+     */
+    public static CompletionPolicy firstK(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("First-K needs k >= 1, was " + k);
+        }
+        return new CompletionPolicy(1.0, k);
+    }
+
+    /**
+     * The policy with the given parameters, as {@link #fraction()} and {@link #maxReplies()} report them.
+     */
+    static CompletionPolicy of(double fraction, int maxReplies) {
+        return fraction == ALL.fraction && maxReplies == ALL.maxReplies
+               ? ALL
+               : new CompletionPolicy(fraction, maxReplies);
+    }
+
+    double fraction() {
+        return fraction;
+    }
+
+    int maxReplies() {
+        return maxReplies;
+    }
+
+    /**
+     * @return the number of replies after which a query over {@code devices} devices is complete
+     */
+    public int requiredReplies(int devices) {
+        int quorum = (int) Math.ceil(fraction * devices);
+        return Math.min(devices, Math.min(quorum, maxReplies));
+    }
+
+    @Override
+    public String toString() {
+        if (this == ALL) {
+            return "CompletionPolicy(all)";
+        }
+        return maxReplies == Integer.MAX_VALUE
+               ? "CompletionPolicy(quorum " + fraction + ")"
+               : "CompletionPolicy(first " + maxReplies + ")";
+    }
+}
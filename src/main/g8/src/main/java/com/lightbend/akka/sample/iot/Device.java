@@ -1,46 +1,307 @@
 package com.lightbend.akka.sample.iot;
 
 import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
 import akka.actor.Props;
+import akka.actor.ReceiveTimeout;
+import akka.actor.Terminated;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
 
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 /**
  * https://doc.akka.io/docs/akka/2.5.9/guide/tutorial_4.html
  */
 public class Device extends AbstractActor {
+    static final int DEFAULT_HISTORY_SIZE = 32;
+
     final String groupId;
     final String deviceId;
     private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
-    Optional<Double> lastTemperatureReading = Optional.empty();
+    // primitive reading plus a presence flag, so recording a temperature allocates nothing
+    double lastTemperatureReading;
+    boolean hasTemperatureReading;
+    final ReadingHistory history;
+    final DeviceGroupSettings settings;
+    // null if readings are not journaled
+    final TemperatureJournal journal;
+    final byte[] journalKey;
+    private final IotMetrics metrics = IotMetrics.get(getContext().getSystem());
+    // ingest diagnostics; an interval of 0 disables them
+    final long ingestLogIntervalNanos;
+    long readingsSinceIngestLog;
+    long nextIngestLogAtNanos;
+    // the alert subscriptions of the group, and for each whether its condition holds, see AlertCondition
+    AlertSubscriptions alerts = AlertSubscriptions.NONE;
+    boolean[] alerting = new boolean[0];
+    // the previous reading seen by the alerts, for rates of change
+    double previousAlertValue;
+    long previousAlertTimestamp;
+    boolean hasPreviousAlertReading;
+    // System.nanoTime() of the last reading, or of the start of a device that never had one
+    long lastReadingAtNanos;
+    Cancellable absenceCheck;
+    // whether the group has subscribers of its reading feed, which needs the changes even without snapshots
+    boolean reportChanges;
+    // the subscribers of this device alone, null until the first one
+    ReadingFeed feed;
+
+    public Device(String groupId, String deviceId, DeviceGroupSettings settings) {
+        this(groupId, deviceId, settings, (TemperatureJournal) null);
+    }
 
-    public Device(String groupId, String deviceId) {
+    Device(String groupId, String deviceId, DeviceGroupSettings settings, TemperatureJournal journal) {
         this.groupId = groupId;
         this.deviceId = deviceId;
+        this.settings = settings;
+        this.history = new ReadingHistory(settings.historySize);
+        this.journal = journal;
+        this.journalKey = journal != null ? TemperatureJournal.key(deviceId) : null;
+        this.ingestLogIntervalNanos = TimeUnit.MILLISECONDS.toNanos(settings.ingestLogIntervalMillis);
+        this.lastReadingAtNanos = System.nanoTime();
+    }
+
+    /**
+     * Rehydrates a passivated device with its last reading, which keeps being silent since then.
+     */
+    Device(String groupId, String deviceId, DeviceGroupSettings settings, TemperatureJournal journal,
+           boolean hasTemperatureReading, double lastTemperatureReading, long lastReadingAtNanos) {
+        this(groupId, deviceId, settings, journal);
+        this.lastTemperatureReading = lastTemperatureReading;
+        this.hasTemperatureReading = hasTemperatureReading;
+        this.lastReadingAtNanos = lastReadingAtNanos;
     }
 
     public static Props props(String groupId, String deviceId) {
-        return Props.create(Device.class, groupId, deviceId);
+        return props(groupId, deviceId, DeviceGroupSettings.defaults());
+    }
+
+    /**
+     * @param historySize number of readings kept for {@link ReadTemperatureStats}
+     */
+    public static Props props(String groupId, String deviceId, int historySize) {
+        return props(groupId, deviceId, DeviceGroupSettings.defaults().withHistorySize(historySize));
+    }
+
+    public static Props props(String groupId, String deviceId, DeviceGroupSettings settings) {
+        return Props.create(Device.class, groupId, deviceId, settings)
+                .withMailbox("iot.device-mailbox")
+                .withDispatcher("iot.device-dispatcher");
+    }
+
+    /**
+     * A device that appends every reading to its group's journal.
+     */
+    static Props props(String groupId, String deviceId, DeviceGroupSettings settings, TemperatureJournal journal) {
+        return Props.create(Device.class, groupId, deviceId, settings, journal)
+                .withMailbox("iot.device-mailbox")
+                .withDispatcher("iot.device-dispatcher");
+    }
+
+    /**
+     * @param journal null if readings are not journaled
+     */
+    static Props props(String groupId, String deviceId, DeviceGroupSettings settings, TemperatureJournal journal,
+                       boolean hasTemperatureReading, double lastTemperatureReading, long lastReadingAtNanos) {
+        return Props.create(Device.class, groupId, deviceId, settings, journal, hasTemperatureReading,
+                            lastTemperatureReading, lastReadingAtNanos)
+                .withMailbox("iot.device-mailbox")
+                .withDispatcher("iot.device-dispatcher");
     }
 
     @Override
     public void preStart() {
         log.info("Device actor {}-{} started", groupId, deviceId);
+        updateReceiveTimeout();
     }
 
     @Override
     public void postStop() {
+        if (absenceCheck != null) {
+            absenceCheck.cancel();
+        }
+        if (feed != null) {
+            feed.stop();
+        }
         log.info("Device actor {}-{} stopped", groupId, deviceId);
     }
 
+    /**
+     * A device passivates only if it would notice nothing that way: its own subscribers would be lost. The
+     * absence of readings of a passivated device is noticed by its group.
+     */
+    private void updateReceiveTimeout() {
+        if (settings.passivateAfterMillis > 0 && (feed == null || feed.isEmpty())) {
+            getContext().setReceiveTimeout(Duration.create(settings.passivateAfterMillis, TimeUnit.MILLISECONDS));
+        } else {
+            getContext().setReceiveTimeout(Duration.Undefined());
+        }
+    }
+
+    private void updateLastReading(double value, long timestamp) {
+        boolean changed = !hasTemperatureReading || Double.compare(lastTemperatureReading, value) != 0;
+        lastTemperatureReading = value;
+        hasTemperatureReading = true;
+        lastReadingAtNanos = System.nanoTime();
+        // a pending check finds the silence shorter than expected and moves itself
+        if (alerts.hasAbsence() && absenceCheck == null) {
+            scheduleAbsenceCheck();
+        }
+        if (changed) {
+            if (settings.snapshotEnabled || reportChanges) {
+                getContext().getParent().tell(new DeviceGroup.TemperatureChanged(deviceId, value, timestamp),
+                                              ActorRef.noSender());
+            }
+            if (feed != null) {
+                feed.record(deviceId, value, timestamp);
+            }
+        }
+    }
+
+    private void onSubscribeReadings(DeviceGroup.SubscribeReadings s) {
+        if (feed == null) {
+            feed = new ReadingFeed(getContext(), settings.feedTickMillis);
+        }
+        getContext().watch(getSender());
+        feed.subscribe(getSender(), s);
+        updateReceiveTimeout();
+        getSender().tell(new DeviceGroup.ReadingsSubscribed(s.subscriptionId), getSelf());
+    }
+
+    private void onUnsubscribeReadings(DeviceGroup.UnsubscribeReadings u) {
+        if (feed != null && feed.unsubscribe(getSender(), u.subscriptionId)) {
+            if (!feed.contains(getSender())) {
+                getContext().unwatch(getSender());
+            }
+            updateReceiveTimeout();
+        }
+    }
+
+    private void recorded(int readings, long requestId, double lastValue) {
+        metrics.recordedReadings.add(readings);
+        if (ingestLogIntervalNanos > 0) {
+            readingsSinceIngestLog += readings;
+            long now = System.nanoTime();
+            if (now - nextIngestLogAtNanos >= 0) {
+                log.info("Recorded {} temperature readings, last {} with {}",
+                         readingsSinceIngestLog, lastValue, requestId);
+                readingsSinceIngestLog = 0;
+                nextIngestLogAtNanos = now + ingestLogIntervalNanos;
+            }
+        }
+    }
+
+    /**
+     * Keeps whether the condition of a subscription held for the subscriptions that stay, so that a new
+     * subscriber does not make the device report a threshold again to the others.
+     */
+    private void onSetAlerts(SetAlerts s) {
+        long silentNanos = System.nanoTime() - lastReadingAtNanos;
+        boolean[] next = new boolean[s.alerts.size()];
+        for (int i = 0; i < next.length; i++) {
+            AlertCondition c = s.alerts.conditionAt(i);
+            int previous = alerts.indexOf(s.alerts.subscriberAt(i), s.alerts.idAt(i));
+            next[i] = (previous >= 0 && alerting[previous] && alerts.conditionAt(previous).equals(c)) ||
+                      (s.reachedAbsencesReported && c.getKind() == AlertCondition.Kind.ABSENCE &&
+                       silentNanos >= TimeUnit.MILLISECONDS.toNanos(c.getAbsentMillis()));
+        }
+        alerts = s.alerts;
+        alerting = next;
+        // the new conditions may call for an earlier check, or none at all
+        scheduleAbsenceCheck();
+    }
+
+    /**
+     * Evaluates every subscribed condition on a reading, before it becomes the last one.
+     */
+    private void checkAlerts(double value, long timestamp) {
+        for (int i = 0; i < alerting.length; i++) {
+            AlertCondition c = alerts.conditionAt(i);
+            switch (c.getKind()) {
+                case ABOVE:
+                    crossed(i, value > c.getThreshold(), value, timestamp);
+                    break;
+                case BELOW:
+                    crossed(i, value < c.getThreshold(), value, timestamp);
+                    break;
+                case RATE_OF_CHANGE:
+                    if (hasPreviousAlertReading && timestamp > previousAlertTimestamp &&
+                        Math.abs(value - previousAlertValue) * 1000.0 / (timestamp - previousAlertTimestamp) >
+                        c.getThreshold()) {
+                        alert(i, value, timestamp);
+                    }
+                    break;
+                case ABSENCE:
+                    alerting[i] = false;
+                    break;
+            }
+        }
+        previousAlertValue = value;
+        previousAlertTimestamp = timestamp;
+        hasPreviousAlertReading = true;
+    }
+
+    private void crossed(int index, boolean beyond, double value, long timestamp) {
+        if (beyond && !alerting[index]) {
+            alert(index, value, timestamp);
+        }
+        alerting[index] = beyond;
+    }
+
+    private void alert(int index, double value, long timestamp) {
+        DeviceGroup.Alert alert = new DeviceGroup.Alert(alerts.idAt(index), groupId, deviceId,
+                                                        alerts.conditionAt(index).getKind(), value, timestamp);
+        alerts.subscriberAt(index).tell(alert, getSelf());
+    }
+
+    private void onCheckAbsence() {
+        absenceCheck = null;
+        long silentNanos = System.nanoTime() - lastReadingAtNanos;
+        for (int i = 0; i < alerting.length; i++) {
+            AlertCondition c = alerts.conditionAt(i);
+            if (c.getKind() == AlertCondition.Kind.ABSENCE && !alerting[i] &&
+                silentNanos >= TimeUnit.MILLISECONDS.toNanos(c.getAbsentMillis())) {
+                alerting[i] = true;
+                alert(i, hasTemperatureReading ? lastTemperatureReading : Double.NaN, System.currentTimeMillis());
+            }
+        }
+        scheduleAbsenceCheck();
+    }
+
+    /**
+     * Schedules the next check for the absence that would be reached first, if any has not fired yet.
+     */
+    private void scheduleAbsenceCheck() {
+        if (absenceCheck != null) {
+            absenceCheck.cancel();
+            absenceCheck = null;
+        }
+        long silentNanos = System.nanoTime() - lastReadingAtNanos;
+        long nextNanos = Long.MAX_VALUE;
+        for (int i = 0; i < alerting.length; i++) {
+            AlertCondition c = alerts.conditionAt(i);
+            if (c.getKind() == AlertCondition.Kind.ABSENCE && !alerting[i]) {
+                nextNanos = Math.min(nextNanos, TimeUnit.MILLISECONDS.toNanos(c.getAbsentMillis()) - silentNanos);
+            }
+        }
+        if (nextNanos != Long.MAX_VALUE) {
+            absenceCheck = getContext().getSystem().scheduler().scheduleOnce(
+                    FiniteDuration.create(Math.max(0L, nextNanos), TimeUnit.NANOSECONDS), getSelf(),
+                    CheckAbsence.INSTANCE, getContext().dispatcher(), getSelf());
+        }
+    }
+
     @Override
     public Receive createReceive() {
         return receiveBuilder()
-                .match(RequestTrackDevice.class, r -> {
+                .match(DeviceManager.RequestTrackDevice.class, r -> {
                     if (groupId.equals(r.groupId) && deviceId.equals(r.deviceId)) {
-                        getSender().tell(new DeviceRegistered(), getSelf());
+                        getSender().tell(new DeviceManager.DeviceRegistered(), getSelf());
                     } else {
                         log.warning(
                                 "Ignoring TrackDevice request for {}-{}.This actor is responsible for {}-{}.",
@@ -49,23 +310,98 @@ public class Device extends AbstractActor {
                     }
                 })
                 .match(RecordTemperature.class, r -> {
-                    log.info("Recorded temperature reading {} with {}", r.value, r.requestId);
-                    lastTemperatureReading = Optional.of(r.value);
+                    if (alerting.length > 0) {
+                        checkAlerts(r.value, r.timestamp);
+                    }
+                    updateLastReading(r.value, r.timestamp);
+                    history.record(r.timestamp, r.value);
+                    if (journal != null) {
+                        journal.append(journalKey, r.timestamp, r.value);
+                    }
+                    recorded(1, r.requestId, r.value);
                     getSender().tell(new TemperatureRecorded(r.requestId), getSelf());
                 })
+                .match(RecordTemperatureBatch.class, r -> {
+                    long highestRequestId = Long.MIN_VALUE;
+                    for (int i = 0; i < r.values.length; i++) {
+                        if (alerting.length > 0) {
+                            checkAlerts(r.values[i], r.timestamps[i]);
+                        }
+                        history.record(r.timestamps[i], r.values[i]);
+                        if (journal != null) {
+                            journal.append(journalKey, r.timestamps[i], r.values[i]);
+                        }
+                        highestRequestId = Math.max(highestRequestId, r.requestIds[i]);
+                    }
+                    updateLastReading(r.values[r.values.length - 1], r.timestamps[r.values.length - 1]);
+                    recorded(r.values.length, highestRequestId, r.values[r.values.length - 1]);
+                    getSender().tell(new TemperatureBatchRecorded(highestRequestId), getSelf());
+                })
                 .match(ReadTemperature.class, r -> {
-                    getSender().tell(new RespondTemperature(r.requestId, lastTemperatureReading), getSelf());
+                    getSender().tell(new RespondTemperature(
+                            r.requestId, hasTemperatureReading, lastTemperatureReading), getSelf());
+                })
+                .match(ReceiveTimeout.class, t -> {
+                    getContext().getParent().tell(
+                            new DeviceGroup.Passivate(deviceId, hasTemperatureReading, lastTemperatureReading,
+                                                      System.nanoTime() - lastReadingAtNanos),
+                            getSelf());
+                })
+                .match(Stop.class, s -> {
+                    getContext().getParent().tell(
+                            new DeviceGroup.Passivated(deviceId, hasTemperatureReading, lastTemperatureReading,
+                                                       System.nanoTime() - lastReadingAtNanos),
+                            getSelf());
+                    getContext().stop(getSelf());
+                })
+                .match(ReadTemperatureStats.class, r -> {
+                    long from = System.currentTimeMillis() - r.windowMillis;
+                    getSender().tell(history.stats(r.requestId, from, r.percentile), getSelf());
+                })
+                .match(SetAlerts.class, this::onSetAlerts)
+                .match(CheckAbsence.class, c -> onCheckAbsence())
+                .match(ReportChanges.class, r -> reportChanges = r.enabled)
+                .match(DeviceGroup.SubscribeReadings.class, this::onSubscribeReadings)
+                .match(DeviceGroup.UnsubscribeReadings.class, this::onUnsubscribeReadings)
+                .match(DeviceGroup.ReadingChangesAck.class, a -> {
+                    if (feed != null) {
+                        feed.ack(getSender(), a);
+                    }
+                })
+                .match(ReadingFeed.Tick.class, t -> feed.tick())
+                .match(ReadingFeed.Resend.class, r -> feed.resend())
+                .match(Terminated.class, t -> {
+                    if (feed != null && feed.remove(t.getActor())) {
+                        updateReceiveTimeout();
+                    }
                 })
                 .build();
     }
 
-    public static final class RecordTemperature {
+    public static final class RecordTemperature implements PriorityIngestMailbox.IngestMessage {
         final long requestId;
         final double value;
+        final long timestamp;
 
         public RecordTemperature(long requestId, double value) {
+            this(requestId, value, System.currentTimeMillis());
+        }
+
+        /**
+         * @param timestamp epoch millis at which the reading was taken
+         */
+        public RecordTemperature(long requestId, double value, long timestamp) {
             this.requestId = requestId;
             this.value = value;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * A later reading of the device, which is the receiver of both.
+         */
+        @Override
+        public Object coalesceKey() {
+            return RecordTemperature.class;
         }
     }
 
@@ -77,6 +413,46 @@ public class Device extends AbstractActor {
         }
     }
 
+    /**
+     * A burst of readings for this device, in the order they were taken; acknowledged by a single
+     * {@link TemperatureBatchRecorded}.
+     */
+    public static final class RecordTemperatureBatch implements PriorityIngestMailbox.IngestMessage {
+        final long[] requestIds;
+        final double[] values;
+        final long[] timestamps;
+
+        /**
+         * The arrays are not copied and must not be modified after sending.
+         */
+        public RecordTemperatureBatch(long[] requestIds, double[] values, long[] timestamps) {
+            if (values.length == 0 || requestIds.length != values.length || timestamps.length != values.length) {
+                throw new IllegalArgumentException(
+                        "Batch needs at least one reading and arrays of equal length, got " + requestIds.length + "/" +
+                        values.length + "/" + timestamps.length);
+            }
+            this.requestIds = requestIds;
+            this.values = values;
+            this.timestamps = timestamps;
+        }
+
+        @Override
+        public Object coalesceKey() {
+            return null;
+        }
+    }
+
+    /**
+     * Cumulative ack: every reading of the batch is recorded, {@code requestId} is the highest one it contained.
+     */
+    public static final class TemperatureBatchRecorded {
+        final long requestId;
+
+        public TemperatureBatchRecorded(long requestId) {
+            this.requestId = requestId;
+        }
+    }
+
     public static final class ReadTemperature {
         final long requestId;
 
@@ -87,11 +463,105 @@ public class Device extends AbstractActor {
 
     public static final class RespondTemperature {
         final long requestId;
-        final Optional<Double> value;
+        final boolean hasValue;
+        final double temperature;
+
+        public RespondTemperature(long requestId, boolean hasValue, double temperature) {
+            this.requestId = requestId;
+            this.hasValue = hasValue;
+            this.temperature = temperature;
+        }
 
         public RespondTemperature(long requestId, Optional<Double> value) {
+            this(requestId, value.isPresent(), value.orElse(0.0));
+        }
+
+        /**
+         * Boxed view of the reading, kept for callers of the Optional based API.
+         */
+        public Optional<Double> value() {
+            return hasValue ? Optional.of(temperature) : Optional.empty();
+        }
+    }
+
+    /**
+     * Asks for statistics over the readings of the last {@code windowMillis}, limited to the retained history.
+     */
+    public static final class ReadTemperatureStats {
+        final long requestId;
+        final long windowMillis;
+        final double percentile;
+
+        /**
+         * @param percentile percentile to report, in the range [0, 100]
+         */
+        public ReadTemperatureStats(long requestId, long windowMillis, double percentile) {
             this.requestId = requestId;
-            this.value = value;
+            this.windowMillis = windowMillis;
+            this.percentile = percentile;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Window statistics; {@code count} is 0 and all values are NaN if there was no reading in the window.
+     */
+    public static final class RespondTemperatureStats {
+        final long requestId;
+        final int count;
+        final double min;
+        final double max;
+        final double mean;
+        final double percentile;
+
+        public RespondTemperatureStats(long requestId, int count, double min, double max, double mean, double percentile) {
+            this.requestId = requestId;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.mean = mean;
+            this.percentile = percentile;
+        }
+    }
+
+    /**
+     * All alert subscriptions of the group, replacing the previous ones; see {@link DeviceGroup.SubscribeAlerts}.
+     */
+    static final class SetAlerts {
+        final AlertSubscriptions alerts;
+        // the absences the device already reached were reported for it, by itself before it passivated or by
+        // its group since
+        final boolean reachedAbsencesReported;
+
+        SetAlerts(AlertSubscriptions alerts) {
+            this(alerts, false);
+        }
+
+        SetAlerts(AlertSubscriptions alerts, boolean reachedAbsencesReported) {
+            this.alerts = alerts;
+            this.reachedAbsencesReported = reachedAbsencesReported;
+        }
+    }
+
+    /**
+     * Whether the group wants a {@link DeviceGroup.TemperatureChanged} for every change, for its reading feed.
+     */
+    static final class ReportChanges {
+        final boolean enabled;
+
+        ReportChanges(boolean enabled) {
+            this.enabled = enabled;
+        }
+    }
+
+    static final class CheckAbsence {
+        static final CheckAbsence INSTANCE = new CheckAbsence();
+    }
+
+    /**
+     * Stops a device that asked its group to passivate it, once it recorded the readings queued before; the
+     * device hands its group its final reading in a {@link DeviceGroup.Passivated} first.
+     */
+    static final class Stop implements PriorityIngestMailbox.IngestBarrier {
+        static final Stop INSTANCE = new Stop();
+    }
+}
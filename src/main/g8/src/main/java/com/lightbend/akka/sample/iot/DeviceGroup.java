@@ -2,53 +2,176 @@ package com.lightbend.akka.sample.iot;
 
 import akka.actor.AbstractActor;
 import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.PoisonPill;
 import akka.actor.Props;
 import akka.actor.Terminated;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ShardRegion;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import lombok.Data;
 import scala.concurrent.duration.FiniteDuration;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 public class DeviceGroup extends AbstractActor {
+    static final FiniteDuration DEFAULT_QUERY_TIMEOUT = new FiniteDuration(3, TimeUnit.SECONDS);
+    static final String DEVICE_NAME_PREFIX = "device-";
+    // the request id of the query collecting the readings of a group that is handed off
+    static final long HAND_OFF_REQUEST_ID = -1L;
+
     final String groupId;
-    final Map<String, ActorRef> deviceIdToActor = new HashMap<>();
-    final Map<ActorRef, String> actorToDeviceId = new HashMap<>();
+    final DeviceGroupSettings settings;
+    // an entity of cluster sharding rather than a child of the manager
+    final boolean sharded;
+    // the live devices
+    final ActorRegistry devices = new ActorRegistry();
+    final TemperatureSnapshot snapshot = new TemperatureSnapshot();
+    final PassivatedDevices passivated = new PassivatedDevices();
+    // devices being stopped for passivation, and the messages for them that arrive in the meantime
+    final Map<ActorRef, String> passivatingActors = new HashMap<>();
+    final Map<String, List<PendingMessage>> passivatingDevices = new HashMap<>();
+    // null if readings are not journaled
+    TemperatureJournal journal;
+    Cancellable journalFlush;
+    // the open coalescing window: latest reading per device, with the acks it owes every sender
+    Map<String, CoalescedReading> coalesced = new HashMap<>();
+    boolean coalesceWindowOpen;
+    long coalesceWindows;
+    // closed windows by number, until their devices recorded or dropped the readings handed to them
+    final Map<Long, ClosedWindow> closedWindows = new HashMap<>();
+    boolean closedWindowsExpiry;
+    // handed to every device, which evaluates them on its readings
+    AlertSubscriptions alerts = AlertSubscriptions.NONE;
+    // the next check for absences of passivated devices, at System.nanoTime() absenceCheckAtNanos
+    Cancellable absenceCheck;
+    long absenceCheckAtNanos;
+    final ReadingFeed feed;
+    final IotMetrics metrics = IotMetrics.get(getContext().getSystem());
     private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
 
-    public DeviceGroup(String groupId) {
+    public DeviceGroup(String groupId, DeviceGroupSettings settings) {
         this.groupId = groupId;
+        this.settings = settings;
+        this.sharded = false;
+        this.feed = new ReadingFeed(getContext(), settings.feedTickMillis);
+    }
+
+    /**
+     * A group started by cluster sharding, which names the entity after its URL encoded id.
+     */
+    public DeviceGroup(DeviceGroupSettings settings) throws UnsupportedEncodingException {
+        this.groupId = URLDecoder.decode(getSelf().path().name(), "UTF-8");
+        this.settings = settings;
+        this.sharded = true;
+        this.feed = new ReadingFeed(getContext(), settings.feedTickMillis);
     }
 
     public static Props props(String groupId) {
-        return Props.create(DeviceGroup.class, groupId);
+        return props(groupId, DeviceGroupSettings.defaults());
+    }
+
+    public static Props props(String groupId, DeviceGroupSettings settings) {
+        return Props.create(DeviceGroup.class, groupId, settings)
+                .withMailbox("iot.group-mailbox")
+                .withDispatcher("iot.group-dispatcher");
+    }
+
+    /**
+     * @see DeviceManager#startSharding
+     */
+    static Props entityProps(DeviceGroupSettings settings) {
+        return Props.create(DeviceGroup.class, settings)
+                .withMailbox("iot.group-mailbox")
+                .withDispatcher("iot.group-dispatcher");
     }
 
     @Override
-    public void preStart() {
+    public void preStart() throws Exception {
         log.info("DeviceGroup {} started", groupId);
+        if (settings.journalDirectory != null && Files.isDirectory(journalDirectory())) {
+            openJournal(journalDirectory());
+        }
     }
 
     @Override
     public void postStop() {
+        feed.stop();
+        cancelAbsenceCheck();
+        if (journal != null) {
+            journalFlush.cancel();
+            journal.close();
+        }
         log.info("DeviceGroup {} stopped", groupId);
     }
 
-    private void onTrackDevice(DeviceManager.RequestTrackDevice trackMsg) {
+    private Path journalDirectory() throws UnsupportedEncodingException {
+        return settings.journalDirectory.resolve(URLEncoder.encode(groupId, "UTF-8"));
+    }
+
+    /**
+     * The journal of a new group, and with it its directory, is only created along with its first device.
+     */
+    private void openJournalIfMissing() throws Exception {
+        if (journal == null && settings.journalDirectory != null) {
+            openJournal(journalDirectory());
+        }
+    }
+
+    /**
+     * Restores the devices found in the journal as passivated, so they are only started once a message
+     * for them arrives. Opening the journal compacts it to the last reading of every device.
+     */
+    private void openJournal(Path directory) throws Exception {
+        long start = System.nanoTime();
+        PassivatedDevices recovered = new PassivatedDevices();
+        journal = TemperatureJournal.open(directory, settings.journalSegmentBytes, recovered);
+        // the journal keeps the timestamps of the readings, not when they arrived, so the silence starts now
+        long now = System.nanoTime();
+        recovered.forEach((deviceId, hasValue, value) -> {
+            passivated.put(deviceId, hasValue, value, now, now);
+            if (settings.snapshotEnabled) {
+                snapshot.track(deviceId);
+                snapshot.update(deviceId, value);
+            }
+        });
+        log.info("Recovered {} devices of group {} in {} ms", recovered.size(), groupId,
+                 TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        FiniteDuration interval = FiniteDuration.create(settings.journalFlushIntervalMillis, TimeUnit.MILLISECONDS);
+        // forcing the segments to disk blocks, so it must not take a thread from the actors
+        journalFlush = getContext().getSystem().scheduler().schedule(
+                interval, interval, journal::flush,
+                getContext().getSystem().dispatchers().lookup("iot.blocking-io-dispatcher"));
+    }
+
+    private void onTrackDevice(DeviceManager.RequestTrackDevice trackMsg) throws Exception {
         if (groupId.equals(trackMsg.groupId)) {
-            ActorRef deviceActor = deviceIdToActor.get(trackMsg.deviceId);
-            if (deviceActor != null) {
-                deviceActor.forward(trackMsg, getContext());
-            } else {
+            openJournalIfMissing();
+            if (!forwardToDevice(trackMsg.deviceId, trackMsg)) {
+                if (journal != null && !TemperatureJournal.fits(trackMsg.deviceId)) {
+                    log.warning("Ignoring TrackDevice request for {}, the id is too long to be journaled",
+                                trackMsg.deviceId);
+                    return;
+                }
                 log.info("Creating device actor for {}", trackMsg.deviceId);
-                deviceActor = getContext().actorOf(Device.props(groupId, trackMsg.deviceId), "device-" + trackMsg.deviceId);
-                getContext().watch(deviceActor);
-                actorToDeviceId.put(deviceActor, trackMsg.deviceId);
-                deviceIdToActor.put(trackMsg.deviceId, deviceActor);
+                ActorRef deviceActor = startDevice(trackMsg.deviceId, deviceProps(trackMsg.deviceId), false);
+                if (settings.snapshotEnabled) {
+                    snapshot.track(trackMsg.deviceId);
+                }
                 deviceActor.forward(trackMsg, getContext());
             }
         } else {
@@ -59,22 +182,631 @@ public class DeviceGroup extends AbstractActor {
         }
     }
 
+    /**
+     * Forwards to a live device, rehydrating it if it is passivated.
+     *
+     * @return false if the device is not tracked by this group
+     */
+    private boolean forwardToDevice(String deviceId, Object message) {
+        ActorRef deviceActor = devices.actorOf(deviceId);
+        if (deviceActor != null) {
+            deviceActor.forward(message, getContext());
+            return true;
+        }
+        List<PendingMessage> pending = passivatingDevices.get(deviceId);
+        if (pending != null) {
+            pending.add(new PendingMessage(message, getSender()));
+            return true;
+        }
+        if (passivated.contains(deviceId)) {
+            rehydrate(deviceId).forward(message, getContext());
+            return true;
+        }
+        return false;
+    }
+
+    private ActorRef startDevice(String deviceId, Props deviceProps, boolean rehydrated) {
+        ActorRef deviceActor = getContext().actorOf(deviceProps, DEVICE_NAME_PREFIX + deviceId);
+        getContext().watch(deviceActor);
+        devices.put(deviceId, deviceActor);
+        if (alerts.size() > 0) {
+            deviceActor.tell(new Device.SetAlerts(alerts, rehydrated), getSelf());
+        }
+        if (!feed.isEmpty() && !settings.snapshotEnabled) {
+            deviceActor.tell(new Device.ReportChanges(true), getSelf());
+        }
+        return deviceActor;
+    }
+
+    /**
+     * Reports the absences the device reached since the last check first, so that it only has to watch for
+     * the ones it has not reached yet.
+     */
+    private ActorRef rehydrate(String deviceId) {
+        long heardAt = passivated.heardAt(deviceId);
+        if (alerts.hasAbsence()) {
+            passivated.checkAbsences(deviceId, alerts, System.nanoTime(), this::absenceReached);
+        }
+        Props deviceProps = Device.props(groupId, deviceId, settings, journal, passivated.hasValue(deviceId),
+                                         passivated.value(deviceId), heardAt);
+        passivated.remove(deviceId);
+        return startDevice(deviceId, deviceProps, true);
+    }
+
+    private Props deviceProps(String deviceId) {
+        return journal != null
+               ? Device.props(groupId, deviceId, settings, journal)
+               : Device.props(groupId, deviceId, settings);
+    }
+
+    /**
+     * Messages for the device wait here from now on, while the readings forwarded to it before still reach it:
+     * it only stops once it handled them, and hands over its final reading then.
+     */
+    private void onPassivate(Passivate p) {
+        ActorRef deviceActor = getSender();
+        if (deviceActor.equals(devices.actorOf(p.deviceId))) {
+            devices.remove(p.deviceId);
+            long now = System.nanoTime();
+            // queries see the reading the device asked with until its final one arrives
+            passivated.put(p.deviceId, p.hasValue, p.value, now - p.silentNanos, now);
+            passivatingActors.put(deviceActor, p.deviceId);
+            passivatingDevices.put(p.deviceId, new ArrayList<>());
+            deviceActor.tell(Device.Stop.INSTANCE, getSelf());
+        }
+    }
+
+    private void onPassivated(Passivated p) {
+        if (!p.deviceId.equals(passivatingActors.get(getSender()))) {
+            return;
+        }
+        long now = System.nanoTime();
+        // the device reported the absences it reached itself
+        passivated.put(p.deviceId, p.hasValue, p.value, now - p.silentNanos, now);
+        if (alerts.hasAbsence()) {
+            scheduleAbsenceCheck(passivated.checkAbsences(p.deviceId, alerts, now, this::absenceReached));
+        }
+    }
+
+    /**
+     * The silence of a restored device starts now, the group it was handed over from was on another node.
+     * A hand-off replaces what the journal of this node remembers from an earlier stay of the group here, but
+     * not the devices started since, whose readings are newer still.
+     */
+    private void onRestore(DeviceManager.RestoreGroup r) throws Exception {
+        openJournalIfMissing();
+        long now = System.nanoTime();
+        int restored = 0;
+        for (int i = 0; i < r.deviceIds.length; i++) {
+            String deviceId = r.deviceIds[i];
+            if (devices.contains(deviceId) || passivatingDevices.containsKey(deviceId) ||
+                (!r.handOff && passivated.contains(deviceId)) ||
+                (journal != null && !TemperatureJournal.fits(deviceId))) {
+                continue;
+            }
+            passivated.put(deviceId, r.hasValue[i], r.values[i], now, now);
+            if (r.handOff && r.hasValue[i] && journal != null) {
+                journal.append(TemperatureJournal.key(deviceId), System.currentTimeMillis(), r.values[i]);
+            }
+            if (settings.snapshotEnabled) {
+                snapshot.track(deviceId);
+                if (r.hasValue[i]) {
+                    snapshot.update(deviceId, r.values[i]);
+                }
+            }
+            restored++;
+        }
+        log.info("Restored {} devices of group {}", restored, groupId);
+    }
+
     private void onDeviceList(RequestDeviceList r) {
-        getSender().tell(new ReplyDeviceList(r.requestId, deviceIdToActor.keySet()), getSelf());
+        if (answeredAsUnknown(r)) {
+            return;
+        }
+        Set<String> ids = new HashSet<>();
+        devices.addIdsTo(ids);
+        passivated.addIdsTo(ids);
+        getSender().tell(new ReplyDeviceList(r.requestId, ids), getSelf());
     }
 
     private void onTerminated(Terminated t) {
         ActorRef deviceActor = t.getActor();
-        String deviceId = actorToDeviceId.get(deviceActor);
+        String passivatedId = passivatingActors.remove(deviceActor);
+        if (passivatedId != null) {
+            List<PendingMessage> pending = passivatingDevices.remove(passivatedId);
+            if (!pending.isEmpty()) {
+                ActorRef rehydrated = rehydrate(passivatedId);
+                for (PendingMessage m : pending) {
+                    rehydrated.tell(m.message, m.sender);
+                }
+            }
+            return;
+        }
+        String deviceId = devices.idOf(deviceActor);
+        if (deviceId == null) {
+            if (alerts.hasSubscriber(deviceActor)) {
+                alerts = alerts.without(deviceActor);
+                publishAlerts();
+            }
+            if (feed.remove(deviceActor) && feed.isEmpty()) {
+                publishReportChanges(false);
+            }
+            return;
+        }
         log.info("Device actor for {} has been terminated", deviceId);
-        actorToDeviceId.remove(deviceActor);
-        deviceIdToActor.remove(deviceId);
+        devices.remove(deviceId);
+        snapshot.remove(deviceId);
+    }
+
+    /**
+     * The absences of passivated devices are noticed here, from when each had its last reading, so that they
+     * stay passivated; those they already reached are reported right away.
+     */
+    private void onSubscribeAlerts(SubscribeAlerts s) {
+        getContext().watch(getSender());
+        alerts = alerts.with(getSender(), s.subscriptionId, s.condition);
+        publishAlerts();
+        if (s.condition.getKind() == AlertCondition.Kind.ABSENCE) {
+            int index = alerts.indexOf(getSender(), s.subscriptionId);
+            scheduleAbsenceCheck(passivated.checkAbsences(alerts, index, System.nanoTime(), this::absenceReached));
+        }
+        getSender().tell(new AlertsSubscribed(s.subscriptionId), getSelf());
+    }
+
+    private void onUnsubscribeAlerts(UnsubscribeAlerts u) {
+        alerts = alerts.without(getSender(), u.subscriptionId);
+        unwatchIfUnsubscribed(getSender());
+        publishAlerts();
+    }
+
+    private void unwatchIfUnsubscribed(ActorRef subscriber) {
+        if (!alerts.hasSubscriber(subscriber) && !feed.contains(subscriber)) {
+            getContext().unwatch(subscriber);
+        }
+    }
+
+    private void publishAlerts() {
+        Device.SetAlerts set = new Device.SetAlerts(alerts);
+        ActorRegistry.Snapshot live = devices.snapshot();
+        for (int slot = 0; slot < live.size(); slot++) {
+            live.actorAt(slot).tell(set, getSelf());
+        }
+        if (!alerts.hasAbsence()) {
+            cancelAbsenceCheck();
+        }
+    }
+
+    /**
+     * Every check walks all passivated devices, so checks are at least a tenth of the shortest absence apart,
+     * which is how late an absence may be reported.
+     */
+    private void onCheckAbsence() {
+        absenceCheck = null;
+        if (alerts.hasAbsence()) {
+            long next = passivated.checkAbsences(alerts, -1, System.nanoTime(), this::absenceReached);
+            scheduleAbsenceCheck(next == Long.MAX_VALUE
+                                 ? next
+                                 : Math.max(next, TimeUnit.MILLISECONDS.toNanos(alerts.minAbsentMillis) / 10));
+        }
+    }
+
+    /**
+     * Checks in {@code delayNanos}, unless a check is due earlier.
+     */
+    private void scheduleAbsenceCheck(long delayNanos) {
+        if (delayNanos == Long.MAX_VALUE) {
+            return;
+        }
+        long at = System.nanoTime() + delayNanos;
+        if (absenceCheck != null) {
+            if (absenceCheckAtNanos - at <= 0) {
+                return;
+            }
+            absenceCheck.cancel();
+        }
+        absenceCheckAtNanos = at;
+        absenceCheck = getContext().getSystem().scheduler().scheduleOnce(
+                FiniteDuration.create(Math.max(0L, delayNanos), TimeUnit.NANOSECONDS), getSelf(),
+                CheckAbsence.INSTANCE, getContext().dispatcher(), getSelf());
+    }
+
+    private void cancelAbsenceCheck() {
+        if (absenceCheck != null) {
+            absenceCheck.cancel();
+            absenceCheck = null;
+        }
+    }
+
+    private void absenceReached(String deviceId, int index, boolean hasValue, double value) {
+        if (passivatingDevices.containsKey(deviceId)) {
+            // still running until it handed over its final reading, and reporting its absences itself
+            return;
+        }
+        alerts.subscriberAt(index).tell(
+                new Alert(alerts.idAt(index), groupId, deviceId, AlertCondition.Kind.ABSENCE,
+                          hasValue ? value : Double.NaN, System.currentTimeMillis()), getSelf());
+    }
+
+    /**
+     * Without snapshots devices only report their changes while the feed has subscribers.
+     */
+    private void onSubscribeReadings(SubscribeReadings s) {
+        boolean wasEmpty = feed.isEmpty();
+        getContext().watch(getSender());
+        feed.subscribe(getSender(), s);
+        if (wasEmpty) {
+            publishReportChanges(true);
+        }
+        getSender().tell(new ReadingsSubscribed(s.subscriptionId), getSelf());
+    }
+
+    private void onUnsubscribeReadings(UnsubscribeReadings u) {
+        if (feed.unsubscribe(getSender(), u.subscriptionId)) {
+            unwatchIfUnsubscribed(getSender());
+            if (feed.isEmpty()) {
+                publishReportChanges(false);
+            }
+        }
+    }
+
+    private void publishReportChanges(boolean enabled) {
+        if (settings.snapshotEnabled) {
+            return;
+        }
+        Device.ReportChanges report = new Device.ReportChanges(enabled);
+        ActorRegistry.Snapshot live = devices.snapshot();
+        for (int slot = 0; slot < live.size(); slot++) {
+            live.actorAt(slot).tell(report, getSelf());
+        }
     }
 
+    private void onTemperatureChanged(TemperatureChanged c) {
+        snapshot.update(c.deviceId, c.value);
+        feed.record(c.deviceId, c.value, c.timestamp);
+    }
+
+    /**
+     * With snapshots enabled and a non-zero staleness bound the answer comes straight from the snapshot,
+     * otherwise a {@link DeviceGroupQuery} asks every device.
+     */
     private void onAllTemperatures(RequestAllTemperatures r) {
-        getContext().actorOf(DeviceGroupQuery.props(actorToDeviceId,
-                                                    r.requestId, getSender(),
-                                                    new FiniteDuration(3, TimeUnit.SECONDS)));
+        if (answeredAsUnknown(r)) {
+            return;
+        }
+        if (settings.snapshotEnabled && r.maxStalenessMillis > 0) {
+            getSender().tell(new RespondAllTemperatures(r.requestId, snapshot.view(
+                    TimeUnit.MILLISECONDS.toNanos(r.maxStalenessMillis), System.nanoTime())), getSelf());
+        } else {
+            getContext().actorOf(DeviceGroupQuery.props(devices.snapshot(), passivated.readings(true),
+                                                        r.requestId, getSender(),
+                                                        r.timeout, r.policy));
+        }
+    }
+
+    /**
+     * Splits the batch per device and forwards one {@link Device.RecordTemperatureBatch} to each of them,
+     * so the sender gets one {@link Device.TemperatureBatchRecorded} per tracked device in the batch, and one
+     * {@link PriorityIngestMailbox.Dropped} for the readings of the untracked ones.
+     */
+    private void onRecordTemperatures(RecordTemperatures r) {
+        if (settings.coalesceWindowMillis > 0) {
+            coalesce(r);
+            return;
+        }
+        Map<String, int[]> counts = new HashMap<>();
+        for (String deviceId : r.deviceIds) {
+            counts.computeIfAbsent(deviceId, id -> new int[1])[0]++;
+        }
+        Map<String, Device.RecordTemperatureBatch> batches = new HashMap<>(counts.size() * 2);
+        for (Map.Entry<String, int[]> e : counts.entrySet()) {
+            int n = e.getValue()[0];
+            batches.put(e.getKey(), new Device.RecordTemperatureBatch(new long[n], new double[n], new long[n]));
+            e.getValue()[0] = 0;
+        }
+        for (int i = 0; i < r.deviceIds.length; i++) {
+            int[] fill = counts.get(r.deviceIds[i]);
+            Device.RecordTemperatureBatch batch = batches.get(r.deviceIds[i]);
+            batch.requestIds[fill[0]] = r.requestIds[i];
+            batch.values[fill[0]] = r.values[i];
+            batch.timestamps[fill[0]] = r.timestamps[i];
+            fill[0]++;
+        }
+        Set<String> unknown = null;
+        for (Map.Entry<String, Device.RecordTemperatureBatch> e : batches.entrySet()) {
+            if (!forwardToDevice(e.getKey(), e.getValue())) {
+                if (unknown == null) {
+                    unknown = new HashSet<>();
+                }
+                unknown.add(e.getKey());
+            }
+        }
+        if (unknown != null) {
+            dropUntracked(r, unknown);
+        }
+    }
+
+    /**
+     * No device will acknowledge the readings for untracked devices, so the sender is told right away with a
+     * {@link PriorityIngestMailbox.Dropped} holding just those.
+     */
+    private void dropUntracked(RecordTemperatures r, Set<String> untracked) {
+        log.warning("Dropped readings for {} untracked devices in group {}", untracked.size(), groupId);
+        if (getSender().equals(getContext().getSystem().deadLetters())) {
+            return;
+        }
+        int n = 0;
+        for (String deviceId : r.deviceIds) {
+            if (untracked.contains(deviceId)) {
+                n++;
+            }
+        }
+        String[] deviceIds = new String[n];
+        long[] requestIds = new long[n];
+        double[] values = new double[n];
+        long[] timestamps = new long[n];
+        int j = 0;
+        for (int i = 0; i < r.deviceIds.length; i++) {
+            if (untracked.contains(r.deviceIds[i])) {
+                deviceIds[j] = r.deviceIds[i];
+                requestIds[j] = r.requestIds[i];
+                values[j] = r.values[i];
+                timestamps[j] = r.timestamps[i];
+                j++;
+            }
+        }
+        getSender().tell(new PriorityIngestMailbox.Dropped(
+                new RecordTemperatures(deviceIds, requestIds, values, timestamps)), getSelf());
+    }
+
+    /**
+     * Keeps the latest reading of every device until the window closes, and the highest request id per device
+     * and message as the ack the device would have sent for it.
+     */
+    private void coalesce(RecordTemperatures r) {
+        Map<String, Long> highestRequestIds = new HashMap<>();
+        Set<String> unknown = null;
+        for (int i = 0; i < r.deviceIds.length; i++) {
+            String deviceId = r.deviceIds[i];
+            CoalescedReading reading = coalesced.get(deviceId);
+            if (reading == null) {
+                if (!isTracked(deviceId)) {
+                    if (unknown == null) {
+                        unknown = new HashSet<>();
+                    }
+                    unknown.add(deviceId);
+                    continue;
+                }
+                reading = new CoalescedReading();
+                coalesced.put(deviceId, reading);
+            }
+            reading.value = r.values[i];
+            reading.timestamp = r.timestamps[i];
+            reading.readings++;
+            highestRequestIds.merge(deviceId, r.requestIds[i], Math::max);
+        }
+        if (unknown != null) {
+            dropUntracked(r, unknown);
+        }
+        if (!getSender().equals(getContext().getSystem().deadLetters())) {
+            for (Map.Entry<String, Long> e : highestRequestIds.entrySet()) {
+                coalesced.get(e.getKey()).acks.computeIfAbsent(getSender(), s -> new CoalescedAcks())
+                        .add(e.getValue());
+            }
+        }
+        if (!coalesceWindowOpen && !coalesced.isEmpty()) {
+            coalesceWindowOpen = true;
+            getContext().getSystem().scheduler().scheduleOnce(
+                    FiniteDuration.create(settings.coalesceWindowMillis, TimeUnit.MILLISECONDS),
+                    getSelf(), new CloseCoalesceWindow(), getContext().dispatcher(), getSelf());
+        }
+    }
+
+    private boolean isTracked(String deviceId) {
+        return devices.contains(deviceId) || passivatingDevices.containsKey(deviceId)
+               || passivated.contains(deviceId);
+    }
+
+    /**
+     * Hands every device of the window its latest reading, numbered with the window. Once every device
+     * recorded or dropped it, the senders get the acks of the devices that recorded it and their readings
+     * of the others back in a {@link PriorityIngestMailbox.Dropped}.
+     */
+    private void onCloseCoalesceWindow(CloseCoalesceWindow c) {
+        coalesceWindowOpen = false;
+        long window = ++coalesceWindows;
+        ClosedWindow closed = new ClosedWindow(System.nanoTime());
+        for (Map.Entry<String, CoalescedReading> e : coalesced.entrySet()) {
+            CoalescedReading reading = e.getValue();
+            closed.awaiting.put(e.getKey(), reading);
+            // forwarded with the group as sender, so the device confirms to the group
+            Device.RecordTemperature update = new Device.RecordTemperature(window, reading.value, reading.timestamp);
+            if (!forwardToDevice(e.getKey(), update)) {
+                closed.dropped(e.getKey());
+            }
+            metrics.coalescedReadings.add(reading.readings - 1);
+        }
+        coalesced = new HashMap<>();
+        if (closed.awaiting.isEmpty()) {
+            closed.complete(getSelf());
+        } else {
+            closedWindows.put(window, closed);
+            scheduleClosedWindowsExpiry();
+        }
+    }
+
+    private void onCoalescedReadingRecorded(Device.TemperatureRecorded r) {
+        ClosedWindow closed = closedWindows.get(r.requestId);
+        if (closed != null) {
+            closed.recorded(deviceIdOf(getSender()));
+            completeIfSettled(r.requestId, closed);
+        }
+    }
+
+    /**
+     * A full device mailbox dropped the reading of a window, so only that device's readings are given back.
+     */
+    private void onDropped(PriorityIngestMailbox.Dropped d) {
+        if (d.message instanceof Device.RecordTemperature) {
+            long window = ((Device.RecordTemperature) d.message).requestId;
+            ClosedWindow closed = closedWindows.get(window);
+            if (closed != null) {
+                log.warning("A device of group {} dropped the reading of a coalescing window", groupId);
+                closed.dropped(deviceIdOf(getSender()));
+                completeIfSettled(window, closed);
+            }
+        }
+    }
+
+    private void completeIfSettled(long window, ClosedWindow closed) {
+        if (closed.awaiting.isEmpty()) {
+            closedWindows.remove(window);
+            closed.complete(getSelf());
+        }
+    }
+
+    private static String deviceIdOf(ActorRef deviceActor) {
+        return deviceActor.path().name().substring(DEVICE_NAME_PREFIX.length());
+    }
+
+    private void scheduleClosedWindowsExpiry() {
+        if (!closedWindowsExpiry) {
+            closedWindowsExpiry = true;
+            getContext().getSystem().scheduler().scheduleOnce(
+                    DEFAULT_QUERY_TIMEOUT, getSelf(), new ExpireClosedWindows(), getContext().dispatcher(),
+                    getSelf());
+        }
+    }
+
+    /**
+     * Gives up on the devices that never confirmed the reading of a window, e.g. because they stopped, and
+     * completes the window as if they had dropped it. Runs for as long as there are closed windows.
+     */
+    private void onExpireClosedWindows(ExpireClosedWindows e) {
+        closedWindowsExpiry = false;
+        long expiredBefore = System.nanoTime() - DEFAULT_QUERY_TIMEOUT.toNanos();
+        closedWindows.values().removeIf(closed -> {
+            if (closed.closedAtNanos - expiredBefore < 0) {
+                log.warning("Readings of a coalescing window of group {} were not recorded by {} devices",
+                            groupId, closed.awaiting.size());
+                for (String deviceId : new ArrayList<>(closed.awaiting.keySet())) {
+                    closed.dropped(deviceId);
+                }
+                closed.complete(getSelf());
+                return true;
+            }
+            return false;
+        });
+        if (!closedWindows.isEmpty()) {
+            scheduleClosedWindowsExpiry();
+        }
+    }
+
+    private void onAllTemperaturesStreamed(RequestAllTemperaturesStreamed r) {
+        if (answeredAsUnknown(r)) {
+            return;
+        }
+        getContext().actorOf(DeviceGroupStreamingQuery.props(devices.snapshot(), passivated.readings(true),
+                                                             r.requestId, getSender(),
+                                                             r.chunkSize, r.maxChunkDelay,
+                                                             r.timeout, r.policy));
+    }
+
+    private void onTopTemperatures(RequestTopTemperatures r) {
+        if (answeredAsUnknown(r)) {
+            return;
+        }
+        getContext().actorOf(DeviceGroupQuery.topProps(devices.snapshot(), passivated.readings(true),
+                                                       groupId, r.filter,
+                                                       r.requestId, getSender(), r.timeout));
+    }
+
+    private void onAllTemperatureStats(RequestAllTemperatureStats r) {
+        if (answeredAsUnknown(r)) {
+            return;
+        }
+        // passivated devices keep no history, so they have no readings in any window
+        getContext().actorOf(DeviceGroupQuery.statsProps(devices.snapshot(), passivated.readings(false),
+                                                         r.windowMillis, r.percentile,
+                                                         r.requestId, getSender(),
+                                                         r.timeout, r.policy));
+    }
+
+    /**
+     * Cluster sharding starts a group for any message to its id, so a sharded group that tracks no device and
+     * has no subscribers answers a query as the manager does for an unknown group, and passivates right away
+     * instead of staying around for a group that does not exist.
+     */
+    private boolean answeredAsUnknown(Object query) {
+        if (!sharded || devices.size() > 0 || passivated.size() > 0 || !passivatingDevices.isEmpty()
+            || alerts.size() > 0 || !feed.isEmpty()) {
+            return false;
+        }
+        getSender().tell(emptyReply(query), getSelf());
+        getContext().getParent().tell(new ShardRegion.Passivate(PoisonPill.getInstance()), getSelf());
+        return true;
+    }
+
+    /**
+     * What a group without devices answers {@code query} with, null if it is not a query.
+     */
+    static Object emptyReply(Object query) {
+        if (query instanceof RequestDeviceList) {
+            return new ReplyDeviceList(((RequestDeviceList) query).requestId, Collections.emptySet());
+        } else if (query instanceof RequestAllTemperatures) {
+            return new RespondAllTemperatures(((RequestAllTemperatures) query).requestId, Collections.emptyMap());
+        } else if (query instanceof RequestAllTemperaturesStreamed) {
+            return new TemperaturesStreamCompleted(((RequestAllTemperaturesStreamed) query).requestId, 0,
+                                                   Collections.emptyList());
+        } else if (query instanceof RequestAllTemperatureStats) {
+            return new RespondAllTemperatures(((RequestAllTemperatureStats) query).requestId,
+                                              Collections.emptyMap());
+        } else if (query instanceof RequestTopTemperatures) {
+            return new DeviceManager.RespondFleetTemperatures(((RequestTopTemperatures) query).requestId,
+                                                              Collections.emptyList(), 0, 0, true);
+        }
+        return null;
+    }
+
+    /**
+     * Collects the last readings of all devices before a sharded group moves to another node.
+     */
+    private void onHandOff(HandOff h) {
+        getContext().actorOf(DeviceGroupQuery.props(devices.snapshot(), passivated.readings(true),
+                                                    HAND_OFF_REQUEST_ID, getSelf(),
+                                                    DEFAULT_QUERY_TIMEOUT, CompletionPolicy.all()));
+    }
+
+    /**
+     * Hands the devices to the group on its new node as a {@link DeviceManager.RestoreGroup}, followed by the
+     * alert and feed subscriptions, sent on behalf of their subscribers. The shard region holds on to messages
+     * for the group until it has moved, so the group gets them before anything else sent after the hand-off
+     * started. Devices that passivated meanwhile are handed over with their last reading.
+     */
+    private void onHandOffReadings(RespondAllTemperatures r) {
+        Map<String, TemperatureReading> readings = new HashMap<>(r.temperatures);
+        passivated.readings(true).forEach(readings::putIfAbsent);
+        String[] deviceIds = new String[readings.size()];
+        boolean[] hasValue = new boolean[deviceIds.length];
+        double[] values = new double[deviceIds.length];
+        int i = 0;
+        for (Map.Entry<String, TemperatureReading> e : readings.entrySet()) {
+            deviceIds[i] = e.getKey();
+            hasValue[i] = e.getValue() instanceof Temperature;
+            values[i] = hasValue[i] ? e.getValue().getValue() : 0.0;
+            i++;
+        }
+        ActorRef region = ClusterSharding.get(getContext().getSystem()).shardRegion(DeviceManager.GROUP_TYPE_NAME);
+        if (deviceIds.length > 0) {
+            region.tell(new DeviceManager.RestoreGroup(groupId, deviceIds, hasValue, values, true), getSelf());
+        }
+        for (int j = 0; j < alerts.size(); j++) {
+            region.tell(new DeviceManager.ForGroup(groupId, new SubscribeAlerts(alerts.idAt(j), alerts.conditionAt(j))),
+                        alerts.subscriberAt(j));
+        }
+        feed.forEach((subscriber, s) -> region.tell(new DeviceManager.ForGroup(groupId, s), subscriber));
+        log.info("Handed off {} devices and {} subscriptions of group {}", deviceIds.length,
+                 alerts.size() + feed.size(), groupId);
+        getContext().stop(getSelf());
     }
 
     @Override
@@ -84,6 +816,28 @@ public class DeviceGroup extends AbstractActor {
                 .match(RequestDeviceList.class, this::onDeviceList)
                 .match(Terminated.class, this::onTerminated)
                 .match(RequestAllTemperatures.class, this::onAllTemperatures)
+                .match(RequestAllTemperaturesStreamed.class, this::onAllTemperaturesStreamed)
+                .match(RequestAllTemperatureStats.class, this::onAllTemperatureStats)
+                .match(RequestTopTemperatures.class, this::onTopTemperatures)
+                .match(RecordTemperatures.class, this::onRecordTemperatures)
+                .match(CloseCoalesceWindow.class, this::onCloseCoalesceWindow)
+                .match(Device.TemperatureRecorded.class, this::onCoalescedReadingRecorded)
+                .match(PriorityIngestMailbox.Dropped.class, this::onDropped)
+                .match(ExpireClosedWindows.class, this::onExpireClosedWindows)
+                .match(CheckAbsence.class, c -> onCheckAbsence())
+                .match(TemperatureChanged.class, this::onTemperatureChanged)
+                .match(Passivate.class, this::onPassivate)
+                .match(Passivated.class, this::onPassivated)
+                .match(DeviceManager.RestoreGroup.class, this::onRestore)
+                .match(SubscribeAlerts.class, this::onSubscribeAlerts)
+                .match(UnsubscribeAlerts.class, this::onUnsubscribeAlerts)
+                .match(SubscribeReadings.class, this::onSubscribeReadings)
+                .match(UnsubscribeReadings.class, this::onUnsubscribeReadings)
+                .match(ReadingChangesAck.class, a -> feed.ack(getSender(), a))
+                .match(ReadingFeed.Tick.class, t -> feed.tick())
+                .match(ReadingFeed.Resend.class, r -> feed.resend())
+                .match(HandOff.class, this::onHandOff)
+                .match(RespondAllTemperatures.class, r -> r.requestId == HAND_OFF_REQUEST_ID, this::onHandOffReadings)
                 .build();
     }
 
@@ -91,6 +845,229 @@ public class DeviceGroup extends AbstractActor {
         double getValue();
     }
 
+    /**
+     * Readings for many devices of this group in one message, as parallel arrays.
+     * The arrays are not copied and must not be modified after sending.
+     */
+    public static final class RecordTemperatures implements PriorityIngestMailbox.IngestMessage {
+        final String[] deviceIds;
+        final long[] requestIds;
+        final double[] values;
+        final long[] timestamps;
+
+        public RecordTemperatures(String[] deviceIds, long[] requestIds, double[] values, long[] timestamps) {
+            if (requestIds.length != deviceIds.length || values.length != deviceIds.length ||
+                timestamps.length != deviceIds.length) {
+                throw new IllegalArgumentException("All arrays of a RecordTemperatures must have the same length");
+            }
+            this.deviceIds = deviceIds;
+            this.requestIds = requestIds;
+            this.values = values;
+            this.timestamps = timestamps;
+        }
+
+        @Override
+        public Object coalesceKey() {
+            return null;
+        }
+    }
+
+    /**
+     * Cumulative ack of the readings a sender's {@link RecordTemperatures} had in one coalescing window: for
+     * every device and message the highest request id, as the {@link Device.TemperatureBatchRecorded} would
+     * carry it.
+     *
+     * @see DeviceGroupSettings#withCoalesceWindowMillis
+     */
+    public static final class TemperaturesRecorded {
+        final long[] requestIds;
+
+        public TemperaturesRecorded(long[] requestIds) {
+            this.requestIds = requestIds;
+        }
+    }
+
+    /**
+     * Sent by a {@link Device} to its group whenever its last reading changes, if snapshots are enabled or the
+     * group has subscribers of its {@link SubscribeReadings reading feed}. Not an ingest message: devices only
+     * report changes, so a dropped one would leave the snapshot and the feed wrong for the device until its
+     * next change.
+     */
+    public static final class TemperatureChanged {
+        final String deviceId;
+        final double value;
+        final long timestamp;
+
+        public TemperatureChanged(String deviceId, double value) {
+            this(deviceId, value, System.currentTimeMillis());
+        }
+
+        /**
+         * @param timestamp epoch millis at which the reading was taken
+         */
+        public TemperatureChanged(String deviceId, double value, long timestamp) {
+            this.deviceId = deviceId;
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Sent by an idle {@link Device} to ask its group to stop it, handing over its last reading and how long
+     * ago it had it, for the absences the group notices from then on.
+     */
+    public static final class Passivate {
+        final String deviceId;
+        final boolean hasValue;
+        final double value;
+        final long silentNanos;
+
+        public Passivate(String deviceId, boolean hasValue, double value, long silentNanos) {
+            this.deviceId = deviceId;
+            this.hasValue = hasValue;
+            this.value = value;
+            this.silentNanos = silentNanos;
+        }
+    }
+
+    /**
+     * The final reading of a {@link Device} its group stopped on a {@link Passivate}, sent just before it stops.
+     */
+    public static final class Passivated {
+        final String deviceId;
+        final boolean hasValue;
+        final double value;
+        final long silentNanos;
+
+        public Passivated(String deviceId, boolean hasValue, double value, long silentNanos) {
+            this.deviceId = deviceId;
+            this.hasValue = hasValue;
+            this.value = value;
+            this.silentNanos = silentNanos;
+        }
+    }
+
+    static final class PendingMessage {
+        final Object message;
+        final ActorRef sender;
+
+        PendingMessage(Object message, ActorRef sender) {
+            this.message = message;
+            this.sender = sender;
+        }
+    }
+
+    /**
+     * Sent by cluster sharding to a group that moves to another node, in place of stopping it.
+     *
+     * @see DeviceManager#startSharding
+     */
+    static final class HandOff {
+        static final HandOff INSTANCE = new HandOff();
+    }
+
+    static final class CloseCoalesceWindow {
+    }
+
+    static final class CheckAbsence {
+        static final CheckAbsence INSTANCE = new CheckAbsence();
+    }
+
+    static final class ExpireClosedWindows {
+    }
+
+    static final class CoalescedReading {
+        double value;
+        long timestamp;
+        int readings;
+        // per sender the highest request id of the device in each of its messages
+        final Map<ActorRef, CoalescedAcks> acks = new HashMap<>();
+    }
+
+    static final class CoalescedAcks {
+        long[] requestIds = new long[8];
+        int size;
+
+        void add(long requestId) {
+            if (size == requestIds.length) {
+                requestIds = Arrays.copyOf(requestIds, size * 2);
+            }
+            requestIds[size++] = requestId;
+        }
+    }
+
+    static final class ClosedWindow {
+        final long closedAtNanos;
+        // the readings of the devices that have not recorded or dropped theirs yet
+        final Map<String, CoalescedReading> awaiting = new HashMap<>();
+        final Map<ActorRef, CoalescedAcks> recorded = new HashMap<>();
+        final Map<String, CoalescedReading> dropped = new HashMap<>();
+
+        ClosedWindow(long closedAtNanos) {
+            this.closedAtNanos = closedAtNanos;
+        }
+
+        void recorded(String deviceId) {
+            CoalescedReading reading = awaiting.remove(deviceId);
+            if (reading != null) {
+                for (Map.Entry<ActorRef, CoalescedAcks> e : reading.acks.entrySet()) {
+                    CoalescedAcks acks = recorded.computeIfAbsent(e.getKey(), s -> new CoalescedAcks());
+                    for (int i = 0; i < e.getValue().size; i++) {
+                        acks.add(e.getValue().requestIds[i]);
+                    }
+                }
+            }
+        }
+
+        void dropped(String deviceId) {
+            CoalescedReading reading = awaiting.remove(deviceId);
+            if (reading != null) {
+                dropped.put(deviceId, reading);
+            }
+        }
+
+        /**
+         * Acknowledges what was recorded, and gives every sender its readings of the devices that dropped
+         * theirs back as one {@link RecordTemperatures}, a reading per request id with the coalesced value.
+         */
+        void complete(ActorRef group) {
+            for (Map.Entry<ActorRef, CoalescedAcks> e : recorded.entrySet()) {
+                CoalescedAcks a = e.getValue();
+                e.getKey().tell(new TemperaturesRecorded(Arrays.copyOf(a.requestIds, a.size)), group);
+            }
+            Map<ActorRef, List<String>> droppedBySender = new HashMap<>();
+            for (Map.Entry<String, CoalescedReading> e : dropped.entrySet()) {
+                for (ActorRef sender : e.getValue().acks.keySet()) {
+                    droppedBySender.computeIfAbsent(sender, s -> new ArrayList<>()).add(e.getKey());
+                }
+            }
+            for (Map.Entry<ActorRef, List<String>> e : droppedBySender.entrySet()) {
+                int n = 0;
+                for (String deviceId : e.getValue()) {
+                    n += dropped.get(deviceId).acks.get(e.getKey()).size;
+                }
+                String[] deviceIds = new String[n];
+                long[] requestIds = new long[n];
+                double[] values = new double[n];
+                long[] timestamps = new long[n];
+                int j = 0;
+                for (String deviceId : e.getValue()) {
+                    CoalescedReading reading = dropped.get(deviceId);
+                    CoalescedAcks a = reading.acks.get(e.getKey());
+                    for (int i = 0; i < a.size; i++) {
+                        deviceIds[j] = deviceId;
+                        requestIds[j] = a.requestIds[i];
+                        values[j] = reading.value;
+                        timestamps[j] = reading.timestamp;
+                        j++;
+                    }
+                }
+                e.getKey().tell(new PriorityIngestMailbox.Dropped(
+                        new RecordTemperatures(deviceIds, requestIds, values, timestamps)), group);
+            }
+        }
+    }
+
     public static final class RequestDeviceList {
         final long requestId;
 
@@ -112,6 +1089,266 @@ public class DeviceGroup extends AbstractActor {
     @Data
     public static final class RequestAllTemperatures {
         final long requestId;
+        final long maxStalenessMillis;
+        final FiniteDuration timeout;
+        final CompletionPolicy policy;
+
+        public RequestAllTemperatures(long requestId) {
+            this(requestId, 0L);
+        }
+
+        /**
+         * @param maxStalenessMillis how old a snapshot based answer may be; 0 always asks the devices
+         */
+        public RequestAllTemperatures(long requestId, long maxStalenessMillis) {
+            this(requestId, maxStalenessMillis, DEFAULT_QUERY_TIMEOUT, CompletionPolicy.all());
+        }
+
+        /**
+         * @param timeout devices that have not answered within this time are reported as {@link DeviceTimedOut}
+         * @param policy  how many answers are enough to respond before the timeout
+         */
+        public RequestAllTemperatures(long requestId, FiniteDuration timeout, CompletionPolicy policy) {
+            this(requestId, 0L, timeout, policy);
+        }
+
+        public RequestAllTemperatures(long requestId, long maxStalenessMillis,
+                                      FiniteDuration timeout, CompletionPolicy policy) {
+            this.requestId = requestId;
+            this.maxStalenessMillis = maxStalenessMillis;
+            this.timeout = timeout;
+            this.policy = policy;
+        }
+    }
+
+    /**
+     * Answered with a stream of {@link TemperaturesChunk}s of at most {@code chunkSize} readings, sent at least
+     * every {@code maxChunkDelay} while readings arrive, and a final {@link TemperaturesStreamCompleted}.
+     */
+    @Data
+    public static final class RequestAllTemperaturesStreamed {
+        final long requestId;
+        final int chunkSize;
+        final FiniteDuration maxChunkDelay;
+        final FiniteDuration timeout;
+        final CompletionPolicy policy;
+
+        public RequestAllTemperaturesStreamed(long requestId, int chunkSize, FiniteDuration maxChunkDelay) {
+            this(requestId, chunkSize, maxChunkDelay, DEFAULT_QUERY_TIMEOUT, CompletionPolicy.all());
+        }
+
+        /**
+         * @param timeout devices that have not answered within this time are reported as timed out
+         * @param policy  how many answers are enough to complete the stream before the timeout
+         */
+        public RequestAllTemperaturesStreamed(long requestId, int chunkSize, FiniteDuration maxChunkDelay,
+                                              FiniteDuration timeout, CompletionPolicy policy) {
+            if (chunkSize < 1) {
+                throw new IllegalArgumentException("A chunk must hold at least 1 reading, was " + chunkSize);
+            }
+            if (maxChunkDelay.toNanos() <= 0) {
+                throw new IllegalArgumentException("The chunk delay must be longer than 0, was " + maxChunkDelay);
+            }
+            this.requestId = requestId;
+            this.chunkSize = chunkSize;
+            this.maxChunkDelay = maxChunkDelay;
+            this.timeout = timeout;
+            this.policy = policy;
+        }
+    }
+
+    @Data
+    public static final class TemperaturesChunk {
+        final long requestId;
+        final int sequenceNr;
+        final Map<String, TemperatureReading> temperatures;
+    }
+
+    /**
+     * End of a streamed query; {@code timedOut} are the devices that did not answer before the timeout.
+     */
+    @Data
+    public static final class TemperaturesStreamCompleted {
+        final long requestId;
+        final int chunks;
+        final List<String> timedOut;
+    }
+
+    /**
+     * Answered with a {@link RespondAllTemperatures} holding a {@link TemperatureStats} per device.
+     *
+     * @see Device.ReadTemperatureStats
+     */
+    @Data
+    public static final class RequestAllTemperatureStats {
+        final long requestId;
+        final long windowMillis;
+        final double percentile;
+        final FiniteDuration timeout;
+        final CompletionPolicy policy;
+
+        public RequestAllTemperatureStats(long requestId, long windowMillis, double percentile) {
+            this(requestId, windowMillis, percentile, DEFAULT_QUERY_TIMEOUT, CompletionPolicy.all());
+        }
+
+        /**
+         * @param timeout devices that have not answered within this time are reported as {@link DeviceTimedOut}
+         * @param policy  how many answers are enough to respond before the timeout
+         */
+        public RequestAllTemperatureStats(long requestId, long windowMillis, double percentile,
+                                          FiniteDuration timeout, CompletionPolicy policy) {
+            this.requestId = requestId;
+            this.windowMillis = windowMillis;
+            this.percentile = percentile;
+            this.timeout = timeout;
+            this.policy = policy;
+        }
+    }
+
+    /**
+     * Answered with a {@link DeviceManager.RespondFleetTemperatures} for this group alone, holding the best of
+     * its temperatures that match {@code filter}, so the readings of the other devices never leave the group.
+     * The group id prefix of the filter is not looked at, it is up to the sender which groups to ask.
+     *
+     * @see FleetQuery
+     */
+    public static final class RequestTopTemperatures {
+        final long requestId;
+        final FleetFilter filter;
+        final FiniteDuration timeout;
+
+        /**
+         * @param timeout devices that have not answered within this time are left out of an incomplete response
+         */
+        public RequestTopTemperatures(long requestId, FleetFilter filter, FiniteDuration timeout) {
+            this.requestId = requestId;
+            this.filter = filter;
+            this.timeout = timeout;
+        }
+    }
+
+    /**
+     * Has every device of the group, also those tracked later, send the sender an {@link Alert} whenever
+     * {@code condition} is met, until it unsubscribes or terminates; answered with {@link AlertsSubscribed}.
+     * A subscription with the id of an earlier one of the same sender replaces it. A sharded group that moves
+     * to another node takes the subscription along, and the sender gets another {@link AlertsSubscribed} from
+     * there.
+     */
+    @Data
+    public static final class SubscribeAlerts {
+        final long subscriptionId;
+        final AlertCondition condition;
+    }
+
+    @Data
+    public static final class AlertsSubscribed {
+        final long subscriptionId;
+    }
+
+    /**
+     * Ends a subscription of the sender; alerts the devices sent before they learned about it may still arrive.
+     */
+    @Data
+    public static final class UnsubscribeAlerts {
+        final long subscriptionId;
+    }
+
+    /**
+     * A device met the condition of a subscription: {@code value} and {@code timestamp} are those of the
+     * reading that did, for an absence the last reading (NaN if there is none) and when it was noticed.
+     */
+    @Data
+    public static final class Alert {
+        final long subscriptionId;
+        final String groupId;
+        final String deviceId;
+        final AlertCondition.Kind kind;
+        final double value;
+        final long timestamp;
+    }
+
+    /**
+     * How a subscriber of the reading feed that has not acknowledged its previous {@link ReadingChanges} yet
+     * keeps the changes that happen meanwhile, at most {@link SubscribeReadings#bufferSize} of them.
+     */
+    public enum FeedOverflow {
+        /**
+         * Every change in order; beyond the buffer the oldest ones are dropped.
+         */
+        DROP_OLDEST,
+        /**
+         * Only the latest change of every device; beyond the buffer the devices that changed longest ago are
+         * dropped.
+         */
+        CONFLATE
+    }
+
+    /**
+     * Has the group, or a {@link Device} it is sent to, send the sender the changes of the last readings of its
+     * devices as a {@link ReadingChanges} per tick of {@link DeviceGroupSettings#withFeedTickMillis} that saw
+     * any, until it unsubscribes or terminates; answered with {@link ReadingsSubscribed}. A sender is sent the
+     * next batch only once it acknowledged the previous one with a {@link ReadingChangesAck}; until then the
+     * changes wait in a buffer of {@code bufferSize} changes that overflows as {@code overflow} says. Every
+     * subscription of a sender has its own buffer and acks; a subscription with the id of an earlier one of the
+     * same sender replaces it. The last reading of a batch of readings for a device is one change. A sharded
+     * group that moves to another node takes the subscription along, without the changes waiting for an ack:
+     * the sender gets another {@link ReadingsSubscribed} from there, and the sequence numbers start over.
+     */
+    @Data
+    public static final class SubscribeReadings {
+        static final int DEFAULT_BUFFER_SIZE = 1024;
+
+        final long subscriptionId;
+        final int bufferSize;
+        final FeedOverflow overflow;
+
+        public SubscribeReadings(long subscriptionId) {
+            this(subscriptionId, DEFAULT_BUFFER_SIZE, FeedOverflow.CONFLATE);
+        }
+
+        public SubscribeReadings(long subscriptionId, int bufferSize, FeedOverflow overflow) {
+            if (bufferSize < 1) {
+                throw new IllegalArgumentException("A feed buffer must hold at least 1 change, was " + bufferSize);
+            }
+            this.subscriptionId = subscriptionId;
+            this.bufferSize = bufferSize;
+            this.overflow = overflow;
+        }
+    }
+
+    @Data
+    public static final class ReadingsSubscribed {
+        final long subscriptionId;
+    }
+
+    /**
+     * Ends the subscription of the sender with this id; a batch sent before it arrived may still follow.
+     */
+    @Data
+    public static final class UnsubscribeReadings {
+        final long subscriptionId;
+    }
+
+    /**
+     * The changes since the previous batch of a subscription, oldest first, as parallel arrays; {@code dropped}
+     * counts those left out because the subscriber had not acknowledged the previous batch in time. A batch that
+     * is not acknowledged within two seconds is sent again with the same {@code sequenceNr}, so a subscriber may
+     * see a batch twice. The arrays are shared with the other subscribers and must not be modified.
+     */
+    @Data
+    public static final class ReadingChanges {
+        final long subscriptionId;
+        final long sequenceNr;
+        final String[] deviceIds;
+        final double[] values;
+        final long[] timestamps;
+        final long dropped;
+    }
+
+    @Data
+    public static final class ReadingChangesAck {
+        final long subscriptionId;
+        final long sequenceNr;
     }
 
     @Data
@@ -125,6 +1362,23 @@ public class DeviceGroup extends AbstractActor {
         private final double value;
     }
 
+    /**
+     * Window statistics of a single device; its value is the mean.
+     */
+    @Data
+    public static final class TemperatureStats implements TemperatureReading {
+        private final int count;
+        private final double min;
+        private final double max;
+        private final double mean;
+        private final double percentile;
+
+        @Override
+        public double getValue() {
+            return mean;
+        }
+    }
+
     public static final class TemperatureNotAvailable implements TemperatureReading {
         @Override
         public double getValue() {
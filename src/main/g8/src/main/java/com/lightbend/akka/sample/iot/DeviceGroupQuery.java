@@ -7,23 +7,48 @@ import com.lightbend.akka.sample.iot.DeviceGroup.DeviceNotAvailable;
 import com.lightbend.akka.sample.iot.DeviceGroup.TemperatureReading;
 import scala.concurrent.duration.FiniteDuration;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Map;
-import java.util.Set;
 
 public class DeviceGroupQuery extends AbstractActor {
+    private static final TemperatureReading NOT_AVAILABLE = new DeviceGroup.TemperatureNotAvailable();
 
-    final Map<ActorRef, String> actorToDeviceId;
+    final ReplySlots replies;
+    final Object readRequest;
     final long requestId;
     final ActorRef requester;
+    final int requiredReplies;
+    // null unless the query answers with the top temperatures of the group
+    final String groupId;
+    final FleetFilter filter;
     private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+    private final IotMetrics metrics = IotMetrics.get(getContext().getSystem());
+    final long startedAtNanos = System.nanoTime();
     Cancellable queryTimeoutTimer;
 
-    public DeviceGroupQuery(Map<ActorRef, String> actorToDeviceId, long requestId, ActorRef requester, FiniteDuration timeout) {
-        this.actorToDeviceId = actorToDeviceId;
+    public DeviceGroupQuery(ActorRegistry.Snapshot devices, Map<String, TemperatureReading> known,
+                            Object readRequest, long requestId,
+                            ActorRef requester, FiniteDuration timeout, CompletionPolicy policy) {
+        this(devices, known, readRequest, null, null, requestId, requester, timeout, policy);
+    }
+
+    public DeviceGroupQuery(ActorRegistry.Snapshot devices, Map<String, TemperatureReading> known,
+                            String groupId, FleetFilter filter, long requestId,
+                            ActorRef requester, FiniteDuration timeout) {
+        this(devices, known, new Device.ReadTemperature(0L), groupId, filter, requestId, requester, timeout,
+             CompletionPolicy.all());
+    }
+
+    private DeviceGroupQuery(ActorRegistry.Snapshot devices, Map<String, TemperatureReading> known,
+                             Object readRequest, String groupId, FleetFilter filter, long requestId,
+                             ActorRef requester, FiniteDuration timeout, CompletionPolicy policy) {
+        this.replies = new ReplySlots(devices, known, true);
+        this.readRequest = readRequest;
+        this.groupId = groupId;
+        this.filter = filter;
         this.requestId = requestId;
         this.requester = requester;
+        this.requiredReplies = policy.requiredReplies(replies.size());
 
         queryTimeoutTimer = getContext().getSystem().scheduler().scheduleOnce(
                 timeout, getSelf(), new CollectionTimeout(), getContext().dispatcher(), getSelf()
@@ -31,14 +56,87 @@ public class DeviceGroupQuery extends AbstractActor {
     }
 
     public static Props props(Map<ActorRef, String> actorToDeviceId, long requestId, ActorRef requester, FiniteDuration timeout) {
-        return Props.create(DeviceGroupQuery.class, actorToDeviceId, requestId, requester, timeout);
+        return props(actorToDeviceId, requestId, requester, timeout, CompletionPolicy.all());
+    }
+
+    /**
+     * Finishes as soon as {@code policy} is satisfied; devices that did not answer by then are reported as timed out.
+     */
+    public static Props props(Map<ActorRef, String> actorToDeviceId, long requestId, ActorRef requester,
+                              FiniteDuration timeout, CompletionPolicy policy) {
+        return props(actorToDeviceId, Collections.emptyMap(), requestId, requester, timeout, policy);
+    }
+
+    /**
+     * @param known readings of devices that are part of the result without being asked, e.g. passivated ones
+     */
+    public static Props props(Map<ActorRef, String> actorToDeviceId, Map<String, TemperatureReading> known,
+                              long requestId, ActorRef requester, FiniteDuration timeout, CompletionPolicy policy) {
+        return props(ActorRegistry.snapshotOf(actorToDeviceId), known, requestId, requester, timeout, policy);
+    }
+
+    static Props props(ActorRegistry.Snapshot devices, Map<String, TemperatureReading> known,
+                       long requestId, ActorRef requester, FiniteDuration timeout, CompletionPolicy policy) {
+        return Props.create(DeviceGroupQuery.class, devices, known, new Device.ReadTemperature(0L),
+                            requestId, requester, timeout, policy)
+                .withMailbox("iot.query-mailbox")
+                .withDispatcher("iot.query-dispatcher");
+    }
+
+    /**
+     * Aggregate mode: every device answers with its window statistics instead of its last reading.
+     */
+    public static Props statsProps(Map<ActorRef, String> actorToDeviceId, long windowMillis, double percentile,
+                                   long requestId, ActorRef requester, FiniteDuration timeout) {
+        return statsProps(actorToDeviceId, windowMillis, percentile, requestId, requester, timeout,
+                          CompletionPolicy.all());
+    }
+
+    public static Props statsProps(Map<ActorRef, String> actorToDeviceId, long windowMillis, double percentile,
+                                   long requestId, ActorRef requester, FiniteDuration timeout,
+                                   CompletionPolicy policy) {
+        return statsProps(ActorRegistry.snapshotOf(actorToDeviceId), Collections.emptyMap(), windowMillis,
+                          percentile, requestId, requester, timeout, policy);
+    }
+
+    public static Props statsProps(Map<ActorRef, String> actorToDeviceId, Map<String, TemperatureReading> known,
+                                   long windowMillis, double percentile,
+                                   long requestId, ActorRef requester, FiniteDuration timeout) {
+        return statsProps(ActorRegistry.snapshotOf(actorToDeviceId), known, windowMillis, percentile,
+                          requestId, requester, timeout, CompletionPolicy.all());
+    }
+
+    static Props statsProps(ActorRegistry.Snapshot devices, Map<String, TemperatureReading> known,
+                            long windowMillis, double percentile,
+                            long requestId, ActorRef requester, FiniteDuration timeout, CompletionPolicy policy) {
+        return Props.create(DeviceGroupQuery.class, devices, known,
+                            new Device.ReadTemperatureStats(0L, windowMillis, percentile),
+                            requestId, requester, timeout, policy)
+                .withMailbox("iot.query-mailbox")
+                .withDispatcher("iot.query-dispatcher");
+    }
+
+    /**
+     * Top mode: answers with a {@link DeviceManager.RespondFleetTemperatures} holding only the temperatures
+     * that match {@code filter}, the best {@link FleetFilter#limit} of them.
+     */
+    static Props topProps(ActorRegistry.Snapshot devices, Map<String, TemperatureReading> known,
+                          String groupId, FleetFilter filter,
+                          long requestId, ActorRef requester, FiniteDuration timeout) {
+        return Props.create(DeviceGroupQuery.class, devices, known, groupId, filter, requestId, requester, timeout)
+                .withMailbox("iot.query-mailbox")
+                .withDispatcher("iot.query-dispatcher");
     }
 
     @Override
     public void preStart() {
-        for (ActorRef deviceActor : actorToDeviceId.keySet()) {
+        for (int slot = 0; slot < replies.size(); slot++) {
+            ActorRef deviceActor = replies.actorAt(slot);
             getContext().watch(deviceActor);
-            deviceActor.tell(new Device.ReadTemperature(0L), getSelf());
+            deviceActor.tell(readRequest, getSelf());
+        }
+        if (requiredReplies == 0) {
+            respondAndStop(false);
         }
     }
 
@@ -49,54 +147,46 @@ public class DeviceGroupQuery extends AbstractActor {
 
     @Override
     public Receive createReceive() {
-
-        return waitingForReplies(new HashMap<>(), actorToDeviceId.keySet());
-    }
-
-    public Receive waitingForReplies(
-            Map<String, TemperatureReading> repliesSoFar,
-            Set<ActorRef> stillWaiting) {
         return receiveBuilder()
                 .match(Device.RespondTemperature.class, r -> {
-                    ActorRef deviceActor = getSender();
-                    TemperatureReading reading = r.value
-                            .map(v -> (TemperatureReading) new DeviceGroup.Temperature(v))
-                            .orElse(new DeviceGroup.TemperatureNotAvailable());
-                    receivedResponse(deviceActor, reading, stillWaiting, repliesSoFar);
+                    receivedResponse(getSender(),
+                                     r.hasValue ? new DeviceGroup.Temperature(r.temperature) : NOT_AVAILABLE);
                 })
-                .match(Terminated.class, t -> {
-                    receivedResponse(t.getActor(), new DeviceNotAvailable(), stillWaiting, repliesSoFar);
+                .match(Device.RespondTemperatureStats.class, r -> {
+                    receivedResponse(getSender(), r.count == 0 ? NOT_AVAILABLE : new DeviceGroup.TemperatureStats(
+                            r.count, r.min, r.max, r.mean, r.percentile));
                 })
-                .match(CollectionTimeout.class, t -> {
-                    Map<String, TemperatureReading> replies = new HashMap<>(repliesSoFar);
-                    for (ActorRef deviceActor : stillWaiting) {
-                        String deviceId = actorToDeviceId.get(deviceActor);
-                        replies.put(deviceId, new DeviceGroup.DeviceTimedOut());
-                    }
-                    requester.tell(new DeviceGroup.RespondAllTemperatures(requestId, replies), getSelf());
-                    getContext().stop(getSelf());
+                .match(Terminated.class, t -> {
+                    receivedResponse(t.getActor(), new DeviceNotAvailable());
                 })
+                .match(CollectionTimeout.class, t -> respondAndStop(true))
                 .build();
     }
 
-    public void receivedResponse(ActorRef deviceActor,
-                                 TemperatureReading reading,
-                                 Set<ActorRef> stillWaiting,
-                                 Map<String, TemperatureReading> repliesSoFar) {
+    private void receivedResponse(ActorRef deviceActor, TemperatureReading reading) {
         getContext().unwatch(deviceActor);
-        String deviceId = actorToDeviceId.get(deviceActor);
-
-        Set<ActorRef> newStillWaiting = new HashSet<>(stillWaiting);
-        newStillWaiting.remove(deviceActor);
+        replies.record(deviceActor, reading);
+        if (replies.size() - replies.outstanding() >= requiredReplies) {
+            respondAndStop(false);
+        }
+    }
 
-        Map<String, TemperatureReading> newRepliesSoFar = new HashMap<>(repliesSoFar);
-        newRepliesSoFar.put(deviceId, reading);
-        if (newStillWaiting.isEmpty()) {
-            requester.tell(new DeviceGroup.RespondAllTemperatures(requestId, newRepliesSoFar), getSelf());
-            getContext().stop(getSelf());
+    private void respondAndStop(boolean timedOut) {
+        metrics.recordQuery(System.nanoTime() - startedAtNanos, timedOut);
+        Map<String, TemperatureReading> readings = replies.toMap(new DeviceGroup.DeviceTimedOut());
+        if (filter == null) {
+            requester.tell(new DeviceGroup.RespondAllTemperatures(requestId, readings), getSelf());
         } else {
-            getContext().become(waitingForReplies(newRepliesSoFar, newStillWaiting));
+            TopTemperatures top = new TopTemperatures(filter);
+            for (Map.Entry<String, TemperatureReading> e : readings.entrySet()) {
+                if (e.getValue() instanceof DeviceGroup.Temperature) {
+                    top.offer(groupId, e.getKey(), e.getValue().getValue());
+                }
+            }
+            requester.tell(new DeviceManager.RespondFleetTemperatures(
+                    requestId, top.toList(), top.matching(), 1, !timedOut), getSelf());
         }
+        getContext().stop(getSelf());
     }
 
     public static final class CollectionTimeout {
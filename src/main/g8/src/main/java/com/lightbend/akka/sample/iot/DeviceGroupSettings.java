@@ -0,0 +1,136 @@
+package com.lightbend.akka.sample.iot;
+
+import java.nio.file.Path;
+
+/**
+ * Immutable per-group options, shared by a {@link DeviceGroup} and the {@link Device}s it creates.
+ */
+public final class DeviceGroupSettings {
+    private static final DeviceGroupSettings DEFAULTS = new DeviceGroupSettings(
+            Device.DEFAULT_HISTORY_SIZE, false, 0L, null, 64 * 1024 * 1024, 100L, 0L, 0L, 100L);
+
+    public final int historySize;
+    public final boolean snapshotEnabled;
+    public final long passivateAfterMillis;
+    public final Path journalDirectory;
+    public final int journalSegmentBytes;
+    public final long journalFlushIntervalMillis;
+    public final long ingestLogIntervalMillis;
+    public final long coalesceWindowMillis;
+    public final long feedTickMillis;
+
+    private DeviceGroupSettings(int historySize, boolean snapshotEnabled, long passivateAfterMillis,
+                                Path journalDirectory, int journalSegmentBytes, long journalFlushIntervalMillis,
+                                long ingestLogIntervalMillis, long coalesceWindowMillis, long feedTickMillis) {
+        this.historySize = historySize;
+        this.snapshotEnabled = snapshotEnabled;
+        this.passivateAfterMillis = passivateAfterMillis;
+        this.journalDirectory = journalDirectory;
+        this.journalSegmentBytes = journalSegmentBytes;
+        this.journalFlushIntervalMillis = journalFlushIntervalMillis;
+        this.ingestLogIntervalMillis = ingestLogIntervalMillis;
+        this.coalesceWindowMillis = coalesceWindowMillis;
+        this.feedTickMillis = feedTickMillis;
+    }
+
+    public static DeviceGroupSettings defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * Number of readings every device keeps for window statistics.
+     */
+    public DeviceGroupSettings withHistorySize(int historySize) {
+        return new DeviceGroupSettings(historySize, snapshotEnabled, passivateAfterMillis,
+                                       journalDirectory, journalSegmentBytes, journalFlushIntervalMillis,
+                                       ingestLogIntervalMillis, coalesceWindowMillis, feedTickMillis);
+    }
+
+    /**
+     * When enabled, devices push every changed reading to their group, which then answers
+     * {@link DeviceGroup.RequestAllTemperatures} with a staleness bound from its snapshot without a fan-out.
+     */
+    public DeviceGroupSettings withSnapshotEnabled(boolean snapshotEnabled) {
+        return new DeviceGroupSettings(historySize, snapshotEnabled, passivateAfterMillis,
+                                       journalDirectory, journalSegmentBytes, journalFlushIntervalMillis,
+                                       ingestLogIntervalMillis, coalesceWindowMillis, feedTickMillis);
+    }
+
+    /**
+     * Devices that received no message for this long are stopped and only their last reading is kept by the
+     * group, until the next message for them arrives through the group. 0 (the default) never passivates.
+     */
+    public DeviceGroupSettings withPassivateAfterMillis(long passivateAfterMillis) {
+        return new DeviceGroupSettings(historySize, snapshotEnabled, passivateAfterMillis,
+                                       journalDirectory, journalSegmentBytes, journalFlushIntervalMillis,
+                                       ingestLogIntervalMillis, coalesceWindowMillis, feedTickMillis);
+    }
+
+    /**
+     * Journal every reading under {@code journalDirectory}, one subdirectory per group, and restore the
+     * last reading of every device from there when its group starts. {@code null} (the default) keeps
+     * readings in memory only.
+     */
+    public DeviceGroupSettings withJournalDirectory(Path journalDirectory) {
+        return new DeviceGroupSettings(historySize, snapshotEnabled, passivateAfterMillis,
+                                       journalDirectory, journalSegmentBytes, journalFlushIntervalMillis,
+                                       ingestLogIntervalMillis, coalesceWindowMillis, feedTickMillis);
+    }
+
+    /**
+     * Largest size of a journal segment file, 64 MiB by default. Segments start at 64 KiB and double while
+     * readings are appended, up to this size.
+     */
+    public DeviceGroupSettings withJournalSegmentBytes(int journalSegmentBytes) {
+        return new DeviceGroupSettings(historySize, snapshotEnabled, passivateAfterMillis,
+                                       journalDirectory, journalSegmentBytes, journalFlushIntervalMillis,
+                                       ingestLogIntervalMillis, coalesceWindowMillis, feedTickMillis);
+    }
+
+    /**
+     * How often journaled readings are forced to disk, 100 ms by default. Readings are safe from a crash
+     * of the JVM right away, but may be lost on a crash of the machine within this interval.
+     */
+    public DeviceGroupSettings withJournalFlushIntervalMillis(long journalFlushIntervalMillis) {
+        return new DeviceGroupSettings(historySize, snapshotEnabled, passivateAfterMillis,
+                                       journalDirectory, journalSegmentBytes, journalFlushIntervalMillis,
+                                       ingestLogIntervalMillis, coalesceWindowMillis, feedTickMillis);
+    }
+
+    /**
+     * Every device logs at most one line per interval about the readings it recorded since the previous one,
+     * at INFO. 0 (the default) logs nothing; the number of recorded readings is always available from
+     * {@link IotMetrics}.
+     */
+    public DeviceGroupSettings withIngestLogIntervalMillis(long ingestLogIntervalMillis) {
+        return new DeviceGroupSettings(historySize, snapshotEnabled, passivateAfterMillis,
+                                       journalDirectory, journalSegmentBytes, journalFlushIntervalMillis,
+                                       ingestLogIntervalMillis, coalesceWindowMillis, feedTickMillis);
+    }
+
+    /**
+     * The group holds the readings of a {@link DeviceGroup.RecordTemperatures} for up to this long and hands
+     * every device only the latest of the readings it got for it meanwhile, as one
+     * {@link Device.RecordTemperature}. Once the devices recorded it, every sender gets a single
+     * {@link DeviceGroup.TemperaturesRecorded} for all its readings of the window, and a
+     * {@link PriorityIngestMailbox.Dropped} for those of devices that dropped theirs. The readings in between
+     * are neither journaled nor part of the window statistics, so this is for devices of which only the
+     * last value matters. 0 (the default) hands every reading to its device.
+     */
+    public DeviceGroupSettings withCoalesceWindowMillis(long coalesceWindowMillis) {
+        return new DeviceGroupSettings(historySize, snapshotEnabled, passivateAfterMillis,
+                                       journalDirectory, journalSegmentBytes, journalFlushIntervalMillis,
+                                       ingestLogIntervalMillis, coalesceWindowMillis, feedTickMillis);
+    }
+
+    /**
+     * How often the subscribers of {@link DeviceGroup.SubscribeReadings} get the changes since the previous
+     * tick, 100 ms by default. Every subscriber gets at most one message per tick however many readings
+     * changed; 0 sends every change right away.
+     */
+    public DeviceGroupSettings withFeedTickMillis(long feedTickMillis) {
+        return new DeviceGroupSettings(historySize, snapshotEnabled, passivateAfterMillis,
+                                       journalDirectory, journalSegmentBytes, journalFlushIntervalMillis,
+                                       ingestLogIntervalMillis, coalesceWindowMillis, feedTickMillis);
+    }
+}
@@ -0,0 +1,164 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.*;
+import com.lightbend.akka.sample.iot.DeviceGroup.TemperatureReading;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Variant of {@link DeviceGroupQuery} that hands readings to the requester while they arrive.
+ * <p>
+ * Readings are buffered until {@code chunkSize} of them are collected or {@code maxChunkDelay} has passed,
+ * then sent as a {@link DeviceGroup.TemperaturesChunk}. After the last device answered or the timeout fired,
+ * or as soon as the {@link CompletionPolicy} is met, a {@link DeviceGroup.TemperaturesStreamCompleted} lists the
+ * devices that did not answer. Only the current chunk is kept in memory, never the whole result.
+ */
+public class DeviceGroupStreamingQuery extends AbstractActor {
+    private static final TemperatureReading NOT_AVAILABLE = new DeviceGroup.TemperatureNotAvailable();
+
+    final ReplySlots replies;
+    final long requestId;
+    final ActorRef requester;
+    final int chunkSize;
+    final int requiredReplies;
+    Map<String, TemperatureReading> chunk;
+    int chunksSent;
+    private final IotMetrics metrics = IotMetrics.get(getContext().getSystem());
+    final long startedAtNanos = System.nanoTime();
+    Cancellable queryTimeoutTimer;
+    Cancellable chunkTimer;
+
+    public DeviceGroupStreamingQuery(ActorRegistry.Snapshot devices, Map<String, TemperatureReading> known,
+                                     long requestId, ActorRef requester,
+                                     int chunkSize, FiniteDuration maxChunkDelay, FiniteDuration timeout,
+                                     CompletionPolicy policy) {
+        this.replies = new ReplySlots(devices, known, false);
+        this.requiredReplies = policy.requiredReplies(replies.size());
+        this.requestId = requestId;
+        this.requester = requester;
+        this.chunkSize = chunkSize;
+        this.chunk = newChunk();
+
+        queryTimeoutTimer = getContext().getSystem().scheduler().scheduleOnce(
+                timeout, getSelf(), new DeviceGroupQuery.CollectionTimeout(), getContext().dispatcher(), getSelf()
+        );
+        chunkTimer = getContext().getSystem().scheduler().schedule(
+                maxChunkDelay, maxChunkDelay, getSelf(), new FlushChunk(), getContext().dispatcher(), getSelf()
+        );
+    }
+
+    public static Props props(Map<ActorRef, String> actorToDeviceId, long requestId, ActorRef requester,
+                              int chunkSize, FiniteDuration maxChunkDelay, FiniteDuration timeout) {
+        return props(actorToDeviceId, requestId, requester, chunkSize, maxChunkDelay, timeout,
+                     CompletionPolicy.all());
+    }
+
+    /**
+     * @param policy how many answers are enough to complete the stream before the timeout
+     */
+    public static Props props(Map<ActorRef, String> actorToDeviceId, long requestId, ActorRef requester,
+                              int chunkSize, FiniteDuration maxChunkDelay, FiniteDuration timeout,
+                              CompletionPolicy policy) {
+        return props(ActorRegistry.snapshotOf(actorToDeviceId), Collections.emptyMap(), requestId, requester,
+                     chunkSize, maxChunkDelay, timeout, policy);
+    }
+
+    /**
+     * @param known readings of devices that are streamed without being asked, e.g. passivated ones
+     */
+    public static Props props(Map<ActorRef, String> actorToDeviceId, Map<String, TemperatureReading> known,
+                              long requestId, ActorRef requester,
+                              int chunkSize, FiniteDuration maxChunkDelay, FiniteDuration timeout) {
+        return props(ActorRegistry.snapshotOf(actorToDeviceId), known, requestId, requester,
+                     chunkSize, maxChunkDelay, timeout, CompletionPolicy.all());
+    }
+
+    static Props props(ActorRegistry.Snapshot devices, Map<String, TemperatureReading> known,
+                       long requestId, ActorRef requester,
+                       int chunkSize, FiniteDuration maxChunkDelay, FiniteDuration timeout,
+                       CompletionPolicy policy) {
+        return Props.create(DeviceGroupStreamingQuery.class, devices, known, requestId, requester,
+                            chunkSize, maxChunkDelay, timeout, policy)
+                .withMailbox("iot.query-mailbox")
+                .withDispatcher("iot.query-dispatcher");
+    }
+
+    @Override
+    public void preStart() {
+        for (Map.Entry<String, TemperatureReading> e : replies.known().entrySet()) {
+            chunk.put(e.getKey(), e.getValue());
+            if (chunk.size() >= chunkSize) {
+                flush();
+            }
+        }
+        Device.ReadTemperature read = new Device.ReadTemperature(0L);
+        for (int slot = 0; slot < replies.size(); slot++) {
+            ActorRef deviceActor = replies.actorAt(slot);
+            getContext().watch(deviceActor);
+            deviceActor.tell(read, getSelf());
+        }
+        if (requiredReplies == 0) {
+            complete(false);
+        }
+    }
+
+    @Override
+    public void postStop() {
+        queryTimeoutTimer.cancel();
+        chunkTimer.cancel();
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(Device.RespondTemperature.class, r -> {
+                    receivedResponse(getSender(),
+                                     r.hasValue ? new DeviceGroup.Temperature(r.temperature) : NOT_AVAILABLE);
+                })
+                .match(Terminated.class, t -> {
+                    receivedResponse(t.getActor(), new DeviceGroup.DeviceNotAvailable());
+                })
+                .match(FlushChunk.class, f -> flush())
+                .match(DeviceGroupQuery.CollectionTimeout.class, t -> complete(true))
+                .build();
+    }
+
+    private void receivedResponse(ActorRef deviceActor, TemperatureReading reading) {
+        getContext().unwatch(deviceActor);
+        int slot = replies.record(deviceActor, reading);
+        if (slot < 0) {
+            return;
+        }
+        chunk.put(replies.deviceIdAt(slot), reading);
+        if (replies.size() - replies.outstanding() >= requiredReplies) {
+            complete(false);
+        } else if (chunk.size() >= chunkSize) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (!chunk.isEmpty()) {
+            requester.tell(new DeviceGroup.TemperaturesChunk(requestId, chunksSent++, chunk), getSelf());
+            chunk = newChunk();
+        }
+    }
+
+    private void complete(boolean timedOut) {
+        metrics.recordQuery(System.nanoTime() - startedAtNanos, timedOut);
+        flush();
+        requester.tell(new DeviceGroup.TemperaturesStreamCompleted(
+                requestId, chunksSent, replies.unansweredDeviceIds()), getSelf());
+        getContext().stop(getSelf());
+    }
+
+    private Map<String, TemperatureReading> newChunk() {
+        return new HashMap<>(ReplySlots.capacityFor(Math.min(chunkSize, replies.size())));
+    }
+
+    static final class FlushChunk {
+    }
+}
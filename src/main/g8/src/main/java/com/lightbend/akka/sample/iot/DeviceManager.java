@@ -2,54 +2,369 @@ package com.lightbend.akka.sample.iot;
 
 import akka.actor.AbstractActor;
 import akka.actor.ActorRef;
+import akka.actor.ActorSelection;
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
 import akka.actor.Props;
+import akka.actor.SupervisorStrategy;
 import akka.actor.Terminated;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ClusterShardingSettings;
+import akka.cluster.sharding.ShardRegion;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import akka.routing.ConsistentHashingPool;
+import akka.routing.ConsistentHashingRouter.ConsistentHashable;
+import lombok.Data;
+import scala.concurrent.duration.FiniteDuration;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
+/**
+ * One shard of the device manager, owning the groups whose id hashes to it.
+ * <p>
+ * {@link #props()} creates a consistent hashing pool of these shards keyed by groupId. The routing decision
+ * is made on the sending thread, so registrations for different groups never queue behind each other in a
+ * single mailbox. Messages for the manager must implement {@link ConsistentHashable}.
+ * <p>
+ * With a snapshot directory every shard periodically collects the devices and last readings of its groups
+ * and writes them as a {@link RegistrySnapshot}; {@link RestoreGroup} brings a group back from one. The groups
+ * keep a {@link DeviceGroupSettings#withSnapshotEnabled snapshot} of their readings then and answer from it,
+ * so collecting them asks no device.
+ * <p>
+ * {@link RequestFleetTemperatures} asks the groups of all shards at once, see {@link FleetQuery}.
+ * <p>
+ * In a cluster, {@link #startSharding} takes the place of the manager: the groups become sharded entities
+ * spread over the nodes, and the returned shard region accepts the same group messages. Fleet queries go to
+ * the {@link #fleetQueryEndpoint} of a node instead.
+ */
 public class DeviceManager extends AbstractActor {
-    final Map<String, ActorRef> groupIdToActor = new HashMap<>();
-    final Map<ActorRef, String> actorToGroupId = new HashMap<>();
+    static final String GROUP_TYPE_NAME = "DeviceGroup";
+
+    final DeviceGroupSettings groupSettings;
+    final ActorRegistry groups = new ActorRegistry();
+    // null if no snapshots are taken
+    final Path snapshotDirectory;
+    final FiniteDuration snapshotInterval;
+    Cancellable snapshotTimer;
+    // the snapshot being collected, by the request id of the query sent to each group
+    Map<Long, String> pendingSnapshotGroups;
+    Map<String, Map<String, DeviceGroup.TemperatureReading>> snapshotReadings;
+    // the readings of the snapshot written last, kept for groups that do not answer the next one in time
+    Map<String, Map<String, DeviceGroup.TemperatureReading>> writtenReadings = new HashMap<>();
+    boolean writingSnapshot;
+    long nextSnapshotRequestId;
     private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
 
+    public DeviceManager(DeviceGroupSettings groupSettings) {
+        this.groupSettings = groupSettings;
+        this.snapshotDirectory = null;
+        this.snapshotInterval = null;
+    }
+
+    public DeviceManager(DeviceGroupSettings groupSettings, Path snapshotDirectory, FiniteDuration snapshotInterval) {
+        this.groupSettings = groupSettings.withSnapshotEnabled(true);
+        this.snapshotDirectory = snapshotDirectory;
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * A manager with one shard per available core.
+     */
     public static Props props() {
-        return Props.create(DeviceManager.class);
+        return props(Runtime.getRuntime().availableProcessors());
+    }
+
+    public static Props props(int shards) {
+        return props(shards, DeviceGroupSettings.defaults());
+    }
+
+    /**
+     * @param groupSettings settings of every group the manager creates
+     */
+    public static Props props(int shards, DeviceGroupSettings groupSettings) {
+        return new ConsistentHashingPool(shards)
+                // a failing shard restarts on its own instead of escalating and restarting every shard
+                .withSupervisorStrategy(SupervisorStrategy.defaultStrategy())
+                .withDispatcher("iot.group-dispatcher")
+                .props(Props.create(DeviceManager.class, groupSettings)
+                               .withMailbox("iot.manager-mailbox")
+                               .withDispatcher("iot.group-dispatcher"));
+    }
+
+    /**
+     * A manager whose shards write a snapshot of their groups to {@code snapshotDirectory} every
+     * {@code snapshotInterval}. Its groups keep a snapshot of their readings, whatever {@code groupSettings} say.
+     */
+    public static Props props(int shards, DeviceGroupSettings groupSettings,
+                              Path snapshotDirectory, FiniteDuration snapshotInterval) {
+        return new ConsistentHashingPool(shards)
+                .withSupervisorStrategy(SupervisorStrategy.defaultStrategy())
+                .withDispatcher("iot.group-dispatcher")
+                .props(Props.create(DeviceManager.class, groupSettings, snapshotDirectory, snapshotInterval)
+                               .withMailbox("iot.manager-mailbox")
+                               .withDispatcher("iot.group-dispatcher"));
+    }
+
+    /**
+     * Starts cluster sharding of the groups on this node, keyed by groupId, and hosts a share of them here.
+     * The shard region it returns routes {@link RequestTrackDevice}, {@link RestoreGroup},
+     * {@link RecordTemperatures} and {@link ForGroup} to the node of the group, like a manager created from
+     * {@link #props()} does within one node. {@link RequestMetrics} is not supported, every node exports its
+     * own {@link IotMetrics}. {@link RequestFleetTemperatures} is for no one group, so it goes to the
+     * {@link #fleetQueryEndpoint} started along with the region, which asks the endpoints of all nodes for the
+     * groups they host. The actor system must be configured for the cluster, see {@code cluster.conf}.
+     * A group moved to another node on rebalancing hands its devices and their last readings over to its new
+     * node as a {@link RestoreGroup}, together with its alert and feed subscriptions, so every node keeps its
+     * own journal in the {@code journalDirectory} of {@code groupSettings}: the readings handed over win over
+     * the ones a group recovers there from an earlier stay on the node.
+     */
+    public static ActorRef startSharding(ActorSystem system, DeviceGroupSettings groupSettings) {
+        ClusterSharding sharding = ClusterSharding.get(system);
+        ClusterShardingSettings settings = ClusterShardingSettings.create(system);
+        ActorRef region = sharding.start(GROUP_TYPE_NAME, DeviceGroup.entityProps(groupSettings), settings,
+                                         new GroupMessageExtractor(system),
+                                         sharding.defaultShardAllocationStrategy(settings),
+                                         DeviceGroup.HandOff.INSTANCE);
+        system.actorOf(FleetQueryEndpoint.props(region), FleetQueryEndpoint.NAME);
+        return region;
+    }
+
+    /**
+     * Starts a shard region on this node that routes to the groups of the nodes running
+     * {@link #startSharding} without hosting any itself, for clients of the groups.
+     */
+    public static ActorRef startShardingProxy(ActorSystem system) {
+        scala.Option<String> role = ClusterShardingSettings.create(system).role();
+        ActorRef region = ClusterSharding.get(system).startProxy(
+                GROUP_TYPE_NAME, Optional.ofNullable(role.isDefined() ? role.get() : null),
+                new GroupMessageExtractor(system));
+        system.actorOf(FleetQueryEndpoint.props(region), FleetQueryEndpoint.NAME);
+        return region;
+    }
+
+    /**
+     * Where a node that started {@link #startSharding} or {@link #startShardingProxy} takes
+     * {@link RequestFleetTemperatures} for the groups of the whole cluster.
+     */
+    public static ActorSelection fleetQueryEndpoint(ActorSystem system) {
+        return system.actorSelection("/user/" + FleetQueryEndpoint.NAME);
+    }
+
+    /**
+     * The group of a message to the shard region, and what the group gets of it.
+     */
+    static final class GroupMessageExtractor extends ShardRegion.HashCodeMessageExtractor {
+        GroupMessageExtractor(ActorSystem system) {
+            super(system.settings().config().getInt("iot.sharding.number-of-shards"));
+        }
+
+        @Override
+        public String entityId(Object message) {
+            if (message instanceof RequestTrackDevice) {
+                return ((RequestTrackDevice) message).groupId;
+            } else if (message instanceof RecordTemperatures) {
+                return ((RecordTemperatures) message).groupId;
+            } else if (message instanceof ForGroup) {
+                return ((ForGroup) message).groupId;
+            } else if (message instanceof RestoreGroup) {
+                return ((RestoreGroup) message).groupId;
+            }
+            return null;
+        }
+
+        @Override
+        public Object entityMessage(Object message) {
+            if (message instanceof RecordTemperatures) {
+                return ((RecordTemperatures) message).readings;
+            } else if (message instanceof ForGroup) {
+                return ((ForGroup) message).message;
+            }
+            return message;
+        }
     }
 
     @Override
-    public void preStart() {
+    public void preStart() throws IOException {
         log.info("DeviceManager started");
+        if (snapshotDirectory != null) {
+            Files.createDirectories(snapshotDirectory);
+            snapshotTimer = getContext().getSystem().scheduler().schedule(
+                    snapshotInterval, snapshotInterval, getSelf(), new TakeSnapshot(),
+                    getContext().dispatcher(), getSelf());
+        }
     }
 
     @Override
     public void postStop() {
+        if (snapshotTimer != null) {
+            snapshotTimer.cancel();
+        }
         log.info("DeviceManager stopped");
     }
 
-    private void onTrackDevice(RequestTrackDevice trackMsg) {
-        String groupId = trackMsg.groupId;
-        ActorRef actorRef = groupIdToActor.get(groupId);
-        if (actorRef != null) {
-            actorRef.forward(trackMsg, getContext());
-        } else {
+    private ActorRef groupActor(String groupId) {
+        ActorRef groupActor = groups.actorOf(groupId);
+        if (groupActor == null) {
             log.info("Creating device group actor for {}", groupId);
-            ActorRef groupActor = getContext().actorOf(DeviceGroup.props(groupId), "group-" + groupId);
+            groupActor = getContext().actorOf(DeviceGroup.props(groupId, groupSettings), "group-" + groupId);
             getContext().watch(groupActor);
-            groupActor.forward(trackMsg, getContext());
-            groupIdToActor.put(groupId, groupActor);
-            actorToGroupId.put(groupActor, groupId);
+            groups.put(groupId, groupActor);
+        }
+        return groupActor;
+    }
+
+    private void onTrackDevice(RequestTrackDevice trackMsg) {
+        groupActor(trackMsg.groupId).forward(trackMsg, getContext());
+    }
+
+    private void onRequestMetrics(RequestMetrics r) {
+        getSender().tell(new RespondMetrics(r.requestId, IotMetrics.get(getContext().getSystem()).snapshot()),
+                         getSelf());
+    }
+
+    private void onRestoreGroup(RestoreGroup r) {
+        groupActor(r.groupId).forward(r, getContext());
+    }
+
+    /**
+     * Only tracking or restoring devices creates a group, so a query for an unknown one is answered as by a
+     * group without devices.
+     */
+    private void onForGroup(ForGroup f) {
+        ActorRef groupActor = groups.actorOf(f.groupId);
+        if (groupActor != null) {
+            groupActor.forward(f.message, getContext());
+            return;
+        }
+        Object reply = DeviceGroup.emptyReply(f.message);
+        if (reply != null) {
+            getSender().tell(reply, getSelf());
+        } else {
+            log.warning("Dropped {} for untracked group {}", f.message.getClass().getSimpleName(), f.groupId);
+        }
+    }
+
+    /**
+     * The parent of a shard is the router of the manager, whose shards the query asks.
+     */
+    private void onFleetTemperatures(RequestFleetTemperatures r) {
+        getContext().actorOf(FleetQuery.props(getContext().getParent(), r, getSender()));
+    }
+
+    private void onShardFleetTemperatures(ShardFleetTemperatures r) {
+        getContext().actorOf(FleetQuery.shardProps(groups.snapshot(), r, getSender()));
+    }
+
+    private void onRecordTemperatures(RecordTemperatures r) {
+        ActorRef groupActor = groups.actorOf(r.groupId);
+        if (groupActor != null) {
+            groupActor.forward(r.readings, getContext());
+        } else {
+            log.warning("Dropped {} readings for untracked group {}", r.readings.deviceIds.length, r.groupId);
+            getSender().tell(new PriorityIngestMailbox.Dropped(r.readings), getSelf());
+        }
+    }
+
+    /**
+     * Asks every group for the last readings it holds of all its devices, at most one interval old; the
+     * snapshot is written once all have answered, or the interval has passed.
+     */
+    private void onTakeSnapshot(TakeSnapshot t) {
+        if (pendingSnapshotGroups != null || writingSnapshot) {
+            log.warning("Skipping snapshot, the previous one has not completed yet");
+            return;
+        }
+        pendingSnapshotGroups = new HashMap<>();
+        snapshotReadings = new HashMap<>();
+        ActorRegistry.Snapshot current = groups.snapshot();
+        for (int slot = 0; slot < current.size(); slot++) {
+            long requestId = nextSnapshotRequestId++;
+            pendingSnapshotGroups.put(requestId, current.idAt(slot));
+            current.actorAt(slot).tell(
+                    new DeviceGroup.RequestAllTemperatures(requestId, snapshotInterval.toMillis()), getSelf());
+        }
+        getContext().getSystem().scheduler().scheduleOnce(
+                snapshotInterval, getSelf(), new SnapshotTimeout(nextSnapshotRequestId),
+                getContext().dispatcher(), getSelf());
+        completeSnapshotIfDone();
+    }
+
+    private void onGroupTemperatures(DeviceGroup.RespondAllTemperatures r) {
+        String groupId = pendingSnapshotGroups == null ? null : pendingSnapshotGroups.remove(r.requestId);
+        if (groupId != null) {
+            snapshotReadings.put(groupId, r.temperatures);
+            completeSnapshotIfDone();
+        }
+    }
+
+    /**
+     * Groups that did not answer in time are written with the readings of the previous snapshot.
+     */
+    private void onSnapshotTimeout(SnapshotTimeout t) {
+        // only the timeout of the snapshot in progress counts
+        if (pendingSnapshotGroups != null && t.requestIdsBelow == nextSnapshotRequestId) {
+            log.warning("{} groups did not answer the snapshot in time, keeping their previous readings",
+                        pendingSnapshotGroups.size());
+            for (String groupId : pendingSnapshotGroups.values()) {
+                Map<String, DeviceGroup.TemperatureReading> previous = writtenReadings.get(groupId);
+                if (previous != null) {
+                    snapshotReadings.put(groupId, previous);
+                }
+            }
+            pendingSnapshotGroups.clear();
+            completeSnapshotIfDone();
+        }
+    }
+
+    /**
+     * Writing blocks, so it runs on the blocking I/O dispatcher; the next snapshot waits for it.
+     */
+    private void completeSnapshotIfDone() {
+        if (!pendingSnapshotGroups.isEmpty()) {
+            return;
+        }
+        String shard = getSelf().path().name().replace("$", "");
+        Path file = snapshotDirectory.resolve("shard-" + shard + RegistrySnapshot.SUFFIX);
+        Map<String, Map<String, DeviceGroup.TemperatureReading>> readings = snapshotReadings;
+        long takenAtMillis = System.currentTimeMillis();
+        ActorRef self = getSelf();
+        CompletableFuture.runAsync(() -> {
+            try {
+                RegistrySnapshot.write(file, takenAtMillis, readings);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, getContext().getSystem().dispatchers().lookup("iot.blocking-io-dispatcher")).whenComplete(
+                (done, failure) -> self.tell(new SnapshotWritten(shard, failure), ActorRef.noSender()));
+        writtenReadings = readings;
+        writingSnapshot = true;
+        pendingSnapshotGroups = null;
+        snapshotReadings = null;
+    }
+
+    private void onSnapshotWritten(SnapshotWritten w) {
+        writingSnapshot = false;
+        if (w.failure != null) {
+            log.error(w.failure, "Failed to write snapshot of shard {}", w.shard);
         }
     }
 
     private void onTerminated(Terminated terminated) {
         ActorRef groupActor = terminated.getActor();
-        String groupId = actorToGroupId.get(groupActor);
-        log.info("Device group actor for {} has been terminated", groupId);
-        actorToGroupId.remove(groupActor);
-        groupIdToActor.remove(groupId);
+        String groupId = groups.idOf(groupActor);
+        if (groupId != null) {
+            log.info("Device group actor for {} has been terminated", groupId);
+            groups.remove(groupId);
+        }
     }
 
     @Override
@@ -57,10 +372,20 @@ public class DeviceManager extends AbstractActor {
         return receiveBuilder()
                 .match(RequestTrackDevice.class, this::onTrackDevice)
                 .match(Terminated.class, this::onTerminated)
+                .match(RestoreGroup.class, this::onRestoreGroup)
+                .match(ForGroup.class, this::onForGroup)
+                .match(RecordTemperatures.class, this::onRecordTemperatures)
+                .match(TakeSnapshot.class, this::onTakeSnapshot)
+                .match(DeviceGroup.RespondAllTemperatures.class, this::onGroupTemperatures)
+                .match(SnapshotTimeout.class, this::onSnapshotTimeout)
+                .match(SnapshotWritten.class, this::onSnapshotWritten)
+                .match(RequestMetrics.class, this::onRequestMetrics)
+                .match(RequestFleetTemperatures.class, this::onFleetTemperatures)
+                .match(ShardFleetTemperatures.class, this::onShardFleetTemperatures)
                 .build();
     }
 
-    public static final class RequestTrackDevice {
+    public static final class RequestTrackDevice implements ConsistentHashable {
         public final String groupId;
         public final String deviceId;
 
@@ -68,10 +393,209 @@ public class DeviceManager extends AbstractActor {
             this.groupId = groupId;
             this.deviceId = deviceId;
         }
+
+        @Override
+        public Object consistentHashKey() {
+            return groupId;
+        }
     }
 
     public static final class DeviceRegistered {
     }
 
+    /**
+     * Brings back the devices of a group from a {@link RegistrySnapshot}, with their last readings. They are
+     * registered as passivated, so no device actor is started until a message for it arrives. Devices the
+     * group already knows are left alone, unless the group is handed off from another node: then the readings
+     * replace the ones the group recovered from the journal of its new node, which are older, and are journaled
+     * there. The arrays are not copied and must not be modified after sending.
+     */
+    public static final class RestoreGroup implements ConsistentHashable {
+        final String groupId;
+        final String[] deviceIds;
+        final boolean[] hasValue;
+        final double[] values;
+        final boolean handOff;
+
+        public RestoreGroup(String groupId, String[] deviceIds, boolean[] hasValue, double[] values) {
+            this(groupId, deviceIds, hasValue, values, false);
+        }
+
+        public RestoreGroup(String groupId, String[] deviceIds, boolean[] hasValue, double[] values,
+                            boolean handOff) {
+            if (hasValue.length != deviceIds.length || values.length != deviceIds.length) {
+                throw new IllegalArgumentException("All arrays of a RestoreGroup must have the same length");
+            }
+            this.groupId = groupId;
+            this.deviceIds = deviceIds;
+            this.hasValue = hasValue;
+            this.values = values;
+            this.handOff = handOff;
+        }
+
+        @Override
+        public Object consistentHashKey() {
+            return groupId;
+        }
+    }
+
+    /**
+     * Readings for devices of one group, handed to the group as is. Every device acknowledges its share
+     * with a {@link Device.TemperatureBatchRecorded}; readings for untracked groups and devices are dropped and
+     * handed back in a {@link PriorityIngestMailbox.Dropped}.
+     */
+    public static final class RecordTemperatures implements ConsistentHashable {
+        final String groupId;
+        final DeviceGroup.RecordTemperatures readings;
+
+        public RecordTemperatures(String groupId, DeviceGroup.RecordTemperatures readings) {
+            this.groupId = groupId;
+            this.readings = readings;
+        }
+
+        @Override
+        public Object consistentHashKey() {
+            return groupId;
+        }
+    }
+
+    /**
+     * Hands {@code message} to the group with the original sender, so that clients can query a group without
+     * knowing its actor or node, e.g. a {@link DeviceGroup.RequestAllTemperatures}. A query for a group that
+     * does not exist is answered as by a group without devices; other messages for it are dropped.
+     */
+    public static final class ForGroup implements ConsistentHashable {
+        final String groupId;
+        final Object message;
+
+        public ForGroup(String groupId, Object message) {
+            this.groupId = groupId;
+            this.message = message;
+        }
+
+        @Override
+        public Object consistentHashKey() {
+            return groupId;
+        }
+    }
+
+    /**
+     * Answered by any shard with the {@link IotMetrics} of the whole actor system.
+     */
+    public static final class RequestMetrics implements ConsistentHashable {
+        final long requestId;
+
+        public RequestMetrics(long requestId) {
+            this.requestId = requestId;
+        }
+
+        @Override
+        public Object consistentHashKey() {
+            return requestId;
+        }
+    }
 
+    public static final class RespondMetrics {
+        final long requestId;
+        final IotMetrics.MetricsSnapshot metrics;
+
+        public RespondMetrics(long requestId, IotMetrics.MetricsSnapshot metrics) {
+            this.requestId = requestId;
+            this.metrics = metrics;
+        }
+    }
+
+    /**
+     * Answered with a {@link RespondFleetTemperatures} holding the best temperatures of the devices in all
+     * groups of all shards that match {@code filter}. Any shard can take it.
+     */
+    public static final class RequestFleetTemperatures implements ConsistentHashable {
+        final long requestId;
+        final FleetFilter filter;
+        final FiniteDuration timeout;
+
+        public RequestFleetTemperatures(long requestId, FleetFilter filter) {
+            this(requestId, filter, DeviceGroup.DEFAULT_QUERY_TIMEOUT);
+        }
+
+        /**
+         * @param timeout shards, groups and devices that have not answered within this time are left out
+         */
+        public RequestFleetTemperatures(long requestId, FleetFilter filter, FiniteDuration timeout) {
+            this.requestId = requestId;
+            this.filter = filter;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public Object consistentHashKey() {
+            return requestId;
+        }
+    }
+
+    /**
+     * At most {@link FleetFilter#limit} temperatures, best first, out of {@code matching} that matched the
+     * filter in {@code groups} groups. Not {@code complete} if a shard, group or device did not answer in time.
+     */
+    public static final class RespondFleetTemperatures {
+        final long requestId;
+        final List<FleetTemperature> temperatures;
+        final long matching;
+        final int groups;
+        final boolean complete;
+
+        public RespondFleetTemperatures(long requestId, List<FleetTemperature> temperatures, long matching,
+                                        int groups, boolean complete) {
+            this.requestId = requestId;
+            this.temperatures = temperatures;
+            this.matching = matching;
+            this.groups = groups;
+            this.complete = complete;
+        }
+    }
+
+    @Data
+    public static final class FleetTemperature {
+        private final String groupId;
+        private final String deviceId;
+        private final double value;
+    }
+
+    /**
+     * The part of a {@link RequestFleetTemperatures} for the groups of one shard, or with cluster sharding of
+     * one node, answered with a {@link RespondFleetTemperatures} of their own.
+     */
+    static final class ShardFleetTemperatures {
+        final long requestId;
+        final FleetFilter filter;
+        final FiniteDuration timeout;
+
+        ShardFleetTemperatures(long requestId, FleetFilter filter, FiniteDuration timeout) {
+            this.requestId = requestId;
+            this.filter = filter;
+            this.timeout = timeout;
+        }
+    }
+
+    static final class TakeSnapshot {
+    }
+
+    static final class SnapshotTimeout {
+        final long requestIdsBelow;
+
+        SnapshotTimeout(long requestIdsBelow) {
+            this.requestIdsBelow = requestIdsBelow;
+        }
+    }
+
+    static final class SnapshotWritten {
+        final String shard;
+        // null if the snapshot was written
+        final Throwable failure;
+
+        SnapshotWritten(String shard, Throwable failure) {
+            this.shard = shard;
+            this.failure = failure;
+        }
+    }
 }
@@ -0,0 +1,78 @@
+package com.lightbend.akka.sample.iot;
+
+/**
+ * Immutable selection of a {@link DeviceManager.RequestFleetTemperatures}: which groups to ask, which
+ * temperatures count and how many of them to return. Devices without a temperature never match.
+ */
+public final class FleetFilter {
+    private static final FleetFilter ALL = new FleetFilter(
+            "", Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, 100, false);
+
+    public final String groupIdPrefix;
+    public final double minValue;
+    public final double maxValue;
+    public final int limit;
+    public final boolean lowestFirst;
+
+    private FleetFilter(String groupIdPrefix, double minValue, double maxValue, int limit, boolean lowestFirst) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("The limit of a fleet query must be at least 1, was " + limit);
+        }
+        this.groupIdPrefix = groupIdPrefix;
+        this.minValue = minValue;
+        this.maxValue = maxValue;
+        this.limit = limit;
+        this.lowestFirst = lowestFirst;
+    }
+
+    /**
+     * Every group and every temperature, the 100 highest returned.
+     */
+    public static FleetFilter all() {
+        return ALL;
+    }
+
+    /**
+     * Only groups whose id starts with {@code groupIdPrefix} are asked at all.
+     */
+    public FleetFilter withGroupIdPrefix(String groupIdPrefix) {
+        return new FleetFilter(groupIdPrefix, minValue, maxValue, limit, lowestFirst);
+    }
+
+    /**
+     * Only temperatures of at least {@code minValue} match.
+     */
+    public FleetFilter withMinValue(double minValue) {
+        return new FleetFilter(groupIdPrefix, minValue, maxValue, limit, lowestFirst);
+    }
+
+    /**
+     * Only temperatures of at most {@code maxValue} match.
+     */
+    public FleetFilter withMaxValue(double maxValue) {
+        return new FleetFilter(groupIdPrefix, minValue, maxValue, limit, lowestFirst);
+    }
+
+    /**
+     * How many of the matching temperatures are returned, 100 by default. It also bounds what every level
+     * of the query keeps while merging, so it is never the whole fleet.
+     */
+    public FleetFilter withLimit(int limit) {
+        return new FleetFilter(groupIdPrefix, minValue, maxValue, limit, lowestFirst);
+    }
+
+    /**
+     * Return the lowest matching temperatures instead of the highest ones.
+     */
+    public FleetFilter withLowestFirst(boolean lowestFirst) {
+        return new FleetFilter(groupIdPrefix, minValue, maxValue, limit, lowestFirst);
+    }
+
+    boolean matchesGroup(String groupId) {
+        return groupId.startsWith(groupIdPrefix);
+    }
+
+    boolean matchesValue(double value) {
+        return value >= minValue && value <= maxValue;
+    }
+}
@@ -0,0 +1,254 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.*;
+import akka.cluster.sharding.ShardRegion;
+import akka.routing.ActorRefRoutee;
+import akka.routing.GetRoutees;
+import akka.routing.Routee;
+import akka.routing.Routees;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Answers a {@link DeviceManager.RequestFleetTemperatures} in two levels: the query started by the shard that
+ * received the request asks every shard of the manager, and every shard runs one over its own groups. With
+ * cluster sharding the {@link FleetQueryEndpoint} of a node asks the endpoints of all nodes hosting groups,
+ * and every one of them runs one over the groups its shard region hosts.
+ * <p>
+ * Either level asks at most {@code iot.fleet-query.parallelism} shards, nodes or groups at a time and folds
+ * every answer into its {@link TopTemperatures} right away, so it holds the best {@link FleetFilter#limit}
+ * temperatures and the answers in flight, never the readings of the whole fleet. Groups, shards and nodes
+ * hand up only their best, see {@link DeviceGroup.RequestTopTemperatures}. Whatever has not answered when
+ * the time is up is left out of an incomplete response.
+ */
+public class FleetQuery extends AbstractActor {
+    final long requestId;
+    final FleetFilter filter;
+    final FiniteDuration timeout;
+    final ActorRef requester;
+    // the manager whose shards are asked, null for the query of a shard
+    final ActorRef manager;
+    // the shard region of the groups, null without cluster sharding
+    final ActorRef region;
+    // whether the endpoints of all nodes are asked rather than the groups the region hosts
+    final boolean cluster;
+    final int parallelism;
+    final TopTemperatures top;
+    // the shards, nodes or groups to ask, the latter by id through the region; the request id sent to each
+    // is its index
+    ActorRef[] targets;
+    ActorSelection[] nodes;
+    String[] groupIds;
+    int targetCount;
+    final BitSet answered = new BitSet();
+    int nextTarget;
+    int outstanding;
+    int groups;
+    boolean complete = true;
+    Cancellable queryTimeoutTimer;
+
+    public FleetQuery(ActorRef manager, long requestId, FleetFilter filter, FiniteDuration timeout,
+                      ActorRef requester) {
+        this(manager, null, null, false, requestId, filter, timeout, requester);
+    }
+
+    public FleetQuery(ActorRegistry.Snapshot groups, long requestId, FleetFilter filter, FiniteDuration timeout,
+                      ActorRef requester) {
+        this(null, groups, null, false, requestId, filter, timeout, requester);
+    }
+
+    public FleetQuery(ActorRef region, boolean cluster, long requestId, FleetFilter filter, FiniteDuration timeout,
+                      ActorRef requester) {
+        this(null, null, region, cluster, requestId, filter, timeout, requester);
+    }
+
+    private FleetQuery(ActorRef manager, ActorRegistry.Snapshot groups, ActorRef region, boolean cluster,
+                       long requestId, FleetFilter filter, FiniteDuration timeout, ActorRef requester) {
+        this.manager = manager;
+        this.region = region;
+        this.cluster = cluster;
+        this.requestId = requestId;
+        this.filter = filter;
+        this.timeout = timeout;
+        this.requester = requester;
+        this.parallelism = getContext().getSystem().settings().config().getInt("iot.fleet-query.parallelism");
+        this.top = new TopTemperatures(filter);
+        if (groups != null) {
+            List<ActorRef> actors = new ArrayList<>();
+            for (int slot = 0; slot < groups.size(); slot++) {
+                if (filter.matchesGroup(groups.idAt(slot))) {
+                    actors.add(groups.actorAt(slot));
+                }
+            }
+            this.targets = actors.toArray(new ActorRef[0]);
+            this.targetCount = targets.length;
+        }
+
+        queryTimeoutTimer = getContext().getSystem().scheduler().scheduleOnce(
+                timeout, getSelf(), new DeviceGroupQuery.CollectionTimeout(), getContext().dispatcher(), getSelf()
+        );
+    }
+
+    /**
+     * The query over all shards of {@code manager}, the router of a manager created by {@link DeviceManager#props}.
+     */
+    static Props props(ActorRef manager, DeviceManager.RequestFleetTemperatures r, ActorRef requester) {
+        return Props.create(FleetQuery.class, manager, r.requestId, r.filter, r.timeout, requester)
+                .withMailbox("iot.query-mailbox")
+                .withDispatcher("iot.query-dispatcher");
+    }
+
+    /**
+     * The query over the groups of one shard.
+     */
+    static Props shardProps(ActorRegistry.Snapshot groups, DeviceManager.ShardFleetTemperatures r,
+                            ActorRef requester) {
+        return Props.create(FleetQuery.class, groups, r.requestId, r.filter, r.timeout, requester)
+                .withMailbox("iot.query-mailbox")
+                .withDispatcher("iot.query-dispatcher");
+    }
+
+    /**
+     * The query over the {@link FleetQueryEndpoint endpoints} of all nodes with a shard region of the groups.
+     */
+    static Props clusterProps(ActorRef region, DeviceManager.RequestFleetTemperatures r, ActorRef requester) {
+        return Props.create(FleetQuery.class, region, true, r.requestId, r.filter, r.timeout, requester)
+                .withMailbox("iot.query-mailbox")
+                .withDispatcher("iot.query-dispatcher");
+    }
+
+    /**
+     * The query over the groups hosted by the shard region of this node.
+     */
+    static Props nodeProps(ActorRef region, DeviceManager.ShardFleetTemperatures r, ActorRef requester) {
+        return Props.create(FleetQuery.class, region, false, r.requestId, r.filter, r.timeout, requester)
+                .withMailbox("iot.query-mailbox")
+                .withDispatcher("iot.query-dispatcher");
+    }
+
+    @Override
+    public void preStart() {
+        if (manager != null) {
+            manager.tell(GetRoutees.getInstance(), getSelf());
+        } else if (cluster) {
+            region.tell(ShardRegion.getCurrentRegionsInstance(), getSelf());
+        } else if (region != null) {
+            // answered from the local state of the region, so it names only groups hosted here
+            region.tell(ShardRegion.getShardRegionStateInstance(), getSelf());
+        } else {
+            askNext();
+        }
+    }
+
+    @Override
+    public void postStop() {
+        queryTimeoutTimer.cancel();
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(Routees.class, this::onRoutees)
+                .match(ShardRegion.CurrentRegions.class, this::onRegions)
+                .match(ShardRegion.CurrentShardRegionState.class, this::onRegionState)
+                .match(DeviceManager.RespondFleetTemperatures.class, this::onTemperatures)
+                .match(DeviceGroupQuery.CollectionTimeout.class, t -> respondAndStop(false))
+                .build();
+    }
+
+    private void onRoutees(Routees r) {
+        List<ActorRef> shards = new ArrayList<>();
+        for (Routee routee : r.getRoutees()) {
+            if (routee instanceof ActorRefRoutee) {
+                shards.add(((ActorRefRoutee) routee).ref());
+            }
+        }
+        targets = shards.toArray(new ActorRef[0]);
+        targetCount = targets.length;
+        askNext();
+    }
+
+    private void onRegions(ShardRegion.CurrentRegions r) {
+        List<ActorSelection> endpoints = new ArrayList<>();
+        for (Address address : r.getRegions()) {
+            endpoints.add(getContext().actorSelection(new RootActorPath(address, "/")
+                                                              .descendant(FleetQueryEndpoint.PATH_ELEMENTS)));
+        }
+        nodes = endpoints.toArray(new ActorSelection[0]);
+        targetCount = nodes.length;
+        askNext();
+    }
+
+    private void onRegionState(ShardRegion.CurrentShardRegionState state) {
+        List<String> ids = new ArrayList<>();
+        for (ShardRegion.ShardState shard : state.getShards()) {
+            for (String groupId : shard.getEntityIds()) {
+                if (filter.matchesGroup(groupId)) {
+                    ids.add(groupId);
+                }
+            }
+        }
+        groupIds = ids.toArray(new String[0]);
+        targetCount = groupIds.length;
+        askNext();
+    }
+
+    private void onTemperatures(DeviceManager.RespondFleetTemperatures r) {
+        if (isFirstAnswer(r.requestId)) {
+            top.merge(r.temperatures, r.matching);
+            groups += r.groups;
+            complete &= r.complete;
+            answered();
+        }
+    }
+
+    private boolean isFirstAnswer(long index) {
+        if (index < 0 || index >= targetCount || answered.get((int) index)) {
+            return false;
+        }
+        answered.set((int) index);
+        return true;
+    }
+
+    private void answered() {
+        outstanding--;
+        askNext();
+    }
+
+    private void askNext() {
+        while (outstanding < parallelism && nextTarget < targetCount) {
+            int index = nextTarget++;
+            if (nodes != null) {
+                nodes[index].tell(new DeviceManager.ShardFleetTemperatures(index, filter, timeout.mul(3).div(4)),
+                                  getSelf());
+            } else if (groupIds != null) {
+                region.tell(new DeviceManager.ForGroup(groupIds[index], groupRequest(index)), getSelf());
+            } else {
+                targets[index].tell(manager != null
+                                    ? new DeviceManager.ShardFleetTemperatures(index, filter, timeout.mul(3).div(4))
+                                    : groupRequest(index), getSelf());
+            }
+            outstanding++;
+        }
+        if (outstanding == 0) {
+            respondAndStop(complete);
+        }
+    }
+
+    /**
+     * Shards and nodes get most of the time that is left, so that they can answer with what they have before
+     * this query gives up on them; groups get part of that, so that a slow device does not hold up its shard.
+     */
+    private Object groupRequest(int index) {
+        return new DeviceGroup.RequestTopTemperatures(index, filter, timeout.mul(2).div(3));
+    }
+
+    private void respondAndStop(boolean complete) {
+        requester.tell(new DeviceManager.RespondFleetTemperatures(
+                requestId, top.toList(), top.matching(), groups, complete), getSelf());
+        getContext().stop(getSelf());
+    }
+}
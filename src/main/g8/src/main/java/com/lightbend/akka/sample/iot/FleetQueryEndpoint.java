@@ -0,0 +1,43 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Takes the fleet queries of a node running {@link DeviceManager#startSharding} or
+ * {@link DeviceManager#startShardingProxy}, which the shard region cannot route as they are for no one group.
+ * <p>
+ * A {@link DeviceManager.RequestFleetTemperatures} is answered by asking the endpoints of all nodes with a shard
+ * region of the groups, found at the same path everywhere; a {@link DeviceManager.ShardFleetTemperatures} from
+ * one of them is answered over the groups the region of this node hosts. Either way a {@link FleetQuery} does the
+ * asking, so only the best temperatures of every group and node travel.
+ */
+public class FleetQueryEndpoint extends AbstractActor {
+    static final String NAME = "iot-fleet";
+    static final List<String> PATH_ELEMENTS = Arrays.asList("user", NAME);
+
+    final ActorRef region;
+
+    public FleetQueryEndpoint(ActorRef region) {
+        this.region = region;
+    }
+
+    static Props props(ActorRef region) {
+        return Props.create(FleetQueryEndpoint.class, region)
+                .withDispatcher("iot.group-dispatcher");
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(DeviceManager.RequestFleetTemperatures.class,
+                       r -> getContext().actorOf(FleetQuery.clusterProps(region, r, getSender())))
+                .match(DeviceManager.ShardFleetTemperatures.class,
+                       r -> getContext().actorOf(FleetQuery.nodeProps(region, r, getSender())))
+                .build();
+    }
+}
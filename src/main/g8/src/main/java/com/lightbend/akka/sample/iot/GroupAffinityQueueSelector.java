@@ -0,0 +1,69 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.ActorCell;
+import akka.actor.ActorPath;
+import akka.actor.RootActorPath;
+import akka.dispatch.Mailbox;
+import akka.dispatch.affinity.QueueSelector;
+import akka.dispatch.affinity.QueueSelectorFactory;
+import com.typesafe.config.Config;
+
+/**
+ * Queue selector for the {@code affinity-pool-executor} that partitions the pool's threads by device group:
+ * every actor below a group that runs on the pool always runs on the same queue and so on the same thread.
+ * Configured for {@code iot.device-dispatcher}, that is all devices of a group, so each thread works on the
+ * devices of a fixed set of groups. The groups themselves and their queries run on their own dispatchers.
+ * Groups are recognized by the {@code group-} prefix a {@link DeviceManager} gives them and by their place
+ * below the shard region of {@link DeviceManager#startSharding}.
+ * <p>
+ * Actors outside any group and tasks that are not actor mailboxes are spread by their identity hash.
+ */
+public final class GroupAffinityQueueSelector implements QueueSelectorFactory {
+    private static final String GROUP_PREFIX = "group-";
+    private static final String SHARDING_GUARDIAN = "sharding";
+
+    public GroupAffinityQueueSelector(Config config) {
+    }
+
+    @Override
+    public QueueSelector create() {
+        return GroupAffinityQueueSelector::queueOf;
+    }
+
+    static int queueOf(Runnable command, int queues) {
+        int hash = System.identityHashCode(command);
+        if (command instanceof Mailbox) {
+            ActorCell actor = ((Mailbox) command).actor();
+            if (actor != null) {
+                String group = groupOf(actor.self().path());
+                if (group != null) {
+                    hash = group.hashCode();
+                }
+            }
+        }
+        // Fibonacci hashing, so similar group ids still spread over all queues
+        return (int) (((hash * 0x9E3779B9L) & 0xFFFFFFFFL) * queues >>> 32);
+    }
+
+    /**
+     * @return the name of the innermost group actor on {@code path}, or {@code null}
+     */
+    static String groupOf(ActorPath path) {
+        for (ActorPath p = path; !(p instanceof RootActorPath); p = p.parent()) {
+            if (p.name().startsWith(GROUP_PREFIX) || isGroupEntity(p)) {
+                return p.name();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether {@code path} is a group started by cluster sharding,
+     * {@code /system/sharding/<type name>/<shard>/<group>}.
+     */
+    private static boolean isGroupEntity(ActorPath path) {
+        ActorPath typeName = path.parent().parent();
+        return typeName.name().equals(DeviceManager.GROUP_TYPE_NAME)
+               && typeName.parent().name().equals(SHARDING_GUARDIAN);
+    }
+}
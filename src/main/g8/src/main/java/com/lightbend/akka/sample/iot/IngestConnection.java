@@ -0,0 +1,362 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorPath;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.actor.Terminated;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.io.Tcp;
+import akka.io.TcpMessage;
+import akka.util.ByteString;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One producer connection of the {@link IngestGateway}: decodes {@link IngestProtocol} frames and forwards
+ * the readings to the {@link DeviceManager}, one {@link DeviceManager.RecordTemperatures} per group and read.
+ * <p>
+ * Flow control is by credits. Every forwarded reading is in flight until its device, or its group if that
+ * coalesces readings, acknowledges it, and at most {@link IngestSettings#maxInFlight} readings are; with all
+ * credits in use the connection stops decoding and, since the socket is read in pull mode, stops reading,
+ * so TCP pushes back on the producer.
+ * Decoding resumes once half the credits are back; readings dropped by a full {@link PriorityIngestMailbox}
+ * return their credits as well. Memory per connection is one read buffer, the handle table and the
+ * bookkeeping of the readings in flight, however fast the producer writes.
+ */
+public class IngestConnection extends AbstractActor {
+    private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+    final ActorRef connection;
+    final ActorRef deviceManager;
+    final IngestSettings settings;
+    // undecoded bytes, in write mode between reads
+    ByteBuffer buffer;
+    // set between ResumeReading and the Received it asks for
+    boolean awaitingData;
+    boolean closing;
+
+    // by handle
+    String[] deviceIds = new String[0];
+    GroupBatch[] batches = new GroupBatch[0];
+    int[] readingsInBatch = new int[0];
+    long[] lastRequestId = new long[0];
+    final Map<String, GroupBatch> groupBatches = new HashMap<>();
+    final List<GroupBatch> filledBatches = new ArrayList<>();
+    int[] handlesInBatch = new int[16];
+    int handlesInBatchCount;
+
+    long nextRequestId;
+    int inFlight;
+    // readings in flight per device, by the highest request id the device acknowledges them with
+    final Map<Long, Pending> pending = new HashMap<>();
+    Cancellable ackTimeoutTimer;
+
+    public IngestConnection(ActorRef connection, ActorRef deviceManager, IngestSettings settings) {
+        this.connection = connection;
+        this.deviceManager = deviceManager;
+        this.settings = settings;
+    }
+
+    public static Props props(ActorRef connection, ActorRef deviceManager, IngestSettings settings) {
+        return Props.create(IngestConnection.class, connection, deviceManager, settings)
+                .withDispatcher("iot.group-dispatcher");
+    }
+
+    @Override
+    public void preStart() {
+        // in pull mode every read delivers at most one direct buffer
+        long readBytes = getContext().getSystem().settings().config().getBytes("akka.io.tcp.direct-buffer-size");
+        buffer = ByteBuffer.allocate((int) readBytes + IngestProtocol.MAX_FRAME_BYTES);
+        getContext().watch(connection);
+        FiniteDuration interval = FiniteDuration.create(Math.max(10L, settings.ackTimeoutMillis / 2),
+                                                        TimeUnit.MILLISECONDS);
+        ackTimeoutTimer = getContext().getSystem().scheduler().schedule(
+                interval, interval, getSelf(), new AckTimeoutTick(), getContext().dispatcher(), getSelf());
+        resumeReading();
+    }
+
+    @Override
+    public void postStop() {
+        ackTimeoutTimer.cancel();
+    }
+
+    private void resumeReading() {
+        awaitingData = true;
+        connection.tell(TcpMessage.resumeReading(), getSelf());
+    }
+
+    private void onReceived(Tcp.Received r) {
+        awaitingData = false;
+        if (closing) {
+            return;
+        }
+        ByteString data = r.data();
+        if (buffer.remaining() < data.size()) {
+            buffer = ByteBuffer.allocate(buffer.position() + data.size()).put((ByteBuffer) buffer.flip());
+        }
+        data.copyToBuffer(buffer);
+        decode();
+    }
+
+    /**
+     * Decodes frames as long as there are credits, then asks for more data once all complete frames are
+     * decoded.
+     */
+    private void decode() {
+        buffer.flip();
+        while (inFlight < settings.maxInFlight && buffer.remaining() >= IngestProtocol.LENGTH_BYTES) {
+            int start = buffer.position();
+            int length = buffer.getInt(start);
+            if (length < 1 || length > IngestProtocol.MAX_FRAME_BYTES - IngestProtocol.LENGTH_BYTES) {
+                protocolError("Invalid frame length " + length);
+                return;
+            }
+            if (buffer.remaining() < IngestProtocol.LENGTH_BYTES + length) {
+                break;
+            }
+            int end = start + IngestProtocol.LENGTH_BYTES + length;
+            buffer.position(start + IngestProtocol.LENGTH_BYTES);
+            byte type = buffer.get();
+            if (type == IngestProtocol.READING
+                && end - start == IngestProtocol.READING_FRAME_BYTES) {
+                int handle = buffer.getInt();
+                long timestamp = buffer.getLong();
+                if (!onReading(handle, timestamp, buffer.getDouble())) {
+                    return;
+                }
+            } else if (type == IngestProtocol.DEFINE && length >= 1 + 4) {
+                int handle = buffer.getInt();
+                String groupId = IngestProtocol.getId(buffer, end);
+                String deviceId = groupId == null ? null : IngestProtocol.getId(buffer, end);
+                if (deviceId == null || buffer.position() != end || !onDefine(handle, groupId, deviceId)) {
+                    protocolError("Invalid definition of handle " + handle);
+                    return;
+                }
+            } else {
+                protocolError("Invalid frame of type " + type + " and length " + length);
+                return;
+            }
+        }
+        buffer.compact();
+        flush();
+        if (!awaitingData && !hasCompleteFrame()) {
+            resumeReading();
+        }
+    }
+
+    private boolean hasCompleteFrame() {
+        return buffer.position() >= IngestProtocol.LENGTH_BYTES
+               && buffer.position() >= IngestProtocol.LENGTH_BYTES + buffer.getInt(0);
+    }
+
+    /**
+     * A device id that does not fit a journal record is rejected, a journaling group would not track it and
+     * every reading for it would only come back as dropped.
+     */
+    private boolean onDefine(int handle, String groupId, String deviceId) {
+        if (handle < 0 || handle >= settings.maxHandles
+            || !ActorPath.isValidPathElement("group-" + groupId)
+            || !ActorPath.isValidPathElement("device-" + deviceId)
+            || !TemperatureJournal.fits(deviceId)) {
+            return false;
+        }
+        if (handle >= deviceIds.length) {
+            int capacity = Math.min(settings.maxHandles, Math.max(handle + 1, deviceIds.length * 2));
+            deviceIds = Arrays.copyOf(deviceIds, capacity);
+            batches = Arrays.copyOf(batches, capacity);
+            readingsInBatch = Arrays.copyOf(readingsInBatch, capacity);
+            lastRequestId = Arrays.copyOf(lastRequestId, capacity);
+        } else if (readingsInBatch[handle] > 0) {
+            // the readings of the handle's previous device are acknowledged by that device
+            flush();
+        }
+        deviceIds[handle] = deviceId;
+        batches[handle] = groupBatches.computeIfAbsent(groupId, GroupBatch::new);
+        // reaches the group before any reading for the device, both take the same route
+        deviceManager.tell(new DeviceManager.RequestTrackDevice(groupId, deviceId), getSelf());
+        return true;
+    }
+
+    private boolean onReading(int handle, long timestamp, double value) {
+        if (handle < 0 || handle >= deviceIds.length || deviceIds[handle] == null) {
+            protocolError("Reading for undefined handle " + handle);
+            return false;
+        }
+        GroupBatch batch = batches[handle];
+        if (batch.size == 0) {
+            filledBatches.add(batch);
+        }
+        long requestId = nextRequestId++;
+        batch.add(deviceIds[handle], requestId, value, timestamp);
+        if (readingsInBatch[handle]++ == 0) {
+            if (handlesInBatchCount == handlesInBatch.length) {
+                handlesInBatch = Arrays.copyOf(handlesInBatch, handlesInBatchCount * 2);
+            }
+            handlesInBatch[handlesInBatchCount++] = handle;
+        }
+        lastRequestId[handle] = requestId;
+        inFlight++;
+        return true;
+    }
+
+    private void flush() {
+        for (GroupBatch batch : filledBatches) {
+            deviceManager.tell(new DeviceManager.RecordTemperatures(batch.groupId, batch.drain()), getSelf());
+        }
+        filledBatches.clear();
+        long now = System.nanoTime();
+        for (int i = 0; i < handlesInBatchCount; i++) {
+            int handle = handlesInBatch[i];
+            pending.put(lastRequestId[handle], new Pending(readingsInBatch[handle], now));
+            readingsInBatch[handle] = 0;
+        }
+        handlesInBatchCount = 0;
+    }
+
+    private void protocolError(String reason) {
+        log.warning("Closing ingest connection: {}", reason);
+        flush();
+        closing = true;
+        connection.tell(TcpMessage.close(), getSelf());
+    }
+
+    private void onAcknowledged(Device.TemperatureBatchRecorded ack) {
+        Pending p = pending.remove(ack.requestId);
+        if (p != null) {
+            release(p.readings);
+        }
+    }
+
+    private void onCoalescedAcknowledged(DeviceGroup.TemperaturesRecorded ack) {
+        releaseAll(ack.requestIds);
+    }
+
+    /**
+     * Readings dropped by the full mailbox of their group or device are given up on right away.
+     */
+    private void onDropped(PriorityIngestMailbox.Dropped d) {
+        if (d.message instanceof DeviceGroup.RecordTemperatures) {
+            // the readings of a device are pending under the highest of their ids, all in the same message
+            releaseAll(((DeviceGroup.RecordTemperatures) d.message).requestIds);
+        } else if (d.message instanceof Device.RecordTemperatureBatch) {
+            releaseAll(((Device.RecordTemperatureBatch) d.message).requestIds);
+        }
+    }
+
+    private void releaseAll(long[] requestIds) {
+        int readings = 0;
+        for (long requestId : requestIds) {
+            Pending p = pending.remove(requestId);
+            if (p != null) {
+                readings += p.readings;
+            }
+        }
+        if (readings > 0) {
+            release(readings);
+        }
+    }
+
+    private void onAckTimeoutTick(AckTimeoutTick t) {
+        long expiredBefore = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(settings.ackTimeoutMillis);
+        int expired = 0;
+        for (Iterator<Pending> i = pending.values().iterator(); i.hasNext(); ) {
+            Pending p = i.next();
+            if (p.sentAtNanos - expiredBefore < 0) {
+                i.remove();
+                expired += p.readings;
+            }
+        }
+        if (expired > 0) {
+            log.warning("{} readings were not acknowledged within {} ms", expired, settings.ackTimeoutMillis);
+            release(expired);
+        }
+    }
+
+    private void release(int readings) {
+        inFlight -= readings;
+        if (!awaitingData && !closing && inFlight <= settings.maxInFlight / 2) {
+            decode();
+        }
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(Tcp.Received.class, this::onReceived)
+                .match(Device.TemperatureBatchRecorded.class, this::onAcknowledged)
+                .match(DeviceGroup.TemperaturesRecorded.class, this::onCoalescedAcknowledged)
+                .match(PriorityIngestMailbox.Dropped.class, this::onDropped)
+                .match(DeviceManager.DeviceRegistered.class, r -> {
+                })
+                .match(AckTimeoutTick.class, this::onAckTimeoutTick)
+                .match(Tcp.ConnectionClosed.class, c -> getContext().stop(getSelf()))
+                .match(Terminated.class, t -> getContext().stop(getSelf()))
+                .build();
+    }
+
+    /**
+     * Readings of one group decoded since the last flush, as the parallel arrays of a
+     * {@link DeviceGroup.RecordTemperatures}.
+     */
+    static final class GroupBatch {
+        final String groupId;
+        String[] deviceIds = new String[16];
+        long[] requestIds = new long[16];
+        double[] values = new double[16];
+        long[] timestamps = new long[16];
+        int size;
+
+        GroupBatch(String groupId) {
+            this.groupId = groupId;
+        }
+
+        void add(String deviceId, long requestId, double value, long timestamp) {
+            if (size == deviceIds.length) {
+                deviceIds = Arrays.copyOf(deviceIds, size * 2);
+                requestIds = Arrays.copyOf(requestIds, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+            }
+            deviceIds[size] = deviceId;
+            requestIds[size] = requestId;
+            values[size] = value;
+            timestamps[size] = timestamp;
+            size++;
+        }
+
+        /**
+         * @return the readings since the last call, in arrays of their own
+         */
+        DeviceGroup.RecordTemperatures drain() {
+            DeviceGroup.RecordTemperatures readings = new DeviceGroup.RecordTemperatures(
+                    Arrays.copyOf(deviceIds, size), Arrays.copyOf(requestIds, size),
+                    Arrays.copyOf(values, size), Arrays.copyOf(timestamps, size));
+            Arrays.fill(deviceIds, 0, size, null);
+            size = 0;
+            return readings;
+        }
+    }
+
+    static final class Pending {
+        final int readings;
+        final long sentAtNanos;
+
+        Pending(int readings, long sentAtNanos) {
+            this.readings = readings;
+            this.sentAtNanos = sentAtNanos;
+        }
+    }
+
+    static final class AckTimeoutTick {
+    }
+}
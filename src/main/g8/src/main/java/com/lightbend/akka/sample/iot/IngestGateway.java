@@ -0,0 +1,97 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.io.Tcp;
+import akka.io.TcpMessage;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Accepts producers of readings on a TCP port, speaking {@link IngestProtocol}, and hands every connection
+ * to an {@link IngestConnection} that forwards its readings to the {@link DeviceManager}.
+ * <p>
+ * The socket is bound in pull mode: connections are accepted one at a time and only read when their
+ * handler asks for more, so a burst of readings backs up in the producers' TCP send buffers instead of
+ * in mailboxes.
+ */
+public class IngestGateway extends AbstractActor {
+    private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+    final ActorRef deviceManager;
+    final IngestSettings settings;
+    ActorRef listener;
+    InetSocketAddress boundAddress;
+    final List<ActorRef> waitingForAddress = new ArrayList<>();
+    long connections;
+
+    public IngestGateway(ActorRef deviceManager, IngestSettings settings) {
+        this.deviceManager = deviceManager;
+        this.settings = settings;
+    }
+
+    public static Props props(ActorRef deviceManager, IngestSettings settings) {
+        return Props.create(IngestGateway.class, deviceManager, settings)
+                .withDispatcher("iot.group-dispatcher");
+    }
+
+    @Override
+    public void preStart() {
+        Tcp.get(getContext().getSystem()).getManager().tell(
+                TcpMessage.bind(getSelf(), new InetSocketAddress(settings.host, settings.port), 100,
+                                Collections.emptyList(), true),
+                getSelf());
+    }
+
+    private void onBound(Tcp.Bound bound) {
+        listener = getSender();
+        boundAddress = bound.localAddress();
+        log.info("Ingesting readings on {}", boundAddress);
+        for (ActorRef waiting : waitingForAddress) {
+            waiting.tell(boundAddress, getSelf());
+        }
+        waitingForAddress.clear();
+        listener.tell(TcpMessage.resumeAccepting(1), getSelf());
+    }
+
+    private void onConnected(Tcp.Connected connected) {
+        ActorRef connection = getSender();
+        ActorRef handler = getContext().actorOf(
+                IngestConnection.props(connection, deviceManager, settings), "connection-" + connections++);
+        log.info("Accepted ingest connection from {}", connected.remoteAddress());
+        connection.tell(TcpMessage.register(handler), getSelf());
+        listener.tell(TcpMessage.resumeAccepting(1), getSelf());
+    }
+
+    private void onGetAddress(GetAddress r) {
+        if (boundAddress != null) {
+            getSender().tell(boundAddress, getSelf());
+        } else {
+            waitingForAddress.add(getSender());
+        }
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(Tcp.Bound.class, this::onBound)
+                .match(Tcp.Connected.class, this::onConnected)
+                .match(Tcp.CommandFailed.class, failed -> {
+                    log.error("Cannot ingest readings on {}:{}, {}", settings.host, settings.port, failed);
+                    getContext().stop(getSelf());
+                })
+                .match(GetAddress.class, this::onGetAddress)
+                .build();
+    }
+
+    /**
+     * Answered with the {@link InetSocketAddress} the gateway listens on, once it is bound.
+     */
+    public static final class GetAddress {
+    }
+}
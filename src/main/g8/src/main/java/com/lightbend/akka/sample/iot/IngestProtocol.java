@@ -0,0 +1,78 @@
+package com.lightbend.akka.sample.iot;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format of the {@link IngestGateway}: a stream of length-prefixed frames, big endian.
+ * <pre>
+ * int   length of the rest of the frame
+ * byte  type
+ *
+ * DEFINE   int handle, byte length + UTF-8 group id, byte length + UTF-8 device id
+ * READING  int handle, long timestamp (epoch millis), double value
+ * </pre>
+ * A producer defines every device once per connection, binding it to a handle of its choice below
+ * {@link IngestSettings#maxHandles}, and sends its readings against the handle: {@value #READING_FRAME_BYTES}
+ * bytes per reading. Defining a device tracks it, so readings never reach an unknown device. Redefining a
+ * handle rebinds it. Device ids must fit a journal record, at most {@value TemperatureJournal#MAX_DEVICE_ID_BYTES}
+ * bytes, so that no device is defined that its group would refuse to track. Anything else closes the
+ * connection.
+ */
+public final class IngestProtocol {
+    public static final byte DEFINE = 1;
+    public static final byte READING = 2;
+    public static final int LENGTH_BYTES = 4;
+    public static final int READING_FRAME_BYTES = LENGTH_BYTES + 1 + 4 + 8 + 8;
+    public static final int MAX_ID_BYTES = 255;
+    public static final int MAX_FRAME_BYTES = LENGTH_BYTES + 1 + 4 + 2 * (1 + MAX_ID_BYTES);
+
+    private IngestProtocol() {
+    }
+
+    public static void putDefine(ByteBuffer out, int handle, String groupId, String deviceId) {
+        byte[] group = idBytes(groupId);
+        byte[] device = idBytes(deviceId);
+        out.putInt(1 + 4 + 1 + group.length + 1 + device.length);
+        out.put(DEFINE);
+        out.putInt(handle);
+        out.put((byte) group.length);
+        out.put(group);
+        out.put((byte) device.length);
+        out.put(device);
+    }
+
+    public static void putReading(ByteBuffer out, int handle, long timestamp, double value) {
+        out.putInt(READING_FRAME_BYTES - LENGTH_BYTES);
+        out.put(READING);
+        out.putInt(handle);
+        out.putLong(timestamp);
+        out.putDouble(value);
+    }
+
+    private static byte[] idBytes(String id) {
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_ID_BYTES) {
+            throw new IllegalArgumentException("Id " + id + " is longer than " + MAX_ID_BYTES + " bytes");
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads an id written by {@link #putDefine} from an array backed buffer.
+     *
+     * @return {@code null} if the id does not end before {@code end}
+     */
+    static String getId(ByteBuffer in, int end) {
+        if (in.position() >= end) {
+            return null;
+        }
+        int length = in.get() & 0xFF;
+        if (length == 0 || in.position() + length > end) {
+            return null;
+        }
+        String id = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return id;
+    }
+}
@@ -0,0 +1,56 @@
+package com.lightbend.akka.sample.iot;
+
+/**
+ * Immutable options of the {@link IngestGateway} and its connections.
+ */
+public final class IngestSettings {
+    private static final IngestSettings DEFAULTS = new IngestSettings("127.0.0.1", 9100, 65536, 5000L, 1 << 20);
+
+    public final String host;
+    public final int port;
+    public final int maxInFlight;
+    public final long ackTimeoutMillis;
+    public final int maxHandles;
+
+    private IngestSettings(String host, int port, int maxInFlight, long ackTimeoutMillis, int maxHandles) {
+        this.host = host;
+        this.port = port;
+        this.maxInFlight = maxInFlight;
+        this.ackTimeoutMillis = ackTimeoutMillis;
+        this.maxHandles = maxHandles;
+    }
+
+    public static IngestSettings defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * Interface and port to listen on; port 0 picks a free one, see {@link IngestGateway.GetAddress}.
+     */
+    public IngestSettings withAddress(String host, int port) {
+        return new IngestSettings(host, port, maxInFlight, ackTimeoutMillis, maxHandles);
+    }
+
+    /**
+     * Readings a connection may have sent to devices without an acknowledgement; once that many are
+     * outstanding it stops reading from its socket until half of them are acknowledged.
+     */
+    public IngestSettings withMaxInFlight(int maxInFlight) {
+        return new IngestSettings(host, port, maxInFlight, ackTimeoutMillis, maxHandles);
+    }
+
+    /**
+     * Readings not acknowledged within this time, e.g. because their device stopped, are given up on and no
+     * longer count against {@link #maxInFlight}.
+     */
+    public IngestSettings withAckTimeoutMillis(long ackTimeoutMillis) {
+        return new IngestSettings(host, port, maxInFlight, ackTimeoutMillis, maxHandles);
+    }
+
+    /**
+     * Upper bound of the device handles of one connection, and so of the devices it can define.
+     */
+    public IngestSettings withMaxHandles(int maxHandles) {
+        return new IngestSettings(host, port, maxInFlight, ackTimeoutMillis, maxHandles);
+    }
+}
@@ -0,0 +1,113 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedMessageQueueSemantics;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unbounded mailbox that feeds {@link IotMetrics}: the number of processed messages, the number of
+ * waiting ones and the time every message spent in the mailbox, for the {@code actor-type} it is
+ * configured with.
+ * <p>
+ * The queue is a linked multi-producer single-consumer queue whose nodes carry the enqueue time, so it
+ * allocates one node per message, just like the default mailbox, and nothing else.
+ */
+public class InstrumentedMailbox implements MailboxType, ProducesMessageQueue<InstrumentedMailbox.InstrumentedMessageQueue> {
+    private final String actorType;
+
+    public InstrumentedMailbox(ActorSystem.Settings settings, Config config) {
+        this.actorType = config.getString("actor-type");
+    }
+
+    @Override
+    public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+        IotMetrics.ActorTypeMetrics metrics = system.isDefined()
+                                              ? IotMetrics.get(system.get()).forActorType(actorType)
+                                              : new IotMetrics.ActorTypeMetrics();
+        return new InstrumentedMessageQueue(metrics);
+    }
+
+    public static final class InstrumentedMessageQueue implements MessageQueue, UnboundedMessageQueueSemantics {
+        private final IotMetrics.ActorTypeMetrics metrics;
+        private final AtomicReference<Node> tail;
+        // only moved by the actor processing the mailbox, read by the senders checking for messages
+        private volatile Node head;
+
+        InstrumentedMessageQueue(IotMetrics.ActorTypeMetrics metrics) {
+            this.metrics = metrics;
+            Node stub = new Node(null, 0L);
+            this.head = stub;
+            this.tail = new AtomicReference<>(stub);
+            metrics.live.increment();
+        }
+
+        @Override
+        public void enqueue(ActorRef receiver, Envelope handle) {
+            Node node = new Node(handle, System.nanoTime());
+            tail.getAndSet(node).next = node;
+            metrics.queued.increment();
+        }
+
+        @Override
+        public Envelope dequeue() {
+            Node next = head.next;
+            if (next == null) {
+                return null;
+            }
+            Envelope envelope = poll(next);
+            metrics.queued.decrement();
+            metrics.messages.increment();
+            metrics.mailboxLatency.record(System.nanoTime() - next.enqueuedAt);
+            return envelope;
+        }
+
+        private Envelope poll(Node next) {
+            Envelope envelope = next.envelope;
+            next.envelope = null;
+            head = next;
+            return envelope;
+        }
+
+        @Override
+        public int numberOfMessages() {
+            int count = 0;
+            for (Node n = head.next; n != null; n = n.next) {
+                count++;
+            }
+            return count;
+        }
+
+        @Override
+        public boolean hasMessages() {
+            return head.next != null;
+        }
+
+        @Override
+        public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+            for (Node next = head.next; next != null; next = head.next) {
+                metrics.queued.decrement();
+                deadLetters.enqueue(owner, poll(next));
+            }
+            metrics.live.decrement();
+        }
+    }
+
+    static final class Node {
+        Envelope envelope;
+        final long enqueuedAt;
+        volatile Node next;
+
+        Node(Envelope envelope, long enqueuedAt) {
+            this.envelope = envelope;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
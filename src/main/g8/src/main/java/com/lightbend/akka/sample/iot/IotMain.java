@@ -3,17 +3,41 @@ package com.lightbend.akka.sample.iot;
 
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 public class IotMain {
 
     public static void main(String[] args) throws IOException {
-        ActorSystem system = ActorSystem.create("iot-system");
+        // with a third argument the node joins a cluster on localhost, listening on that port, through the
+        // node on the port given as fourth argument, or itself if there is none
+        boolean clustered = args.length > 2;
+        ActorSystem system = clustered
+                             ? ActorSystem.create("iot-system",
+                                                  clusterConfig(args[2], args.length > 3 ? args[3] : args[2]))
+                             : ActorSystem.create("iot-system");
 
         try {
             // Create top level supervisor
-            ActorRef supervisor = system.actorOf(IotSupervisor.props(), "iot-supervisor");
+            // readings are journaled to ./journal and the registry snapshotted to ./snapshot (or below the
+            // first argument), so both survive a restart
+            // in a cluster every node keeps its own journal, ./journal-<port>, the groups that move between
+            // the nodes hand their readings over
+            Path dataDirectory = Paths.get(args.length > 0 ? args[0] : "");
+            DeviceGroupSettings groupSettings = DeviceGroupSettings.defaults()
+                    .withJournalDirectory(dataDirectory.resolve(clustered ? "journal-" + args[2] : "journal"));
+            // readings are accepted on localhost:9100, or the port given as second argument
+            IngestSettings ingestSettings = IngestSettings.defaults()
+                    .withAddress("127.0.0.1", args.length > 1 ? Integer.parseInt(args[1]) : 9100);
+            ActorRef supervisor = system.actorOf(
+                    clustered
+                    ? IotSupervisor.shardedProps(groupSettings, ingestSettings)
+                    : IotSupervisor.props(groupSettings, dataDirectory.resolve("snapshot"), ingestSettings),
+                    "iot-supervisor");
 
             System.out.println("Press ENTER to exit the system");
             System.in.read();
@@ -22,4 +46,11 @@ public class IotMain {
         }
     }
 
+    private static Config clusterConfig(String port, String seedPort) {
+        return ConfigFactory.parseString(
+                "akka.remote.artery.canonical.port = " + port + "\n" +
+                "akka.cluster.seed-nodes = [\"akka://iot-system@127.0.0.1:" + seedPort + "\"]")
+                .withFallback(ConfigFactory.load("cluster"));
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,180 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+import akka.event.Logging;
+import lombok.Data;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the IoT actors of one actor system.
+ * <p>
+ * Message counts, mailbox depth, time spent in the mailbox and the number of live actors are recorded by
+ * the {@link InstrumentedMailbox} or {@link PriorityIngestMailbox} every IoT actor is created with; devices
+ * count the readings they recorded, groups the ones a later reading superseded in a coalescing window, and
+ * the group queries record their own duration and whether they timed out. Counters are striped
+ * {@link LongAdder}s and latencies go into {@link LatencyHistogram}s, so recording neither allocates nor
+ * contends. {@link #snapshot()} is available through {@link DeviceManager.RequestMetrics} and as the
+ * {@code Snapshot} attribute of the MXBean
+ * {@code com.lightbend.akka.sample.iot:type=IotMetrics,system=<actor system name>}.
+ */
+public final class IotMetrics implements Extension, IotMetricsMXBean {
+    public static final Id ID = new Id();
+
+    final ActorTypeMetrics devices = new ActorTypeMetrics();
+    final ActorTypeMetrics groups = new ActorTypeMetrics();
+    final ActorTypeMetrics managers = new ActorTypeMetrics();
+    final ActorTypeMetrics queries = new ActorTypeMetrics();
+    final LongAdder recordedReadings = new LongAdder();
+    final LongAdder coalescedReadings = new LongAdder();
+    final LongAdder completedQueries = new LongAdder();
+    final LongAdder timedOutQueries = new LongAdder();
+    final LatencyHistogram queryDuration = new LatencyHistogram();
+
+    public static IotMetrics get(ActorSystem system) {
+        return ID.get(system);
+    }
+
+    /**
+     * @param actorType one of {@code device}, {@code group}, {@code manager} and {@code query}
+     */
+    ActorTypeMetrics forActorType(String actorType) {
+        switch (actorType) {
+            case "device":
+                return devices;
+            case "group":
+                return groups;
+            case "manager":
+                return managers;
+            case "query":
+                return queries;
+            default:
+                throw new IllegalArgumentException("Unknown actor type " + actorType);
+        }
+    }
+
+    void recordQuery(long durationNanos, boolean timedOut) {
+        completedQueries.increment();
+        if (timedOut) {
+            timedOutQueries.increment();
+        }
+        queryDuration.record(durationNanos);
+    }
+
+    @Override
+    public MetricsSnapshot getSnapshot() {
+        return snapshot();
+    }
+
+    public MetricsSnapshot snapshot() {
+        long completed = completedQueries.sum();
+        long timedOut = timedOutQueries.sum();
+        return new MetricsSnapshot(
+                devices.snapshot(), groups.snapshot(), managers.snapshot(), queries.snapshot(),
+                recordedReadings.sum(), coalescedReadings.sum(), completed, timedOut,
+                completed == 0 ? 0.0 : (double) timedOut / completed, queryDuration.snapshot());
+    }
+
+    private void registerMXBean(ActorSystem system) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName("com.lightbend.akka.sample.iot:type=IotMetrics,system="
+                                             + ObjectName.quote(system.name()));
+            server.registerMBean(this, name);
+            system.registerOnTermination(() -> {
+                try {
+                    server.unregisterMBean(name);
+                } catch (JMException e) {
+                    // already gone
+                }
+            });
+        } catch (InstanceAlreadyExistsException e) {
+            Logging.getLogger(system, this).warning(
+                    "Metrics of actor system {} are not exported, another system of that name already is",
+                    system.name());
+        } catch (JMException e) {
+            Logging.getLogger(system, this).error(e, "Failed to export metrics");
+        }
+    }
+
+    static final class ActorTypeMetrics {
+        final LongAdder messages = new LongAdder();
+        final LongAdder queued = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+        final LongAdder live = new LongAdder();
+        final LatencyHistogram mailboxLatency = new LatencyHistogram();
+
+        ActorTypeSnapshot snapshot() {
+            return new ActorTypeSnapshot(messages.sum(), queued.sum(), dropped.sum(), live.sum(),
+                                         mailboxLatency.snapshot());
+        }
+    }
+
+    public static final class Id extends AbstractExtensionId<IotMetrics> implements ExtensionIdProvider {
+        private Id() {
+        }
+
+        @Override
+        public Id lookup() {
+            return ID;
+        }
+
+        @Override
+        public IotMetrics createExtension(ExtendedActorSystem system) {
+            IotMetrics metrics = new IotMetrics();
+            metrics.registerMXBean(system);
+            return metrics;
+        }
+    }
+
+    @Data
+    public static final class MetricsSnapshot {
+        final ActorTypeSnapshot devices;
+        final ActorTypeSnapshot groups;
+        final ActorTypeSnapshot managers;
+        final ActorTypeSnapshot queries;
+        final long recordedReadings;
+        final long coalescedReadings;
+        final long completedQueries;
+        final long timedOutQueries;
+        final double queryTimeoutRatio;
+        final LatencySnapshot queryDuration;
+    }
+
+    /**
+     * Metrics of all actors of one type; {@code mailboxDepth} is the number of messages waiting in their
+     * mailboxes, {@code droppedMessages} the number of readings a full {@link PriorityIngestMailbox} dropped
+     * and {@code mailboxLatency} the time from enqueueing a message to its processing.
+     */
+    @Data
+    public static final class ActorTypeSnapshot {
+        final long messages;
+        final long mailboxDepth;
+        final long droppedMessages;
+        final long liveActors;
+        final LatencySnapshot mailboxLatency;
+    }
+
+    /**
+     * All values in nanoseconds.
+     */
+    @Data
+    public static final class LatencySnapshot {
+        final long count;
+        final double mean;
+        final long p50;
+        final long p90;
+        final long p99;
+        final long p999;
+        final long max;
+    }
+}
@@ -0,0 +1,8 @@
+package com.lightbend.akka.sample.iot;
+
+/**
+ * JMX view of {@link IotMetrics}.
+ */
+public interface IotMetricsMXBean {
+    IotMetrics.MetricsSnapshot getSnapshot();
+}
@@ -0,0 +1,963 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.serialization.ByteBufferSerializer;
+import akka.serialization.SerializerWithStringManifest;
+import com.lightbend.akka.sample.iot.DeviceGroup.TemperatureReading;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.io.NotSerializableException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary serializer of the messages of {@link Device}, {@link DeviceGroup} and {@link DeviceManager} that may
+ * cross a JVM boundary, bound to them in {@code reference.conf}. The manifest names the message; the bytes
+ * hold its fields only, big endian. A message wrapping another one, {@link DeviceManager.ForGroup} and
+ * {@link PriorityIngestMailbox.Dropped}, holds the manifest and fields of the inner one, which must be a
+ * message of this serializer too.
+ * <pre>
+ * varint   unsigned LEB128, 1 byte below 128; request ids, counts, lengths, durations in nanos
+ * string   varint length + UTF-8
+ * long[]   varint length, then the first value and every difference to the previous one as zigzag varints,
+ *          so increasing request ids and timestamps take one or two bytes each
+ * double[] 8 bytes per value
+ * readings varint count, per device: string id, byte tag (+ varint count for stats), then the values of all
+ *          devices as one dense run of doubles: 1 per temperature, 4 per stats, none for the other tags
+ * </pre>
+ * Implements {@link ByteBufferSerializer}, so Artery remoting writes straight into its send buffer; the byte
+ * array API encodes into a buffer per thread and copies out the used part. Every length is checked against the
+ * bytes left before anything is allocated for it, so a corrupt or truncated frame fails with a
+ * {@link NotSerializableException} like an unknown manifest does.
+ */
+public class IotSerializer extends SerializerWithStringManifest implements ByteBufferSerializer {
+    static final int IDENTIFIER = 6427;
+    private static final int INITIAL_BUFFER_BYTES = 4096;
+    private static final int MAX_RETAINED_BUFFER_BYTES = 1 << 20;
+
+    private static final String RECORD_TEMPERATURE = "D.RT";
+    private static final String TEMPERATURE_RECORDED = "D.TR";
+    private static final String RECORD_TEMPERATURE_BATCH = "D.RTB";
+    private static final String TEMPERATURE_BATCH_RECORDED = "D.TBR";
+    private static final String READ_TEMPERATURE = "D.Rd";
+    private static final String RESPOND_TEMPERATURE = "D.Rs";
+    private static final String READ_TEMPERATURE_STATS = "D.RdS";
+    private static final String RESPOND_TEMPERATURE_STATS = "D.RsS";
+    private static final String RECORD_TEMPERATURES = "G.RT";
+    private static final String TEMPERATURES_RECORDED = "G.TR";
+    private static final String TEMPERATURE_CHANGED = "G.TC";
+    private static final String PASSIVATE = "G.P";
+    private static final String PASSIVATED = "G.Pd";
+    private static final String REQUEST_DEVICE_LIST = "G.RqL";
+    private static final String REPLY_DEVICE_LIST = "G.RpL";
+    private static final String REQUEST_ALL_TEMPERATURES = "G.Rq";
+    private static final String REQUEST_ALL_TEMPERATURES_STREAMED = "G.RqSt";
+    private static final String TEMPERATURES_CHUNK = "G.Ch";
+    private static final String TEMPERATURES_STREAM_COMPLETED = "G.StC";
+    private static final String REQUEST_ALL_TEMPERATURE_STATS = "G.RqS";
+    private static final String RESPOND_ALL_TEMPERATURES = "G.Rs";
+    private static final String SUBSCRIBE_ALERTS = "G.SA";
+    private static final String ALERTS_SUBSCRIBED = "G.AS";
+    private static final String UNSUBSCRIBE_ALERTS = "G.UA";
+    private static final String ALERT = "G.A";
+    private static final String SUBSCRIBE_READINGS = "G.SR";
+    private static final String READINGS_SUBSCRIBED = "G.RS";
+    private static final String UNSUBSCRIBE_READINGS = "G.UR";
+    private static final String READING_CHANGES = "G.RC";
+    private static final String READING_CHANGES_ACK = "G.RCA";
+    private static final String REQUEST_TOP_TEMPERATURES = "G.RqTop";
+    private static final String REQUEST_TRACK_DEVICE = "M.RqT";
+    private static final String DEVICE_REGISTERED = "M.DR";
+    private static final String RESTORE_GROUP = "M.RG";
+    private static final String MANAGER_RECORD_TEMPERATURES = "M.RT";
+    private static final String REQUEST_METRICS = "M.RqM";
+    private static final String FOR_GROUP = "M.FG";
+    private static final String REQUEST_FLEET_TEMPERATURES = "M.RqF";
+    private static final String RESPOND_FLEET_TEMPERATURES = "M.RsF";
+    private static final String SHARD_FLEET_TEMPERATURES = "M.SF";
+    private static final String DROPPED = "P.D";
+
+    private static final Map<Class<?>, String> MANIFESTS = new HashMap<>();
+    private static final AlertCondition.Kind[] ALERT_KINDS = AlertCondition.Kind.values();
+    private static final DeviceGroup.FeedOverflow[] FEED_OVERFLOWS = DeviceGroup.FeedOverflow.values();
+
+    static {
+        MANIFESTS.put(Device.RecordTemperature.class, RECORD_TEMPERATURE);
+        MANIFESTS.put(Device.TemperatureRecorded.class, TEMPERATURE_RECORDED);
+        MANIFESTS.put(Device.RecordTemperatureBatch.class, RECORD_TEMPERATURE_BATCH);
+        MANIFESTS.put(Device.TemperatureBatchRecorded.class, TEMPERATURE_BATCH_RECORDED);
+        MANIFESTS.put(Device.ReadTemperature.class, READ_TEMPERATURE);
+        MANIFESTS.put(Device.RespondTemperature.class, RESPOND_TEMPERATURE);
+        MANIFESTS.put(Device.ReadTemperatureStats.class, READ_TEMPERATURE_STATS);
+        MANIFESTS.put(Device.RespondTemperatureStats.class, RESPOND_TEMPERATURE_STATS);
+        MANIFESTS.put(DeviceGroup.RecordTemperatures.class, RECORD_TEMPERATURES);
+        MANIFESTS.put(DeviceGroup.TemperaturesRecorded.class, TEMPERATURES_RECORDED);
+        MANIFESTS.put(DeviceGroup.TemperatureChanged.class, TEMPERATURE_CHANGED);
+        MANIFESTS.put(DeviceGroup.Passivate.class, PASSIVATE);
+        MANIFESTS.put(DeviceGroup.Passivated.class, PASSIVATED);
+        MANIFESTS.put(DeviceGroup.RequestDeviceList.class, REQUEST_DEVICE_LIST);
+        MANIFESTS.put(DeviceGroup.ReplyDeviceList.class, REPLY_DEVICE_LIST);
+        MANIFESTS.put(DeviceGroup.RequestAllTemperatures.class, REQUEST_ALL_TEMPERATURES);
+        MANIFESTS.put(DeviceGroup.RequestAllTemperaturesStreamed.class, REQUEST_ALL_TEMPERATURES_STREAMED);
+        MANIFESTS.put(DeviceGroup.TemperaturesChunk.class, TEMPERATURES_CHUNK);
+        MANIFESTS.put(DeviceGroup.TemperaturesStreamCompleted.class, TEMPERATURES_STREAM_COMPLETED);
+        MANIFESTS.put(DeviceGroup.RequestAllTemperatureStats.class, REQUEST_ALL_TEMPERATURE_STATS);
+        MANIFESTS.put(DeviceGroup.RespondAllTemperatures.class, RESPOND_ALL_TEMPERATURES);
+        MANIFESTS.put(DeviceGroup.SubscribeAlerts.class, SUBSCRIBE_ALERTS);
+        MANIFESTS.put(DeviceGroup.AlertsSubscribed.class, ALERTS_SUBSCRIBED);
+        MANIFESTS.put(DeviceGroup.UnsubscribeAlerts.class, UNSUBSCRIBE_ALERTS);
+        MANIFESTS.put(DeviceGroup.Alert.class, ALERT);
+        MANIFESTS.put(DeviceGroup.SubscribeReadings.class, SUBSCRIBE_READINGS);
+        MANIFESTS.put(DeviceGroup.ReadingsSubscribed.class, READINGS_SUBSCRIBED);
+        MANIFESTS.put(DeviceGroup.UnsubscribeReadings.class, UNSUBSCRIBE_READINGS);
+        MANIFESTS.put(DeviceGroup.ReadingChanges.class, READING_CHANGES);
+        MANIFESTS.put(DeviceGroup.ReadingChangesAck.class, READING_CHANGES_ACK);
+        MANIFESTS.put(DeviceGroup.RequestTopTemperatures.class, REQUEST_TOP_TEMPERATURES);
+        MANIFESTS.put(DeviceManager.RequestTrackDevice.class, REQUEST_TRACK_DEVICE);
+        MANIFESTS.put(DeviceManager.DeviceRegistered.class, DEVICE_REGISTERED);
+        MANIFESTS.put(DeviceManager.RestoreGroup.class, RESTORE_GROUP);
+        MANIFESTS.put(DeviceManager.RecordTemperatures.class, MANAGER_RECORD_TEMPERATURES);
+        MANIFESTS.put(DeviceManager.RequestMetrics.class, REQUEST_METRICS);
+        MANIFESTS.put(DeviceManager.ForGroup.class, FOR_GROUP);
+        MANIFESTS.put(DeviceManager.RequestFleetTemperatures.class, REQUEST_FLEET_TEMPERATURES);
+        MANIFESTS.put(DeviceManager.RespondFleetTemperatures.class, RESPOND_FLEET_TEMPERATURES);
+        MANIFESTS.put(DeviceManager.ShardFleetTemperatures.class, SHARD_FLEET_TEMPERATURES);
+        MANIFESTS.put(PriorityIngestMailbox.Dropped.class, DROPPED);
+    }
+
+    // tags of the TemperatureReading variants
+    private static final byte TEMPERATURE = 0;
+    private static final byte STATS = 1;
+    private static final byte NOT_AVAILABLE = 2;
+    private static final byte DEVICE_NOT_AVAILABLE = 3;
+    private static final byte TIMED_OUT = 4;
+
+    // the readings without a value carry no state, so every decoded one is the same instance
+    private static final TemperatureReading TEMPERATURE_NOT_AVAILABLE = new DeviceGroup.TemperatureNotAvailable();
+    private static final TemperatureReading DEVICE_NOT_AVAILABLE_READING = new DeviceGroup.DeviceNotAvailable();
+    private static final TemperatureReading DEVICE_TIMED_OUT = new DeviceGroup.DeviceTimedOut();
+    private static final DeviceManager.DeviceRegistered DEVICE_REGISTERED_MESSAGE = new DeviceManager.DeviceRegistered();
+
+    private static final ThreadLocal<ByteBuffer> BUFFERS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(INITIAL_BUFFER_BYTES));
+
+    @Override
+    public int identifier() {
+        return IDENTIFIER;
+    }
+
+    @Override
+    public String manifest(Object o) {
+        String manifest = MANIFESTS.get(o.getClass());
+        if (manifest == null) {
+            throw new IllegalArgumentException("Can't serialize object of type " + o.getClass() + " in " +
+                                               getClass().getName());
+        }
+        return manifest;
+    }
+
+    @Override
+    public byte[] toBinary(Object o) {
+        ByteBuffer buffer = BUFFERS.get();
+        while (true) {
+            buffer.clear();
+            try {
+                toBinary(o, buffer);
+                byte[] bytes = Arrays.copyOf(buffer.array(), buffer.position());
+                if (buffer.capacity() > MAX_RETAINED_BUFFER_BYTES) {
+                    // one huge message should not pin its buffer to the thread forever
+                    BUFFERS.remove();
+                }
+                return bytes;
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                BUFFERS.set(buffer);
+            }
+        }
+    }
+
+    @Override
+    public Object fromBinary(byte[] bytes, String manifest) throws NotSerializableException {
+        return fromBinary(ByteBuffer.wrap(bytes), manifest);
+    }
+
+    @Override
+    public void toBinary(Object o, ByteBuffer out) {
+        switch (manifest(o)) {
+            case RECORD_TEMPERATURE: {
+                Device.RecordTemperature m = (Device.RecordTemperature) o;
+                putVarLong(out, m.requestId);
+                out.putDouble(m.value);
+                putVarLong(out, m.timestamp);
+                break;
+            }
+            case TEMPERATURE_RECORDED:
+                putVarLong(out, ((Device.TemperatureRecorded) o).requestId);
+                break;
+            case RECORD_TEMPERATURE_BATCH: {
+                Device.RecordTemperatureBatch m = (Device.RecordTemperatureBatch) o;
+                putLongs(out, m.requestIds);
+                putDoubles(out, m.values);
+                putLongs(out, m.timestamps);
+                break;
+            }
+            case TEMPERATURE_BATCH_RECORDED:
+                putVarLong(out, ((Device.TemperatureBatchRecorded) o).requestId);
+                break;
+            case READ_TEMPERATURE:
+                putVarLong(out, ((Device.ReadTemperature) o).requestId);
+                break;
+            case RESPOND_TEMPERATURE: {
+                Device.RespondTemperature m = (Device.RespondTemperature) o;
+                putVarLong(out, m.requestId);
+                out.put((byte) (m.hasValue ? 1 : 0));
+                if (m.hasValue) {
+                    out.putDouble(m.temperature);
+                }
+                break;
+            }
+            case READ_TEMPERATURE_STATS: {
+                Device.ReadTemperatureStats m = (Device.ReadTemperatureStats) o;
+                putVarLong(out, m.requestId);
+                putVarLong(out, m.windowMillis);
+                out.putDouble(m.percentile);
+                break;
+            }
+            case RESPOND_TEMPERATURE_STATS: {
+                Device.RespondTemperatureStats m = (Device.RespondTemperatureStats) o;
+                putVarLong(out, m.requestId);
+                putVarLong(out, m.count);
+                out.putDouble(m.min);
+                out.putDouble(m.max);
+                out.putDouble(m.mean);
+                out.putDouble(m.percentile);
+                break;
+            }
+            case RECORD_TEMPERATURES:
+                putRecordTemperatures(out, (DeviceGroup.RecordTemperatures) o);
+                break;
+            case TEMPERATURES_RECORDED:
+                putLongs(out, ((DeviceGroup.TemperaturesRecorded) o).requestIds);
+                break;
+            case TEMPERATURE_CHANGED: {
+                DeviceGroup.TemperatureChanged m = (DeviceGroup.TemperatureChanged) o;
+                putString(out, m.deviceId);
+                out.putDouble(m.value);
+                putVarLong(out, m.timestamp);
+                break;
+            }
+            case PASSIVATE: {
+                DeviceGroup.Passivate m = (DeviceGroup.Passivate) o;
+                putString(out, m.deviceId);
+                out.put((byte) (m.hasValue ? 1 : 0));
+                out.putDouble(m.value);
+                putVarLong(out, m.silentNanos);
+                break;
+            }
+            case PASSIVATED: {
+                DeviceGroup.Passivated m = (DeviceGroup.Passivated) o;
+                putString(out, m.deviceId);
+                out.put((byte) (m.hasValue ? 1 : 0));
+                out.putDouble(m.value);
+                putVarLong(out, m.silentNanos);
+                break;
+            }
+            case REQUEST_DEVICE_LIST:
+                putVarLong(out, ((DeviceGroup.RequestDeviceList) o).requestId);
+                break;
+            case REPLY_DEVICE_LIST: {
+                DeviceGroup.ReplyDeviceList m = (DeviceGroup.ReplyDeviceList) o;
+                putVarLong(out, m.requestId);
+                putStrings(out, m.ids);
+                break;
+            }
+            case REQUEST_ALL_TEMPERATURES: {
+                DeviceGroup.RequestAllTemperatures m = (DeviceGroup.RequestAllTemperatures) o;
+                putVarLong(out, m.requestId);
+                putVarLong(out, m.maxStalenessMillis);
+                putVarLong(out, m.timeout.toNanos());
+                out.putDouble(m.policy.fraction());
+                putVarLong(out, m.policy.maxReplies());
+                break;
+            }
+            case REQUEST_ALL_TEMPERATURES_STREAMED: {
+                DeviceGroup.RequestAllTemperaturesStreamed m = (DeviceGroup.RequestAllTemperaturesStreamed) o;
+                putVarLong(out, m.requestId);
+                putVarLong(out, m.chunkSize);
+                putVarLong(out, m.maxChunkDelay.toNanos());
+                putVarLong(out, m.timeout.toNanos());
+                out.putDouble(m.policy.fraction());
+                putVarLong(out, m.policy.maxReplies());
+                break;
+            }
+            case TEMPERATURES_CHUNK: {
+                DeviceGroup.TemperaturesChunk m = (DeviceGroup.TemperaturesChunk) o;
+                putVarLong(out, m.requestId);
+                putVarLong(out, m.sequenceNr);
+                putReadings(out, m.temperatures);
+                break;
+            }
+            case TEMPERATURES_STREAM_COMPLETED: {
+                DeviceGroup.TemperaturesStreamCompleted m = (DeviceGroup.TemperaturesStreamCompleted) o;
+                putVarLong(out, m.requestId);
+                putVarLong(out, m.chunks);
+                putStrings(out, m.timedOut);
+                break;
+            }
+            case REQUEST_ALL_TEMPERATURE_STATS: {
+                DeviceGroup.RequestAllTemperatureStats m = (DeviceGroup.RequestAllTemperatureStats) o;
+                putVarLong(out, m.requestId);
+                putVarLong(out, m.windowMillis);
+                out.putDouble(m.percentile);
+                putVarLong(out, m.timeout.toNanos());
+                out.putDouble(m.policy.fraction());
+                putVarLong(out, m.policy.maxReplies());
+                break;
+            }
+            case RESPOND_ALL_TEMPERATURES: {
+                DeviceGroup.RespondAllTemperatures m = (DeviceGroup.RespondAllTemperatures) o;
+                putVarLong(out, m.requestId);
+                putReadings(out, m.temperatures);
+                break;
+            }
+            case SUBSCRIBE_ALERTS: {
+                DeviceGroup.SubscribeAlerts m = (DeviceGroup.SubscribeAlerts) o;
+                putVarLong(out, m.subscriptionId);
+                out.put((byte) m.condition.getKind().ordinal());
+                out.putDouble(m.condition.getThreshold());
+                putVarLong(out, m.condition.getAbsentMillis());
+                break;
+            }
+            case ALERTS_SUBSCRIBED:
+                putVarLong(out, ((DeviceGroup.AlertsSubscribed) o).subscriptionId);
+                break;
+            case UNSUBSCRIBE_ALERTS:
+                putVarLong(out, ((DeviceGroup.UnsubscribeAlerts) o).subscriptionId);
+                break;
+            case ALERT: {
+                DeviceGroup.Alert m = (DeviceGroup.Alert) o;
+                putVarLong(out, m.subscriptionId);
+                putString(out, m.groupId);
+                putString(out, m.deviceId);
+                out.put((byte) m.kind.ordinal());
+                out.putDouble(m.value);
+                putVarLong(out, m.timestamp);
+                break;
+            }
+            case SUBSCRIBE_READINGS: {
+                DeviceGroup.SubscribeReadings m = (DeviceGroup.SubscribeReadings) o;
+                putVarLong(out, m.subscriptionId);
+                putVarLong(out, m.bufferSize);
+                out.put((byte) m.overflow.ordinal());
+                break;
+            }
+            case READINGS_SUBSCRIBED:
+                putVarLong(out, ((DeviceGroup.ReadingsSubscribed) o).subscriptionId);
+                break;
+            case UNSUBSCRIBE_READINGS:
+                putVarLong(out, ((DeviceGroup.UnsubscribeReadings) o).subscriptionId);
+                break;
+            case READING_CHANGES: {
+                DeviceGroup.ReadingChanges m = (DeviceGroup.ReadingChanges) o;
+                putVarLong(out, m.subscriptionId);
+                putVarLong(out, m.sequenceNr);
+                putStrings(out, Arrays.asList(m.deviceIds));
+                for (double value : m.values) {
+                    out.putDouble(value);
+                }
+                putLongs(out, m.timestamps);
+                putVarLong(out, m.dropped);
+                break;
+            }
+            case READING_CHANGES_ACK: {
+                DeviceGroup.ReadingChangesAck m = (DeviceGroup.ReadingChangesAck) o;
+                putVarLong(out, m.subscriptionId);
+                putVarLong(out, m.sequenceNr);
+                break;
+            }
+            case REQUEST_TOP_TEMPERATURES: {
+                DeviceGroup.RequestTopTemperatures m = (DeviceGroup.RequestTopTemperatures) o;
+                putVarLong(out, m.requestId);
+                putFleetFilter(out, m.filter);
+                putVarLong(out, m.timeout.toNanos());
+                break;
+            }
+            case REQUEST_TRACK_DEVICE: {
+                DeviceManager.RequestTrackDevice m = (DeviceManager.RequestTrackDevice) o;
+                putString(out, m.groupId);
+                putString(out, m.deviceId);
+                break;
+            }
+            case DEVICE_REGISTERED:
+                break;
+            case RESTORE_GROUP: {
+                DeviceManager.RestoreGroup m = (DeviceManager.RestoreGroup) o;
+                putString(out, m.groupId);
+                putVarLong(out, m.deviceIds.length);
+                for (int i = 0; i < m.deviceIds.length; i++) {
+                    putString(out, m.deviceIds[i]);
+                    out.put((byte) (m.hasValue[i] ? 1 : 0));
+                }
+                for (double value : m.values) {
+                    out.putDouble(value);
+                }
+                out.put((byte) (m.handOff ? 1 : 0));
+                break;
+            }
+            case MANAGER_RECORD_TEMPERATURES: {
+                DeviceManager.RecordTemperatures m = (DeviceManager.RecordTemperatures) o;
+                putString(out, m.groupId);
+                putRecordTemperatures(out, m.readings);
+                break;
+            }
+            case REQUEST_METRICS:
+                putVarLong(out, ((DeviceManager.RequestMetrics) o).requestId);
+                break;
+            case FOR_GROUP: {
+                DeviceManager.ForGroup m = (DeviceManager.ForGroup) o;
+                putString(out, m.groupId);
+                putMessage(out, m.message);
+                break;
+            }
+            case REQUEST_FLEET_TEMPERATURES: {
+                DeviceManager.RequestFleetTemperatures m = (DeviceManager.RequestFleetTemperatures) o;
+                putVarLong(out, m.requestId);
+                putFleetFilter(out, m.filter);
+                putVarLong(out, m.timeout.toNanos());
+                break;
+            }
+            case SHARD_FLEET_TEMPERATURES: {
+                DeviceManager.ShardFleetTemperatures m = (DeviceManager.ShardFleetTemperatures) o;
+                putVarLong(out, m.requestId);
+                putFleetFilter(out, m.filter);
+                putVarLong(out, m.timeout.toNanos());
+                break;
+            }
+            case RESPOND_FLEET_TEMPERATURES: {
+                DeviceManager.RespondFleetTemperatures m = (DeviceManager.RespondFleetTemperatures) o;
+                putVarLong(out, m.requestId);
+                putVarLong(out, m.matching);
+                putVarLong(out, m.groups);
+                out.put((byte) (m.complete ? 1 : 0));
+                putVarLong(out, m.temperatures.size());
+                for (DeviceManager.FleetTemperature t : m.temperatures) {
+                    putString(out, t.getGroupId());
+                    putString(out, t.getDeviceId());
+                }
+                for (DeviceManager.FleetTemperature t : m.temperatures) {
+                    out.putDouble(t.getValue());
+                }
+                break;
+            }
+            case DROPPED:
+                putMessage(out, ((PriorityIngestMailbox.Dropped) o).message);
+                break;
+            default:
+                throw new IllegalStateException("No encoding for manifest " + manifest(o));
+        }
+    }
+
+    @Override
+    public Object fromBinary(ByteBuffer in, String manifest) throws NotSerializableException {
+        try {
+            return decode(in, manifest);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            NotSerializableException failure = new NotSerializableException(
+                    "Malformed " + manifest + " for " + getClass().getName());
+            failure.initCause(e);
+            throw failure;
+        }
+    }
+
+    private Object decode(ByteBuffer in, String manifest) throws NotSerializableException {
+        switch (manifest) {
+            case RECORD_TEMPERATURE: {
+                long requestId = getVarLong(in);
+                double value = in.getDouble();
+                return new Device.RecordTemperature(requestId, value, getVarLong(in));
+            }
+            case TEMPERATURE_RECORDED:
+                return new Device.TemperatureRecorded(getVarLong(in));
+            case RECORD_TEMPERATURE_BATCH: {
+                long[] requestIds = getLongs(in);
+                double[] values = getDoubles(in);
+                return new Device.RecordTemperatureBatch(requestIds, values, getLongs(in));
+            }
+            case TEMPERATURE_BATCH_RECORDED:
+                return new Device.TemperatureBatchRecorded(getVarLong(in));
+            case READ_TEMPERATURE:
+                return new Device.ReadTemperature(getVarLong(in));
+            case RESPOND_TEMPERATURE: {
+                long requestId = getVarLong(in);
+                boolean hasValue = in.get() != 0;
+                return new Device.RespondTemperature(requestId, hasValue, hasValue ? in.getDouble() : 0.0);
+            }
+            case READ_TEMPERATURE_STATS: {
+                long requestId = getVarLong(in);
+                long windowMillis = getVarLong(in);
+                return new Device.ReadTemperatureStats(requestId, windowMillis, in.getDouble());
+            }
+            case RESPOND_TEMPERATURE_STATS: {
+                long requestId = getVarLong(in);
+                int count = getVarInt(in);
+                double min = in.getDouble();
+                double max = in.getDouble();
+                double mean = in.getDouble();
+                return new Device.RespondTemperatureStats(requestId, count, min, max, mean, in.getDouble());
+            }
+            case RECORD_TEMPERATURES:
+                return getRecordTemperatures(in);
+            case TEMPERATURES_RECORDED:
+                return new DeviceGroup.TemperaturesRecorded(getLongs(in));
+            case TEMPERATURE_CHANGED: {
+                String deviceId = getString(in);
+                double value = in.getDouble();
+                return new DeviceGroup.TemperatureChanged(deviceId, value, getVarLong(in));
+            }
+            case PASSIVATE: {
+                String deviceId = getString(in);
+                boolean hasValue = in.get() != 0;
+                double value = in.getDouble();
+                return new DeviceGroup.Passivate(deviceId, hasValue, value, getVarLong(in));
+            }
+            case PASSIVATED: {
+                String deviceId = getString(in);
+                boolean hasValue = in.get() != 0;
+                double value = in.getDouble();
+                return new DeviceGroup.Passivated(deviceId, hasValue, value, getVarLong(in));
+            }
+            case REQUEST_DEVICE_LIST:
+                return new DeviceGroup.RequestDeviceList(getVarLong(in));
+            case REPLY_DEVICE_LIST: {
+                long requestId = getVarLong(in);
+                int size = getLength(in, 1);
+                Set<String> ids = new HashSet<>(size * 4 / 3 + 1);
+                for (int i = 0; i < size; i++) {
+                    ids.add(getString(in));
+                }
+                return new DeviceGroup.ReplyDeviceList(requestId, ids);
+            }
+            case REQUEST_ALL_TEMPERATURES: {
+                long requestId = getVarLong(in);
+                long maxStalenessMillis = getVarLong(in);
+                FiniteDuration timeout = Duration.fromNanos(getVarLong(in));
+                double fraction = in.getDouble();
+                return new DeviceGroup.RequestAllTemperatures(requestId, maxStalenessMillis, timeout,
+                                                              CompletionPolicy.of(fraction, getVarInt(in)));
+            }
+            case REQUEST_ALL_TEMPERATURES_STREAMED: {
+                long requestId = getVarLong(in);
+                int chunkSize = getVarInt(in);
+                FiniteDuration maxChunkDelay = Duration.fromNanos(getVarLong(in));
+                FiniteDuration timeout = Duration.fromNanos(getVarLong(in));
+                double fraction = in.getDouble();
+                return new DeviceGroup.RequestAllTemperaturesStreamed(requestId, chunkSize, maxChunkDelay, timeout,
+                                                                      CompletionPolicy.of(fraction, getVarInt(in)));
+            }
+            case TEMPERATURES_CHUNK: {
+                long requestId = getVarLong(in);
+                int sequenceNr = getVarInt(in);
+                return new DeviceGroup.TemperaturesChunk(requestId, sequenceNr, getReadings(in));
+            }
+            case TEMPERATURES_STREAM_COMPLETED: {
+                long requestId = getVarLong(in);
+                int chunks = getVarInt(in);
+                int size = getLength(in, 1);
+                List<String> timedOut = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    timedOut.add(getString(in));
+                }
+                return new DeviceGroup.TemperaturesStreamCompleted(requestId, chunks, timedOut);
+            }
+            case REQUEST_ALL_TEMPERATURE_STATS: {
+                long requestId = getVarLong(in);
+                long windowMillis = getVarLong(in);
+                double percentile = in.getDouble();
+                FiniteDuration timeout = Duration.fromNanos(getVarLong(in));
+                double fraction = in.getDouble();
+                return new DeviceGroup.RequestAllTemperatureStats(requestId, windowMillis, percentile, timeout,
+                                                                  CompletionPolicy.of(fraction, getVarInt(in)));
+            }
+            case RESPOND_ALL_TEMPERATURES: {
+                long requestId = getVarLong(in);
+                return new DeviceGroup.RespondAllTemperatures(requestId, getReadings(in));
+            }
+            case SUBSCRIBE_ALERTS: {
+                long subscriptionId = getVarLong(in);
+                AlertCondition.Kind kind = getAlertKind(in);
+                double threshold = in.getDouble();
+                return new DeviceGroup.SubscribeAlerts(subscriptionId,
+                                                       AlertCondition.of(kind, threshold, getVarLong(in)));
+            }
+            case ALERTS_SUBSCRIBED:
+                return new DeviceGroup.AlertsSubscribed(getVarLong(in));
+            case UNSUBSCRIBE_ALERTS:
+                return new DeviceGroup.UnsubscribeAlerts(getVarLong(in));
+            case ALERT: {
+                long subscriptionId = getVarLong(in);
+                String groupId = getString(in);
+                String deviceId = getString(in);
+                AlertCondition.Kind kind = getAlertKind(in);
+                double value = in.getDouble();
+                return new DeviceGroup.Alert(subscriptionId, groupId, deviceId, kind, value, getVarLong(in));
+            }
+            case SUBSCRIBE_READINGS: {
+                long subscriptionId = getVarLong(in);
+                int bufferSize = getVarInt(in);
+                return new DeviceGroup.SubscribeReadings(subscriptionId, bufferSize, getFeedOverflow(in));
+            }
+            case READINGS_SUBSCRIBED:
+                return new DeviceGroup.ReadingsSubscribed(getVarLong(in));
+            case UNSUBSCRIBE_READINGS:
+                return new DeviceGroup.UnsubscribeReadings(getVarLong(in));
+            case READING_CHANGES: {
+                long subscriptionId = getVarLong(in);
+                long sequenceNr = getVarLong(in);
+                String[] deviceIds = new String[getLength(in, 1 + 8)];
+                for (int i = 0; i < deviceIds.length; i++) {
+                    deviceIds[i] = getString(in);
+                }
+                double[] values = new double[deviceIds.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = in.getDouble();
+                }
+                long[] timestamps = getLongs(in);
+                return new DeviceGroup.ReadingChanges(subscriptionId, sequenceNr, deviceIds, values, timestamps,
+                                                      getVarLong(in));
+            }
+            case READING_CHANGES_ACK: {
+                long subscriptionId = getVarLong(in);
+                return new DeviceGroup.ReadingChangesAck(subscriptionId, getVarLong(in));
+            }
+            case REQUEST_TOP_TEMPERATURES: {
+                long requestId = getVarLong(in);
+                FleetFilter filter = getFleetFilter(in);
+                return new DeviceGroup.RequestTopTemperatures(requestId, filter, Duration.fromNanos(getVarLong(in)));
+            }
+            case REQUEST_TRACK_DEVICE: {
+                String groupId = getString(in);
+                return new DeviceManager.RequestTrackDevice(groupId, getString(in));
+            }
+            case DEVICE_REGISTERED:
+                return DEVICE_REGISTERED_MESSAGE;
+            case RESTORE_GROUP: {
+                String groupId = getString(in);
+                String[] deviceIds = new String[getLength(in, 1 + 1 + 8)];
+                boolean[] hasValue = new boolean[deviceIds.length];
+                for (int i = 0; i < deviceIds.length; i++) {
+                    deviceIds[i] = getString(in);
+                    hasValue[i] = in.get() != 0;
+                }
+                double[] values = new double[deviceIds.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = in.getDouble();
+                }
+                return new DeviceManager.RestoreGroup(groupId, deviceIds, hasValue, values, in.get() != 0);
+            }
+            case MANAGER_RECORD_TEMPERATURES: {
+                String groupId = getString(in);
+                return new DeviceManager.RecordTemperatures(groupId, getRecordTemperatures(in));
+            }
+            case REQUEST_METRICS:
+                return new DeviceManager.RequestMetrics(getVarLong(in));
+            case FOR_GROUP: {
+                String groupId = getString(in);
+                return new DeviceManager.ForGroup(groupId, getMessage(in));
+            }
+            case REQUEST_FLEET_TEMPERATURES: {
+                long requestId = getVarLong(in);
+                FleetFilter filter = getFleetFilter(in);
+                return new DeviceManager.RequestFleetTemperatures(requestId, filter,
+                                                                  Duration.fromNanos(getVarLong(in)));
+            }
+            case SHARD_FLEET_TEMPERATURES: {
+                long requestId = getVarLong(in);
+                FleetFilter filter = getFleetFilter(in);
+                return new DeviceManager.ShardFleetTemperatures(requestId, filter, Duration.fromNanos(getVarLong(in)));
+            }
+            case RESPOND_FLEET_TEMPERATURES: {
+                long requestId = getVarLong(in);
+                long matching = getVarLong(in);
+                int groups = getVarInt(in);
+                boolean complete = in.get() != 0;
+                int size = getLength(in, 1 + 1 + 8);
+                String[] ids = new String[size * 2];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = getString(in);
+                }
+                List<DeviceManager.FleetTemperature> temperatures = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    temperatures.add(new DeviceManager.FleetTemperature(ids[2 * i], ids[2 * i + 1], in.getDouble()));
+                }
+                return new DeviceManager.RespondFleetTemperatures(requestId, temperatures, matching, groups, complete);
+            }
+            case DROPPED:
+                return new PriorityIngestMailbox.Dropped(getMessage(in));
+            default:
+                throw new NotSerializableException("Unknown manifest " + manifest + " for " + getClass().getName());
+        }
+    }
+
+    private static void putFleetFilter(ByteBuffer out, FleetFilter filter) {
+        putString(out, filter.groupIdPrefix);
+        out.putDouble(filter.minValue);
+        out.putDouble(filter.maxValue);
+        putVarLong(out, filter.limit);
+        out.put((byte) (filter.lowestFirst ? 1 : 0));
+    }
+
+    private static FleetFilter getFleetFilter(ByteBuffer in) throws NotSerializableException {
+        String groupIdPrefix = getString(in);
+        double minValue = in.getDouble();
+        double maxValue = in.getDouble();
+        int limit = getVarInt(in);
+        return FleetFilter.all().withGroupIdPrefix(groupIdPrefix)
+                .withMinValue(minValue).withMaxValue(maxValue)
+                .withLimit(limit).withLowestFirst(in.get() != 0);
+    }
+
+    private static AlertCondition.Kind getAlertKind(ByteBuffer in) throws NotSerializableException {
+        int ordinal = in.get();
+        if (ordinal < 0 || ordinal >= ALERT_KINDS.length) {
+            throw new NotSerializableException("Unknown alert kind " + ordinal);
+        }
+        return ALERT_KINDS[ordinal];
+    }
+
+    private static DeviceGroup.FeedOverflow getFeedOverflow(ByteBuffer in) throws NotSerializableException {
+        int ordinal = in.get();
+        if (ordinal < 0 || ordinal >= FEED_OVERFLOWS.length) {
+            throw new NotSerializableException("Unknown feed overflow " + ordinal);
+        }
+        return FEED_OVERFLOWS[ordinal];
+    }
+
+    private void putMessage(ByteBuffer out, Object message) {
+        putString(out, manifest(message));
+        toBinary(message, out);
+    }
+
+    private Object getMessage(ByteBuffer in) throws NotSerializableException {
+        return decode(in, getString(in));
+    }
+
+    private static void putRecordTemperatures(ByteBuffer out, DeviceGroup.RecordTemperatures m) {
+        putStrings(out, Arrays.asList(m.deviceIds));
+        putLongs(out, m.requestIds);
+        for (double value : m.values) {
+            out.putDouble(value);
+        }
+        putLongs(out, m.timestamps);
+    }
+
+    private static DeviceGroup.RecordTemperatures getRecordTemperatures(ByteBuffer in)
+            throws NotSerializableException {
+        String[] deviceIds = new String[getLength(in, 1 + 1 + 8 + 1)];
+        for (int i = 0; i < deviceIds.length; i++) {
+            deviceIds[i] = getString(in);
+        }
+        long[] requestIds = getLongs(in);
+        double[] values = new double[deviceIds.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.getDouble();
+        }
+        return new DeviceGroup.RecordTemperatures(deviceIds, requestIds, values, getLongs(in));
+    }
+
+    private static void putReadings(ByteBuffer out, Map<String, TemperatureReading> readings) {
+        putVarLong(out, readings.size());
+        for (Map.Entry<String, TemperatureReading> e : readings.entrySet()) {
+            putString(out, e.getKey());
+            TemperatureReading reading = e.getValue();
+            if (reading instanceof DeviceGroup.Temperature) {
+                out.put(TEMPERATURE);
+            } else if (reading instanceof DeviceGroup.TemperatureStats) {
+                out.put(STATS);
+                putVarLong(out, ((DeviceGroup.TemperatureStats) reading).getCount());
+            } else if (reading instanceof DeviceGroup.TemperatureNotAvailable) {
+                out.put(NOT_AVAILABLE);
+            } else if (reading instanceof DeviceGroup.DeviceNotAvailable) {
+                out.put(DEVICE_NOT_AVAILABLE);
+            } else if (reading instanceof DeviceGroup.DeviceTimedOut) {
+                out.put(TIMED_OUT);
+            } else {
+                throw new IllegalArgumentException("Can't serialize reading of type " + reading.getClass());
+            }
+        }
+        // same iteration order as above
+        for (TemperatureReading reading : readings.values()) {
+            if (reading instanceof DeviceGroup.Temperature) {
+                out.putDouble(reading.getValue());
+            } else if (reading instanceof DeviceGroup.TemperatureStats) {
+                DeviceGroup.TemperatureStats stats = (DeviceGroup.TemperatureStats) reading;
+                out.putDouble(stats.getMin());
+                out.putDouble(stats.getMax());
+                out.putDouble(stats.getMean());
+                out.putDouble(stats.getPercentile());
+            }
+        }
+    }
+
+    private static Map<String, TemperatureReading> getReadings(ByteBuffer in) throws NotSerializableException {
+        int size = getLength(in, 1 + 1);
+        String[] ids = new String[size];
+        byte[] tags = new byte[size];
+        int[] counts = null;
+        for (int i = 0; i < size; i++) {
+            ids[i] = getString(in);
+            tags[i] = in.get();
+            if (tags[i] == STATS) {
+                if (counts == null) {
+                    counts = new int[size];
+                }
+                counts[i] = getVarInt(in);
+            }
+        }
+        Map<String, TemperatureReading> readings = new HashMap<>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+            readings.put(ids[i], getReading(in, tags[i], counts == null ? 0 : counts[i]));
+        }
+        return readings;
+    }
+
+    private static TemperatureReading getReading(ByteBuffer in, byte tag, int count) throws NotSerializableException {
+        switch (tag) {
+            case TEMPERATURE:
+                return new DeviceGroup.Temperature(in.getDouble());
+            case STATS: {
+                double min = in.getDouble();
+                double max = in.getDouble();
+                double mean = in.getDouble();
+                return new DeviceGroup.TemperatureStats(count, min, max, mean, in.getDouble());
+            }
+            case NOT_AVAILABLE:
+                return TEMPERATURE_NOT_AVAILABLE;
+            case DEVICE_NOT_AVAILABLE:
+                return DEVICE_NOT_AVAILABLE_READING;
+            case TIMED_OUT:
+                return DEVICE_TIMED_OUT;
+            default:
+                throw new NotSerializableException("Unknown temperature reading tag " + tag);
+        }
+    }
+
+    private static void putVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static long getVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int getVarInt(ByteBuffer in) {
+        return (int) getVarLong(in);
+    }
+
+    /**
+     * Reads the length of something of which every element takes at least {@code minBytes}, rejecting one
+     * that could not fit into the bytes left.
+     */
+    private static int getLength(ByteBuffer in, int minBytes) throws NotSerializableException {
+        long length = getVarLong(in);
+        if (length < 0 || length > in.remaining() / minBytes) {
+            throw new NotSerializableException("Length " + length + " exceeds the " + in.remaining()
+                                               + " bytes left");
+        }
+        return (int) length;
+    }
+
+    private static void putLongs(ByteBuffer out, long[] values) {
+        putVarLong(out, values.length);
+        long previous = 0;
+        for (long value : values) {
+            long delta = value - previous;
+            putVarLong(out, (delta << 1) ^ (delta >> 63));
+            previous = value;
+        }
+    }
+
+    private static long[] getLongs(ByteBuffer in) throws NotSerializableException {
+        long[] values = new long[getLength(in, 1)];
+        long previous = 0;
+        for (int i = 0; i < values.length; i++) {
+            long zigzag = getVarLong(in);
+            previous += (zigzag >>> 1) ^ -(zigzag & 1);
+            values[i] = previous;
+        }
+        return values;
+    }
+
+    private static void putDoubles(ByteBuffer out, double[] values) {
+        putVarLong(out, values.length);
+        for (double value : values) {
+            out.putDouble(value);
+        }
+    }
+
+    private static double[] getDoubles(ByteBuffer in) throws NotSerializableException {
+        double[] values = new double[getLength(in, 8)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.getDouble();
+        }
+        return values;
+    }
+
+    private static void putStrings(ByteBuffer out, Collection<String> strings) {
+        putVarLong(out, strings.size());
+        for (String s : strings) {
+            putString(out, s);
+        }
+    }
+
+    private static void putString(ByteBuffer out, String s) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) >= 0x80) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                putVarLong(out, bytes.length);
+                out.put(bytes);
+                return;
+            }
+        }
+        // ASCII, the usual case for ids: one byte per char without an intermediate array
+        putVarLong(out, length);
+        for (int i = 0; i < length; i++) {
+            out.put((byte) s.charAt(i));
+        }
+    }
+
+    private static String getString(ByteBuffer in) throws NotSerializableException {
+        int length = getLength(in, 1);
+        String s;
+        if (in.hasArray()) {
+            s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+}
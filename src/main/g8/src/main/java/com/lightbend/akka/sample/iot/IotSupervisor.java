@@ -2,20 +2,117 @@ package com.lightbend.akka.sample.iot;
 
 
 import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
 import akka.actor.Props;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
 
 public class IotSupervisor extends AbstractActor {
+    static final FiniteDuration SNAPSHOT_INTERVAL = FiniteDuration.create(1, TimeUnit.MINUTES);
+
     private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+    final DeviceGroupSettings groupSettings;
+    // null if the device registry is not snapshotted
+    final Path snapshotDirectory;
+    // null if readings are not ingested over TCP
+    final IngestSettings ingestSettings;
+    // whether the groups are sharded over the cluster instead of managed by a local DeviceManager
+    final boolean sharded;
+    ActorRef deviceManager;
+
+    public IotSupervisor(DeviceGroupSettings groupSettings) {
+        this(groupSettings, null, null);
+    }
+
+    public IotSupervisor(DeviceGroupSettings groupSettings, Path snapshotDirectory) {
+        this(groupSettings, snapshotDirectory, null);
+    }
+
+    public IotSupervisor(DeviceGroupSettings groupSettings, Path snapshotDirectory, IngestSettings ingestSettings) {
+        this.groupSettings = groupSettings;
+        this.snapshotDirectory = snapshotDirectory;
+        this.ingestSettings = ingestSettings;
+        this.sharded = false;
+    }
+
+    public IotSupervisor(DeviceGroupSettings groupSettings, IngestSettings ingestSettings, boolean sharded) {
+        this.groupSettings = groupSettings;
+        this.snapshotDirectory = null;
+        this.ingestSettings = ingestSettings;
+        this.sharded = sharded;
+    }
 
     public static Props props() {
-        return Props.create(IotSupervisor.class);
+        return props(DeviceGroupSettings.defaults());
+    }
+
+    public static Props props(DeviceGroupSettings groupSettings) {
+        return Props.create(IotSupervisor.class, groupSettings);
+    }
+
+    /**
+     * @param snapshotDirectory where the device manager snapshots its registry every minute, and from where
+     *                          it is restored on start
+     */
+    public static Props props(DeviceGroupSettings groupSettings, Path snapshotDirectory) {
+        return Props.create(IotSupervisor.class, groupSettings, snapshotDirectory);
+    }
+
+    /**
+     * @param ingestSettings where and how an {@link IngestGateway} accepts readings for the device manager
+     */
+    public static Props props(DeviceGroupSettings groupSettings, Path snapshotDirectory,
+                              IngestSettings ingestSettings) {
+        return Props.create(IotSupervisor.class, groupSettings, snapshotDirectory, ingestSettings);
+    }
+
+    /**
+     * A node of a cluster that hosts a share of the groups, see {@link DeviceManager#startSharding}. The
+     * registry is not snapshotted, groups recover their devices from the journal of
+     * {@code groupSettings}, which every node keeps for itself; a group that moves hands its readings over.
+     */
+    public static Props shardedProps(DeviceGroupSettings groupSettings, IngestSettings ingestSettings) {
+        return Props.create(IotSupervisor.class, groupSettings, ingestSettings, true);
     }
 
     @Override
-    public void preStart() {
+    public void preStart() throws IOException {
         log.info("IoT Application started");
+        int shards = Runtime.getRuntime().availableProcessors();
+        if (sharded) {
+            deviceManager = DeviceManager.startSharding(getContext().getSystem(), groupSettings);
+        } else if (snapshotDirectory == null) {
+            deviceManager = getContext().actorOf(DeviceManager.props(shards, groupSettings), "device-manager");
+        } else {
+            deviceManager = getContext().actorOf(DeviceManager.props(
+                    shards, groupSettings, snapshotDirectory, SNAPSHOT_INTERVAL), "device-manager");
+            restore();
+        }
+        if (ingestSettings != null) {
+            getContext().actorOf(IngestGateway.props(deviceManager, ingestSettings), "ingest-gateway");
+        }
+    }
+
+    /**
+     * Restores every group from the snapshots in one message per group, instead of replaying a
+     * {@link DeviceManager.RequestTrackDevice} per device.
+     */
+    private void restore() throws IOException {
+        long start = System.nanoTime();
+        int groups = 0;
+        for (RegistrySnapshot snapshot : RegistrySnapshot.readAll(snapshotDirectory)) {
+            for (DeviceManager.RestoreGroup group : snapshot.groups) {
+                deviceManager.tell(group, getSelf());
+                groups++;
+            }
+        }
+        log.info("Read {} group snapshots in {} ms", groups,
+                 TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
     }
 
     @Override
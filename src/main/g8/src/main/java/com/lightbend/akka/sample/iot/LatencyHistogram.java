@@ -0,0 +1,94 @@
+package com.lightbend.akka.sample.iot;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent latency histogram with HDR-style log-linear buckets.
+ * <p>
+ * Values below 2^{@value #SUB_BUCKET_BITS} get a bucket each; above that every power of two is split into
+ * {@value #HALF_SUB_BUCKETS} buckets, so any recorded value is reported within 1/{@value #HALF_SUB_BUCKETS}
+ * of its true value. Buckets are striped by thread to keep recording threads off each other's cache lines.
+ * {@link #record} does not allocate.
+ */
+final class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 7;
+    static final int HALF_SUB_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+    // values above ~18 minutes in nanos are recorded as the highest bucket
+    static final int MAX_MAGNITUDE = 40 - SUB_BUCKET_BITS;
+    static final int BUCKETS = (MAX_MAGNITUDE + 2) * HALF_SUB_BUCKETS;
+
+    private final AtomicLongArray[] stripes;
+    private final int stripeMask;
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    LatencyHistogram() {
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        this.stripes = new AtomicLongArray[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+        this.stripeMask = stripes - 1;
+    }
+
+    static int bucketOf(long value) {
+        long v = Math.max(0L, value);
+        int magnitude = 64 - Long.numberOfLeadingZeros(v | ((1L << SUB_BUCKET_BITS) - 1)) - SUB_BUCKET_BITS;
+        if (magnitude > MAX_MAGNITUDE) {
+            return BUCKETS - 1;
+        }
+        return magnitude * HALF_SUB_BUCKETS + (int) (v >>> magnitude);
+    }
+
+    /**
+     * @return the highest value that falls into {@code bucket}
+     */
+    static long highestValueOf(int bucket) {
+        int magnitude = Math.max(0, bucket / HALF_SUB_BUCKETS - 1);
+        long subBucket = bucket - (long) magnitude * HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << magnitude) - 1;
+    }
+
+    void record(long nanos) {
+        stripes[(int) Thread.currentThread().getId() & stripeMask].incrementAndGet(bucketOf(nanos));
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    IotMetrics.LatencySnapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int b = 0; b < BUCKETS; b++) {
+                long c = stripe.get(b);
+                counts[b] += c;
+                count += c;
+            }
+        }
+        return new IotMetrics.LatencySnapshot(
+                count,
+                count == 0 ? 0.0 : (double) sum.sum() / count,
+                percentile(counts, count, 50.0),
+                percentile(counts, count, 90.0),
+                percentile(counts, count, 99.0),
+                percentile(counts, count, 99.9),
+                max.get());
+    }
+
+    private static long percentile(long[] counts, long count, double percentile) {
+        if (count == 0) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int b = 0; b < counts.length; b++) {
+            seen += counts[b];
+            if (seen >= rank) {
+                return highestValueOf(b);
+            }
+        }
+        return highestValueOf(counts.length - 1);
+    }
+}
@@ -0,0 +1,246 @@
+package com.lightbend.akka.sample.iot;
+
+import com.lightbend.akka.sample.iot.DeviceGroup.TemperatureReading;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Last readings of the devices of a group whose actors have been passivated, with when each was last heard
+ * of, so that the group notices their absences without starting them again.
+ * <p>
+ * Open addressing with linear probing over parallel arrays: a passivated device costs one key reference,
+ * one double, two longs and one flag instead of an actor with its mailbox. Only ever touched from inside the
+ * owning {@link DeviceGroup}.
+ */
+final class PassivatedDevices {
+    private static final TemperatureReading NOT_AVAILABLE = new DeviceGroup.TemperatureNotAvailable();
+
+    private String[] keys;
+    private double[] values;
+    private boolean[] present;
+    // System.nanoTime() of the last reading, and up to when its absences have been reported
+    private long[] heardAt;
+    private long[] checkedAt;
+    private int size;
+
+    PassivatedDevices() {
+        this(0);
+    }
+
+    PassivatedDevices(int expectedSize) {
+        // the smallest power of two that holds expectedSize below the 75% load factor
+        int capacity = Integer.highestOneBit(Math.max(15, expectedSize * 4 / 3 + 1) - 1) << 1;
+        keys = new String[capacity];
+        values = new double[capacity];
+        present = new boolean[capacity];
+        heardAt = new long[capacity];
+        checkedAt = new long[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(String deviceId) {
+        return keys[indexOf(deviceId)] != null;
+    }
+
+    /**
+     * A device whose absences are not tracked, such as one the journal recovers for the group to take over.
+     */
+    void put(String deviceId, boolean hasValue, double value) {
+        put(deviceId, hasValue, value, 0L, 0L);
+    }
+
+    /**
+     * @param heardAtNanos    when the device had its last reading
+     * @param checkedAtNanos  the absences reached before this have already been reported, by the device itself
+     *                        while it was running
+     */
+    void put(String deviceId, boolean hasValue, double value, long heardAtNanos, long checkedAtNanos) {
+        if ((size + 1) * 4 > keys.length * 3) {
+            resize(keys.length * 2);
+        }
+        int i = indexOf(deviceId);
+        if (keys[i] == null) {
+            keys[i] = deviceId;
+            size++;
+        }
+        values[i] = value;
+        present[i] = hasValue;
+        heardAt[i] = heardAtNanos;
+        checkedAt[i] = checkedAtNanos;
+    }
+
+    boolean hasValue(String deviceId) {
+        int i = indexOf(deviceId);
+        return keys[i] != null && present[i];
+    }
+
+    /**
+     * Only meaningful if {@link #hasValue} is true.
+     */
+    double value(String deviceId) {
+        return values[indexOf(deviceId)];
+    }
+
+    /**
+     * Only meaningful if {@link #contains} is true.
+     */
+    long heardAt(String deviceId) {
+        return heardAt[indexOf(deviceId)];
+    }
+
+    void remove(String deviceId) {
+        int i = indexOf(deviceId);
+        if (keys[i] == null) {
+            return;
+        }
+        keys[i] = null;
+        size--;
+        // backward shift deletion keeps every probe chain free of holes
+        int mask = keys.length - 1;
+        for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+            int home = slotFor(keys[j], mask);
+            if ((j > i && (home <= i || home > j)) || (j < i && (home <= i && home > j))) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                present[i] = present[j];
+                heardAt[i] = heardAt[j];
+                checkedAt[i] = checkedAt[j];
+                keys[j] = null;
+                i = j;
+            }
+        }
+    }
+
+    void forEach(EntryConsumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                consumer.accept(keys[i], present[i], values[i]);
+            }
+        }
+    }
+
+    /**
+     * Reports every absence of the subscriptions that a passivated device reached since it was last checked,
+     * and for the subscription at {@code newIndex}, which no device has seen yet, every absence reached at all.
+     *
+     * @param newIndex -1 if there is no new subscription
+     * @return in how many nanoseconds the next absence is reached, Long.MAX_VALUE if there is none
+     */
+    long checkAbsences(AlertSubscriptions alerts, int newIndex, long nowNanos, AbsenceConsumer consumer) {
+        long next = Long.MAX_VALUE;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                next = Math.min(next, checkAbsencesAt(i, alerts, newIndex, nowNanos, consumer));
+            }
+        }
+        return next;
+    }
+
+    /**
+     * {@link #checkAbsences} of a single device, which must be passivated.
+     */
+    long checkAbsences(String deviceId, AlertSubscriptions alerts, long nowNanos, AbsenceConsumer consumer) {
+        return checkAbsencesAt(indexOf(deviceId), alerts, -1, nowNanos, consumer);
+    }
+
+    private long checkAbsencesAt(int i, AlertSubscriptions alerts, int newIndex, long nowNanos,
+                                 AbsenceConsumer consumer) {
+        long silentNanos = nowNanos - heardAt[i];
+        long checkedNanos = checkedAt[i] - heardAt[i];
+        long next = Long.MAX_VALUE;
+        for (int k = 0; k < alerts.size(); k++) {
+            AlertCondition c = alerts.conditionAt(k);
+            if (c.getKind() != AlertCondition.Kind.ABSENCE) {
+                continue;
+            }
+            long absentNanos = TimeUnit.MILLISECONDS.toNanos(c.getAbsentMillis());
+            if (silentNanos < absentNanos) {
+                next = Math.min(next, absentNanos - silentNanos);
+            } else if (checkedNanos < absentNanos || k == newIndex) {
+                consumer.accept(keys[i], k, present[i], values[i]);
+            }
+        }
+        checkedAt[i] = nowNanos;
+        return next;
+    }
+
+    void addIdsTo(Collection<String> ids) {
+        for (String key : keys) {
+            if (key != null) {
+                ids.add(key);
+            }
+        }
+    }
+
+    /**
+     * @param lastValues true for the last readings, false to report every device as without a reading
+     * @return an immutable copy, safe to hand to another actor
+     */
+    Map<String, TemperatureReading> readings(boolean lastValues) {
+        if (size == 0) {
+            return Collections.emptyMap();
+        }
+        Map<String, TemperatureReading> readings = new HashMap<>(ReplySlots.capacityFor(size));
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                readings.put(keys[i], lastValues && present[i] ? new DeviceGroup.Temperature(values[i]) : NOT_AVAILABLE);
+            }
+        }
+        return Collections.unmodifiableMap(readings);
+    }
+
+    private int indexOf(String deviceId) {
+        int mask = keys.length - 1;
+        int i = slotFor(deviceId, mask);
+        while (keys[i] != null && !keys[i].equals(deviceId)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private static int slotFor(String key, int mask) {
+        // Fibonacci hashing: the high bits of the product are the well mixed ones
+        return (key.hashCode() * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(mask);
+    }
+
+    private void resize(int capacity) {
+        String[] oldKeys = keys;
+        double[] oldValues = values;
+        boolean[] oldPresent = present;
+        long[] oldHeardAt = heardAt;
+        long[] oldCheckedAt = checkedAt;
+        keys = new String[capacity];
+        values = new double[capacity];
+        present = new boolean[capacity];
+        heardAt = new long[capacity];
+        checkedAt = new long[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int j = indexOf(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+                present[j] = oldPresent[i];
+                heardAt[j] = oldHeardAt[i];
+                checkedAt[j] = oldCheckedAt[i];
+            }
+        }
+    }
+
+    interface EntryConsumer {
+        void accept(String deviceId, boolean hasValue, double value);
+    }
+
+    interface AbsenceConsumer {
+        /**
+         * @param index of the subscription whose absence the device reached
+         */
+        void accept(String deviceId, int index, boolean hasValue, double value);
+    }
+}
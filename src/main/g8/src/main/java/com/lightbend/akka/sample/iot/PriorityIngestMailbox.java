@@ -0,0 +1,287 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Mailbox of devices and groups that delivers control and query messages ahead of readings and bounds the
+ * readings, so that a backlog of ingest cannot delay a query, a passivation or a {@code Terminated}, nor
+ * grow without limit. It feeds {@link IotMetrics} like the {@link InstrumentedMailbox}.
+ * <p>
+ * Readings are the messages implementing {@link IngestMessage}; at most {@code ingest-capacity} of them
+ * wait, in order. Once that many do, {@code overflow} decides what happens to the next one:
+ * <ul>
+ * <li>{@code drop-oldest} drops the reading that waited longest and queues the new one,</li>
+ * <li>{@code coalesce} replaces the newest waiting reading of the same device with the new one, in place,
+ * and drops the oldest reading if there is none,</li>
+ * <li>{@code reject} drops the new reading.</li>
+ * </ul>
+ * The sender of a dropped reading gets a {@link Dropped} in place of an acknowledgement. Other messages are
+ * not bounded, they stay in order among themselves, and readings stay in order among themselves. An
+ * {@link IngestBarrier} waits in order with the readings but is never dropped nor counted against the capacity.
+ */
+public class PriorityIngestMailbox implements MailboxType, ProducesMessageQueue<PriorityIngestMailbox.PriorityIngestMessageQueue> {
+    private final String actorType;
+    private final int ingestCapacity;
+    private final OverflowPolicy overflow;
+
+    public PriorityIngestMailbox(ActorSystem.Settings settings, Config config) {
+        this.actorType = config.getString("actor-type");
+        this.ingestCapacity = config.getInt("ingest-capacity");
+        this.overflow = OverflowPolicy.fromConfig(config.getString("overflow"));
+        if (ingestCapacity < 1) {
+            throw new IllegalArgumentException("ingest-capacity must be positive, got " + ingestCapacity);
+        }
+    }
+
+    @Override
+    public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+        IotMetrics.ActorTypeMetrics metrics = system.isDefined()
+                                              ? IotMetrics.get(system.get()).forActorType(actorType)
+                                              : new IotMetrics.ActorTypeMetrics();
+        ActorRef deadLetters = system.isDefined() ? system.get().deadLetters() : null;
+        return new PriorityIngestMessageQueue(metrics, ingestCapacity, overflow, deadLetters);
+    }
+
+    /**
+     * A reading, or a batch of them, subject to {@code ingest-capacity}.
+     */
+    interface IngestMessage {
+        /**
+         * @return the device whose value the message sets, if a later message for it makes this one
+         * redundant, otherwise {@code null}
+         */
+        Object coalesceKey();
+    }
+
+    /**
+     * A message that must only be handled after the readings that arrived before it.
+     */
+    interface IngestBarrier extends IngestMessage {
+        @Override
+        default Object coalesceKey() {
+            return null;
+        }
+    }
+
+    public enum OverflowPolicy {
+        DROP_OLDEST, COALESCE, REJECT;
+
+        static OverflowPolicy fromConfig(String value) {
+            switch (value) {
+                case "drop-oldest":
+                    return DROP_OLDEST;
+                case "coalesce":
+                    return COALESCE;
+                case "reject":
+                    return REJECT;
+                default:
+                    throw new IllegalArgumentException("Unknown overflow policy " + value);
+            }
+        }
+    }
+
+    /**
+     * Tells the sender of {@code message} that it was dropped and will not be acknowledged: by a full mailbox,
+     * or by a group or manager because its devices or group are not tracked. In the latter case the message is
+     * a {@link DeviceGroup.RecordTemperatures} holding only the readings that were dropped.
+     */
+    public static final class Dropped {
+        public final Object message;
+
+        public Dropped(Object message) {
+            this.message = message;
+        }
+    }
+
+    public static final class PriorityIngestMessageQueue implements MessageQueue {
+        private final IotMetrics.ActorTypeMetrics metrics;
+        private final int ingestCapacity;
+        private final OverflowPolicy overflow;
+        private final ActorRef deadLetters;
+        // other messages, the linked queue of the InstrumentedMailbox
+        private final AtomicReference<InstrumentedMailbox.Node> tail;
+        private volatile InstrumentedMailbox.Node head;
+        // readings and barriers, guarded by ingest
+        private final ArrayDeque<InstrumentedMailbox.Node> ingest = new ArrayDeque<>();
+        private int barriers;
+        // newest waiting reading by coalesce key, only for the coalesce policy
+        private final Map<Object, InstrumentedMailbox.Node> newestByKey;
+        // written under the lock, read by the senders checking for messages
+        private volatile int ingestSize;
+
+        PriorityIngestMessageQueue(IotMetrics.ActorTypeMetrics metrics, int ingestCapacity,
+                                   OverflowPolicy overflow, ActorRef deadLetters) {
+            this.metrics = metrics;
+            this.ingestCapacity = ingestCapacity;
+            this.overflow = overflow;
+            this.deadLetters = deadLetters;
+            this.newestByKey = overflow == OverflowPolicy.COALESCE ? new HashMap<>() : null;
+            InstrumentedMailbox.Node stub = new InstrumentedMailbox.Node(null, 0L);
+            this.head = stub;
+            this.tail = new AtomicReference<>(stub);
+            metrics.live.increment();
+        }
+
+        @Override
+        public void enqueue(ActorRef receiver, Envelope handle) {
+            InstrumentedMailbox.Node node = new InstrumentedMailbox.Node(handle, System.nanoTime());
+            if (!(handle.message() instanceof IngestMessage)) {
+                tail.getAndSet(node).next = node;
+                metrics.queued.increment();
+                return;
+            }
+            Envelope dropped = null;
+            synchronized (ingest) {
+                if (handle.message() instanceof IngestBarrier) {
+                    ingest.add(node);
+                    barriers++;
+                } else if (ingest.size() - barriers < ingestCapacity) {
+                    add(node);
+                } else if (overflow == OverflowPolicy.REJECT) {
+                    dropped = handle;
+                } else {
+                    InstrumentedMailbox.Node newest = overflow == OverflowPolicy.COALESCE
+                                                      ? newestByKey.get(coalesceKey(handle))
+                                                      : null;
+                    if (newest != null) {
+                        dropped = newest.envelope;
+                        newest.envelope = handle;
+                    } else {
+                        dropped = pollOldestReading().envelope;
+                        add(node);
+                    }
+                }
+                ingestSize = ingest.size();
+            }
+            if (dropped == null) {
+                metrics.queued.increment();
+            } else {
+                drop(receiver, dropped);
+            }
+        }
+
+        private void add(InstrumentedMailbox.Node node) {
+            ingest.add(node);
+            if (newestByKey != null) {
+                Object key = coalesceKey(node.envelope);
+                if (key != null) {
+                    newestByKey.put(key, node);
+                }
+            }
+        }
+
+        private InstrumentedMailbox.Node poll() {
+            InstrumentedMailbox.Node node = ingest.poll();
+            forget(node);
+            return node;
+        }
+
+        /**
+         * Only called while at capacity, so there is a reading to poll.
+         */
+        private InstrumentedMailbox.Node pollOldestReading() {
+            Iterator<InstrumentedMailbox.Node> nodes = ingest.iterator();
+            while (true) {
+                InstrumentedMailbox.Node node = nodes.next();
+                if (!(node.envelope.message() instanceof IngestBarrier)) {
+                    nodes.remove();
+                    forget(node);
+                    return node;
+                }
+            }
+        }
+
+        private void forget(InstrumentedMailbox.Node node) {
+            if (node.envelope.message() instanceof IngestBarrier) {
+                barriers--;
+            } else if (newestByKey != null) {
+                Object key = coalesceKey(node.envelope);
+                if (key != null) {
+                    newestByKey.remove(key, node);
+                }
+            }
+        }
+
+        private static Object coalesceKey(Envelope envelope) {
+            return ((IngestMessage) envelope.message()).coalesceKey();
+        }
+
+        private void drop(ActorRef receiver, Envelope envelope) {
+            metrics.dropped.increment();
+            ActorRef sender = envelope.sender();
+            if (sender != null && !sender.equals(deadLetters)) {
+                sender.tell(new Dropped(envelope.message()), receiver);
+            }
+        }
+
+        @Override
+        public Envelope dequeue() {
+            InstrumentedMailbox.Node next = take();
+            if (next == null) {
+                return null;
+            }
+            Envelope envelope = next.envelope;
+            next.envelope = null;
+            metrics.queued.decrement();
+            metrics.messages.increment();
+            metrics.mailboxLatency.record(System.nanoTime() - next.enqueuedAt);
+            return envelope;
+        }
+
+        /**
+         * @return the next node, preferring other messages to readings
+         */
+        private InstrumentedMailbox.Node take() {
+            InstrumentedMailbox.Node next = head.next;
+            if (next != null) {
+                head = next;
+                return next;
+            }
+            if (ingestSize == 0) {
+                return null;
+            }
+            synchronized (ingest) {
+                next = poll();
+                ingestSize = ingest.size();
+                return next;
+            }
+        }
+
+        @Override
+        public int numberOfMessages() {
+            int count = ingestSize;
+            for (InstrumentedMailbox.Node n = head.next; n != null; n = n.next) {
+                count++;
+            }
+            return count;
+        }
+
+        @Override
+        public boolean hasMessages() {
+            return head.next != null || ingestSize > 0;
+        }
+
+        @Override
+        public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+            for (InstrumentedMailbox.Node next = take(); next != null; next = take()) {
+                metrics.queued.decrement();
+                deadLetters.enqueue(owner, next.envelope);
+                next.envelope = null;
+            }
+            metrics.live.decrement();
+        }
+    }
+}
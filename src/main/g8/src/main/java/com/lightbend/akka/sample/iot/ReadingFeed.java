@@ -0,0 +1,338 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * The subscribers of the reading changes of a {@link DeviceGroup} or a single {@link Device}, see
+ * {@link DeviceGroup.SubscribeReadings}.
+ * <p>
+ * Changes are collected once for all subscribers and handed out on every tick as one set of arrays, each
+ * subscriber getting its own small {@link DeviceGroup.ReadingChanges} around them, so a reading costs the same
+ * however many subscribers there are and a tick costs one message per subscriber. Only a subscriber that has
+ * not acknowledged its previous batch yet gets its own copy of the changes, in a buffer bounded by its
+ * subscription. A subscription is identified by its subscriber and the id the subscriber gave it, as an alert
+ * subscription is. A batch whose ack has not arrived within {@link #RESEND_AFTER_MILLIS} is sent again, so a
+ * lost ack does not leave a subscription buffering for good. Only ever touched from inside the owning actor;
+ * the ticks and the checks for batches to resend run while there are subscribers.
+ */
+final class ReadingFeed {
+    static final long RESEND_AFTER_MILLIS = 2000L;
+
+    private final AbstractActor.ActorContext context;
+    // 0 hands out every change right away
+    private final long tickMillis;
+    private final Map<SubscriptionKey, Subscription> subscriptions = new HashMap<>();
+    // the changes since the last tick, in the order they happened
+    private String[] deviceIds = new String[16];
+    private double[] values = new double[16];
+    private long[] timestamps = new long[16];
+    private int size;
+    private Cancellable ticks;
+    private Cancellable resends;
+
+    ReadingFeed(AbstractActor.ActorContext context, long tickMillis) {
+        this.context = context;
+        this.tickMillis = tickMillis;
+    }
+
+    boolean isEmpty() {
+        return subscriptions.isEmpty();
+    }
+
+    int size() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Hands every subscription to the action as the {@link DeviceGroup.SubscribeReadings} it was made with.
+     */
+    void forEach(BiConsumer<ActorRef, DeviceGroup.SubscribeReadings> action) {
+        for (Subscription s : subscriptions.values()) {
+            action.accept(s.subscriber, new DeviceGroup.SubscribeReadings(s.subscriptionId, s.bufferSize, s.overflow));
+        }
+    }
+
+    /**
+     * @return whether the subscriber has any subscription
+     */
+    boolean contains(ActorRef subscriber) {
+        for (SubscriptionKey key : subscriptions.keySet()) {
+            if (key.subscriber.equals(subscriber)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replaces an earlier subscription of the subscriber with the same id, together with the changes buffered
+     * for it; its other subscriptions stay as they are.
+     */
+    void subscribe(ActorRef subscriber, DeviceGroup.SubscribeReadings s) {
+        subscriptions.put(new SubscriptionKey(subscriber, s.subscriptionId), new Subscription(subscriber, s));
+        if (ticks == null && tickMillis > 0) {
+            FiniteDuration interval = FiniteDuration.create(tickMillis, TimeUnit.MILLISECONDS);
+            ticks = context.getSystem().scheduler().schedule(
+                    interval, interval, context.self(), Tick.INSTANCE, context.dispatcher(), context.self());
+        }
+        if (resends == null) {
+            FiniteDuration interval = FiniteDuration.create(RESEND_AFTER_MILLIS / 2, TimeUnit.MILLISECONDS);
+            resends = context.getSystem().scheduler().schedule(
+                    interval, interval, context.self(), Resend.INSTANCE, context.dispatcher(), context.self());
+        }
+    }
+
+    /**
+     * @return whether the subscriber had a subscription with this id
+     */
+    boolean unsubscribe(ActorRef subscriber, long subscriptionId) {
+        if (subscriptions.remove(new SubscriptionKey(subscriber, subscriptionId)) == null) {
+            return false;
+        }
+        stopIfEmpty();
+        return true;
+    }
+
+    /**
+     * Removes all subscriptions of the subscriber.
+     *
+     * @return whether the subscriber had a subscription
+     */
+    boolean remove(ActorRef subscriber) {
+        if (!subscriptions.keySet().removeIf(key -> key.subscriber.equals(subscriber))) {
+            return false;
+        }
+        stopIfEmpty();
+        return true;
+    }
+
+    private void stopIfEmpty() {
+        if (subscriptions.isEmpty()) {
+            stop();
+            size = 0;
+        }
+    }
+
+    void stop() {
+        if (ticks != null) {
+            ticks.cancel();
+            ticks = null;
+        }
+        if (resends != null) {
+            resends.cancel();
+            resends = null;
+        }
+    }
+
+    void record(String deviceId, double value, long timestamp) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        if (size == deviceIds.length) {
+            int capacity = size * 2;
+            deviceIds = Arrays.copyOf(deviceIds, capacity);
+            values = Arrays.copyOf(values, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+        }
+        deviceIds[size] = deviceId;
+        values[size] = value;
+        timestamps[size] = timestamp;
+        size++;
+        if (tickMillis == 0) {
+            tick();
+        }
+    }
+
+    /**
+     * Sends the changes since the last tick to every subscriber that acknowledged its previous batch, and adds
+     * them to the buffers of the others.
+     */
+    void tick() {
+        if (size == 0) {
+            return;
+        }
+        String[] ids = Arrays.copyOf(deviceIds, size);
+        double[] vs = Arrays.copyOf(values, size);
+        long[] ts = Arrays.copyOf(timestamps, size);
+        Arrays.fill(deviceIds, 0, size, null);
+        size = 0;
+        ActorRef self = context.self();
+        for (Subscription s : subscriptions.values()) {
+            if (s.awaitingAck) {
+                for (int i = 0; i < ids.length; i++) {
+                    s.buffer(new Change(ids[i], vs[i], ts[i]));
+                }
+            } else {
+                s.send(ids, vs, ts, self);
+            }
+        }
+    }
+
+    /**
+     * Sends the subscriber what was buffered for it, if the ack is for the batch it was sent last.
+     */
+    void ack(ActorRef subscriber, DeviceGroup.ReadingChangesAck a) {
+        Subscription s = subscriptions.get(new SubscriptionKey(subscriber, a.subscriptionId));
+        if (s != null && s.awaitingAck && s.sequenceNr == a.sequenceNr) {
+            s.awaitingAck = false;
+            s.pending = null;
+            s.flush(context.self());
+        }
+    }
+
+    /**
+     * Sends every batch again, unchanged, that has been waiting for its ack for {@link #RESEND_AFTER_MILLIS}.
+     */
+    void resend() {
+        long now = System.nanoTime();
+        long resendAfterNanos = TimeUnit.MILLISECONDS.toNanos(RESEND_AFTER_MILLIS);
+        for (Subscription s : subscriptions.values()) {
+            if (s.awaitingAck && now - s.sentAtNanos >= resendAfterNanos) {
+                s.subscriber.tell(s.pending, context.self());
+                s.sentAtNanos = now;
+            }
+        }
+    }
+
+    static final class Tick {
+        static final Tick INSTANCE = new Tick();
+    }
+
+    static final class Resend {
+        static final Resend INSTANCE = new Resend();
+    }
+
+    private static final class Change {
+        final String deviceId;
+        final double value;
+        final long timestamp;
+
+        Change(String deviceId, double value, long timestamp) {
+            this.deviceId = deviceId;
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static final class SubscriptionKey {
+        final ActorRef subscriber;
+        final long subscriptionId;
+
+        SubscriptionKey(ActorRef subscriber, long subscriptionId) {
+            this.subscriber = subscriber;
+            this.subscriptionId = subscriptionId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SubscriptionKey)) {
+                return false;
+            }
+            SubscriptionKey other = (SubscriptionKey) o;
+            return subscriptionId == other.subscriptionId && subscriber.equals(other.subscriber);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * subscriber.hashCode() + Long.hashCode(subscriptionId);
+        }
+    }
+
+    private static final class Subscription {
+        final ActorRef subscriber;
+        final long subscriptionId;
+        final int bufferSize;
+        final DeviceGroup.FeedOverflow overflow;
+        long sequenceNr = -1L;
+        boolean awaitingAck;
+        // the batch awaiting its ack, and when it was last sent
+        DeviceGroup.ReadingChanges pending;
+        long sentAtNanos;
+        // the changes since the batch awaiting its ack, oldest first: all of them for DROP_OLDEST, the latest
+        // per device for CONFLATE
+        ArrayDeque<Change> queue;
+        LinkedHashMap<String, Change> latest;
+        // changes left out since the previous batch
+        long dropped;
+
+        Subscription(ActorRef subscriber, DeviceGroup.SubscribeReadings s) {
+            this.subscriber = subscriber;
+            this.subscriptionId = s.subscriptionId;
+            this.bufferSize = s.bufferSize;
+            this.overflow = s.overflow;
+        }
+
+        void send(String[] deviceIds, double[] values, long[] timestamps, ActorRef self) {
+            sequenceNr++;
+            awaitingAck = true;
+            pending = new DeviceGroup.ReadingChanges(
+                    subscriptionId, sequenceNr, deviceIds, values, timestamps, dropped);
+            sentAtNanos = System.nanoTime();
+            subscriber.tell(pending, self);
+            dropped = 0;
+        }
+
+        void buffer(Change c) {
+            if (overflow == DeviceGroup.FeedOverflow.CONFLATE) {
+                if (latest == null) {
+                    latest = new LinkedHashMap<>();
+                }
+                // removed first, so that the device moves to the end
+                if (latest.remove(c.deviceId) != null) {
+                    dropped++;
+                }
+                latest.put(c.deviceId, c);
+                if (latest.size() > bufferSize) {
+                    Iterator<Change> eldest = latest.values().iterator();
+                    eldest.next();
+                    eldest.remove();
+                    dropped++;
+                }
+            } else {
+                if (queue == null) {
+                    queue = new ArrayDeque<>();
+                }
+                queue.addLast(c);
+                if (queue.size() > bufferSize) {
+                    queue.removeFirst();
+                    dropped++;
+                }
+            }
+        }
+
+        void flush(ActorRef self) {
+            Collection<Change> changes = overflow == DeviceGroup.FeedOverflow.CONFLATE
+                                         ? (latest == null ? null : latest.values())
+                                         : queue;
+            if (changes == null || changes.isEmpty()) {
+                return;
+            }
+            int n = changes.size();
+            String[] ids = new String[n];
+            double[] vs = new double[n];
+            long[] ts = new long[n];
+            int i = 0;
+            for (Change c : changes) {
+                ids[i] = c.deviceId;
+                vs[i] = c.value;
+                ts[i] = c.timestamp;
+                i++;
+            }
+            changes.clear();
+            send(ids, vs, ts, self);
+        }
+    }
+}
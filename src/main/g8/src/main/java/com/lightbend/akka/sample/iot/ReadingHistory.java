@@ -0,0 +1,68 @@
+package com.lightbend.akka.sample.iot;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-size ring buffer of the last readings of a single {@link Device}.
+ * <p>
+ * Samples are kept in parallel primitive arrays, so recording never allocates and the
+ * footprint is fixed at creation. Windowed statistics are computed in place on a scratch
+ * array of the same capacity. Not thread-safe, it lives inside the owning actor.
+ */
+final class ReadingHistory {
+    private final long[] timestamps;
+    private final double[] values;
+    private final double[] scratch;
+    private int next;
+    private int size;
+
+    ReadingHistory(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("History capacity must be at least 1, was " + capacity);
+        }
+        this.timestamps = new long[capacity];
+        this.values = new double[capacity];
+        this.scratch = new double[capacity];
+    }
+
+    int capacity() {
+        return values.length;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void record(long timestamp, double value) {
+        timestamps[next] = timestamp;
+        values[next] = value;
+        next = next + 1 == values.length ? 0 : next + 1;
+        if (size < values.length) {
+            size++;
+        }
+    }
+
+    /**
+     * Statistics over all retained readings with a timestamp at or after {@code fromTimestamp}.
+     *
+     * @param percentile nearest-rank percentile to report, in the range [0, 100]
+     */
+    Device.RespondTemperatureStats stats(long requestId, long fromTimestamp, double percentile) {
+        int count = 0;
+        double sum = 0.0;
+        for (int i = 0; i < size; i++) {
+            if (timestamps[i] >= fromTimestamp) {
+                scratch[count++] = values[i];
+                sum += values[i];
+            }
+        }
+        if (count == 0) {
+            return new Device.RespondTemperatureStats(requestId, 0, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+        }
+        Arrays.sort(scratch, 0, count);
+        int rank = (int) Math.ceil(percentile / 100.0 * count);
+        int index = Math.min(count - 1, Math.max(0, rank - 1));
+        return new Device.RespondTemperatureStats(
+                requestId, count, scratch[0], scratch[count - 1], sum / count, scratch[index]);
+    }
+}
@@ -0,0 +1,169 @@
+package com.lightbend.akka.sample.iot;
+
+import com.lightbend.akka.sample.iot.DeviceGroup.TemperatureReading;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary snapshot of the groups of one {@link DeviceManager} shard, their devices and last readings.
+ * <p>
+ * Every distinct id is written once to a string table and referenced by index; the devices follow in
+ * group order as columns of primitive arrays, so reading a snapshot allocates one String per distinct
+ * id and a few arrays per group. Layout (big endian):
+ * <pre>
+ * int     magic, int version, long taken at (epoch millis)
+ * int     string count, then every string (modified UTF-8)
+ * int     group count, then per group: int id string, int device count
+ * int[]   device id string, per device
+ * long[]  bit set of the devices with a reading
+ * double[] reading, per device
+ * </pre>
+ */
+final class RegistrySnapshot {
+    static final String SUFFIX = ".snapshot";
+    private static final int MAGIC = 0x494F5453;
+    private static final int VERSION = 1;
+
+    final long takenAtMillis;
+    final List<DeviceManager.RestoreGroup> groups;
+
+    private RegistrySnapshot(long takenAtMillis, List<DeviceManager.RestoreGroup> groups) {
+        this.takenAtMillis = takenAtMillis;
+        this.groups = groups;
+    }
+
+    /**
+     * Writes to a temporary file first and moves it over {@code file}, so a crash never leaves a torn snapshot.
+     *
+     * @param groups the readings of every device, by group id
+     */
+    static void write(Path file, long takenAtMillis, Map<String, Map<String, TemperatureReading>> groups)
+            throws IOException {
+        Map<String, Integer> interned = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        int devices = 0;
+        for (Map.Entry<String, Map<String, TemperatureReading>> group : groups.entrySet()) {
+            intern(group.getKey(), interned, strings);
+            for (String deviceId : group.getValue().keySet()) {
+                intern(deviceId, interned, strings);
+            }
+            devices += group.getValue().size();
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(takenAtMillis);
+            out.writeInt(strings.size());
+            for (String s : strings) {
+                out.writeUTF(s);
+            }
+            out.writeInt(groups.size());
+            for (Map.Entry<String, Map<String, TemperatureReading>> group : groups.entrySet()) {
+                out.writeInt(interned.get(group.getKey()));
+                out.writeInt(group.getValue().size());
+            }
+            long[] present = new long[(devices + 63) >>> 6];
+            double[] values = new double[devices];
+            int d = 0;
+            for (Map<String, TemperatureReading> readings : groups.values()) {
+                for (Map.Entry<String, TemperatureReading> e : readings.entrySet()) {
+                    out.writeInt(interned.get(e.getKey()));
+                    if (e.getValue() instanceof DeviceGroup.Temperature) {
+                        present[d >>> 6] |= 1L << d;
+                        values[d] = e.getValue().getValue();
+                    }
+                    d++;
+                }
+            }
+            for (long word : present) {
+                out.writeLong(word);
+            }
+            for (double value : values) {
+                out.writeDouble(value);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void intern(String s, Map<String, Integer> interned, List<String> strings) {
+        if (interned.putIfAbsent(s, strings.size()) == null) {
+            strings.add(s);
+        }
+    }
+
+    static RegistrySnapshot read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a registry snapshot");
+            }
+            long takenAtMillis = in.readLong();
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = in.readUTF();
+            }
+            String[] groupIds = new String[in.readInt()];
+            int[] groupSizes = new int[groupIds.length];
+            int devices = 0;
+            for (int g = 0; g < groupIds.length; g++) {
+                groupIds[g] = strings[in.readInt()];
+                groupSizes[g] = in.readInt();
+                devices += groupSizes[g];
+            }
+            String[][] deviceIds = new String[groupIds.length][];
+            for (int g = 0; g < groupIds.length; g++) {
+                deviceIds[g] = new String[groupSizes[g]];
+                for (int i = 0; i < groupSizes[g]; i++) {
+                    deviceIds[g][i] = strings[in.readInt()];
+                }
+            }
+            long[] present = new long[(devices + 63) >>> 6];
+            for (int w = 0; w < present.length; w++) {
+                present[w] = in.readLong();
+            }
+            List<DeviceManager.RestoreGroup> groups = new ArrayList<>(groupIds.length);
+            int d = 0;
+            for (int g = 0; g < groupIds.length; g++) {
+                boolean[] hasValue = new boolean[groupSizes[g]];
+                double[] values = new double[groupSizes[g]];
+                for (int i = 0; i < values.length; i++, d++) {
+                    hasValue[i] = (present[d >>> 6] & (1L << d)) != 0;
+                    values[i] = in.readDouble();
+                }
+                groups.add(new DeviceManager.RestoreGroup(groupIds[g], deviceIds[g], hasValue, values));
+            }
+            return new RegistrySnapshot(takenAtMillis, groups);
+        }
+    }
+
+    /**
+     * Reads every snapshot in {@code directory}, newest first: when shards were added or removed between
+     * runs a group may show up in more than one of them, and restoring skips devices that are already known.
+     */
+    static List<RegistrySnapshot> readAll(Path directory) throws IOException {
+        List<RegistrySnapshot> snapshots = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return snapshots;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                snapshots.add(read(file));
+            }
+        }
+        snapshots.sort((a, b) -> Long.compare(b.takenAtMillis, a.takenAtMillis));
+        return snapshots;
+    }
+}
@@ -0,0 +1,111 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.ActorRef;
+import com.lightbend.akka.sample.iot.DeviceGroup.TemperatureReading;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mutable reply table for a single {@link DeviceGroupQuery}.
+ * <p>
+ * The queried devices are an {@link ActorRegistry.Snapshot}, whose slots are the slots of the replies;
+ * replies are written into their slot in place and completion is tracked with a counter, so one query
+ * allocates a bit set and, if it keeps them, an array of readings, instead of copying its state on every
+ * reply. Streaming queries hand every reading on
+ * as it arrives and only keep track of which slots have answered.
+ * Only ever touched from inside the owning actor.
+ */
+final class ReplySlots {
+    private final ActorRegistry.Snapshot devices;
+    private final TemperatureReading[] readings;
+    private final BitSet answered;
+    private final Map<String, TemperatureReading> known;
+    private int outstanding;
+
+    ReplySlots(Map<ActorRef, String> actorToDeviceId) {
+        this(ActorRegistry.snapshotOf(actorToDeviceId), Collections.emptyMap(), true);
+    }
+
+    /**
+     * @param known          readings of devices that are not asked, e.g. passivated ones; part of {@link #toMap}
+     * @param retainReadings false to only track which devices answered, see {@link #toMap}
+     */
+    ReplySlots(ActorRegistry.Snapshot devices, Map<String, TemperatureReading> known, boolean retainReadings) {
+        int size = devices.size();
+        this.devices = devices;
+        this.known = known;
+        this.readings = retainReadings ? new TemperatureReading[size] : null;
+        this.answered = new BitSet(size);
+        this.outstanding = size;
+    }
+
+    static int capacityFor(int expectedSize) {
+        return (int) (expectedSize / 0.75f) + 1;
+    }
+
+    int size() {
+        return devices.size();
+    }
+
+    ActorRef actorAt(int slot) {
+        return devices.actorAt(slot);
+    }
+
+    String deviceIdAt(int slot) {
+        return devices.idAt(slot);
+    }
+
+    Map<String, TemperatureReading> known() {
+        return known;
+    }
+
+    int outstanding() {
+        return outstanding;
+    }
+
+    boolean isComplete() {
+        return outstanding == 0;
+    }
+
+    /**
+     * @return the slot the reading was stored in, or -1 if the actor is unknown or already answered
+     */
+    int record(ActorRef deviceActor, TemperatureReading reading) {
+        int slot = devices.slotOf(deviceActor);
+        if (slot < 0 || answered.get(slot)) {
+            return -1;
+        }
+        answered.set(slot);
+        if (readings != null) {
+            readings[slot] = reading;
+        }
+        outstanding--;
+        return slot;
+    }
+
+    List<String> unansweredDeviceIds() {
+        List<String> ids = new ArrayList<>(outstanding);
+        for (int slot = answered.nextClearBit(0); slot < size(); slot = answered.nextClearBit(slot + 1)) {
+            ids.add(devices.idAt(slot));
+        }
+        return ids;
+    }
+
+    /**
+     * Builds the final result, filling every unanswered slot with {@code missing}.
+     * Only available when readings are retained.
+     */
+    Map<String, TemperatureReading> toMap(TemperatureReading missing) {
+        Map<String, TemperatureReading> result = new HashMap<>(capacityFor(readings.length + known.size()));
+        result.putAll(known);
+        for (int i = 0; i < readings.length; i++) {
+            result.put(devices.idAt(i), answered.get(i) ? readings[i] : missing);
+        }
+        return result;
+    }
+}
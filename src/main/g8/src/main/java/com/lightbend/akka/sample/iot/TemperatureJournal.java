@@ -0,0 +1,501 @@
+package com.lightbend.akka.sample.iot;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Append-only journal of the temperature readings of one {@link DeviceGroup}.
+ * <p>
+ * Readings are written as fixed-width records into memory-mapped segment files. Appending reserves a
+ * record with a single atomic add and writes it in place, so the devices of a group append concurrently
+ * without locking or allocating. A record is in the page cache, and survives a crash of the JVM, as soon
+ * as {@link #append} returns; {@link #flush()} forces everything appended so far to disk at once and is
+ * meant to be called periodically (group commit) instead of per reading.
+ * <p>
+ * Record layout (big endian, {@value #RECORD_SIZE} bytes):
+ * <pre>
+ *  0  int     checksum, never 0 for a complete record
+ *  4  short   length of the device id in bytes
+ *  6  byte[]  device id, UTF-8, at most {@value #MAX_DEVICE_ID_BYTES} bytes, zero padded
+ * 48  long    timestamp in epoch millis
+ * 56  double  temperature
+ * </pre>
+ * Opening the journal compacts it: the latest record of every device is copied into a new segment, which
+ * the journal appends to from then on, and the segments it replaces are deleted. A segment starts small and
+ * its file and mapping double whenever it fills up, until it reaches the configured segment size and the
+ * journal rolls over to the next one; on {@link #close()} the last segment is truncated to what was written.
+ */
+final class TemperatureJournal implements Closeable {
+    static final int RECORD_SIZE = 64;
+    static final int MAX_DEVICE_ID_BYTES = 42;
+    private static final int ID_LENGTH_OFFSET = 4;
+    private static final int ID_OFFSET = 6;
+    private static final int TIMESTAMP_OFFSET = 48;
+    private static final int VALUE_OFFSET = 56;
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final int INITIAL_SEGMENT_RECORDS = 1024;
+
+    private final Path directory;
+    private final int segmentRecords;
+    private volatile Segment current;
+    // the segment rolled over last; appends that reserved a record just before the roll may still land there
+    private volatile Segment previous;
+
+    private TemperatureJournal(Path directory, int segmentBytes, long firstSegment) throws IOException {
+        this.directory = directory;
+        this.segmentRecords = Math.max(1, segmentBytes / RECORD_SIZE);
+        this.current = Segment.create(segmentPath(directory, firstSegment), firstSegment, initialRecords());
+    }
+
+    /**
+     * Opens the journal in {@code directory}, creating it if necessary, see {@link #open(Path, int,
+     * PassivatedDevices)}.
+     */
+    static TemperatureJournal open(Path directory, int segmentBytes) throws IOException {
+        return open(directory, segmentBytes, new PassivatedDevices());
+    }
+
+    /**
+     * Opens the journal in {@code directory}, creating it if necessary, and puts the last reading of every
+     * device found in the existing segments into {@code recovered}, as {@link #recover} does. Those readings
+     * are copied into a new segment, which is forced to disk before the existing segments are deleted, so a
+     * crash in between leaves either the old segments or the compacted one to recover from.
+     */
+    static TemperatureJournal open(Path directory, int segmentBytes, PassivatedDevices recovered)
+            throws IOException {
+        Files.createDirectories(directory);
+        List<Path> paths = segments(directory);
+        long next = paths.isEmpty() ? 0 : segmentIndex(paths.get(paths.size() - 1)) + 1;
+        TemperatureJournal journal = new TemperatureJournal(directory, segmentBytes, next);
+        try {
+            LatestRecords latest = scanAll(paths);
+            byte[] key = new byte[MAX_DEVICE_ID_BYTES];
+            for (long ref : latest.refs) {
+                if (ref != LatestRecords.EMPTY) {
+                    ByteBuffer segment = latest.segments[(int) (ref >>> 32)];
+                    journal.copy(segment, (int) ref);
+                    recovered.put(readDeviceId(segment, (int) ref, key), true,
+                                  segment.getDouble((int) ref + VALUE_OFFSET));
+                }
+            }
+            journal.flush();
+            for (Path path : paths) {
+                Files.delete(path);
+            }
+        } catch (IOException | RuntimeException e) {
+            journal.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    private int initialRecords() {
+        return Math.min(INITIAL_SEGMENT_RECORDS, segmentRecords);
+    }
+
+    Path directory() {
+        return directory;
+    }
+
+    /**
+     * Encodes a device id for {@link #append}, once per device.
+     *
+     * @throws IllegalArgumentException if the id does not fit into a record
+     */
+    static byte[] key(String deviceId) {
+        byte[] key = deviceId.getBytes(StandardCharsets.UTF_8);
+        if (key.length > MAX_DEVICE_ID_BYTES) {
+            throw new IllegalArgumentException(
+                    "Device id " + deviceId + " is longer than " + MAX_DEVICE_ID_BYTES + " bytes");
+        }
+        return key;
+    }
+
+    static boolean fits(String deviceId) {
+        return deviceId.getBytes(StandardCharsets.UTF_8).length <= MAX_DEVICE_ID_BYTES;
+    }
+
+    void append(byte[] key, long timestamp, double value) {
+        while (true) {
+            Segment segment = current;
+            int offset = segment.reserve();
+            if (offset >= 0) {
+                segment.write(offset, key, timestamp, value);
+                return;
+            }
+            roll(segment);
+        }
+    }
+
+    /**
+     * Appends a copy of the record at {@code offset} of a mapped segment.
+     */
+    private void copy(ByteBuffer from, int offset) {
+        while (true) {
+            Segment segment = current;
+            int to = segment.reserve();
+            if (to >= 0) {
+                segment.copy(to, from, offset);
+                return;
+            }
+            roll(segment);
+        }
+    }
+
+    /**
+     * Doubles the full segment, or starts the next one once it reached the segment size.
+     */
+    private synchronized void roll(Segment full) {
+        if (current != full) {
+            return;
+        }
+        try {
+            int records = full.capacity / RECORD_SIZE;
+            Segment next = records < segmentRecords
+                           ? full.grow(Math.min(records * 2, segmentRecords))
+                           : Segment.create(segmentPath(directory, full.index + 1), full.index + 1,
+                                            initialRecords());
+            previous = full;
+            current = next;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Forces every record appended so far to disk. Safe to call from any thread.
+     */
+    void flush() {
+        Segment p = previous;
+        if (p != null) {
+            p.flush();
+        }
+        current.flush();
+    }
+
+    @Override
+    public synchronized void close() {
+        flush();
+        Segment p = previous;
+        if (p != null && p.channel != current.channel) {
+            p.close();
+        }
+        current.truncate();
+        current.close();
+    }
+
+    /**
+     * Rebuilds the last reading of every device from all segments in {@code directory}. Segments are
+     * scanned in parallel; a later record of a device wins over an earlier one. Torn or never written
+     * records fail their checksum and are skipped.
+     * <p>
+     * Records are indexed by their position in the mapped segments and compared byte-wise, so only one
+     * String per device is created, for the reading that wins.
+     */
+    static PassivatedDevices recover(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return new PassivatedDevices();
+        }
+        LatestRecords latest = scanAll(segments(directory));
+        PassivatedDevices recovered = new PassivatedDevices(latest.size);
+        byte[] key = new byte[MAX_DEVICE_ID_BYTES];
+        for (long ref : latest.refs) {
+            if (ref != LatestRecords.EMPTY) {
+                ByteBuffer segment = latest.segments[(int) (ref >>> 32)];
+                recovered.put(readDeviceId(segment, (int) ref, key), true,
+                              segment.getDouble((int) ref + VALUE_OFFSET));
+            }
+        }
+        return recovered;
+    }
+
+    private static LatestRecords scanAll(List<Path> paths) throws IOException {
+        ByteBuffer[] segments = new ByteBuffer[paths.size()];
+        for (int i = 0; i < segments.length; i++) {
+            try (FileChannel channel = FileChannel.open(paths.get(i), StandardOpenOption.READ)) {
+                // the mapping stays valid after the channel is closed
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+        LatestRecords[] perSegment = IntStream.range(0, segments.length).parallel()
+                .mapToObj(i -> scan(segments, i))
+                .toArray(LatestRecords[]::new);
+        int expected = 0;
+        for (LatestRecords records : perSegment) {
+            expected = Math.max(expected, records.size);
+        }
+        LatestRecords latest = new LatestRecords(segments, expected);
+        for (int i = perSegment.length - 1; i >= 0; i--) {
+            perSegment[i].putAllTo(latest, false);
+        }
+        return latest;
+    }
+
+    private static String readDeviceId(ByteBuffer segment, int offset, byte[] key) {
+        int length = readKey(segment, offset, key);
+        return new String(key, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static LatestRecords scan(ByteBuffer[] segments, int index) {
+        ByteBuffer segment = segments[index];
+        LatestRecords latest = new LatestRecords(segments, 1024);
+        byte[] key = new byte[MAX_DEVICE_ID_BYTES];
+        int records = segment.capacity() / RECORD_SIZE;
+        for (int r = 0; r < records; r++) {
+            int offset = r * RECORD_SIZE;
+            int checksum = segment.getInt(offset);
+            if (checksum == 0) {
+                continue;
+            }
+            int length = readKey(segment, offset, key);
+            if (length < 0) {
+                continue;
+            }
+            long timestamp = segment.getLong(offset + TIMESTAMP_OFFSET);
+            double value = segment.getDouble(offset + VALUE_OFFSET);
+            if (checksum(key, length, timestamp, value) == checksum) {
+                latest.put(((long) index << 32) | offset, keyHash(key, length), true);
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * @return the length of the device id copied into {@code key}, or -1 if the record is corrupt
+     */
+    private static int readKey(ByteBuffer segment, int offset, byte[] key) {
+        int length = segment.getShort(offset + ID_LENGTH_OFFSET);
+        if (length < 0 || length > MAX_DEVICE_ID_BYTES) {
+            return -1;
+        }
+        for (int i = 0; i < length; i++) {
+            key[i] = segment.get(offset + ID_OFFSET + i);
+        }
+        return length;
+    }
+
+    private static int keyHash(byte[] key, int length) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            h = (h ^ key[i]) * 0x01000193;
+        }
+        return h;
+    }
+
+    static int checksum(byte[] key, int length, long timestamp, double value) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            h = (h ^ key[i]) * 0x01000193;
+        }
+        h = (h ^ Long.hashCode(timestamp)) * 0x01000193;
+        h = (h ^ Long.hashCode(Double.doubleToLongBits(value))) * 0x01000193;
+        h = (h ^ length) * 0x01000193;
+        return h == 0 ? 1 : h;
+    }
+
+    static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path p : stream) {
+                segments.add(p);
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static Path segmentPath(Path directory, long index) {
+        return directory.resolve(String.format("%016d%s", index, SEGMENT_SUFFIX));
+    }
+
+    private static long segmentIndex(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Open addressing table from device id to the position of its latest record, as
+     * {@code segment << 32 | offset}; ids are compared in place in the mapped segments.
+     */
+    private static final class LatestRecords {
+        static final long EMPTY = -1L;
+
+        final ByteBuffer[] segments;
+        long[] refs;
+        int[] hashes;
+        int size;
+
+        LatestRecords(ByteBuffer[] segments, int expectedSize) {
+            this.segments = segments;
+            int capacity = Integer.highestOneBit(Math.max(16, expectedSize * 2 - 1)) * 2;
+            refs = new long[capacity];
+            hashes = new int[capacity];
+            Arrays.fill(refs, EMPTY);
+        }
+
+        void put(long ref, int hash, boolean replace) {
+            if ((size + 1) * 4 > refs.length * 3) {
+                grow();
+            }
+            int mask = refs.length - 1;
+            int i = (hash * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(mask);
+            while (refs[i] != EMPTY) {
+                if (hashes[i] == hash && sameKey(refs[i], ref)) {
+                    if (replace) {
+                        refs[i] = ref;
+                    }
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            refs[i] = ref;
+            hashes[i] = hash;
+            size++;
+        }
+
+        void putAllTo(LatestRecords other, boolean replace) {
+            for (int i = 0; i < refs.length; i++) {
+                if (refs[i] != EMPTY) {
+                    other.put(refs[i], hashes[i], replace);
+                }
+            }
+        }
+
+        private boolean sameKey(long a, long b) {
+            ByteBuffer segmentA = segments[(int) (a >>> 32)];
+            ByteBuffer segmentB = segments[(int) (b >>> 32)];
+            int offsetA = (int) a;
+            int offsetB = (int) b;
+            int length = segmentA.getShort(offsetA + ID_LENGTH_OFFSET);
+            if (length != segmentB.getShort(offsetB + ID_LENGTH_OFFSET)) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (segmentA.get(offsetA + ID_OFFSET + i) != segmentB.get(offsetB + ID_OFFSET + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void grow() {
+            long[] oldRefs = refs;
+            int[] oldHashes = hashes;
+            refs = new long[oldRefs.length * 2];
+            hashes = new int[oldRefs.length * 2];
+            Arrays.fill(refs, EMPTY);
+            size = 0;
+            for (int i = 0; i < oldRefs.length; i++) {
+                if (oldRefs[i] != EMPTY) {
+                    put(oldRefs[i], oldHashes[i], false);
+                }
+            }
+        }
+    }
+
+    private static final class Segment {
+        final long index;
+        final int capacity;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final AtomicInteger reserved;
+        volatile int flushed;
+
+        private Segment(long index, int records, FileChannel channel, MappedByteBuffer buffer, int reserved) {
+            this.index = index;
+            this.capacity = records * RECORD_SIZE;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.reserved = new AtomicInteger(reserved);
+        }
+
+        static Segment create(Path path, long index, int records) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                                                   StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) records * RECORD_SIZE);
+            return new Segment(index, records, channel, buffer, 0);
+        }
+
+        /**
+         * The same file mapped with room for {@code records} records. Every record of this mapping has been
+         * reserved, appends that reserved one just before still write it here, through the shared file.
+         */
+        Segment grow(int records) throws IOException {
+            MappedByteBuffer grown = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) records * RECORD_SIZE);
+            return new Segment(index, records, channel, grown, capacity);
+        }
+
+        /**
+         * @return the offset of the reserved record, or -1 if the segment is full
+         */
+        int reserve() {
+            if (reserved.get() >= capacity) {
+                return -1;
+            }
+            int offset = reserved.getAndAdd(RECORD_SIZE);
+            return offset + RECORD_SIZE <= capacity ? offset : -1;
+        }
+
+        void write(int offset, byte[] key, long timestamp, double value) {
+            ByteBuffer b = buffer;
+            b.putShort(offset + ID_LENGTH_OFFSET, (short) key.length);
+            for (int i = 0; i < key.length; i++) {
+                b.put(offset + ID_OFFSET + i, key[i]);
+            }
+            b.putLong(offset + TIMESTAMP_OFFSET, timestamp);
+            b.putDouble(offset + VALUE_OFFSET, value);
+            // the checksum goes last, so a record torn by a crash is never taken for a complete one
+            b.putInt(offset, checksum(key, key.length, timestamp, value));
+        }
+
+        void copy(int offset, ByteBuffer from, int fromOffset) {
+            ByteBuffer b = buffer;
+            for (int i = ID_LENGTH_OFFSET; i < RECORD_SIZE; i++) {
+                b.put(offset + i, from.get(fromOffset + i));
+            }
+            b.putInt(offset, from.getInt(fromOffset));
+        }
+
+        void flush() {
+            int upTo = Math.min(reserved.get(), capacity);
+            if (upTo > flushed) {
+                buffer.force();
+                flushed = upTo;
+            }
+        }
+
+        /**
+         * Cuts off the records never reserved; the mapping must not be used afterwards.
+         */
+        void truncate() {
+            try {
+                channel.truncate(Math.min(reserved.get(), capacity));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
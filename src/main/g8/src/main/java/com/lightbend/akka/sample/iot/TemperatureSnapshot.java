@@ -0,0 +1,93 @@
+package com.lightbend.akka.sample.iot;
+
+import com.lightbend.akka.sample.iot.DeviceGroup.TemperatureReading;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Last known reading of every device of a group, kept up to date by the devices themselves.
+ * <p>
+ * Readings live in dense primitive arrays indexed by a per-device slot. The immutable map handed
+ * out to queries is built lazily and reused until it is older than the staleness the caller accepts,
+ * so frequent polling of an unchanged or slowly changing group costs no rebuild.
+ * Only ever touched from inside the owning {@link DeviceGroup}.
+ */
+final class TemperatureSnapshot {
+    private static final TemperatureReading NOT_AVAILABLE = new DeviceGroup.TemperatureNotAvailable();
+
+    private final Map<String, Integer> slots = new HashMap<>();
+    private String[] deviceIds = new String[16];
+    private double[] values = new double[16];
+    private boolean[] present = new boolean[16];
+    private int size;
+
+    private Map<String, TemperatureReading> view;
+    private long viewBuiltAtNanos;
+    private boolean changedSinceView;
+
+    int size() {
+        return size;
+    }
+
+    void track(String deviceId) {
+        if (slots.containsKey(deviceId)) {
+            return;
+        }
+        if (size == deviceIds.length) {
+            int capacity = size * 2;
+            deviceIds = Arrays.copyOf(deviceIds, capacity);
+            values = Arrays.copyOf(values, capacity);
+            present = Arrays.copyOf(present, capacity);
+        }
+        deviceIds[size] = deviceId;
+        present[size] = false;
+        slots.put(deviceId, size);
+        size++;
+        changedSinceView = true;
+    }
+
+    void update(String deviceId, double value) {
+        Integer slot = slots.get(deviceId);
+        if (slot != null) {
+            values[slot] = value;
+            present[slot] = true;
+            changedSinceView = true;
+        }
+    }
+
+    void remove(String deviceId) {
+        Integer slot = slots.remove(deviceId);
+        if (slot == null) {
+            return;
+        }
+        int last = --size;
+        if (slot != last) {
+            deviceIds[slot] = deviceIds[last];
+            values[slot] = values[last];
+            present[slot] = present[last];
+            slots.put(deviceIds[slot], slot);
+        }
+        deviceIds[last] = null;
+        changedSinceView = true;
+    }
+
+    /**
+     * @return an immutable map of all tracked devices, at most {@code maxStalenessNanos} older than the
+     * latest update the group has seen
+     */
+    Map<String, TemperatureReading> view(long maxStalenessNanos, long nowNanos) {
+        if (view == null || (changedSinceView && nowNanos - viewBuiltAtNanos >= maxStalenessNanos)) {
+            Map<String, TemperatureReading> readings = new HashMap<>(ReplySlots.capacityFor(size));
+            for (int i = 0; i < size; i++) {
+                readings.put(deviceIds[i], present[i] ? new DeviceGroup.Temperature(values[i]) : NOT_AVAILABLE);
+            }
+            view = Collections.unmodifiableMap(readings);
+            viewBuiltAtNanos = nowNanos;
+            changedSinceView = false;
+        }
+        return view;
+    }
+}
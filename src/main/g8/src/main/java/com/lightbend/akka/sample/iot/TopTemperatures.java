@@ -0,0 +1,84 @@
+package com.lightbend.akka.sample.iot;
+
+import com.lightbend.akka.sample.iot.DeviceManager.FleetTemperature;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The best {@link FleetFilter#limit} matching temperatures one {@link FleetQuery} has seen so far, and how
+ * many matched in total.
+ * <p>
+ * A heap with the worst of the kept temperatures on top, so a temperature that does not make it is turned
+ * away with one comparison and without allocating. Equal temperatures rank by group and device id, so the
+ * result does not depend on the order in which groups answer. Only ever touched from inside the owning actor.
+ */
+final class TopTemperatures {
+    private final FleetFilter filter;
+    private final Comparator<FleetTemperature> ranking;
+    // worst first
+    private final PriorityQueue<FleetTemperature> kept;
+    private long matching;
+
+    TopTemperatures(FleetFilter filter) {
+        this.filter = filter;
+        this.ranking = (a, b) -> compare(a.getValue(), a.getGroupId(), a.getDeviceId(), b);
+        this.kept = new PriorityQueue<>(Math.min(filter.limit, 1024) + 1, ranking.reversed());
+    }
+
+    /**
+     * A temperature of a device, kept if it matches the filter and ranks among the best so far.
+     */
+    void offer(String groupId, String deviceId, double value) {
+        if (!filter.matchesValue(value)) {
+            return;
+        }
+        matching++;
+        if (kept.size() < filter.limit) {
+            kept.add(new FleetTemperature(groupId, deviceId, value));
+        } else if (compare(value, groupId, deviceId, kept.peek()) < 0) {
+            kept.poll();
+            kept.add(new FleetTemperature(groupId, deviceId, value));
+        }
+    }
+
+    /**
+     * The result of another query with the same filter, which matched {@code matching} temperatures.
+     */
+    void merge(List<FleetTemperature> temperatures, long matching) {
+        this.matching += matching;
+        for (FleetTemperature t : temperatures) {
+            if (kept.size() < filter.limit) {
+                kept.add(t);
+            } else if (ranking.compare(t, kept.peek()) < 0) {
+                kept.poll();
+                kept.add(t);
+            }
+        }
+    }
+
+    long matching() {
+        return matching;
+    }
+
+    /**
+     * The kept temperatures, best first.
+     */
+    List<FleetTemperature> toList() {
+        List<FleetTemperature> list = new ArrayList<>(kept);
+        list.sort(ranking);
+        return list;
+    }
+
+    // negative if the first temperature ranks before the second
+    private int compare(double value, String groupId, String deviceId, FleetTemperature other) {
+        int c = Double.compare(value, other.getValue());
+        if (c != 0) {
+            return filter.lowestFirst ? c : -c;
+        }
+        c = groupId.compareTo(other.getGroupId());
+        return c != 0 ? c : deviceId.compareTo(other.getDeviceId());
+    }
+}
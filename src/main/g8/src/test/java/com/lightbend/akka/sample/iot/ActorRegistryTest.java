@@ -0,0 +1,51 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.javadsl.TestKit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ActorRegistryTest {
+
+    @Test
+    public void testSnapshotIsUnaffectedByLaterChanges() {
+        ActorSystem system = ActorSystem.create("test");
+        try {
+            ActorRegistry registry = new ActorRegistry();
+            ActorRef[] actors = new ActorRef[20];
+            for (int i = 0; i < actors.length; i++) {
+                actors[i] = system.actorOf(Props.empty());
+                registry.put("device" + i, actors[i]);
+            }
+            ActorRegistry.Snapshot before = registry.snapshot();
+
+            // removing from the middle moves the last device into the free slot
+            assertTrue(registry.remove("device3"));
+            assertFalse(registry.remove("device3"));
+            registry.put("device0", actors[3]);
+
+            assertEquals(19, registry.size());
+            assertFalse(registry.contains("device3"));
+            assertEquals(actors[19], registry.actorOf("device19"));
+            assertEquals("device19", registry.idOf(actors[19]));
+            assertEquals(actors[3], registry.actorOf("device0"));
+            assertNull(registry.idOf(actors[0]));
+
+            assertEquals(20, before.size());
+            assertEquals(3, before.slotOf(actors[3]));
+            assertEquals("device3", before.idAt(3));
+            assertEquals(actors[0], before.actorAt(before.slotOf(actors[0])));
+            ActorRegistry.Snapshot after = registry.snapshot();
+            assertEquals(-1, after.slotOf(actors[0]));
+            assertEquals("device19", after.idAt(after.slotOf(actors[19])));
+        } finally {
+            TestKit.shutdownActorSystem(system);
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.lightbend.akka.sample.iot;
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
 import akka.actor.PoisonPill;
+import akka.actor.Props;
 import akka.testkit.javadsl.TestKit;
 import com.lightbend.akka.sample.iot.Device.ReadTemperature;
 import com.lightbend.akka.sample.iot.DeviceGroup.*;
@@ -10,6 +11,8 @@ import org.junit.Assert;
 import org.junit.Test;
 import scala.concurrent.duration.FiniteDuration;
 
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
@@ -53,6 +56,43 @@ public class DeviceGroupQueryTest {
         assertEqualTemperatures(expectedTemperatures, response.temperatures);
     }
 
+    @Test
+    public void testAnswerWithTheTopMatchingTemperaturesOnly() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit requester = new TestKit(system);
+        TestKit device1 = new TestKit(system);
+        TestKit device2 = new TestKit(system);
+        TestKit device3 = new TestKit(system);
+        Map<ActorRef, String> actorToDeviceId = new HashMap<>();
+        actorToDeviceId.put(device1.getRef(), "device1");
+        actorToDeviceId.put(device2.getRef(), "device2");
+        actorToDeviceId.put(device3.getRef(), "device3");
+        Map<String, TemperatureReading> known = new HashMap<>();
+        known.put("device4", new Temperature(30.0));
+
+        ActorRef queryActor = system.actorOf(DeviceGroupQuery.topProps(
+                ActorRegistry.snapshotOf(actorToDeviceId), known, "group",
+                FleetFilter.all().withMaxValue(25.0).withLimit(1),
+                1L, requester.getRef(), new FiniteDuration(3, TimeUnit.SECONDS)));
+
+        for (TestKit device : new TestKit[]{device1, device2, device3}) {
+            device.expectMsgClass(ReadTemperature.class);
+        }
+        queryActor.tell(new Device.RespondTemperature(0L, Optional.of(20.0)), device1.getRef());
+        queryActor.tell(new Device.RespondTemperature(0L, Optional.of(24.0)), device2.getRef());
+        queryActor.tell(new Device.RespondTemperature(0L, Optional.empty()), device3.getRef());
+
+        // device4 is above the maximum and device1 below the best one, so only device2 leaves the group
+        DeviceManager.RespondFleetTemperatures response =
+                requester.expectMsgClass(DeviceManager.RespondFleetTemperatures.class);
+        assertEquals(1L, response.requestId);
+        assertEquals(Collections.singletonList(new DeviceManager.FleetTemperature("group", "device2", 24.0)),
+                     response.temperatures);
+        assertEquals(2L, response.matching);
+        assertEquals(1, response.groups);
+        Assert.assertTrue(response.complete);
+    }
+
     @Test
     public void testReturnTemperatureNotAvailableForDevicesWithNoReadings() {
         ActorSystem system = ActorSystem.create("test");
@@ -230,6 +270,358 @@ public class DeviceGroupQueryTest {
         assertEqualTemperatures(expectedTemperatures, response.temperatures);
     }
 
+    @Test
+    public void testReturnWindowStatisticsInAggregateMode() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit requester = new TestKit(system);
+
+        TestKit device1 = new TestKit(system);
+        TestKit device2 = new TestKit(system);
+
+        Map<ActorRef, String> actorToDeviceId = new HashMap<>();
+        actorToDeviceId.put(device1.getRef(), "device1");
+        actorToDeviceId.put(device2.getRef(), "device2");
+
+        ActorRef queryActor = system.actorOf(DeviceGroupQuery.statsProps(
+                actorToDeviceId,
+                60_000L,
+                90.0,
+                1L,
+                requester.getRef(),
+                new FiniteDuration(3, TimeUnit.SECONDS)));
+
+        assertEquals(60_000L, device1.expectMsgClass(Device.ReadTemperatureStats.class).windowMillis);
+        assertEquals(90.0, device2.expectMsgClass(Device.ReadTemperatureStats.class).percentile, 0.0);
+
+        queryActor.tell(new Device.RespondTemperatureStats(0L, 3, 1.0, 5.0, 3.0, 5.0), device1.getRef());
+        queryActor.tell(new Device.RespondTemperatureStats(0L, 0, Double.NaN, Double.NaN, Double.NaN, Double.NaN),
+                        device2.getRef());
+
+        RespondAllTemperatures response = requester.expectMsgClass(RespondAllTemperatures.class);
+        assertEquals(1L, response.requestId);
+        assertEquals(new TemperatureStats(3, 1.0, 5.0, 3.0, 5.0), response.temperatures.get("device1"));
+        Assert.assertTrue(response.temperatures.get("device2") instanceof TemperatureNotAvailable);
+    }
+
+    @Test
+    public void testAnswerFromSnapshotWhenStalenessIsAllowed() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props(
+                "group", DeviceGroupSettings.defaults().withSnapshotEnabled(true)));
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor1 = probe.getLastSender();
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        deviceActor1.tell(new Device.RecordTemperature(0L, 1.0), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+
+        Map<String, TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", new Temperature(1.0));
+        expectedTemperatures.put("device2", new TemperatureNotAvailable());
+
+        // the device pushes its change to the group asynchronously
+        probe.awaitAssert(() -> {
+            groupActor.tell(new RequestAllTemperatures(1L, 1L), probe.getRef());
+            RespondAllTemperatures response = probe.expectMsgClass(RespondAllTemperatures.class);
+            assertEquals(1L, response.requestId);
+            assertEqualTemperatures(expectedTemperatures, response.temperatures);
+            return null;
+        });
+
+        // an unchanged group hands out the same immutable snapshot again
+        groupActor.tell(new RequestAllTemperatures(2L, 60_000L), probe.getRef());
+        Map<String, TemperatureReading> first = probe.expectMsgClass(RespondAllTemperatures.class).temperatures;
+        groupActor.tell(new RequestAllTemperatures(3L, 60_000L), probe.getRef());
+        Assert.assertSame(first, probe.expectMsgClass(RespondAllTemperatures.class).temperatures);
+
+        // a staleness bound of zero still asks the devices
+        groupActor.tell(new RequestAllTemperatures(4L, 0L), probe.getRef());
+        RespondAllTemperatures fresh = probe.expectMsgClass(RespondAllTemperatures.class);
+        Assert.assertNotSame(first, fresh.temperatures);
+        assertEqualTemperatures(expectedTemperatures, fresh.temperatures);
+    }
+
+    @Test
+    public void testStreamChunksAndReportTimedOutDevices() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit requester = new TestKit(system);
+
+        TestKit device1 = new TestKit(system);
+        TestKit device2 = new TestKit(system);
+        TestKit device3 = new TestKit(system);
+
+        Map<ActorRef, String> actorToDeviceId = new HashMap<>();
+        actorToDeviceId.put(device1.getRef(), "device1");
+        actorToDeviceId.put(device2.getRef(), "device2");
+        actorToDeviceId.put(device3.getRef(), "device3");
+
+        ActorRef queryActor = system.actorOf(DeviceGroupStreamingQuery.props(
+                actorToDeviceId,
+                1L,
+                requester.getRef(),
+                2,
+                new FiniteDuration(10, TimeUnit.SECONDS),
+                new FiniteDuration(1, TimeUnit.SECONDS)));
+
+        device1.expectMsgClass(ReadTemperature.class);
+        device2.expectMsgClass(ReadTemperature.class);
+        device3.expectMsgClass(ReadTemperature.class);
+
+        queryActor.tell(new Device.RespondTemperature(0L, Optional.of(1.0)), device1.getRef());
+        queryActor.tell(new Device.RespondTemperature(0L, Optional.empty()), device2.getRef());
+
+        TemperaturesChunk chunk = requester.expectMsgClass(TemperaturesChunk.class);
+        assertEquals(1L, chunk.requestId);
+        assertEquals(0, chunk.sequenceNr);
+        Map<String, TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", new Temperature(1.0));
+        expectedTemperatures.put("device2", new TemperatureNotAvailable());
+        assertEqualTemperatures(expectedTemperatures, chunk.temperatures);
+
+        TemperaturesStreamCompleted completed = requester.expectMsgClass(
+                FiniteDuration.create(3, TimeUnit.SECONDS),
+                TemperaturesStreamCompleted.class);
+        assertEquals(1, completed.chunks);
+        assertEquals(Collections.singletonList("device3"), completed.timedOut);
+    }
+
+    @Test
+    public void testFlushPartialChunkAfterMaxDelay() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit requester = new TestKit(system);
+
+        TestKit device1 = new TestKit(system);
+        TestKit device2 = new TestKit(system);
+
+        Map<ActorRef, String> actorToDeviceId = new HashMap<>();
+        actorToDeviceId.put(device1.getRef(), "device1");
+        actorToDeviceId.put(device2.getRef(), "device2");
+
+        ActorRef queryActor = system.actorOf(DeviceGroupStreamingQuery.props(
+                actorToDeviceId,
+                1L,
+                requester.getRef(),
+                100,
+                new FiniteDuration(100, TimeUnit.MILLISECONDS),
+                new FiniteDuration(3, TimeUnit.SECONDS)));
+
+        device1.expectMsgClass(ReadTemperature.class);
+        queryActor.tell(new Device.RespondTemperature(0L, Optional.of(1.0)), device1.getRef());
+        assertEquals(1, requester.expectMsgClass(TemperaturesChunk.class).temperatures.size());
+
+        queryActor.tell(new Device.RespondTemperature(0L, Optional.of(2.0)), device2.getRef());
+        TemperaturesChunk last = requester.expectMsgClass(TemperaturesChunk.class);
+        assertEquals(1, last.sequenceNr);
+        assertEquals(2.0, last.temperatures.get("device2").getValue(), 0.0);
+        TemperaturesStreamCompleted completed = requester.expectMsgClass(TemperaturesStreamCompleted.class);
+        assertEquals(2, completed.chunks);
+        Assert.assertTrue(completed.timedOut.isEmpty());
+    }
+
+    @Test
+    public void testCompleteStreamAsSoonAsQuorumAnswered() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit requester = new TestKit(system);
+
+        TestKit device1 = new TestKit(system);
+        TestKit device2 = new TestKit(system);
+
+        Map<ActorRef, String> actorToDeviceId = new HashMap<>();
+        actorToDeviceId.put(device1.getRef(), "device1");
+        actorToDeviceId.put(device2.getRef(), "device2");
+
+        ActorRef queryActor = system.actorOf(DeviceGroupStreamingQuery.props(
+                actorToDeviceId,
+                1L,
+                requester.getRef(),
+                100,
+                new FiniteDuration(10, TimeUnit.SECONDS),
+                new FiniteDuration(10, TimeUnit.SECONDS),
+                CompletionPolicy.quorum(0.5)));
+
+        queryActor.tell(new Device.RespondTemperature(0L, Optional.of(1.0)), device1.getRef());
+
+        // well before the 10 second timeout
+        TemperaturesChunk chunk = requester.expectMsgClass(FiniteDuration.create(1, TimeUnit.SECONDS),
+                                                           TemperaturesChunk.class);
+        assertEquals(1.0, chunk.temperatures.get("device1").getValue(), 0.0);
+        TemperaturesStreamCompleted completed = requester.expectMsgClass(TemperaturesStreamCompleted.class);
+        assertEquals(Collections.singletonList("device2"), completed.timedOut);
+    }
+
+    @Test
+    public void testFinishStatsAfterFirstKAnswers() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit requester = new TestKit(system);
+
+        TestKit device1 = new TestKit(system);
+        TestKit device2 = new TestKit(system);
+
+        Map<ActorRef, String> actorToDeviceId = new HashMap<>();
+        actorToDeviceId.put(device1.getRef(), "device1");
+        actorToDeviceId.put(device2.getRef(), "device2");
+
+        ActorRef queryActor = system.actorOf(DeviceGroupQuery.statsProps(
+                actorToDeviceId,
+                60_000L,
+                50.0,
+                1L,
+                requester.getRef(),
+                new FiniteDuration(10, TimeUnit.SECONDS),
+                CompletionPolicy.firstK(1)));
+
+        device1.expectMsgClass(Device.ReadTemperatureStats.class);
+        queryActor.tell(new Device.RespondTemperatureStats(0L, 2, 19.0, 21.0, 20.0, 21.0), device1.getRef());
+
+        RespondAllTemperatures response = requester.expectMsgClass(
+                FiniteDuration.create(1, TimeUnit.SECONDS),
+                RespondAllTemperatures.class);
+        assertEquals(20.0, response.temperatures.get("device1").getValue(), 0.0);
+        Assert.assertTrue(response.temperatures.get("device2") instanceof DeviceTimedOut);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectStreamingWithoutPositiveChunkSize() {
+        new RequestAllTemperaturesStreamed(1L, -2, new FiniteDuration(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectStreamingWithoutPositiveChunkDelay() {
+        new RequestAllTemperaturesStreamed(1L, 10, new FiniteDuration(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testFinishAsSoonAsQuorumAnswered() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit requester = new TestKit(system);
+
+        TestKit device1 = new TestKit(system);
+        TestKit device2 = new TestKit(system);
+        TestKit device3 = new TestKit(system);
+
+        Map<ActorRef, String> actorToDeviceId = new HashMap<>();
+        actorToDeviceId.put(device1.getRef(), "device1");
+        actorToDeviceId.put(device2.getRef(), "device2");
+        actorToDeviceId.put(device3.getRef(), "device3");
+
+        ActorRef queryActor = system.actorOf(DeviceGroupQuery.props(
+                actorToDeviceId,
+                1L,
+                requester.getRef(),
+                new FiniteDuration(10, TimeUnit.SECONDS),
+                CompletionPolicy.quorum(0.5)));
+
+        queryActor.tell(new Device.RespondTemperature(0L, Optional.of(1.0)), device1.getRef());
+        requester.expectNoMsg(FiniteDuration.create(100, TimeUnit.MILLISECONDS));
+        queryActor.tell(new Device.RespondTemperature(0L, Optional.of(2.0)), device2.getRef());
+
+        // well before the 10 second timeout
+        RespondAllTemperatures response = requester.expectMsgClass(
+                FiniteDuration.create(1, TimeUnit.SECONDS),
+                RespondAllTemperatures.class);
+        Map<String, TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", new Temperature(1.0));
+        expectedTemperatures.put("device2", new Temperature(2.0));
+        expectedTemperatures.put("device3", new DeviceTimedOut());
+        assertEqualTemperatures(expectedTemperatures, response.temperatures);
+        Assert.assertTrue(response.temperatures.get("device3") instanceof DeviceTimedOut);
+    }
+
+    @Test
+    public void testFinishAfterFirstKAnswers() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit requester = new TestKit(system);
+
+        TestKit device1 = new TestKit(system);
+        TestKit device2 = new TestKit(system);
+
+        Map<ActorRef, String> actorToDeviceId = new HashMap<>();
+        actorToDeviceId.put(device1.getRef(), "device1");
+        actorToDeviceId.put(device2.getRef(), "device2");
+
+        ActorRef queryActor = system.actorOf(DeviceGroupQuery.props(
+                actorToDeviceId,
+                1L,
+                requester.getRef(),
+                new FiniteDuration(10, TimeUnit.SECONDS),
+                CompletionPolicy.firstK(1)));
+
+        queryActor.tell(new Device.RespondTemperature(0L, Optional.of(2.0)), device2.getRef());
+
+        RespondAllTemperatures response = requester.expectMsgClass(
+                FiniteDuration.create(1, TimeUnit.SECONDS),
+                RespondAllTemperatures.class);
+        assertEquals(2.0, response.temperatures.get("device2").getValue(), 0.0);
+        Assert.assertTrue(response.temperatures.get("device1") instanceof DeviceTimedOut);
+    }
+
+    @Test
+    public void testRequiredRepliesPerPolicy() {
+        assertEquals(100, CompletionPolicy.all().requiredReplies(100));
+        assertEquals(99, CompletionPolicy.quorum(0.99).requiredReplies(100));
+        assertEquals(1, CompletionPolicy.quorum(0.01).requiredReplies(3));
+        assertEquals(10, CompletionPolicy.firstK(10).requiredReplies(100));
+        assertEquals(3, CompletionPolicy.firstK(10).requiredReplies(3));
+        assertEquals(0, CompletionPolicy.all().requiredReplies(0));
+    }
+
+    @Test
+    public void testQueryAllocationGrowsLinearlyWithGroupSize() {
+        ActorSystem system = ActorSystem.create("test");
+        try {
+            Map<ActorRef, String> small = devices(system, 1_000);
+            Map<ActorRef, String> large = devices(system, 8_000);
+
+            // warm up so that class loading and JIT do not end up in the measurement
+            for (int i = 0; i < 5; i++) {
+                collectAll(small);
+            }
+            long smallBytes = Long.MAX_VALUE;
+            long largeBytes = Long.MAX_VALUE;
+            for (int i = 0; i < 3; i++) {
+                smallBytes = Math.min(smallBytes, allocatedBytes(() -> collectAll(small)));
+                largeBytes = Math.min(largeBytes, allocatedBytes(() -> collectAll(large)));
+            }
+
+            // 8x the devices: linear growth stays close to 8x, copy-per-reply would be ~64x
+            double ratio = (double) largeBytes / smallBytes;
+            Assert.assertTrue("allocation ratio was " + ratio, ratio < 16.0);
+        } finally {
+            TestKit.shutdownActorSystem(system);
+        }
+    }
+
+    private static Map<ActorRef, String> devices(ActorSystem system, int count) {
+        Map<ActorRef, String> actorToDeviceId = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            actorToDeviceId.put(system.actorOf(Props.empty()), "device" + i);
+        }
+        return actorToDeviceId;
+    }
+
+    private static void collectAll(Map<ActorRef, String> actorToDeviceId) {
+        ReplySlots replies = new ReplySlots(actorToDeviceId);
+        TemperatureReading reading = new Temperature(1.0);
+        for (ActorRef deviceActor : actorToDeviceId.keySet()) {
+            replies.record(deviceActor, reading);
+        }
+        Assert.assertTrue(replies.isComplete());
+        assertEquals(actorToDeviceId.size(), replies.toMap(new DeviceTimedOut()).size());
+    }
+
+    private static long allocatedBytes(Runnable work) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        work.run();
+        return threads.getThreadAllocatedBytes(threadId) - before;
+    }
+
     private void assertEqualTemperatures(Map<String, TemperatureReading> expectedTemperatures, Map<String, TemperatureReading> temperatures) {
 
         assertEquals(expectedTemperatures.size(), temperatures.size());
@@ -0,0 +1,260 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.ActorPath;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import scala.concurrent.duration.FiniteDuration;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceManagerTest {
+    static ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Test
+    public void testRouteEveryGroupToTheSameShard() {
+        TestKit probe = new TestKit(system);
+        ActorRef managerActor = system.actorOf(DeviceManager.props(4));
+
+        ActorPath[] shards = new ActorPath[20];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = shardOfDevice(probe, managerActor, "group" + i, "device");
+        }
+        for (int i = 0; i < shards.length; i++) {
+            assertEquals(shards[i], shardOfDevice(probe, managerActor, "group" + i, "device"));
+        }
+        Set<ActorPath> distinct = new HashSet<>(Arrays.asList(shards));
+        assertTrue("20 groups all routed to " + distinct, distinct.size() > 1);
+    }
+
+    @Test
+    public void testShardsGroupsByGroupId() {
+        TestKit probe = new TestKit(system);
+        ActorRef managerActor = system.actorOf(DeviceManager.props(4));
+
+        managerActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorPath device1 = probe.getLastSender().path();
+        for (int i = 2; i <= 10; i++) {
+            managerActor.tell(new DeviceManager.RequestTrackDevice("group", "device" + i), probe.getRef());
+            probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+            // every device lives in the one group actor of the shard owning "group"
+            assertEquals(device1.parent(), probe.getLastSender().path().parent());
+        }
+        assertEquals("group-group", device1.parent().name());
+        assertEquals(managerActor.path(), device1.parent().parent().parent());
+    }
+
+    /**
+     * The routee of the manager hosting the group of the device, the grandparent of the device actor.
+     */
+    private static ActorPath shardOfDevice(TestKit probe, ActorRef managerActor, String groupId, String deviceId) {
+        managerActor.tell(new DeviceManager.RequestTrackDevice(groupId, deviceId), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorPath group = probe.getLastSender().path().parent();
+        assertEquals("group-" + groupId, group.name());
+        return group.parent();
+    }
+
+    @Test
+    public void testHandBackReadingsForUntrackedGroup() {
+        TestKit probe = new TestKit(system);
+        ActorRef managerActor = system.actorOf(DeviceManager.props(4));
+
+        DeviceGroup.RecordTemperatures readings = new DeviceGroup.RecordTemperatures(
+                new String[]{"device"}, new long[]{1L}, new double[]{20.0}, new long[]{1000L});
+        managerActor.tell(new DeviceManager.RecordTemperatures("untracked", readings), probe.getRef());
+        assertEquals(readings, probe.expectMsgClass(PriorityIngestMailbox.Dropped.class).message);
+    }
+
+    @Test
+    public void testAnswerQueriesForUntrackedGroupWithoutCreatingIt() throws Exception {
+        TestKit probe = new TestKit(system);
+        Path journal = Files.createTempDirectory("journal");
+        ActorRef managerActor = system.actorOf(DeviceManager.props(
+                4, DeviceGroupSettings.defaults().withJournalDirectory(journal)));
+
+        managerActor.tell(new DeviceManager.ForGroup("untracked", new DeviceGroup.RequestAllTemperatures(1L)),
+                          probe.getRef());
+        DeviceGroup.RespondAllTemperatures response = probe.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+        assertEquals(1L, response.requestId);
+        assertTrue(response.temperatures.isEmpty());
+        managerActor.tell(new DeviceManager.ForGroup("untracked", new DeviceGroup.RequestDeviceList(2L)),
+                          probe.getRef());
+        assertTrue(probe.expectMsgClass(DeviceGroup.ReplyDeviceList.class).ids.isEmpty());
+        assertFalse(Files.exists(journal.resolve("untracked")));
+
+        managerActor.tell(new DeviceManager.RequestTrackDevice("untracked", "device"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        assertTrue(Files.isDirectory(journal.resolve("untracked")));
+        managerActor.tell(new DeviceManager.ForGroup("untracked", new DeviceGroup.RequestDeviceList(3L)),
+                          probe.getRef());
+        assertEquals(Collections.singleton("device"), probe.expectMsgClass(DeviceGroup.ReplyDeviceList.class).ids);
+    }
+
+    @Test
+    public void testRestoreGroupsFromSnapshot() throws Exception {
+        TestKit probe = new TestKit(system);
+        Path snapshotDirectory = Files.createTempDirectory("snapshot");
+        ActorRef managerActor = system.actorOf(DeviceManager.props(
+                2, DeviceGroupSettings.defaults(), snapshotDirectory,
+                FiniteDuration.create(200, TimeUnit.MILLISECONDS)));
+
+        managerActor.tell(new DeviceManager.RequestTrackDevice("group1", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        probe.getLastSender().tell(new Device.RecordTemperature(1L, 19.5), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+        managerActor.tell(new DeviceManager.RequestTrackDevice("group2", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        probe.awaitAssert(() -> {
+            List<DeviceManager.RestoreGroup> groups = readAll(snapshotDirectory).stream()
+                    .flatMap(snapshot -> snapshot.groups.stream())
+                    .sorted((a, b) -> a.groupId.compareTo(b.groupId))
+                    .collect(Collectors.toList());
+            assertEquals(2, groups.size());
+            assertEquals("group1", groups.get(0).groupId);
+            assertArrayEquals(new String[]{"device1"}, groups.get(0).deviceIds);
+            assertEquals(19.5, groups.get(0).values[0], 0.0);
+            assertEquals(false, groups.get(1).hasValue[0]);
+            return null;
+        });
+        system.stop(managerActor);
+
+        ActorRef restarted = system.actorOf(DeviceManager.props(2));
+        for (RegistrySnapshot snapshot : RegistrySnapshot.readAll(snapshotDirectory)) {
+            for (DeviceManager.RestoreGroup group : snapshot.groups) {
+                restarted.tell(group, ActorRef.noSender());
+            }
+        }
+        restarted.tell(new DeviceManager.RequestTrackDevice("group1", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        system.actorSelection(probe.getLastSender().path().parent()).tell(new DeviceGroup.RequestAllTemperatures(2L), probe.getRef());
+        DeviceGroup.RespondAllTemperatures response = probe.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+        assertEquals(Stream.of("device1", "device2").collect(Collectors.toSet()), response.temperatures.keySet());
+        assertEquals(new DeviceGroup.Temperature(19.5), response.temperatures.get("device1"));
+    }
+
+    @Test
+    public void testReportMetricsByMessageAndJmx() throws Exception {
+        TestKit probe = new TestKit(system);
+        ActorRef managerActor = system.actorOf(DeviceManager.props(2));
+
+        managerActor.tell(new DeviceManager.RequestTrackDevice("metrics-group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        probe.getLastSender().tell(new Device.RecordTemperature(1L, 21.0), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+
+        managerActor.tell(new DeviceManager.RequestMetrics(2L), probe.getRef());
+        DeviceManager.RespondMetrics response = probe.expectMsgClass(DeviceManager.RespondMetrics.class);
+        assertEquals(2L, response.requestId);
+        IotMetrics.MetricsSnapshot metrics = response.metrics;
+        assertTrue(metrics.getDevices().getMessages() >= 2);
+        assertTrue(metrics.getDevices().getLiveActors() >= 1);
+        assertTrue(metrics.getGroups().getLiveActors() >= 1);
+        assertTrue(metrics.getManagers().getMailboxLatency().getCount() >= 2);
+
+        Object exported = ManagementFactory.getPlatformMBeanServer().getAttribute(
+                new ObjectName("com.lightbend.akka.sample.iot:type=IotMetrics,system=\"" + system.name() + "\""),
+                "Snapshot");
+        CompositeData devices = (CompositeData) ((CompositeData) exported).get("devices");
+        assertTrue((Long) devices.get("messages") >= 2);
+    }
+
+    @Test
+    public void testFleetQueryFiltersGroupsAndValuesAcrossShards() {
+        TestKit probe = new TestKit(system);
+        ActorRef managerActor = system.actorOf(DeviceManager.props(4));
+        for (int g = 0; g < 5; g++) {
+            for (int d = 0; d < 3; d++) {
+                track(managerActor, probe, "north-" + g, "device" + d, 20.0 + g + d / 10.0);
+            }
+        }
+        track(managerActor, probe, "south-0", "device0", 50.0);
+
+        managerActor.tell(new DeviceManager.RequestFleetTemperatures(
+                1L, FleetFilter.all().withGroupIdPrefix("north").withMinValue(21.0).withLimit(3)), probe.getRef());
+        DeviceManager.RespondFleetTemperatures response =
+                probe.expectMsgClass(DeviceManager.RespondFleetTemperatures.class);
+        assertEquals(1L, response.requestId);
+        assertEquals(Arrays.asList(new DeviceManager.FleetTemperature("north-4", "device2", 24.2),
+                                   new DeviceManager.FleetTemperature("north-4", "device1", 24.1),
+                                   new DeviceManager.FleetTemperature("north-4", "device0", 24.0)),
+                     response.temperatures);
+        assertEquals(12L, response.matching);
+        assertEquals(5, response.groups);
+        assertTrue(response.complete);
+    }
+
+    @Test
+    public void testFleetQueryReturnsLowestAndSkipsDevicesWithoutTemperature() {
+        TestKit probe = new TestKit(system);
+        ActorRef managerActor = system.actorOf(DeviceManager.props(3));
+        for (int g = 0; g < 10; g++) {
+            for (int d = 0; d < 4; d++) {
+                track(managerActor, probe, "group" + g, "device" + d, 30.0 - g - d);
+            }
+        }
+        managerActor.tell(new DeviceManager.RequestTrackDevice("group0", "silent"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        managerActor.tell(new DeviceManager.RequestFleetTemperatures(
+                2L, FleetFilter.all().withLowestFirst(true).withLimit(2)), probe.getRef());
+        DeviceManager.RespondFleetTemperatures response =
+                probe.expectMsgClass(DeviceManager.RespondFleetTemperatures.class);
+        assertEquals(Arrays.asList(new DeviceManager.FleetTemperature("group9", "device3", 18.0),
+                                   new DeviceManager.FleetTemperature("group8", "device3", 19.0)),
+                     response.temperatures);
+        assertEquals(40L, response.matching);
+        assertEquals(10, response.groups);
+        assertTrue(response.complete);
+    }
+
+    private static void track(ActorRef managerActor, TestKit probe, String groupId, String deviceId, double value) {
+        managerActor.tell(new DeviceManager.RequestTrackDevice(groupId, deviceId), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        probe.getLastSender().tell(new Device.RecordTemperature(0L, value), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+    }
+
+    private static List<RegistrySnapshot> readAll(Path directory) {
+        try {
+            return RegistrySnapshot.readAll(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
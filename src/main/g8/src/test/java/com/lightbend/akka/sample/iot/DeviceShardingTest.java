@@ -0,0 +1,400 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.cluster.Cluster;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.ShardRegion;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.StreamSupport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Three cluster nodes in this JVM, talking over the loopback interface, each hosting a share of the groups.
+ */
+public class DeviceShardingTest {
+    static final int NODES = 3;
+    static final Duration TIMEOUT = Duration.ofSeconds(10);
+    static ActorSystem[] nodes = new ActorSystem[NODES];
+    static ActorRef[] regions = new ActorRef[NODES];
+
+    @BeforeClass
+    public static void setup() {
+        Config config = ConfigFactory.parseString("akka.remote.artery.canonical.port = 0")
+                .withFallback(ConfigFactory.load("cluster"));
+        for (int i = 0; i < NODES; i++) {
+            nodes[i] = ActorSystem.create("iot-cluster", config);
+            Cluster.get(nodes[i]).join(Cluster.get(nodes[0]).selfAddress());
+        }
+        new TestKit(nodes[0]) {{
+            awaitAssert(Duration.ofSeconds(20), () -> {
+                for (ActorSystem node : nodes) {
+                    long up = StreamSupport.stream(Cluster.get(node).state().getMembers().spliterator(), false)
+                            .filter(m -> m.status() == MemberStatus.up())
+                            .count();
+                    assertEquals(NODES, up);
+                }
+                return null;
+            });
+        }};
+        for (int i = 0; i < NODES; i++) {
+            regions[i] = DeviceManager.startSharding(nodes[i], DeviceGroupSettings.defaults());
+        }
+        // shards are only allocated to the regions the coordinator knows
+        new TestKit(nodes[0]) {{
+            awaitAssert(Duration.ofSeconds(20), () -> {
+                regions[0].tell(ShardRegion.getCurrentRegionsInstance(), getRef());
+                assertEquals(NODES, expectMsgClass(ShardRegion.CurrentRegions.class).getRegions().size());
+                return null;
+            });
+        }};
+    }
+
+    @AfterClass
+    public static void teardown() {
+        for (int i = NODES - 1; i >= 0; i--) {
+            TestKit.shutdownActorSystem(nodes[i]);
+            nodes[i] = null;
+        }
+    }
+
+    @Test
+    public void testSpreadGroupsOverNodesAndRouteThroughAnyOfThem() {
+        TestKit probe = new TestKit(nodes[0]);
+        for (int g = 0; g < 30; g++) {
+            regions[g % NODES].tell(new DeviceManager.RequestTrackDevice("group" + g, "device1"), probe.getRef());
+            probe.expectMsgClass(TIMEOUT, DeviceManager.DeviceRegistered.class);
+        }
+        for (ActorRef region : regions) {
+            region.tell(ShardRegion.getShardRegionStateInstance(), probe.getRef());
+            assertFalse(probe.expectMsgClass(ShardRegion.CurrentShardRegionState.class).getShards().isEmpty());
+        }
+
+        for (int g = 0; g < 30; g++) {
+            DeviceManager.ForGroup list = new DeviceManager.ForGroup("group" + g, new DeviceGroup.RequestDeviceList(g));
+            regions[(g + 1) % NODES].tell(list, probe.getRef());
+            DeviceGroup.ReplyDeviceList reply = probe.expectMsgClass(TIMEOUT, DeviceGroup.ReplyDeviceList.class);
+            assertEquals(g, reply.requestId);
+            assertEquals(1, reply.ids.size());
+        }
+    }
+
+    @Test
+    public void testRecordOnOneNodeAndQueryOnAnother() {
+        TestKit probe = new TestKit(nodes[1]);
+        regions[1].tell(new DeviceManager.RequestTrackDevice("readings", "device1"), probe.getRef());
+        probe.expectMsgClass(TIMEOUT, DeviceManager.DeviceRegistered.class);
+        regions[1].tell(new DeviceManager.RequestTrackDevice("readings", "device2"), probe.getRef());
+        probe.expectMsgClass(TIMEOUT, DeviceManager.DeviceRegistered.class);
+
+        regions[2].tell(new DeviceManager.RecordTemperatures("readings", new DeviceGroup.RecordTemperatures(
+                new String[]{"device1", "device2"}, new long[]{1L, 2L}, new double[]{20.0, 21.0},
+                new long[]{1000L, 1000L})), probe.getRef());
+        Set<Long> acknowledged = new HashSet<>();
+        acknowledged.add(probe.expectMsgClass(TIMEOUT, Device.TemperatureBatchRecorded.class).requestId);
+        acknowledged.add(probe.expectMsgClass(TIMEOUT, Device.TemperatureBatchRecorded.class).requestId);
+        assertEquals(new HashSet<>(Arrays.asList(1L, 2L)), acknowledged);
+
+        regions[0].tell(new DeviceManager.ForGroup("readings", new DeviceGroup.RequestAllTemperatures(3L)),
+                        probe.getRef());
+        DeviceGroup.RespondAllTemperatures response =
+                probe.expectMsgClass(TIMEOUT, DeviceGroup.RespondAllTemperatures.class);
+        assertEquals(3L, response.requestId);
+        assertEquals(new DeviceGroup.Temperature(20.0), response.temperatures.get("device1"));
+        assertEquals(new DeviceGroup.Temperature(21.0), response.temperatures.get("device2"));
+    }
+
+    @Test
+    public void testFleetQueryAcrossNodes() {
+        TestKit probe = new TestKit(nodes[0]);
+        for (int g = 0; g < 12; g++) {
+            regions[g % NODES].tell(new DeviceManager.RequestTrackDevice("fleet" + g, "device"), probe.getRef());
+            probe.expectMsgClass(TIMEOUT, DeviceManager.DeviceRegistered.class);
+            DeviceGroup.RecordTemperatures record = new DeviceGroup.RecordTemperatures(
+                    new String[]{"device"}, new long[]{g}, new double[]{g}, new long[]{1000L});
+            regions[g % NODES].tell(new DeviceManager.RecordTemperatures("fleet" + g, record), probe.getRef());
+            probe.expectMsgClass(TIMEOUT, Device.TemperatureBatchRecorded.class);
+        }
+
+        DeviceManager.fleetQueryEndpoint(nodes[1]).tell(new DeviceManager.RequestFleetTemperatures(
+                1L, FleetFilter.all().withGroupIdPrefix("fleet").withMaxValue(9.0).withLimit(3)), probe.getRef());
+        DeviceManager.RespondFleetTemperatures response =
+                probe.expectMsgClass(TIMEOUT, DeviceManager.RespondFleetTemperatures.class);
+        assertEquals(1L, response.requestId);
+        assertEquals(Arrays.asList(new DeviceManager.FleetTemperature("fleet9", "device", 9.0),
+                                   new DeviceManager.FleetTemperature("fleet8", "device", 8.0),
+                                   new DeviceManager.FleetTemperature("fleet7", "device", 7.0)),
+                     response.temperatures);
+        assertEquals(10L, response.matching);
+        assertEquals(12, response.groups);
+        assertTrue(response.complete);
+    }
+
+    @Test
+    public void testAnswerQueriesForUnknownGroupsAsEmpty() {
+        TestKit probe = new TestKit(nodes[2]);
+        regions[2].tell(new DeviceManager.ForGroup("nowhere", new DeviceGroup.RequestDeviceList(1L)), probe.getRef());
+        DeviceGroup.ReplyDeviceList reply = probe.expectMsgClass(TIMEOUT, DeviceGroup.ReplyDeviceList.class);
+        assertEquals(1L, reply.requestId);
+        assertTrue(reply.ids.isEmpty());
+    }
+
+    @Test
+    public void testHandOffDevicesOfAGroupThatMovesToAnotherNode() {
+        // a cluster of its own, as one of its regions is shut down
+        ActorSystem[] cluster = new ActorSystem[2];
+        try {
+            ActorRef[] clusterRegions = startCluster("iot-hand-off", cluster, DeviceGroupSettings.defaults());
+            TestKit probe = new TestKit(cluster[0]);
+
+            clusterRegions[0].tell(new DeviceManager.RequestTrackDevice("moving", "device1"), probe.getRef());
+            probe.expectMsgClass(TIMEOUT, DeviceManager.DeviceRegistered.class);
+            clusterRegions[0].tell(new DeviceManager.RequestTrackDevice("moving", "device2"), probe.getRef());
+            probe.expectMsgClass(TIMEOUT, DeviceManager.DeviceRegistered.class);
+            clusterRegions[0].tell(new DeviceManager.RecordTemperatures("moving", new DeviceGroup.RecordTemperatures(
+                    new String[]{"device1"}, new long[]{1L}, new double[]{20.0}, new long[]{1000L})),
+                                   probe.getRef());
+            probe.expectMsgClass(TIMEOUT, Device.TemperatureBatchRecorded.class);
+
+            int host = hostOf(probe, clusterRegions, "moving");
+            shutDownRegion(probe, clusterRegions[host]);
+
+            ActorRef other = clusterRegions[cluster.length - 1 - host];
+            other.tell(new DeviceManager.ForGroup("moving", new DeviceGroup.RequestAllTemperatures(2L)),
+                       probe.getRef());
+            DeviceGroup.RespondAllTemperatures response =
+                    probe.expectMsgClass(TIMEOUT, DeviceGroup.RespondAllTemperatures.class);
+            assertEquals(2, response.temperatures.size());
+            assertEquals(new DeviceGroup.Temperature(20.0), response.temperatures.get("device1"));
+            assertTrue(response.temperatures.get("device2") instanceof DeviceGroup.TemperatureNotAvailable);
+        } finally {
+            shutdown(cluster);
+        }
+    }
+
+    @Test
+    public void testKeepHandedOffReadingsOverTheJournalOfANodeTheGroupMovesBackTo() throws Exception {
+        // every node journals to a directory of its own, the third one to that of the node the group was on first
+        Path[] journals = {Files.createTempDirectory("journal"), Files.createTempDirectory("journal")};
+        ActorSystem[] cluster = new ActorSystem[2];
+        ActorSystem third = null;
+        try {
+            ActorRef[] clusterRegions = startCluster("iot-move-back", cluster, journals);
+            TestKit probe = new TestKit(cluster[0]);
+
+            clusterRegions[0].tell(new DeviceManager.RequestTrackDevice("moving", "device1"), probe.getRef());
+            probe.expectMsgClass(TIMEOUT, DeviceManager.DeviceRegistered.class);
+            clusterRegions[0].tell(new DeviceManager.RecordTemperatures("moving", new DeviceGroup.RecordTemperatures(
+                    new String[]{"device1"}, new long[]{1L}, new double[]{20.0}, new long[]{1000L})),
+                                   probe.getRef());
+            probe.expectMsgClass(TIMEOUT, Device.TemperatureBatchRecorded.class);
+
+            int first = hostOf(probe, clusterRegions, "moving");
+            int second = 1 - first;
+            shutDownRegion(probe, clusterRegions[first]);
+            clusterRegions[second].tell(new DeviceManager.RecordTemperatures(
+                    "moving", new DeviceGroup.RecordTemperatures(
+                            new String[]{"device1"}, new long[]{2L}, new double[]{25.0}, new long[]{2000L})),
+                                        probe.getRef());
+            probe.expectMsgClass(TIMEOUT, Device.TemperatureBatchRecorded.class);
+
+            third = startNode("iot-move-back", cluster[0]);
+            awaitMembersUp(probe, new ActorSystem[]{cluster[0], cluster[1], third});
+            ActorRef thirdRegion = DeviceManager.startSharding(
+                    third, DeviceGroupSettings.defaults().withJournalDirectory(journals[first]));
+            awaitRegions(probe, thirdRegion, 2);
+            // the group recovers 20.0 from the journal of the third node, but is handed 25.0
+            shutDownRegion(probe, clusterRegions[second]);
+
+            thirdRegion.tell(new DeviceManager.ForGroup("moving", new DeviceGroup.RequestAllTemperatures(3L)),
+                             probe.getRef());
+            DeviceGroup.RespondAllTemperatures response =
+                    probe.expectMsgClass(TIMEOUT, DeviceGroup.RespondAllTemperatures.class);
+            assertEquals(new DeviceGroup.Temperature(25.0), response.temperatures.get("device1"));
+        } finally {
+            if (third != null) {
+                TestKit.shutdownActorSystem(third);
+            }
+            shutdown(cluster);
+        }
+
+        // the reading handed over was journaled on the node it was handed to
+        ActorSystem system = ActorSystem.create("iot-journal");
+        try {
+            TestKit probe = new TestKit(system);
+            for (Path journal : journals) {
+                ActorRef group = system.actorOf(DeviceGroup.props(
+                        "moving", DeviceGroupSettings.defaults().withJournalDirectory(journal)));
+                group.tell(new DeviceGroup.RequestAllTemperatures(4L), probe.getRef());
+                assertEquals(new DeviceGroup.Temperature(25.0),
+                             probe.expectMsgClass(TIMEOUT, DeviceGroup.RespondAllTemperatures.class)
+                                     .temperatures.get("device1"));
+            }
+        } finally {
+            TestKit.shutdownActorSystem(system);
+        }
+    }
+
+    @Test
+    public void testMoveSubscriptionsAlongWithAGroup() {
+        ActorSystem[] cluster = new ActorSystem[2];
+        try {
+            ActorRef[] clusterRegions = startCluster("iot-subscriptions", cluster, DeviceGroupSettings.defaults());
+            TestKit probe = new TestKit(cluster[0]);
+
+            clusterRegions[0].tell(new DeviceManager.RequestTrackDevice("moving", "device1"), probe.getRef());
+            probe.expectMsgClass(TIMEOUT, DeviceManager.DeviceRegistered.class);
+            clusterRegions[0].tell(new DeviceManager.ForGroup(
+                    "moving", new DeviceGroup.SubscribeAlerts(1L, AlertCondition.above(30.0))), probe.getRef());
+            assertEquals(new DeviceGroup.AlertsSubscribed(1L),
+                         probe.expectMsgClass(TIMEOUT, DeviceGroup.AlertsSubscribed.class));
+            clusterRegions[0].tell(new DeviceManager.ForGroup(
+                    "moving", new DeviceGroup.SubscribeReadings(2L, 8, DeviceGroup.FeedOverflow.DROP_OLDEST)),
+                                   probe.getRef());
+            assertEquals(new DeviceGroup.ReadingsSubscribed(2L),
+                         probe.expectMsgClass(TIMEOUT, DeviceGroup.ReadingsSubscribed.class));
+
+            int host = hostOf(probe, clusterRegions, "moving");
+            // the subscriptions may be confirmed before the region terminates
+            shutDownRegion(new TestKit(cluster[0]), clusterRegions[host]);
+            // the group on its new node confirms both subscriptions again
+            Set<Object> subscribed = new HashSet<>();
+            subscribed.add(probe.expectMsgAnyClassOf(
+                    TIMEOUT, DeviceGroup.AlertsSubscribed.class, DeviceGroup.ReadingsSubscribed.class));
+            subscribed.add(probe.expectMsgAnyClassOf(
+                    TIMEOUT, DeviceGroup.AlertsSubscribed.class, DeviceGroup.ReadingsSubscribed.class));
+            assertEquals(new HashSet<>(Arrays.asList(new DeviceGroup.AlertsSubscribed(1L),
+                                                     new DeviceGroup.ReadingsSubscribed(2L))), subscribed);
+
+            ActorRef other = clusterRegions[1 - host];
+            other.tell(new DeviceManager.RecordTemperatures("moving", new DeviceGroup.RecordTemperatures(
+                    new String[]{"device1"}, new long[]{3L}, new double[]{35.0}, new long[]{1000L})),
+                       probe.getRef());
+            DeviceGroup.Alert alert = null;
+            DeviceGroup.ReadingChanges changes = null;
+            for (int i = 0; i < 3; i++) {
+                Object message = probe.expectMsgAnyClassOf(TIMEOUT, Device.TemperatureBatchRecorded.class,
+                                                           DeviceGroup.Alert.class, DeviceGroup.ReadingChanges.class);
+                if (message instanceof DeviceGroup.Alert) {
+                    alert = (DeviceGroup.Alert) message;
+                } else if (message instanceof DeviceGroup.ReadingChanges) {
+                    changes = (DeviceGroup.ReadingChanges) message;
+                }
+            }
+            assertNotNull(alert);
+            assertEquals(1L, alert.subscriptionId);
+            assertEquals(35.0, alert.value, 0.0);
+            assertNotNull(changes);
+            assertEquals(2L, changes.subscriptionId);
+            assertEquals(0L, changes.sequenceNr);
+            assertArrayEquals(new double[]{35.0}, changes.values, 0.0);
+        } finally {
+            shutdown(cluster);
+        }
+    }
+
+    /**
+     * Starts a cluster of as many nodes as {@code cluster} has room for, each hosting a share of the groups,
+     * with the journal of every node in the directory of the same index.
+     */
+    private static ActorRef[] startCluster(String name, ActorSystem[] cluster, Path... journals) {
+        DeviceGroupSettings[] settings = new DeviceGroupSettings[cluster.length];
+        for (int i = 0; i < cluster.length; i++) {
+            settings[i] = DeviceGroupSettings.defaults().withJournalDirectory(journals[i]);
+        }
+        return startCluster(name, cluster, settings);
+    }
+
+    private static ActorRef[] startCluster(String name, ActorSystem[] cluster, DeviceGroupSettings... settings) {
+        for (int i = 0; i < cluster.length; i++) {
+            cluster[i] = startNode(name, cluster[0]);
+        }
+        TestKit probe = new TestKit(cluster[0]);
+        awaitMembersUp(probe, cluster);
+        ActorRef[] clusterRegions = new ActorRef[cluster.length];
+        for (int i = 0; i < cluster.length; i++) {
+            clusterRegions[i] = DeviceManager.startSharding(cluster[i], settings[Math.min(i, settings.length - 1)]);
+        }
+        awaitRegions(probe, clusterRegions[0], cluster.length);
+        return clusterRegions;
+    }
+
+    /**
+     * Starts a node that joins the cluster of {@code seed}, or starts one with itself if it is null.
+     */
+    private static ActorSystem startNode(String name, ActorSystem seed) {
+        Config config = ConfigFactory.parseString("akka.remote.artery.canonical.port = 0")
+                .withFallback(ConfigFactory.load("cluster"));
+        ActorSystem node = ActorSystem.create(name, config);
+        Cluster.get(node).join(Cluster.get(seed == null ? node : seed).selfAddress());
+        return node;
+    }
+
+    private static void awaitMembersUp(TestKit probe, ActorSystem[] cluster) {
+        probe.awaitAssert(Duration.ofSeconds(20), () -> {
+            for (ActorSystem node : cluster) {
+                long up = StreamSupport.stream(Cluster.get(node).state().getMembers().spliterator(), false)
+                        .filter(m -> m.status() == MemberStatus.up())
+                        .count();
+                assertEquals(cluster.length, up);
+            }
+            return null;
+        });
+    }
+
+    // shards are only allocated to the regions the coordinator knows
+    private static void awaitRegions(TestKit probe, ActorRef region, int count) {
+        probe.awaitAssert(Duration.ofSeconds(20), () -> {
+            region.tell(ShardRegion.getCurrentRegionsInstance(), probe.getRef());
+            assertEquals(count, probe.expectMsgClass(ShardRegion.CurrentRegions.class).getRegions().size());
+            return null;
+        });
+    }
+
+    private static int hostOf(TestKit probe, ActorRef[] clusterRegions, String groupId) {
+        for (int i = 0; i < clusterRegions.length; i++) {
+            clusterRegions[i].tell(ShardRegion.getShardRegionStateInstance(), probe.getRef());
+            for (ShardRegion.ShardState shard :
+                    probe.expectMsgClass(ShardRegion.CurrentShardRegionState.class).getShards()) {
+                if (shard.getEntityIds().contains(groupId)) {
+                    return i;
+                }
+            }
+        }
+        throw new AssertionError("No region hosts group " + groupId);
+    }
+
+    /**
+     * Moves the groups of the region to the other regions.
+     */
+    private static void shutDownRegion(TestKit probe, ActorRef region) {
+        probe.watch(region);
+        region.tell(ShardRegion.gracefulShutdownInstance(), ActorRef.noSender());
+        probe.expectTerminated(TIMEOUT, region);
+    }
+
+    private static void shutdown(ActorSystem[] cluster) {
+        for (int i = cluster.length - 1; i >= 0; i--) {
+            if (cluster[i] != null) {
+                TestKit.shutdownActorSystem(cluster[i]);
+            }
+        }
+    }
+}
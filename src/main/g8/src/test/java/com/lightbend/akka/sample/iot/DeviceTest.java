@@ -1,18 +1,35 @@
 package com.lightbend.akka.sample.iot;
 
+import akka.actor.ActorCell;
+import akka.actor.ActorIdentity;
+import akka.actor.ActorPath;
 import akka.actor.ActorRef;
+import akka.actor.ActorRefWithCell;
 import akka.actor.ActorSystem;
+import akka.actor.Identify;
 import akka.actor.PoisonPill;
+import akka.dispatch.Mailbox;
 import akka.testkit.javadsl.TestKit;
 import com.lightbend.akka.sample.iot.DeviceGroup.RequestDeviceList;
+import com.typesafe.config.ConfigFactory;
 import org.junit.jupiter.api.Test;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashSet;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class DeviceTest {
     @Test
@@ -23,7 +40,7 @@ public class DeviceTest {
         deviceActor.tell(new Device.ReadTemperature(42L), probe.getRef());
         Device.RespondTemperature response = probe.expectMsgClass(Device.RespondTemperature.class);
         assertEquals(42L, response.requestId);
-        assertEquals(Optional.empty(), response.value);
+        assertEquals(Optional.empty(), response.value());
     }
 
 
@@ -39,7 +56,7 @@ public class DeviceTest {
         deviceActor.tell(new Device.ReadTemperature(2L), probe.getRef());
         Device.RespondTemperature response1 = probe.expectMsgClass(Device.RespondTemperature.class);
         assertEquals(2L, response1.requestId);
-        assertEquals(Optional.of(24.0), response1.value);
+        assertEquals(Optional.of(24.0), response1.value());
 
         deviceActor.tell(new Device.RecordTemperature(3L, 55.0), probe.getRef());
         assertEquals(3L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
@@ -47,10 +64,95 @@ public class DeviceTest {
         deviceActor.tell(new Device.ReadTemperature(4L), probe.getRef());
         Device.RespondTemperature response2 = probe.expectMsgClass(Device.RespondTemperature.class);
         assertEquals(4L, response2.requestId);
-        assertEquals(Optional.of(55.0), response2.value);
+        assertEquals(Optional.of(55.0), response2.value());
     }
 
 
+    @Test
+    public void testReplyWithPrimitiveReading() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit probe = new TestKit(system);
+        ActorRef deviceActor = system.actorOf(Device.props("group1", "device3"));
+
+        deviceActor.tell(new Device.ReadTemperature(1L), probe.getRef());
+        Device.RespondTemperature empty = probe.expectMsgClass(Device.RespondTemperature.class);
+        assertFalse(empty.hasValue);
+
+        deviceActor.tell(new Device.RecordTemperature(2L, -3.5), probe.getRef());
+        assertEquals(2L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+
+        deviceActor.tell(new Device.ReadTemperature(3L), probe.getRef());
+        Device.RespondTemperature response = probe.expectMsgClass(Device.RespondTemperature.class);
+        assertTrue(response.hasValue);
+        assertEquals(-3.5, response.temperature, 0.0);
+    }
+
+    @Test
+    public void testReplyWithWindowStatistics() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit probe = new TestKit(system);
+        ActorRef deviceActor = system.actorOf(Device.props("group1", "device4", 4));
+
+        long now = System.currentTimeMillis();
+        // the first reading is outside the window, the second one is pushed out of the history
+        double[] values = {100.0, 50.0, 4.0, 1.0, 3.0, 2.0};
+        long[] ages = {60_000L, 1_000L, 1_000L, 1_000L, 1_000L, 1_000L};
+        for (int i = 0; i < values.length; i++) {
+            deviceActor.tell(new Device.RecordTemperature(i, values[i], now - ages[i]), probe.getRef());
+            assertEquals(i, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+        }
+
+        deviceActor.tell(new Device.ReadTemperatureStats(7L, 30_000L, 50.0), probe.getRef());
+        Device.RespondTemperatureStats stats = probe.expectMsgClass(Device.RespondTemperatureStats.class);
+        assertEquals(7L, stats.requestId);
+        assertEquals(4, stats.count);
+        assertEquals(1.0, stats.min, 0.0);
+        assertEquals(4.0, stats.max, 0.0);
+        assertEquals(2.5, stats.mean, 0.0);
+        assertEquals(2.0, stats.percentile, 0.0);
+
+        deviceActor.tell(new Device.ReadTemperatureStats(8L, 10L, 99.0), probe.getRef());
+        assertEquals(0, probe.expectMsgClass(Device.RespondTemperatureStats.class).count);
+    }
+
+    @Test
+    public void testAcknowledgeBatchWithHighestRequestId() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit probe = new TestKit(system);
+        ActorRef deviceActor = system.actorOf(Device.props("group1", "device5"));
+
+        long now = System.currentTimeMillis();
+        deviceActor.tell(new Device.RecordTemperatureBatch(
+                new long[]{10L, 12L, 11L},
+                new double[]{1.0, 2.0, 3.0},
+                new long[]{now, now, now}), probe.getRef());
+        assertEquals(12L, probe.expectMsgClass(Device.TemperatureBatchRecorded.class).requestId);
+        probe.expectNoMsg();
+
+        deviceActor.tell(new Device.ReadTemperature(13L), probe.getRef());
+        assertEquals(3.0, probe.expectMsgClass(Device.RespondTemperature.class).temperature, 0.0);
+
+        deviceActor.tell(new Device.ReadTemperatureStats(14L, 60_000L, 100.0), probe.getRef());
+        assertEquals(3, probe.expectMsgClass(Device.RespondTemperatureStats.class).count);
+    }
+
+    @Test
+    public void testCountRecordedReadingsWithIngestLogging() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit probe = new TestKit(system);
+        DeviceGroupSettings settings = DeviceGroupSettings.defaults().withIngestLogIntervalMillis(1L);
+        ActorRef deviceActor = system.actorOf(Device.props("group1", "device6", settings));
+
+        deviceActor.tell(new Device.RecordTemperature(1L, 20.0), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+        long now = System.currentTimeMillis();
+        deviceActor.tell(new Device.RecordTemperatureBatch(
+                new long[]{2L, 3L}, new double[]{21.0, 22.0}, new long[]{now, now}), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureBatchRecorded.class);
+
+        assertEquals(3L, IotMetrics.get(system).snapshot().recordedReadings);
+    }
+
     @Test
     public void testReplyToRegistrationRequests() {
 
@@ -100,6 +202,176 @@ public class DeviceTest {
         assertEquals(1L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
     }
 
+    @Test
+    public void testFanOutGroupBatchToDevices() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group"));
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor1 = probe.getLastSender();
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        long now = System.currentTimeMillis();
+        groupActor.tell(new DeviceGroup.RecordTemperatures(
+                new String[]{"device1", "device2", "device1", "unknown"},
+                new long[]{1L, 2L, 3L, 4L},
+                new double[]{10.0, 20.0, 11.0, 99.0},
+                new long[]{now, now, now, now}), probe.getRef());
+
+        Set<Long> acks = new HashSet<>();
+        DeviceGroup.RecordTemperatures dropped = null;
+        for (Object reply : probe.receiveN(3)) {
+            if (reply instanceof PriorityIngestMailbox.Dropped) {
+                dropped = (DeviceGroup.RecordTemperatures) ((PriorityIngestMailbox.Dropped) reply).message;
+            } else {
+                acks.add(((Device.TemperatureBatchRecorded) reply).requestId);
+            }
+        }
+        assertEquals(Stream.of(2L, 3L).collect(Collectors.toSet()), acks);
+        // the readings for the untracked device come back at once instead of never being acknowledged
+        assertArrayEquals(new String[]{"unknown"}, dropped.deviceIds);
+        assertArrayEquals(new long[]{4L}, dropped.requestIds);
+        probe.expectNoMsg();
+
+        deviceActor1.tell(new Device.ReadTemperature(5L), probe.getRef());
+        assertEquals(11.0, probe.expectMsgClass(Device.RespondTemperature.class).temperature, 0.0);
+    }
+
+    @Test
+    public void testCoalesceReadingsWithinWindow() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit probe = new TestKit(system);
+        DeviceGroupSettings settings = DeviceGroupSettings.defaults().withCoalesceWindowMillis(200L);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group", settings));
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor1 = probe.getLastSender();
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        long now = System.currentTimeMillis();
+        groupActor.tell(new DeviceGroup.RecordTemperatures(
+                new String[]{"device1", "device2", "device1", "unknown"},
+                new long[]{1L, 2L, 3L, 4L},
+                new double[]{10.0, 20.0, 11.0, 99.0},
+                new long[]{now, now, now, now}), probe.getRef());
+        groupActor.tell(new DeviceGroup.RecordTemperatures(
+                new String[]{"device1"}, new long[]{5L}, new double[]{12.0}, new long[]{now + 1}), probe.getRef());
+
+        PriorityIngestMailbox.Dropped dropped = probe.expectMsgClass(PriorityIngestMailbox.Dropped.class);
+        assertArrayEquals(new long[]{4L}, ((DeviceGroup.RecordTemperatures) dropped.message).requestIds);
+        long[] acked = probe.expectMsgClass(DeviceGroup.TemperaturesRecorded.class).requestIds;
+        assertEquals(Stream.of(2L, 3L, 5L).collect(Collectors.toSet()),
+                     LongStream.of(acked).boxed().collect(Collectors.toSet()));
+        assertEquals(3, acked.length);
+        probe.expectNoMsg();
+
+        deviceActor1.tell(new Device.ReadTemperature(6L), probe.getRef());
+        assertEquals(12.0, probe.expectMsgClass(Device.RespondTemperature.class).temperature, 0.0);
+        deviceActor1.tell(new Device.ReadTemperatureStats(7L, 60_000L, 100.0), probe.getRef());
+        assertEquals(1, probe.expectMsgClass(Device.RespondTemperatureStats.class).count);
+        IotMetrics.MetricsSnapshot metrics = IotMetrics.get(system).snapshot();
+        assertEquals(2L, metrics.recordedReadings);
+        assertEquals(2L, metrics.coalescedReadings);
+    }
+
+    @Test
+    public void testGiveBackTheCoalescedReadingsOfADeviceThatStoppedWithinTheWindow() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit probe = new TestKit(system);
+        DeviceGroupSettings settings = DeviceGroupSettings.defaults().withCoalesceWindowMillis(500L);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group", settings));
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor2 = probe.getLastSender();
+
+        long now = System.currentTimeMillis();
+        groupActor.tell(new DeviceGroup.RecordTemperatures(
+                new String[]{"device1", "device2", "device2"},
+                new long[]{1L, 2L, 3L},
+                new double[]{10.0, 20.0, 21.0},
+                new long[]{now, now, now}), probe.getRef());
+        probe.watch(deviceActor2);
+        deviceActor2.tell(PoisonPill.getInstance(), ActorRef.noSender());
+        probe.expectTerminated(deviceActor2);
+
+        // the reading of device1 is still acknowledged, the one of device2 is given back
+        Object first = probe.expectMsgAnyClassOf(
+                DeviceGroup.TemperaturesRecorded.class, PriorityIngestMailbox.Dropped.class);
+        Object second = probe.expectMsgAnyClassOf(
+                DeviceGroup.TemperaturesRecorded.class, PriorityIngestMailbox.Dropped.class);
+        DeviceGroup.TemperaturesRecorded acked = (DeviceGroup.TemperaturesRecorded)
+                (first instanceof DeviceGroup.TemperaturesRecorded ? first : second);
+        PriorityIngestMailbox.Dropped dropped = (PriorityIngestMailbox.Dropped)
+                (first instanceof PriorityIngestMailbox.Dropped ? first : second);
+        assertArrayEquals(new long[]{1L}, acked.requestIds);
+        DeviceGroup.RecordTemperatures readings = (DeviceGroup.RecordTemperatures) dropped.message;
+        assertArrayEquals(new String[]{"device2"}, readings.deviceIds);
+        assertArrayEquals(new long[]{3L}, readings.requestIds);
+        assertEquals(21.0, readings.values[0], 0.0);
+        probe.expectNoMsg();
+    }
+
+    @Test
+    public void testRunDevicesOfOneGroupOnTheSameAffinityQueue() {
+        ActorSystem system = ActorSystem.create("test", ConfigFactory
+                .parseString("iot.device-dispatcher.executor = affinity-pool-executor")
+                .withFallback(ConfigFactory.load()));
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group"), "group-group");
+
+        ActorRef[] deviceActors = new ActorRef[4];
+        for (int i = 0; i < deviceActors.length; i++) {
+            groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device" + i), probe.getRef());
+            probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+            deviceActors[i] = probe.getLastSender();
+        }
+        ActorRef deviceActor = deviceActors[0];
+        deviceActor.tell(new Device.RecordTemperature(1L, 21.0), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+        deviceActor.tell(new Device.ReadTemperature(2L), probe.getRef());
+        assertEquals(21.0, probe.expectMsgClass(Device.RespondTemperature.class).temperature, 0.0);
+
+        assertEquals("group-group", GroupAffinityQueueSelector.groupOf(deviceActor.path()));
+        assertEquals(null, GroupAffinityQueueSelector.groupOf(probe.getRef().path()));
+        int queue = GroupAffinityQueueSelector.queueOf(mailboxOf(deviceActor), 16);
+        for (ActorRef other : deviceActors) {
+            assertEquals(queue, GroupAffinityQueueSelector.queueOf(mailboxOf(other), 16));
+        }
+
+        Set<Integer> queues = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            ActorRef otherGroup = system.actorOf(DeviceGroup.props("other" + i), "group-other" + i);
+            int otherQueue = -1;
+            for (int d = 0; d < 2; d++) {
+                otherGroup.tell(new DeviceManager.RequestTrackDevice("other" + i, "device" + d), probe.getRef());
+                probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+                int deviceQueue = GroupAffinityQueueSelector.queueOf(mailboxOf(probe.getLastSender()), 16);
+                if (d > 0) {
+                    assertEquals(otherQueue, deviceQueue);
+                }
+                otherQueue = deviceQueue;
+            }
+            queues.add(otherQueue);
+        }
+        assertTrue(queues.size() > 1);
+
+        // the entities of cluster sharding are named after the group id alone
+        assertEquals("group", GroupAffinityQueueSelector.groupOf(ActorPath.fromString(
+                "akka://test/system/sharding/" + DeviceManager.GROUP_TYPE_NAME + "/7/group/device-device1")));
+    }
+
+    private static Mailbox mailboxOf(ActorRef actor) {
+        return ((ActorCell) ((ActorRefWithCell) actor).underlying()).mailbox();
+    }
+
     @Test
     public void testIgnoreRequestsForWrongGroupId() {
         ActorSystem system = ActorSystem.create("test");
@@ -177,4 +449,402 @@ public class DeviceTest {
             return null;
         });
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testPassivateIdleDeviceAndRehydrateWithLastReading() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props(
+                "group", DeviceGroupSettings.defaults().withPassivateAfterMillis(100)));
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor = probe.getLastSender();
+        deviceActor.tell(new Device.RecordTemperature(1L, 21.5), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+
+        probe.watch(deviceActor);
+        probe.expectTerminated(deviceActor);
+
+        groupActor.tell(new RequestDeviceList(2L), probe.getRef());
+        assertEquals(Stream.of("device1").collect(Collectors.toSet()),
+                     probe.expectMsgClass(DeviceGroup.ReplyDeviceList.class).ids);
+
+        groupActor.tell(new DeviceGroup.RequestAllTemperatures(3L), probe.getRef());
+        DeviceGroup.RespondAllTemperatures all = probe.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+        assertEquals(new DeviceGroup.Temperature(21.5), all.getTemperatures().get("device1"));
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef rehydrated = probe.getLastSender();
+        assertNotEquals(deviceActor, rehydrated);
+        rehydrated.tell(new Device.ReadTemperature(4L), probe.getRef());
+        assertEquals(21.5, probe.expectMsgClass(Device.RespondTemperature.class).temperature, 0.0);
+    }
+
+    @Test
+    public void testRestoreLastReadingsFromJournal() throws Exception {
+        Path journalDirectory = Files.createTempDirectory("journal");
+        DeviceGroupSettings settings = DeviceGroupSettings.defaults().withJournalDirectory(journalDirectory);
+        ActorSystem system = ActorSystem.create("test");
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group", settings));
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor = probe.getLastSender();
+        deviceActor.tell(new Device.RecordTemperature(1L, 20.0), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+        deviceActor.tell(new Device.RecordTemperature(2L, 22.5), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+
+        probe.watch(groupActor);
+        system.stop(groupActor);
+        probe.expectTerminated(groupActor);
+
+        ActorRef restarted = system.actorOf(DeviceGroup.props("group", settings));
+        restarted.tell(new RequestDeviceList(3L), probe.getRef());
+        assertEquals(Stream.of("device1").collect(Collectors.toSet()),
+                     probe.expectMsgClass(DeviceGroup.ReplyDeviceList.class).ids);
+
+        restarted.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        probe.getLastSender().tell(new Device.ReadTemperature(4L), probe.getRef());
+        assertEquals(22.5, probe.expectMsgClass(Device.RespondTemperature.class).temperature, 0.0);
+    }
+
+    @Test
+    public void testHandOverFinalReadingWhenStoppedForPassivation() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit parent = new TestKit(system);
+        ActorRef deviceActor = parent.childActorOf(Device.props(
+                "group", "device", DeviceGroupSettings.defaults().withPassivateAfterMillis(100)));
+        deviceActor.tell(new Device.RecordTemperature(1L, 20.0), parent.getRef());
+        assertEquals(1L, parent.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+        assertEquals(20.0, parent.expectMsgClass(DeviceGroup.Passivate.class).value, 0.0);
+
+        // a reading after the request still counts, and the stop waits for it
+        deviceActor.tell(new Device.RecordTemperature(2L, 25.0), parent.getRef());
+        deviceActor.tell(Device.Stop.INSTANCE, parent.getRef());
+        parent.watch(deviceActor);
+        assertEquals(2L, parent.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+        DeviceGroup.Passivated passivated = parent.expectMsgClass(DeviceGroup.Passivated.class);
+        assertTrue(passivated.hasValue);
+        assertEquals(25.0, passivated.value, 0.0);
+        parent.expectTerminated(deviceActor);
+    }
+
+    @Test
+    public void testKeepReadingRecordedBetweenPassivateAndStop() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group"));
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor = probe.getLastSender();
+        deviceActor.tell(new Device.RecordTemperature(1L, 20.0), probe.getRef());
+        assertEquals(1L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+
+        // the device asked with 20.0, and records 25.0 before the group stops it
+        deviceActor.tell(new Device.RecordTemperature(2L, 25.0), probe.getRef());
+        groupActor.tell(new DeviceGroup.Passivate("device1", true, 20.0, 0L), deviceActor);
+        probe.watch(deviceActor);
+        assertEquals(2L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+        probe.expectTerminated(deviceActor);
+
+        groupActor.tell(new DeviceGroup.RequestAllTemperatures(3L), probe.getRef());
+        assertEquals(new DeviceGroup.Temperature(25.0),
+                     probe.expectMsgClass(DeviceGroup.RespondAllTemperatures.class).temperatures.get("device1"));
+    }
+
+    @Test
+    public void testAlertOnceWhenCrossingThreshold() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit probe = new TestKit(system);
+        TestKit subscriber = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group"));
+        for (String deviceId : new String[]{"device1", "device2"}) {
+            groupActor.tell(new DeviceManager.RequestTrackDevice("group", deviceId), probe.getRef());
+            probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        }
+
+        groupActor.tell(new DeviceGroup.SubscribeAlerts(1L, AlertCondition.above(30.0)), subscriber.getRef());
+        subscriber.expectMsg(new DeviceGroup.AlertsSubscribed(1L));
+        // device1 goes above twice, device2 stays above; the group hands the readings to the devices in order
+        groupActor.tell(new DeviceGroup.RecordTemperatures(
+                new String[]{"device1", "device1", "device1", "device2", "device1", "device2"},
+                new long[]{1L, 2L, 3L, 4L, 5L, 6L},
+                new double[]{25.0, 31.0, 32.0, 40.0, 29.0, 41.0},
+                new long[]{1000L, 2000L, 3000L, 4000L, 5000L, 6000L}), probe.getRef());
+        groupActor.tell(new DeviceGroup.RecordTemperatures(
+                new String[]{"device1"}, new long[]{7L}, new double[]{33.0}, new long[]{7000L}), probe.getRef());
+
+        Set<DeviceGroup.Alert> alerts = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            alerts.add(subscriber.expectMsgClass(DeviceGroup.Alert.class));
+        }
+        assertEquals(Stream.of(
+                new DeviceGroup.Alert(1L, "group", "device1", AlertCondition.Kind.ABOVE, 31.0, 2000L),
+                new DeviceGroup.Alert(1L, "group", "device2", AlertCondition.Kind.ABOVE, 40.0, 4000L),
+                new DeviceGroup.Alert(1L, "group", "device1", AlertCondition.Kind.ABOVE, 33.0, 7000L))
+                             .collect(Collectors.toSet()), alerts);
+        subscriber.expectNoMessage(Duration.ofMillis(200));
+    }
+
+    @Test
+    public void testAlertOnRateOfChangeForDevicesTrackedLater() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit probe = new TestKit(system);
+        TestKit subscriber = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group"));
+
+        groupActor.tell(new DeviceGroup.SubscribeAlerts(2L, AlertCondition.rateOfChangeAbove(1.0)),
+                        subscriber.getRef());
+        subscriber.expectMsg(new DeviceGroup.AlertsSubscribed(2L));
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        // 0.5 and then 2.5 degrees per second
+        groupActor.tell(new DeviceGroup.RecordTemperatures(
+                new String[]{"device1", "device1", "device1"}, new long[]{1L, 2L, 3L},
+                new double[]{20.0, 20.5, 23.0}, new long[]{0L, 1000L, 2000L}), probe.getRef());
+        assertEquals(new DeviceGroup.Alert(2L, "group", "device1", AlertCondition.Kind.RATE_OF_CHANGE, 23.0, 2000L),
+                     subscriber.expectMsgClass(DeviceGroup.Alert.class));
+
+        groupActor.tell(new DeviceGroup.UnsubscribeAlerts(2L), subscriber.getRef());
+        groupActor.tell(new DeviceGroup.RecordTemperatures(
+                new String[]{"device1"}, new long[]{4L}, new double[]{40.0}, new long[]{3000L}), probe.getRef());
+        subscriber.expectNoMessage(Duration.ofMillis(200));
+    }
+
+    @Test
+    public void testAlertOnAbsenceOfPassivatedDevices() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit probe = new TestKit(system);
+        TestKit subscriber = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props(
+                "group", DeviceGroupSettings.defaults().withPassivateAfterMillis(100)));
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor = probe.getLastSender();
+        deviceActor.tell(new Device.RecordTemperature(1L, 21.5), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+        probe.watch(deviceActor);
+        probe.expectTerminated(deviceActor);
+
+        groupActor.tell(new DeviceGroup.SubscribeAlerts(3L, AlertCondition.absentFor(300L)), subscriber.getRef());
+        subscriber.expectMsg(new DeviceGroup.AlertsSubscribed(3L));
+        DeviceGroup.Alert alert = subscriber.expectMsgClass(DeviceGroup.Alert.class);
+        assertEquals(AlertCondition.Kind.ABSENCE, alert.kind);
+        assertEquals("device1", alert.deviceId);
+        assertEquals(21.5, alert.value, 0.0);
+        // reported once per silence, again after a reading ended it
+        subscriber.expectNoMessage(Duration.ofMillis(400));
+        groupActor.tell(new DeviceGroup.RecordTemperatures(
+                new String[]{"device1"}, new long[]{2L}, new double[]{22.0}, new long[]{2000L}), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureBatchRecorded.class);
+        assertEquals(22.0, subscriber.expectMsgClass(DeviceGroup.Alert.class).value, 0.0);
+    }
+
+    @Test
+    public void testAlertOnAbsenceSinceTheLastReadingWithoutStartingPassivatedDevices() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit probe = new TestKit(system);
+        TestKit subscriber = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props(
+                "group", DeviceGroupSettings.defaults().withPassivateAfterMillis(100)));
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor = probe.getLastSender();
+        deviceActor.tell(new Device.RecordTemperature(1L, 21.5), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+        probe.watch(deviceActor);
+        probe.expectTerminated(deviceActor);
+        probe.expectNoMessage(Duration.ofMillis(500));
+
+        // the device has been silent for 600 ms already
+        groupActor.tell(new DeviceGroup.SubscribeAlerts(4L, AlertCondition.absentFor(1000L)), subscriber.getRef());
+        subscriber.expectMsg(new DeviceGroup.AlertsSubscribed(4L));
+        DeviceGroup.Alert alert = subscriber.expectMsgClass(Duration.ofMillis(800), DeviceGroup.Alert.class);
+        assertEquals("device1", alert.deviceId);
+        assertEquals(21.5, alert.value, 0.0);
+
+        system.actorSelection(deviceActor.path()).tell(new Identify(5L), probe.getRef());
+        assertFalse(probe.expectMsgClass(ActorIdentity.class).getActorRef().isPresent());
+    }
+
+    @Test
+    public void testAlertOnAbsenceSinceTheLastReadingOfRunningDevices() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit probe = new TestKit(system);
+        TestKit subscriber = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group"));
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        probe.getLastSender().tell(new Device.RecordTemperature(1L, 19.0), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+        probe.expectNoMessage(Duration.ofMillis(600));
+
+        groupActor.tell(new DeviceGroup.SubscribeAlerts(6L, AlertCondition.absentFor(1000L)), subscriber.getRef());
+        subscriber.expectMsg(new DeviceGroup.AlertsSubscribed(6L));
+        assertEquals(19.0, subscriber.expectMsgClass(Duration.ofMillis(800), DeviceGroup.Alert.class).value, 0.0);
+    }
+
+    @Test
+    public void testShareBatchOfChangesPerTickAndDropOldestForSlowSubscriber() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit probe = new TestKit(system);
+        TestKit fast = new TestKit(system);
+        TestKit slow = new TestKit(system);
+        // ticked by hand below
+        ActorRef deviceActor = system.actorOf(Device.props(
+                "group", "device", DeviceGroupSettings.defaults().withFeedTickMillis(3_600_000L)));
+        deviceActor.tell(new DeviceGroup.SubscribeReadings(1L), fast.getRef());
+        fast.expectMsg(new DeviceGroup.ReadingsSubscribed(1L));
+        deviceActor.tell(new DeviceGroup.SubscribeReadings(2L, 2, DeviceGroup.FeedOverflow.DROP_OLDEST),
+                         slow.getRef());
+        slow.expectMsg(new DeviceGroup.ReadingsSubscribed(2L));
+
+        recordAll(deviceActor, probe, 20.0, 21.0);
+        deviceActor.tell(ReadingFeed.Tick.INSTANCE, ActorRef.noSender());
+        DeviceGroup.ReadingChanges toFast = fast.expectMsgClass(DeviceGroup.ReadingChanges.class);
+        DeviceGroup.ReadingChanges toSlow = slow.expectMsgClass(DeviceGroup.ReadingChanges.class);
+        assertArrayEquals(new double[]{20.0, 21.0}, toFast.values, 0.0);
+        assertArrayEquals(new String[]{"device", "device"}, toFast.deviceIds);
+        assertEquals(0L, toFast.sequenceNr);
+        assertSame(toFast.values, toSlow.values);
+
+        deviceActor.tell(new DeviceGroup.ReadingChangesAck(1L, 0L), fast.getRef());
+        recordAll(deviceActor, probe, 22.0, 23.0, 24.0);
+        deviceActor.tell(ReadingFeed.Tick.INSTANCE, ActorRef.noSender());
+        toFast = fast.expectMsgClass(DeviceGroup.ReadingChanges.class);
+        assertArrayEquals(new double[]{22.0, 23.0, 24.0}, toFast.values, 0.0);
+        assertEquals(1L, toFast.sequenceNr);
+        // nothing more before the previous batch is acknowledged, then the latest changes that fit its buffer
+        slow.expectNoMessage(Duration.ofMillis(200));
+        deviceActor.tell(new DeviceGroup.ReadingChangesAck(2L, 0L), slow.getRef());
+        toSlow = slow.expectMsgClass(DeviceGroup.ReadingChanges.class);
+        assertArrayEquals(new double[]{23.0, 24.0}, toSlow.values, 0.0);
+        assertEquals(1L, toSlow.sequenceNr);
+        assertEquals(1L, toSlow.dropped);
+    }
+
+    @Test
+    public void testKeepEverySubscriptionOfASubscriberApart() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit probe = new TestKit(system);
+        TestKit subscriber = new TestKit(system);
+        // ticked by hand below
+        ActorRef deviceActor = system.actorOf(Device.props(
+                "group", "device", DeviceGroupSettings.defaults().withFeedTickMillis(3_600_000L)));
+        deviceActor.tell(new DeviceGroup.SubscribeReadings(1L), subscriber.getRef());
+        subscriber.expectMsg(new DeviceGroup.ReadingsSubscribed(1L));
+        deviceActor.tell(new DeviceGroup.SubscribeReadings(2L, 4, DeviceGroup.FeedOverflow.DROP_OLDEST),
+                         subscriber.getRef());
+        subscriber.expectMsg(new DeviceGroup.ReadingsSubscribed(2L));
+
+        recordAll(deviceActor, probe, 20.0);
+        deviceActor.tell(ReadingFeed.Tick.INSTANCE, ActorRef.noSender());
+        Set<Long> subscriptionIds = new HashSet<>();
+        for (int i = 0; i < 2; i++) {
+            subscriptionIds.add(subscriber.expectMsgClass(DeviceGroup.ReadingChanges.class).subscriptionId);
+        }
+        assertEquals(Stream.of(1L, 2L).collect(Collectors.toSet()), subscriptionIds);
+
+        // only the first subscription acknowledges, the second one buffers meanwhile
+        deviceActor.tell(new DeviceGroup.ReadingChangesAck(1L, 0L), subscriber.getRef());
+        recordAll(deviceActor, probe, 21.0);
+        deviceActor.tell(ReadingFeed.Tick.INSTANCE, ActorRef.noSender());
+        DeviceGroup.ReadingChanges changes = subscriber.expectMsgClass(DeviceGroup.ReadingChanges.class);
+        assertEquals(1L, changes.subscriptionId);
+        subscriber.expectNoMessage(Duration.ofMillis(200));
+        deviceActor.tell(new DeviceGroup.ReadingChangesAck(2L, 0L), subscriber.getRef());
+        changes = subscriber.expectMsgClass(DeviceGroup.ReadingChanges.class);
+        assertEquals(2L, changes.subscriptionId);
+        assertArrayEquals(new double[]{21.0}, changes.values, 0.0);
+
+        deviceActor.tell(new DeviceGroup.UnsubscribeReadings(1L), subscriber.getRef());
+        deviceActor.tell(new DeviceGroup.ReadingChangesAck(2L, 1L), subscriber.getRef());
+        recordAll(deviceActor, probe, 22.0);
+        deviceActor.tell(ReadingFeed.Tick.INSTANCE, ActorRef.noSender());
+        assertEquals(2L, subscriber.expectMsgClass(DeviceGroup.ReadingChanges.class).subscriptionId);
+        subscriber.expectNoMessage(Duration.ofMillis(200));
+    }
+
+    @Test
+    public void testResendBatchWhoseAckWasLost() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit probe = new TestKit(system);
+        TestKit subscriber = new TestKit(system);
+        // ticked by hand below
+        ActorRef deviceActor = system.actorOf(Device.props(
+                "group", "device", DeviceGroupSettings.defaults().withFeedTickMillis(3_600_000L)));
+        deviceActor.tell(new DeviceGroup.SubscribeReadings(1L), subscriber.getRef());
+        subscriber.expectMsg(new DeviceGroup.ReadingsSubscribed(1L));
+
+        recordAll(deviceActor, probe, 20.0);
+        deviceActor.tell(ReadingFeed.Tick.INSTANCE, ActorRef.noSender());
+        DeviceGroup.ReadingChanges first = subscriber.expectMsgClass(DeviceGroup.ReadingChanges.class);
+        // the ack never arrives, so the same batch comes again
+        DeviceGroup.ReadingChanges again = subscriber.expectMsgClass(
+                Duration.ofMillis(2 * ReadingFeed.RESEND_AFTER_MILLIS), DeviceGroup.ReadingChanges.class);
+        assertEquals(first, again);
+
+        recordAll(deviceActor, probe, 21.0);
+        deviceActor.tell(ReadingFeed.Tick.INSTANCE, ActorRef.noSender());
+        deviceActor.tell(new DeviceGroup.ReadingChangesAck(1L, 0L), subscriber.getRef());
+        DeviceGroup.ReadingChanges next = subscriber.expectMsgClass(DeviceGroup.ReadingChanges.class);
+        assertEquals(1L, next.sequenceNr);
+        assertArrayEquals(new double[]{21.0}, next.values, 0.0);
+    }
+
+    @Test
+    public void testConflateChangesOfGroupForSlowSubscriber() {
+        ActorSystem system = ActorSystem.create("test");
+        TestKit probe = new TestKit(system);
+        TestKit subscriber = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props(
+                "group", DeviceGroupSettings.defaults().withFeedTickMillis(50L)));
+        for (String deviceId : new String[]{"device1", "device2", "device3"}) {
+            groupActor.tell(new DeviceManager.RequestTrackDevice("group", deviceId), probe.getRef());
+            probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        }
+        groupActor.tell(new DeviceGroup.SubscribeReadings(3L, 2, DeviceGroup.FeedOverflow.CONFLATE),
+                        subscriber.getRef());
+        subscriber.expectMsg(new DeviceGroup.ReadingsSubscribed(3L));
+
+        recordInGroup(groupActor, probe, "device1", 20.0);
+        DeviceGroup.ReadingChanges first = subscriber.expectMsgClass(DeviceGroup.ReadingChanges.class);
+        assertArrayEquals(new String[]{"device1"}, first.deviceIds);
+        recordInGroup(groupActor, probe, "device1", 21.0);
+        recordInGroup(groupActor, probe, "device2", 22.0);
+        recordInGroup(groupActor, probe, "device1", 23.0);
+        recordInGroup(groupActor, probe, "device3", 24.0);
+        subscriber.expectNoMessage(Duration.ofMillis(300));
+
+        groupActor.tell(new DeviceGroup.ReadingChangesAck(3L, first.sequenceNr), subscriber.getRef());
+        DeviceGroup.ReadingChanges conflated = subscriber.expectMsgClass(DeviceGroup.ReadingChanges.class);
+        // device1 replaced its earlier change, device2 changed longest ago and did not fit
+        assertArrayEquals(new String[]{"device1", "device3"}, conflated.deviceIds);
+        assertArrayEquals(new double[]{23.0, 24.0}, conflated.values, 0.0);
+        assertEquals(2L, conflated.dropped);
+
+        groupActor.tell(new DeviceGroup.UnsubscribeReadings(3L), subscriber.getRef());
+        recordInGroup(groupActor, probe, "device2", 25.0);
+        subscriber.expectNoMessage(Duration.ofMillis(300));
+    }
+
+    private static void recordAll(ActorRef deviceActor, TestKit probe, double... values) {
+        for (int i = 0; i < values.length; i++) {
+            deviceActor.tell(new Device.RecordTemperature(i, values[i]), probe.getRef());
+            probe.expectMsgClass(Device.TemperatureRecorded.class);
+        }
+    }
+
+    private static void recordInGroup(ActorRef groupActor, TestKit probe, String deviceId, double value) {
+        groupActor.tell(new DeviceGroup.RecordTemperatures(
+                new String[]{deviceId}, new long[]{1L}, new double[]{value}, new long[]{System.currentTimeMillis()}),
+                        probe.getRef());
+        probe.expectMsgClass(Device.TemperatureBatchRecorded.class);
+    }
+}
@@ -0,0 +1,142 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class IngestGatewayTest {
+    static ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    private static SocketChannel connect(ActorRef gateway, TestKit probe) throws IOException {
+        gateway.tell(new IngestGateway.GetAddress(), probe.getRef());
+        return SocketChannel.open(probe.expectMsgClass(InetSocketAddress.class));
+    }
+
+    private static void write(SocketChannel channel, ByteBuffer frames) throws IOException {
+        frames.flip();
+        while (frames.hasRemaining()) {
+            channel.write(frames);
+        }
+    }
+
+    @Test
+    public void testRecordReadingsOfDefinedDevices() throws IOException {
+        TestKit probe = new TestKit(system);
+        ActorRef managerActor = system.actorOf(DeviceManager.props(2));
+        ActorRef gateway = system.actorOf(IngestGateway.props(
+                managerActor, IngestSettings.defaults().withAddress("127.0.0.1", 0)));
+
+        try (SocketChannel channel = connect(gateway, probe)) {
+            ByteBuffer frames = ByteBuffer.allocate(1024);
+            IngestProtocol.putDefine(frames, 0, "group", "device1");
+            IngestProtocol.putDefine(frames, 7, "group", "device2");
+            long now = System.currentTimeMillis();
+            IngestProtocol.putReading(frames, 0, now, 20.0);
+            IngestProtocol.putReading(frames, 7, now, 21.0);
+            IngestProtocol.putReading(frames, 0, now, 22.0);
+            write(channel, frames);
+
+            managerActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+            probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+            ActorRef device1 = probe.getLastSender();
+            probe.awaitAssert(() -> {
+                device1.tell(new Device.ReadTemperature(1L), probe.getRef());
+                assertEquals(22.0, probe.expectMsgClass(Device.RespondTemperature.class).temperature, 0.0);
+                return null;
+            });
+        }
+    }
+
+    @Test
+    public void testStopDecodingWithoutCredits() throws IOException {
+        TestKit probe = new TestKit(system);
+        TestKit manager = new TestKit(system);
+        ActorRef gateway = system.actorOf(IngestGateway.props(
+                manager.getRef(), IngestSettings.defaults().withAddress("127.0.0.1", 0).withMaxInFlight(2)));
+
+        try (SocketChannel channel = connect(gateway, probe)) {
+            ByteBuffer frames = ByteBuffer.allocate(1024);
+            IngestProtocol.putDefine(frames, 0, "group", "device");
+            for (int i = 0; i < 5; i++) {
+                IngestProtocol.putReading(frames, 0, 1000L + i, i);
+            }
+            write(channel, frames);
+
+            DeviceManager.RequestTrackDevice track = manager.expectMsgClass(DeviceManager.RequestTrackDevice.class);
+            assertEquals("device", track.deviceId);
+            DeviceManager.RecordTemperatures first = manager.expectMsgClass(DeviceManager.RecordTemperatures.class);
+            assertArrayEquals(new double[]{0.0, 1.0}, first.readings.values, 0.0);
+            manager.expectNoMessage(Duration.ofMillis(200));
+
+            manager.reply(new Device.TemperatureBatchRecorded(first.readings.requestIds[1]));
+            DeviceManager.RecordTemperatures second = manager.expectMsgClass(DeviceManager.RecordTemperatures.class);
+            assertArrayEquals(new double[]{2.0, 3.0}, second.readings.values, 0.0);
+            assertArrayEquals(new long[]{1002L, 1003L}, second.readings.timestamps);
+            manager.expectNoMessage(Duration.ofMillis(200));
+
+            manager.reply(new Device.TemperatureBatchRecorded(second.readings.requestIds[1]));
+            DeviceManager.RecordTemperatures third = manager.expectMsgClass(DeviceManager.RecordTemperatures.class);
+            assertArrayEquals(new double[]{4.0}, third.readings.values, 0.0);
+        }
+    }
+
+    @Test
+    public void testCloseConnectionOnUndefinedHandle() throws IOException {
+        TestKit probe = new TestKit(system);
+        TestKit manager = new TestKit(system);
+        ActorRef gateway = system.actorOf(IngestGateway.props(
+                manager.getRef(), IngestSettings.defaults().withAddress("127.0.0.1", 0)));
+
+        try (SocketChannel channel = connect(gateway, probe)) {
+            ByteBuffer frames = ByteBuffer.allocate(1024);
+            IngestProtocol.putReading(frames, 3, 1000L, 20.0);
+            write(channel, frames);
+
+            assertEquals(-1, channel.read(ByteBuffer.allocate(16)));
+            manager.expectNoMessage(Duration.ofMillis(100));
+        }
+    }
+
+    @Test
+    public void testCloseConnectionOnDeviceIdTooLongToJournal() throws IOException {
+        TestKit probe = new TestKit(system);
+        TestKit manager = new TestKit(system);
+        ActorRef gateway = system.actorOf(IngestGateway.props(
+                manager.getRef(), IngestSettings.defaults().withAddress("127.0.0.1", 0)));
+
+        try (SocketChannel channel = connect(gateway, probe)) {
+            ByteBuffer frames = ByteBuffer.allocate(1024);
+            char[] deviceId = new char[TemperatureJournal.MAX_DEVICE_ID_BYTES + 1];
+            Arrays.fill(deviceId, 'd');
+            IngestProtocol.putDefine(frames, 0, "group", new String(deviceId));
+            write(channel, frames);
+
+            assertEquals(-1, channel.read(ByteBuffer.allocate(16)));
+            manager.expectNoMessage(Duration.ofMillis(100));
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.ActorSystem;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializer;
+import akka.serialization.SerializerWithStringManifest;
+import akka.testkit.javadsl.TestKit;
+import com.lightbend.akka.sample.iot.DeviceGroup.TemperatureReading;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.io.NotSerializableException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class IotSerializerTest {
+    static ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    /**
+     * Serializes and deserializes {@code message} with the serializer bound to it in the configuration.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T roundTrip(T message) {
+        Serialization serialization = SerializationExtension.get(system);
+        Serializer serializer = serialization.findSerializerFor(message);
+        assertTrue(serializer instanceof IotSerializer);
+        byte[] bytes = serializer.toBinary(message);
+        String manifest = ((SerializerWithStringManifest) serializer).manifest(message);
+        return (T) serialization.deserialize(bytes, serializer.identifier(), manifest).get();
+    }
+
+    private static Map<String, TemperatureReading> readings() {
+        Map<String, TemperatureReading> readings = new HashMap<>();
+        readings.put("device1", new DeviceGroup.Temperature(21.5));
+        readings.put("device2", new DeviceGroup.TemperatureStats(3, 19.0, 23.0, 21.0, 22.9));
+        readings.put("device3", new DeviceGroup.TemperatureNotAvailable());
+        readings.put("device4", new DeviceGroup.DeviceNotAvailable());
+        readings.put("device5", new DeviceGroup.DeviceTimedOut());
+        readings.put("ger\u00e4t-\u00fc", new DeviceGroup.Temperature(-4.0));
+        return readings;
+    }
+
+    private static void assertSameReadings(Map<String, TemperatureReading> expected,
+                                           Map<String, TemperatureReading> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        expected.forEach((id, reading) -> {
+            assertSame(reading.getClass(), actual.get(id).getClass());
+            if (reading instanceof DeviceGroup.Temperature || reading instanceof DeviceGroup.TemperatureStats) {
+                assertEquals(reading, actual.get(id));
+            }
+        });
+    }
+
+    @Test
+    public void testRoundTripDeviceMessages() {
+        Device.RecordTemperature record = roundTrip(new Device.RecordTemperature(42L, 21.5, 1_500_000_000_000L));
+        assertEquals(42L, record.requestId);
+        assertEquals(21.5, record.value, 0.0);
+        assertEquals(1_500_000_000_000L, record.timestamp);
+
+        assertEquals(42L, roundTrip(new Device.TemperatureRecorded(42L)).requestId);
+        assertEquals(7L, roundTrip(new Device.TemperatureBatchRecorded(7L)).requestId);
+        assertEquals(Long.MAX_VALUE, roundTrip(new Device.ReadTemperature(Long.MAX_VALUE)).requestId);
+
+        Device.RecordTemperatureBatch batch = roundTrip(new Device.RecordTemperatureBatch(
+                new long[]{5L, 6L, 3L}, new double[]{1.0, Double.NaN, -2.5}, new long[]{1000L, 1001L, 999L}));
+        assertArrayEquals(new long[]{5L, 6L, 3L}, batch.requestIds);
+        assertArrayEquals(new double[]{1.0, Double.NaN, -2.5}, batch.values, 0.0);
+        assertArrayEquals(new long[]{1000L, 1001L, 999L}, batch.timestamps);
+
+        Device.RespondTemperature withValue = roundTrip(new Device.RespondTemperature(1L, true, 20.0));
+        assertEquals(1L, withValue.requestId);
+        assertTrue(withValue.hasValue);
+        assertEquals(20.0, withValue.temperature, 0.0);
+        assertFalse(roundTrip(new Device.RespondTemperature(2L, false, 0.0)).value().isPresent());
+
+        Device.ReadTemperatureStats read = roundTrip(new Device.ReadTemperatureStats(3L, 60_000L, 99.0));
+        assertEquals(60_000L, read.windowMillis);
+        assertEquals(99.0, read.percentile, 0.0);
+
+        Device.RespondTemperatureStats stats = roundTrip(
+                new Device.RespondTemperatureStats(4L, 0, Double.NaN, Double.NaN, Double.NaN, Double.NaN));
+        assertEquals(4L, stats.requestId);
+        assertEquals(0, stats.count);
+        assertTrue(Double.isNaN(stats.mean));
+    }
+
+    @Test
+    public void testRoundTripGroupMessages() {
+        DeviceGroup.RecordTemperatures record = roundTrip(new DeviceGroup.RecordTemperatures(
+                new String[]{"device1", "device2"}, new long[]{1L, 2L}, new double[]{20.0, 21.0},
+                new long[]{1000L, 1000L}));
+        assertArrayEquals(new String[]{"device1", "device2"}, record.deviceIds);
+        assertArrayEquals(new long[]{1L, 2L}, record.requestIds);
+        assertArrayEquals(new double[]{20.0, 21.0}, record.values, 0.0);
+        assertArrayEquals(new long[]{1000L, 1000L}, record.timestamps);
+
+        assertArrayEquals(new long[]{3L, 1L},
+                          roundTrip(new DeviceGroup.TemperaturesRecorded(new long[]{3L, 1L})).requestIds);
+
+        DeviceGroup.TemperatureChanged changed = roundTrip(
+                new DeviceGroup.TemperatureChanged("device1", 22.0, 1_500_000_000_000L));
+        assertEquals("device1", changed.deviceId);
+        assertEquals(22.0, changed.value, 0.0);
+        assertEquals(1_500_000_000_000L, changed.timestamp);
+
+        DeviceGroup.Passivate passivate = roundTrip(new DeviceGroup.Passivate("device1", true, 23.0, 5_000_000_000L));
+        assertEquals("device1", passivate.deviceId);
+        assertTrue(passivate.hasValue);
+        assertEquals(23.0, passivate.value, 0.0);
+        assertEquals(5_000_000_000L, passivate.silentNanos);
+
+        DeviceGroup.Passivated passivated = roundTrip(new DeviceGroup.Passivated("device1", false, 0.0, 7L));
+        assertEquals("device1", passivated.deviceId);
+        assertFalse(passivated.hasValue);
+        assertEquals(7L, passivated.silentNanos);
+
+        assertEquals(5L, roundTrip(new DeviceGroup.RequestDeviceList(5L)).requestId);
+        DeviceGroup.ReplyDeviceList list = roundTrip(
+                new DeviceGroup.ReplyDeviceList(5L, new HashSet<>(Arrays.asList("device1", "device2"))));
+        assertEquals(new HashSet<>(Arrays.asList("device1", "device2")), list.ids);
+
+        DeviceGroup.RequestAllTemperatures quorum = new DeviceGroup.RequestAllTemperatures(
+                6L, 100L, FiniteDuration.create(250, TimeUnit.MILLISECONDS), CompletionPolicy.quorum(0.9));
+        assertEquals(quorum.toString(), roundTrip(quorum).toString());
+        DeviceGroup.RequestAllTemperatures all = roundTrip(new DeviceGroup.RequestAllTemperatures(7L));
+        assertEquals(new DeviceGroup.RequestAllTemperatures(7L), all);
+        assertSame(CompletionPolicy.all(), all.policy);
+        assertEquals(new DeviceGroup.RequestAllTemperatures(8L, FiniteDuration.create(1, TimeUnit.SECONDS),
+                                                            CompletionPolicy.firstK(3)).toString(),
+                     roundTrip(new DeviceGroup.RequestAllTemperatures(8L, FiniteDuration.create(1, TimeUnit.SECONDS),
+                                                                      CompletionPolicy.firstK(3))).toString());
+
+        DeviceGroup.RequestAllTemperaturesStreamed streamed = new DeviceGroup.RequestAllTemperaturesStreamed(
+                9L, 100, FiniteDuration.create(50, TimeUnit.MILLISECONDS));
+        assertEquals(streamed, roundTrip(streamed));
+        DeviceGroup.RequestAllTemperaturesStreamed streamedQuorum = new DeviceGroup.RequestAllTemperaturesStreamed(
+                9L, 100, FiniteDuration.create(50, TimeUnit.MILLISECONDS), FiniteDuration.create(1, TimeUnit.SECONDS),
+                CompletionPolicy.quorum(0.5));
+        assertEquals(streamedQuorum.toString(), roundTrip(streamedQuorum).toString());
+
+        DeviceGroup.TemperaturesChunk chunk = roundTrip(new DeviceGroup.TemperaturesChunk(10L, 2, readings()));
+        assertEquals(2, chunk.sequenceNr);
+        assertSameReadings(readings(), chunk.temperatures);
+
+        DeviceGroup.TemperaturesStreamCompleted completed = new DeviceGroup.TemperaturesStreamCompleted(
+                10L, 3, Arrays.asList("device4", "device5"));
+        assertEquals(completed, roundTrip(completed));
+
+        DeviceGroup.RequestAllTemperatureStats requestStats =
+                new DeviceGroup.RequestAllTemperatureStats(11L, 60_000L, 50.0);
+        assertEquals(requestStats, roundTrip(requestStats));
+        DeviceGroup.RequestAllTemperatureStats requestStatsFirstK = new DeviceGroup.RequestAllTemperatureStats(
+                11L, 60_000L, 50.0, FiniteDuration.create(1, TimeUnit.SECONDS), CompletionPolicy.firstK(2));
+        assertEquals(requestStatsFirstK.toString(), roundTrip(requestStatsFirstK).toString());
+
+        DeviceGroup.RespondAllTemperatures response =
+                roundTrip(new DeviceGroup.RespondAllTemperatures(12L, readings()));
+        assertEquals(12L, response.requestId);
+        assertSameReadings(readings(), response.temperatures);
+        assertTrue(roundTrip(new DeviceGroup.RespondAllTemperatures(13L, Collections.emptyMap()))
+                           .temperatures.isEmpty());
+
+        for (AlertCondition condition : Arrays.asList(AlertCondition.above(30.0), AlertCondition.below(-5.0),
+                                                      AlertCondition.rateOfChangeAbove(0.5),
+                                                      AlertCondition.absentFor(60_000L))) {
+            DeviceGroup.SubscribeAlerts subscribe = new DeviceGroup.SubscribeAlerts(14L, condition);
+            assertEquals(subscribe, roundTrip(subscribe));
+        }
+        assertEquals(new DeviceGroup.AlertsSubscribed(15L), roundTrip(new DeviceGroup.AlertsSubscribed(15L)));
+        assertEquals(new DeviceGroup.UnsubscribeAlerts(16L), roundTrip(new DeviceGroup.UnsubscribeAlerts(16L)));
+        DeviceGroup.Alert alert = new DeviceGroup.Alert(
+                17L, "group", "device1", AlertCondition.Kind.ABOVE, 31.5, 1_500_000_000_000L);
+        assertEquals(alert, roundTrip(alert));
+
+        for (DeviceGroup.FeedOverflow overflow : DeviceGroup.FeedOverflow.values()) {
+            DeviceGroup.SubscribeReadings subscribe = new DeviceGroup.SubscribeReadings(18L, 500, overflow);
+            assertEquals(subscribe, roundTrip(subscribe));
+        }
+        assertEquals(new DeviceGroup.ReadingsSubscribed(19L), roundTrip(new DeviceGroup.ReadingsSubscribed(19L)));
+        assertEquals(new DeviceGroup.UnsubscribeReadings(20L), roundTrip(new DeviceGroup.UnsubscribeReadings(20L)));
+        DeviceGroup.ReadingChanges changes = new DeviceGroup.ReadingChanges(
+                21L, 3L, new String[]{"device1", "device2"}, new double[]{20.5, 21.5},
+                new long[]{1_500_000_000_000L, 1_500_000_000_100L}, 7L);
+        assertEquals(changes, roundTrip(changes));
+        assertEquals(new DeviceGroup.ReadingChangesAck(21L, 3L), roundTrip(new DeviceGroup.ReadingChangesAck(21L, 3L)));
+    }
+
+    @Test
+    public void testRoundTripManagerMessages() {
+        DeviceManager.RequestTrackDevice track = roundTrip(new DeviceManager.RequestTrackDevice("group", "device"));
+        assertEquals("group", track.groupId);
+        assertEquals("device", track.deviceId);
+
+        assertTrue(roundTrip(new DeviceManager.DeviceRegistered()) instanceof DeviceManager.DeviceRegistered);
+
+        DeviceManager.RestoreGroup restore = roundTrip(new DeviceManager.RestoreGroup(
+                "group", new String[]{"device1", "device2"}, new boolean[]{true, false}, new double[]{20.0, 0.0}));
+        assertEquals("group", restore.groupId);
+        assertArrayEquals(new String[]{"device1", "device2"}, restore.deviceIds);
+        assertArrayEquals(new boolean[]{true, false}, restore.hasValue);
+        assertArrayEquals(new double[]{20.0, 0.0}, restore.values, 0.0);
+        assertFalse(restore.handOff);
+        assertTrue(roundTrip(new DeviceManager.RestoreGroup(
+                "group", new String[]{"device1"}, new boolean[]{true}, new double[]{20.0}, true)).handOff);
+
+        DeviceManager.RecordTemperatures record = roundTrip(new DeviceManager.RecordTemperatures(
+                "group", new DeviceGroup.RecordTemperatures(new String[]{"device1"}, new long[]{1L},
+                                                            new double[]{20.0}, new long[]{1000L})));
+        assertEquals("group", record.groupId);
+        assertArrayEquals(new String[]{"device1"}, record.readings.deviceIds);
+
+        assertEquals(14L, roundTrip(new DeviceManager.RequestMetrics(14L)).requestId);
+
+        DeviceManager.ForGroup forGroup = roundTrip(
+                new DeviceManager.ForGroup("group", new DeviceGroup.RequestAllTemperatures(15L)));
+        assertEquals("group", forGroup.groupId);
+        assertEquals(new DeviceGroup.RequestAllTemperatures(15L), forGroup.message);
+
+        PriorityIngestMailbox.Dropped dropped = roundTrip(
+                new PriorityIngestMailbox.Dropped(new Device.RecordTemperature(16L, 20.0, 1000L)));
+        assertEquals(16L, ((Device.RecordTemperature) dropped.message).requestId);
+
+        DeviceManager.RequestFleetTemperatures fleet = roundTrip(new DeviceManager.RequestFleetTemperatures(
+                17L, FleetFilter.all().withGroupIdPrefix("north").withMinValue(20.0).withLimit(5)
+                                .withLowestFirst(true), FiniteDuration.create(2, TimeUnit.SECONDS)));
+        assertEquals(17L, fleet.requestId);
+        assertEquals("north", fleet.filter.groupIdPrefix);
+        assertEquals(20.0, fleet.filter.minValue, 0.0);
+        assertEquals(Double.POSITIVE_INFINITY, fleet.filter.maxValue, 0.0);
+        assertEquals(5, fleet.filter.limit);
+        assertTrue(fleet.filter.lowestFirst);
+        assertEquals(FiniteDuration.create(2, TimeUnit.SECONDS), fleet.timeout);
+
+        DeviceManager.RespondFleetTemperatures top = roundTrip(new DeviceManager.RespondFleetTemperatures(
+                18L, Arrays.asList(new DeviceManager.FleetTemperature("north-1", "device1", 25.0),
+                                   new DeviceManager.FleetTemperature("north-2", "device1", 24.5)),
+                40L, 3, false));
+        assertEquals(18L, top.requestId);
+        assertEquals(Arrays.asList(new DeviceManager.FleetTemperature("north-1", "device1", 25.0),
+                                   new DeviceManager.FleetTemperature("north-2", "device1", 24.5)),
+                     top.temperatures);
+        assertEquals(40L, top.matching);
+        assertEquals(3, top.groups);
+        assertFalse(top.complete);
+
+        DeviceManager.ShardFleetTemperatures shard = roundTrip(new DeviceManager.ShardFleetTemperatures(
+                19L, FleetFilter.all().withMaxValue(30.0).withLimit(7), FiniteDuration.create(1, TimeUnit.SECONDS)));
+        assertEquals(19L, shard.requestId);
+        assertEquals(30.0, shard.filter.maxValue, 0.0);
+        assertEquals(7, shard.filter.limit);
+        assertEquals(FiniteDuration.create(1, TimeUnit.SECONDS), shard.timeout);
+
+        DeviceGroup.RequestTopTemperatures group = roundTrip(new DeviceGroup.RequestTopTemperatures(
+                20L, FleetFilter.all().withMinValue(18.0).withLowestFirst(true),
+                FiniteDuration.create(500, TimeUnit.MILLISECONDS)));
+        assertEquals(20L, group.requestId);
+        assertEquals(18.0, group.filter.minValue, 0.0);
+        assertTrue(group.filter.lowestFirst);
+        assertEquals(FiniteDuration.create(500, TimeUnit.MILLISECONDS), group.timeout);
+    }
+
+    @Test
+    public void testRoundTripThroughDirectByteBuffer() throws NotSerializableException {
+        IotSerializer serializer = new IotSerializer();
+        DeviceGroup.RespondAllTemperatures response = new DeviceGroup.RespondAllTemperatures(1L, readings());
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+        serializer.toBinary(response, buffer);
+        buffer.flip();
+
+        DeviceGroup.RespondAllTemperatures read = (DeviceGroup.RespondAllTemperatures)
+                serializer.fromBinary(buffer, serializer.manifest(response));
+        assertSameReadings(readings(), read.temperatures);
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testEncodeLargeMessagesAndIncreasingIdsCompactly() {
+        IotSerializer serializer = new IotSerializer();
+        int devices = 10_000;
+        Map<String, TemperatureReading> readings = new HashMap<>();
+        long[] requestIds = new long[devices];
+        for (int i = 0; i < devices; i++) {
+            readings.put("device" + i, new DeviceGroup.Temperature(i));
+            requestIds[i] = 1_000_000L + i;
+        }
+        DeviceGroup.RespondAllTemperatures response = new DeviceGroup.RespondAllTemperatures(1L, readings);
+        assertSameReadings(readings, roundTrip(response).temperatures);
+
+        // the length and chars of an id, a tag and a double per device
+        int bytes = serializer.toBinary(response).length;
+        assertTrue("encoded in " + bytes + " bytes", bytes <= devices * (1 + 10 + 1 + 8) + 16);
+        // the first id, then a byte per increment
+        assertTrue(serializer.toBinary(new DeviceGroup.TemperaturesRecorded(requestIds)).length < devices + 16);
+    }
+
+    @Test
+    public void testRejectTruncatedAndCorruptFrames() {
+        IotSerializer serializer = new IotSerializer();
+        Object[] messages = {
+                new Device.RecordTemperatureBatch(new long[]{1L, 2L}, new double[]{20.0, 21.0}, new long[]{5L, 6L}),
+                new DeviceGroup.RecordTemperatures(new String[]{"device1", "device2"}, new long[]{1L, 2L},
+                                                   new double[]{20.0, 21.0}, new long[]{5L, 6L}),
+                new DeviceGroup.RespondAllTemperatures(1L, readings()),
+                new DeviceManager.RestoreGroup("group", new String[]{"device1"}, new boolean[]{true},
+                                               new double[]{20.0}),
+                new DeviceManager.ForGroup("group", new DeviceGroup.RequestDeviceList(1L))
+        };
+        for (Object message : messages) {
+            byte[] bytes = serializer.toBinary(message);
+            for (int length = 0; length < bytes.length; length++) {
+                assertNotSerializable(serializer, Arrays.copyOf(bytes, length), serializer.manifest(message));
+            }
+        }
+
+        // lengths far beyond the frame, one that is negative as an int and one that is negative as a long
+        byte[][] lengths = {
+                {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07},
+                {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F},
+                {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                 (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01}
+        };
+        for (byte[] length : lengths) {
+            byte[] bytes = Arrays.copyOf(length, length.length + 8);
+            // a request id before the length of the readings
+            byte[] afterRequestId = new byte[bytes.length + 1];
+            System.arraycopy(bytes, 0, afterRequestId, 1, bytes.length);
+            assertNotSerializable(serializer, bytes,
+                                  serializer.manifest(new DeviceGroup.TemperaturesRecorded(new long[0])));
+            assertNotSerializable(serializer, bytes, serializer.manifest(messages[0]));
+            assertNotSerializable(serializer, bytes, serializer.manifest(messages[1]));
+            assertNotSerializable(serializer, afterRequestId, serializer.manifest(messages[2]));
+            assertNotSerializable(serializer, bytes, serializer.manifest(messages[4]));
+        }
+    }
+
+    private static void assertNotSerializable(IotSerializer serializer, byte[] bytes, String manifest) {
+        try {
+            Object message = serializer.fromBinary(bytes, manifest);
+            throw new AssertionError("Decoded " + message + " from " + Arrays.toString(bytes));
+        } catch (NotSerializableException expected) {
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.lightbend.akka.sample.iot;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testRecordLatenciesWithoutAllocating() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 100_000; i++) {
+            histogram.record(i);
+        }
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100_000; i++) {
+            histogram.record(i * 1_000L);
+        }
+        assertTrue(threads.getThreadAllocatedBytes(threadId) - before < 1024);
+
+        IotMetrics.LatencySnapshot snapshot = histogram.snapshot();
+        assertEquals(200_000L, snapshot.getCount());
+        // log-linear buckets report within 1/64 of the recorded value
+        assertEquals(80_000_000.0, snapshot.getP90(), 80_000_000.0 / 64);
+        assertEquals(99_999_000L, snapshot.getMax());
+    }
+}
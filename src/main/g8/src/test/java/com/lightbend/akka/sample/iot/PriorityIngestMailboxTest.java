@@ -0,0 +1,188 @@
+package com.lightbend.akka.sample.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.dispatch.MessageQueue;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import scala.Option;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PriorityIngestMailboxTest {
+    static ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    private static MessageQueue queue(int ingestCapacity, String overflow) {
+        return new PriorityIngestMailbox(system.settings(), ConfigFactory.parseString(
+                "actor-type = group\ningest-capacity = " + ingestCapacity + "\noverflow = " + overflow))
+                .create(Option.empty(), Option.apply(system));
+    }
+
+    private static void enqueue(MessageQueue queue, Object message, TestKit sender) {
+        queue.enqueue(ActorRef.noSender(), Envelope.apply(message, sender.getRef(), system));
+    }
+
+    private static Object dequeue(MessageQueue queue) {
+        return queue.dequeue().message();
+    }
+
+    @Test
+    public void testDeliverQueriesAheadOfReadings() {
+        TestKit probe = new TestKit(system);
+        MessageQueue queue = queue(10, "drop-oldest");
+        Device.RecordTemperature first = new Device.RecordTemperature(1L, 20.0);
+        Device.RecordTemperature second = new Device.RecordTemperature(2L, 21.0);
+        DeviceGroup.RequestAllTemperatures query = new DeviceGroup.RequestAllTemperatures(3L);
+        Device.ReadTemperature read = new Device.ReadTemperature(4L);
+        enqueue(queue, first, probe);
+        enqueue(queue, second, probe);
+        enqueue(queue, query, probe);
+        enqueue(queue, read, probe);
+
+        assertEquals(4, queue.numberOfMessages());
+        assertSame(query, dequeue(queue));
+        assertSame(read, dequeue(queue));
+        assertSame(first, dequeue(queue));
+        assertSame(second, dequeue(queue));
+        assertFalse(queue.hasMessages());
+        assertNull(queue.dequeue());
+    }
+
+    @Test
+    public void testNeverDropReportedChanges() {
+        TestKit probe = new TestKit(system);
+        MessageQueue queue = queue(1, "reject");
+        Device.RecordTemperature reading = new Device.RecordTemperature(1L, 20.0);
+        DeviceGroup.TemperatureChanged first = new DeviceGroup.TemperatureChanged("device1", 20.0, 1000L);
+        DeviceGroup.TemperatureChanged second = new DeviceGroup.TemperatureChanged("device2", 21.0, 1000L);
+        enqueue(queue, reading, probe);
+        enqueue(queue, first, probe);
+        enqueue(queue, second, probe);
+
+        // the group's snapshot and feed would stay wrong for a device whose change got lost
+        assertEquals(3, queue.numberOfMessages());
+        assertSame(first, dequeue(queue));
+        assertSame(second, dequeue(queue));
+        assertSame(reading, dequeue(queue));
+        probe.expectNoMessage(Duration.ofMillis(100));
+    }
+
+    @Test
+    public void testKeepBarrierBehindReadingsAndNeverDropIt() {
+        TestKit probe = new TestKit(system);
+        MessageQueue queue = queue(1, "drop-oldest");
+        Device.RecordTemperature first = new Device.RecordTemperature(1L, 20.0);
+        Device.RecordTemperature second = new Device.RecordTemperature(2L, 21.0);
+        Device.ReadTemperature read = new Device.ReadTemperature(3L);
+        enqueue(queue, first, probe);
+        enqueue(queue, Device.Stop.INSTANCE, probe);
+        enqueue(queue, read, probe);
+        // the barrier does not count against the capacity, and the reading ahead of it is dropped
+        enqueue(queue, second, probe);
+
+        assertSame(first, probe.expectMsgClass(PriorityIngestMailbox.Dropped.class).message);
+        assertEquals(3, queue.numberOfMessages());
+        assertSame(read, dequeue(queue));
+        assertSame(Device.Stop.INSTANCE, dequeue(queue));
+        assertSame(second, dequeue(queue));
+        assertFalse(queue.hasMessages());
+    }
+
+    @Test
+    public void testDropOldestReadingWhenFull() {
+        TestKit probe = new TestKit(system);
+        MessageQueue queue = queue(2, "drop-oldest");
+        long droppedBefore = IotMetrics.get(system).groups.dropped.sum();
+        DeviceGroup.RecordTemperatures oldest = new DeviceGroup.RecordTemperatures(
+                new String[]{"device1"}, new long[]{1L}, new double[]{20.0}, new long[]{1000L});
+        Device.RecordTemperature second = new Device.RecordTemperature(2L, 21.0);
+        Device.RecordTemperature third = new Device.RecordTemperature(3L, 22.0);
+        enqueue(queue, oldest, probe);
+        enqueue(queue, second, probe);
+        enqueue(queue, third, probe);
+
+        assertSame(oldest, probe.expectMsgClass(PriorityIngestMailbox.Dropped.class).message);
+        assertEquals(droppedBefore + 1, IotMetrics.get(system).groups.dropped.sum());
+        assertSame(second, dequeue(queue));
+        assertSame(third, dequeue(queue));
+        assertFalse(queue.hasMessages());
+    }
+
+    @Test
+    public void testCoalesceReadingsOfTheSameDeviceWhenFull() {
+        TestKit probe = new TestKit(system);
+        MessageQueue queue = queue(3, "coalesce");
+        KeyedReading device1 = new KeyedReading("device1");
+        KeyedReading device2 = new KeyedReading("device2");
+        KeyedReading device1Again = new KeyedReading("device1");
+        KeyedReading device1Latest = new KeyedReading("device1");
+        KeyedReading device3 = new KeyedReading("device3");
+        enqueue(queue, device1, probe);
+        enqueue(queue, device2, probe);
+        enqueue(queue, device1Again, probe);
+        enqueue(queue, device1Latest, probe);
+        assertSame(device1Again, probe.expectMsgClass(PriorityIngestMailbox.Dropped.class).message);
+        enqueue(queue, device3, probe);
+        assertSame(device1, probe.expectMsgClass(PriorityIngestMailbox.Dropped.class).message);
+
+        assertEquals(3, queue.numberOfMessages());
+        assertSame(device2, dequeue(queue));
+        assertSame(device1Latest, dequeue(queue));
+        assertSame(device3, dequeue(queue));
+        assertFalse(queue.hasMessages());
+    }
+
+    @Test
+    public void testRejectReadingsWhenFull() {
+        TestKit probe = new TestKit(system);
+        MessageQueue queue = queue(1, "reject");
+        Device.RecordTemperature accepted = new Device.RecordTemperature(1L, 20.0);
+        Device.RecordTemperature rejected = new Device.RecordTemperature(2L, 21.0);
+        enqueue(queue, accepted, probe);
+        enqueue(queue, rejected, probe);
+
+        assertSame(rejected, probe.expectMsgClass(PriorityIngestMailbox.Dropped.class).message);
+        assertSame(accepted, dequeue(queue));
+        assertFalse(queue.hasMessages());
+        enqueue(queue, rejected, probe);
+        assertTrue(queue.hasMessages());
+        probe.expectNoMessage(Duration.ofMillis(100));
+    }
+
+    /**
+     * A reading that a later one of the same device makes redundant.
+     */
+    private static final class KeyedReading implements PriorityIngestMailbox.IngestMessage {
+        final String deviceId;
+
+        KeyedReading(String deviceId) {
+            this.deviceId = deviceId;
+        }
+
+        @Override
+        public Object coalesceKey() {
+            return deviceId;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.lightbend.akka.sample.iot;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TemperatureJournalTest {
+
+    @Test
+    public void testCompactToTheLastReadingOfEveryDevice() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        try (TemperatureJournal journal = TemperatureJournal.open(directory, 64 * 1024 * 1024)) {
+            journal.append(TemperatureJournal.key("device1"), 1000L, 20.0);
+            journal.append(TemperatureJournal.key("device2"), 1000L, 18.0);
+            journal.append(TemperatureJournal.key("device1"), 2000L, 21.5);
+        }
+
+        for (int restart = 0; restart < 3; restart++) {
+            PassivatedDevices recovered = new PassivatedDevices();
+            try (TemperatureJournal journal = TemperatureJournal.open(directory, 64 * 1024 * 1024, recovered)) {
+                assertEquals(2, recovered.size());
+                assertEquals(21.5, recovered.value("device1"), 0.0);
+                assertEquals(18.0, recovered.value("device2"), 0.0);
+            }
+            List<Path> segments = TemperatureJournal.segments(directory);
+            assertEquals(1, segments.size());
+            // only the two compacted records are left of the segment
+            assertEquals(2 * TemperatureJournal.RECORD_SIZE, Files.size(segments.get(0)));
+        }
+    }
+
+    @Test
+    public void testGrowSegmentsUpToTheSegmentSize() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        int segmentRecords = 4096;
+        byte[] key = TemperatureJournal.key("device");
+        try (TemperatureJournal journal = TemperatureJournal.open(
+                directory, segmentRecords * TemperatureJournal.RECORD_SIZE)) {
+            List<Path> segments = TemperatureJournal.segments(directory);
+            assertEquals(1, segments.size());
+            assertTrue(Files.size(segments.get(0)) < segmentRecords * TemperatureJournal.RECORD_SIZE);
+
+            for (int i = 0; i < segmentRecords + 10; i++) {
+                journal.append(key, i, i);
+            }
+            segments = TemperatureJournal.segments(directory);
+            assertEquals(2, segments.size());
+            assertEquals(segmentRecords * TemperatureJournal.RECORD_SIZE, Files.size(segments.get(0)));
+        }
+        List<Path> segments = TemperatureJournal.segments(directory);
+        assertEquals(10 * TemperatureJournal.RECORD_SIZE, Files.size(segments.get(1)));
+
+        PassivatedDevices recovered = TemperatureJournal.recover(directory);
+        assertEquals(1, recovered.size());
+        assertEquals(segmentRecords + 9, recovered.value("device"), 0.0);
+        assertFalse(recovered.contains("other"));
+    }
+}